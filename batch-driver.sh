@@ -0,0 +1,31 @@
+#!/bin/bash
+#
+# batch-driver.sh: parse a whole corpus, a directory of text files,
+# into the "compact format" of WebFormat (see batch-process.sh), with
+# one output file per input file, or per --shard-bytes of it.
+#
+# Unlike multi-page.sh and batch-wiki.sh, the run can be stopped, or
+# can crash, and be resumed: run the same command again, and it skips
+# the shards listed in the output directory's manifest.txt. The
+# --max-cpu option does the job of src/perl/cpu-control.pl.
+#
+# Example usage:
+#    ./batch-driver.sh --input ../wiki/simplewiki-stripped -o ../wiki/parsed \
+#        -j 4 --shard-bytes 10000000 --max-cpu 93 \
+#        --url http://simple.wikipedia.org/wiki/
+#
+# Use --processes N instead of -j N to parse in N separate JVMs.
+#
+export LANG=en_US.UTF-8
+
+VM_OPTS="-Xmx1024m"
+
+RELEX_OPTS="\
+	-Djava.library.path=/usr/lib:/usr/lib/jni:/usr/local/lib:/usr/local/lib/jni \
+	-Drelex.algpath=data/relex-semantic.algs \
+	-Dwordnet.configfile=data/wordnet/file_properties.xml \
+	"
+
+CLASSPATH='-classpath ./target/classes:./target/lib/*'
+
+java $VM_OPTS $RELEX_OPTS $CLASSPATH relex.concurrent.BatchDriver "$@"
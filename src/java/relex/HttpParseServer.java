@@ -0,0 +1,709 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package relex;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import relex.concurrent.AdmissionController;
+import relex.output.CompactView;
+import relex.output.StanfordView;
+import relex.parser.JSONReader;
+import relex.parser.LGParser;
+import relex.parser.LocalLGParser;
+import relex.parser.ParserWorkerPool;
+import relex.utils.Deadline;
+
+/**
+ * An HTTP/1.1 parse server, for clients that would rather speak HTTP
+ * than the socket protocols of Server and PlainTextServer. It is built
+ * on the JDK's com.sun.net.httpserver, which keeps connections alive
+ * from one request to the next.
+ *
+ * POST /parse parses one sentence. POST /parse/batch parses a list of
+ * sentences, or a document, and streams the output for each sentence,
+ * in chunked encoding, as soon as it is parsed. The body is plain
+ * text, or else JSON, as for a PlainTextServer batch: {"text": ...}
+ * for /parse, {"sentences": [...]} or {"document": ...} for
+ * /parse/batch. The "format" of the output is compact (the XML of
+ * CompactView, the default), opencog (Atomese, as from Server) or
+ * stanford (Stanford-style dependency relations); it, and
+ * "maxLinkages", may be given in the JSON or as query parameters.
+ * The response is gzipped if the client accepts that.
+ *
+ * Link-grammar parsing is done by a ParserWorkerPool. A request is
+ * served by one of as many Workers as the pool has threads, so no more
+ * sentences are parsed at once than the pool can take; other requests
+ * wait their turn. Or rather, they are admitted to wait by an
+ * AdmissionController, with their sentences as the cost; if it refuses
+ * one, or it waits too long for a Worker, the reply is 503, with a
+ * Retry-After header.
+ *
+ * Example usage:
+ * curl -d 'This is a test.' 'http://localhost:4080/parse?format=opencog'
+ * curl --compressed -d '{"document":"Dogs bark. Cats meow."}' http://localhost:4080/parse/batch
+ */
+public class HttpParseServer
+{
+	public static final int DEFAULT_PORT = 4080;
+	public static final int MAX_BODY_BYTES = 16 * 1024 * 1024;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	enum Format
+	{
+		COMPACT("application/xml"),
+		OPENCOG("text/plain"),
+		STANFORD("text/plain");
+
+		final String content_type;
+
+		Format(String content_type)
+		{
+			this.content_type = content_type;
+		}
+	}
+
+	// command-line arguments
+	private int listen_port = DEFAULT_PORT;
+	private int nthreads = 4;
+	private int max_parses = 4;
+	private long max_sentence_millis = 0;
+	private int max_queued = AdmissionController.DEFAULT_MAX_QUEUED;
+	private int max_per_client = 0;
+	private long max_queue_millis = 0;
+	private String lang = "en";
+	private String dict_path = null;
+	private boolean verbose = false;
+
+	private ParserWorkerPool parser_pool = null;
+	private ArrayBlockingQueue<Worker> idle_workers = null;
+	private AdmissionController admission = null;
+	private ExecutorService handlers = null;
+	private HttpServer server = null;
+
+	/**
+	 * What a request parses with. The parsing itself is done by the
+	 * pool, so these hold no link-grammar state.
+	 */
+	private class Worker
+	{
+		final int id;
+		final RelationExtractor re;
+		ServerSession sess = null;
+
+		Worker(int id)
+		{
+			this.id = id;
+			re = new RelationExtractor(false);
+			re.setParser(parser_pool);
+			re.setMaxParses(max_parses);
+		}
+
+		/** For OpenCog output, made when first needed. */
+		ServerSession session()
+		{
+			if (sess == null)
+			{
+				sess = new ServerSession();
+				sess.id = id;
+				sess.sess_setup(true, false, false, max_parses, lang, parser_pool);
+				sess.verbose = verbose;
+			}
+			return sess;
+		}
+	}
+
+	/** A request that cannot be served; becomes an HTTP error. */
+	private static class RequestException extends Exception
+	{
+		private static final long serialVersionUID = 1L;
+		final int status;
+
+		RequestException(int status, String msg)
+		{
+			super(msg);
+			this.status = status;
+		}
+	}
+
+	/** Service unavailable, for the client to try again later. */
+	private static class OverloadedException extends RequestException
+	{
+		private static final long serialVersionUID = 1L;
+		final long retry_millis;
+
+		OverloadedException(String reason, long retry_millis)
+		{
+			super(503, "Overloaded: " + reason);
+			this.retry_millis = retry_millis;
+		}
+	}
+
+	// -----------------------------------------------------------------
+	/** Port to listen on; zero for any free one, see getPort(). */
+	public void setPort(int port)
+	{
+		listen_port = port;
+	}
+
+	/** The port listened on, once started. */
+	public int getPort()
+	{
+		return (server == null) ? listen_port : server.getAddress().getPort();
+	}
+
+	/** Number of sentences to parse at once. */
+	public void setThreads(int n)
+	{
+		nthreads = Math.max(1, n);
+	}
+
+	/** Time limit per sentence, in milliseconds; zero for none. */
+	public void setMaxSentenceMillis(long millis)
+	{
+		max_sentence_millis = millis;
+	}
+
+	/** See AdmissionController; zero for no limit. */
+	public void setAdmissionLimits(int max_queued, int max_per_client,
+	                               long max_queue_millis)
+	{
+		this.max_queued = max_queued;
+		this.max_per_client = max_per_client;
+		this.max_queue_millis = max_queue_millis;
+	}
+
+	/** Start the parser pool, and then the server. */
+	public void start() throws IOException
+	{
+		LocalLGParser proto = new LocalLGParser();
+		proto.setLanguage(lang);
+		if (dict_path != null) proto.setDictPath(dict_path);
+		start(proto);
+	}
+
+	/**
+	 * As above, but parse with copies of the given parser, one per
+	 * thread; see LGParser.copyForThread().
+	 */
+	public void start(LGParser proto) throws IOException
+	{
+		parser_pool = new ParserWorkerPool(proto, nthreads);
+		parser_pool.init();
+
+		idle_workers = new ArrayBlockingQueue<Worker>(nthreads);
+		for (int i = 0; i < nthreads; i++)
+			idle_workers.add(new Worker(i+1));
+		admission = new AdmissionController(nthreads, max_queued,
+		                                    max_per_client, max_queue_millis);
+
+		// The handler threads only wait for a Worker, and are bounded by
+		// the admission control.
+		final AtomicInteger n = new AtomicInteger();
+		handlers = Executors.newCachedThreadPool(new ThreadFactory()
+		{
+			public Thread newThread(Runnable r)
+			{
+				return new Thread(r, "relex-http-" + n.getAndIncrement());
+			}
+		});
+
+		server = HttpServer.create(new InetSocketAddress(listen_port), 0);
+		server.createContext("/parse", new ParseHandler(false));
+		server.createContext("/parse/batch", new ParseHandler(true));
+		server.setExecutor(handlers);
+		server.start();
+	}
+
+	public void stop()
+	{
+		server.stop(0);
+		handlers.shutdown();
+		parser_pool.doFinalize();
+	}
+
+	// -----------------------------------------------------------------
+	private class ParseHandler implements HttpHandler
+	{
+		final boolean batch;
+
+		ParseHandler(boolean batch)
+		{
+			this.batch = batch;
+		}
+
+		public void handle(HttpExchange ex) throws IOException
+		{
+			try
+			{
+				serve(ex, batch);
+			}
+			catch (OverloadedException e)
+			{
+				System.err.println("Warning: " + e.getMessage() + "; " + admission);
+				long secs = Math.max(1, (e.retry_millis + 999) / 1000);
+				ex.getResponseHeaders().set("Retry-After", Long.toString(secs));
+				send_error(ex, e.status, e.getMessage());
+			}
+			catch (RequestException e)
+			{
+				send_error(ex, e.status, e.getMessage());
+			}
+			catch (IOException e)
+			{
+				System.err.println("Error: " + ex.getRequestURI() + ": " + e.getMessage());
+			}
+			catch (RuntimeException e)
+			{
+				System.err.println("Error: " + ex.getRequestURI() + ": " + e);
+				e.printStackTrace();
+				send_error(ex, 500, e.toString());
+			}
+			finally
+			{
+				ex.close();
+			}
+		}
+	}
+
+	private void serve(HttpExchange ex, boolean batch)
+		throws IOException, RequestException
+	{
+		String path = ex.getRequestURI().getPath();
+		if (!path.equals(batch ? "/parse/batch" : "/parse"))
+			throw new RequestException(404, "No such resource: " + path);
+		if (!"POST".equals(ex.getRequestMethod()))
+		{
+			ex.getResponseHeaders().set("Allow", "POST");
+			throw new RequestException(405, "Use POST");
+		}
+
+		String body = read_body(ex);
+		Map<String, String> query = parse_query(ex.getRequestURI().getRawQuery());
+		Map<?, ?> json = null;
+		if (body.trim().startsWith("{"))
+		{
+			try {
+				Object o = new JSONReader().read(body);
+				if (o instanceof Map) json = (Map<?, ?>) o;
+			} catch (RuntimeException e) {
+				throw new RequestException(400, "Bad JSON: " + e.getMessage());
+			}
+		}
+
+		Format format = get_format(query, json);
+		int num_show = max_parses;
+		if (json != null) num_show = PlainTextServer.Batch.getInt(json, "maxLinkages", num_show);
+		if (query.get("maxLinkages") != null)
+		{
+			try {
+				num_show = Integer.parseInt(query.get("maxLinkages"));
+			} catch (NumberFormatException e) {
+				throw new RequestException(400, "Bad maxLinkages: " + query.get("maxLinkages"));
+			}
+		}
+		num_show = Math.max(1, Math.min(num_show, max_parses));
+
+		List<String> sentences;
+		if (batch)
+		{
+			if (json == null)
+				sentences = PlainTextServer.Batch.split(body);
+			else
+			{
+				PlainTextServer.Batch b = PlainTextServer.Batch.fromJSON(json);
+				if (b == null)
+					throw new RequestException(400, "Expected \"sentences\" or \"document\"");
+				sentences = b.sentences;
+			}
+		}
+		else
+		{
+			String text = body;
+			if (json != null)
+			{
+				Object t = json.get("text");
+				if (!(t instanceof String))
+					throw new RequestException(400, "Expected \"text\"");
+				text = (String) t;
+			}
+			text = text.trim();
+			if (text.length() == 0)
+				throw new RequestException(400, "No text");
+			sentences = new ArrayList<String>();
+			sentences.add(text);
+		}
+		System.err.println("Info: " + path + " " + sentences.size() +
+			" sentences, format " + format.name().toLowerCase());
+
+		AdmissionController.Ticket ticket = admission.admit(
+			ex.getRemoteAddress().getAddress().getHostAddress(), sentences.size());
+		if (ticket.isRejected())
+			throw new OverloadedException(ticket.getReason(), ticket.getPredictedWaitMillis());
+		Worker w = null;
+		try
+		{
+			w = idle_workers.poll(ticket.getRemainingQueueMillis(), TimeUnit.MILLISECONDS);
+			if (w == null || !ticket.start())
+				throw new OverloadedException("no parser free in time",
+					admission.predictedWaitMillis());
+			respond(ex, w, sentences, format, num_show, batch);
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new OverloadedException("interrupted", 0);
+		}
+		finally
+		{
+			if (w != null) idle_workers.add(w);
+			ticket.finish();
+		}
+	}
+
+	private void respond(HttpExchange ex, Worker w, List<String> sentences,
+	                     Format format, int num_show, boolean batch)
+		throws IOException
+	{
+		Headers h = ex.getResponseHeaders();
+		h.set("Content-Type", format.content_type + "; charset=utf-8");
+		h.set("Vary", "Accept-Encoding");
+		boolean gzip = accepts_gzip(ex);
+		if (gzip) h.set("Content-Encoding", "gzip");
+
+		CompactView cv = null;
+		if (format == Format.COMPACT)
+		{
+			cv = new CompactView();
+			cv.setMaxParses(num_show);
+			cv.setVersion(w.re.getVersion());
+		}
+
+		// A single sentence is sent with its length, the rest streamed.
+		if (!batch)
+		{
+			StringBuilder sb = new StringBuilder();
+			if (cv != null) sb.append(cv.header()).append('\n');
+			sb.append(render(w, sentences.get(0), format, num_show, cv));
+			if (cv != null) sb.append(cv.footer()).append('\n');
+			byte[] bytes = sb.toString().getBytes(UTF8);
+			if (gzip) bytes = gzip(bytes);
+			ex.sendResponseHeaders(200, bytes.length);
+			ex.getResponseBody().write(bytes);
+			return;
+		}
+
+		ex.sendResponseHeaders(200, 0);
+		OutputStream os = ex.getResponseBody();
+		if (gzip) os = new GZIPOutputStream(os, true);
+		Writer out = new OutputStreamWriter(os, UTF8);
+		if (cv != null) out.write(cv.header() + "\n");
+		for (String sentence : sentences)
+		{
+			String text;
+			try
+			{
+				text = render(w, sentence, format, num_show, cv);
+			}
+			catch (RuntimeException e)
+			{
+				// Too late for an error status.
+				System.err.println("Error: Failed to parse: " + e);
+				text = failed(format, sentence);
+			}
+			out.write(text);
+			out.flush();
+		}
+		if (cv != null) out.write(cv.footer() + "\n");
+		out.close();
+	}
+
+	// -----------------------------------------------------------------
+	/** The output for one sentence, in the given format. */
+	private String render(Worker w, String sentence, Format format,
+	                      int num_show, CompactView cv)
+	{
+		Deadline deadline = Deadline.in(max_sentence_millis);
+		if (format == Format.OPENCOG)
+		{
+			StringWriter sw = new StringWriter();
+			PrintWriter pw = new PrintWriter(sw);
+			try
+			{
+				w.session().respond(sentence, pw, deadline);
+			}
+			catch (Exception e)
+			{
+				if (e instanceof RuntimeException) throw (RuntimeException) e;
+				throw new RuntimeException(e);
+			}
+			pw.flush();
+			return sw.toString();
+		}
+		if (format == Format.STANFORD)
+		{
+			Sentence sntc = w.re.processSentence(sentence, deadline, true, true);
+			StringBuilder sb = new StringBuilder();
+			sb.append("Sentence: ").append(sentence).append('\n');
+			int np = Math.min(num_show, sntc.getParses().size());
+			if (np == 0) sb.append("==== NO PARSES ====\n");
+			for (int i = 0; i < np; i++)
+			{
+				sb.append("==== Parse alternative ").append(i+1).append(" ====\n");
+				sb.append(StanfordView.printRelations(sntc.getParses().get(i), true, "    "));
+				sb.append('\n');
+			}
+			return sb.toString();
+		}
+		Sentence sntc = w.re.processSentence(sentence, deadline);
+		return cv.toString(sntc) + "\n";
+	}
+
+	private static String failed(Format format, String sentence)
+	{
+		if (format == Format.COMPACT)
+			return "  <!-- parse failed -->\n";
+		if (format == Format.OPENCOG)
+			return "; PARSE FAILED\n";
+		return "Sentence: " + sentence + "\n==== PARSE FAILED ====\n";
+	}
+
+	private static Format get_format(Map<String, String> query, Map<?, ?> json)
+		throws RequestException
+	{
+		Object f = query.get("format");
+		if (f == null && json != null) f = json.get("format");
+		if (f == null) return Format.COMPACT;
+		try {
+			return Format.valueOf(f.toString().toUpperCase());
+		} catch (IllegalArgumentException e) {
+			throw new RequestException(400, "Unknown format: " + f +
+				"; expected compact, opencog or stanford");
+		}
+	}
+
+	// -----------------------------------------------------------------
+	private static String read_body(HttpExchange ex)
+		throws IOException, RequestException
+	{
+		InputStream in = ex.getRequestBody();
+		ByteArrayOutputStream buf = new ByteArrayOutputStream();
+		byte[] b = new byte[8192];
+		int n;
+		while ((n = in.read(b)) > 0)
+		{
+			buf.write(b, 0, n);
+			if (MAX_BODY_BYTES < buf.size())
+				throw new RequestException(413, "Request body over " + MAX_BODY_BYTES + " bytes");
+		}
+		return buf.toString("UTF-8");
+	}
+
+	private static Map<String, String> parse_query(String raw)
+		throws RequestException
+	{
+		Map<String, String> query = new HashMap<String, String>();
+		if (raw == null) return query;
+		try
+		{
+			for (String pair : raw.split("&"))
+			{
+				int eq = pair.indexOf('=');
+				if (eq < 0) query.put(URLDecoder.decode(pair, "UTF-8"), "");
+				else query.put(URLDecoder.decode(pair.substring(0, eq), "UTF-8"),
+				               URLDecoder.decode(pair.substring(eq + 1), "UTF-8"));
+			}
+		}
+		catch (IllegalArgumentException e)
+		{
+			throw new RequestException(400, "Bad query: " + raw);
+		}
+		catch (IOException e)
+		{
+			throw new RequestException(400, "Bad query: " + raw);
+		}
+		return query;
+	}
+
+	private static boolean accepts_gzip(HttpExchange ex)
+	{
+		List<String> accept = ex.getRequestHeaders().get("Accept-Encoding");
+		if (accept == null) return false;
+		for (String a : accept)
+			for (String enc : a.split(","))
+				if (enc.trim().toLowerCase().startsWith("gzip")
+				    && !enc.replace(" ", "").endsWith("q=0"))
+					return true;
+		return false;
+	}
+
+	private static byte[] gzip(byte[] bytes) throws IOException
+	{
+		ByteArrayOutputStream buf = new ByteArrayOutputStream(bytes.length / 4 + 64);
+		GZIPOutputStream gz = new GZIPOutputStream(buf);
+		gz.write(bytes);
+		gz.close();
+		return buf.toByteArray();
+	}
+
+	private static void send_error(HttpExchange ex, int status, String msg)
+	{
+		try
+		{
+			byte[] bytes = (msg + "\n").getBytes(UTF8);
+			ex.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+			ex.getResponseHeaders().remove("Content-Encoding");
+			ex.sendResponseHeaders(status, bytes.length);
+			ex.getResponseBody().write(bytes);
+		}
+		catch (IOException e)
+		{
+			// The headers went out already, or the client is gone.
+			System.err.println("Error: Cannot send error " + status + ": " + e.getMessage());
+		}
+	}
+
+	// -----------------------------------------------------------------
+	public static void main(String[] args)
+	{
+		String usageString = "HTTP RelEx server.\n" +
+			"POST /parse parses one sentence; POST /parse/batch a list of them, or a document.\n" +
+			"Options:\n" +
+			" -p number  \t Port number to listen on (default: " + DEFAULT_PORT + ")\n" +
+			" --port num \t Port number to listen on (default: " + DEFAULT_PORT + ")\n" +
+			" --threads n\t Number of sentences to parse at once (default: 4)\n" +
+			" -n number  \t Max number of parses to return (default: 4)\n" +
+			" --lang lang\t Set langauge (default: en)\n" +
+			" --dict path\t Dictionary location\n" +
+			" --maxSentenceMillis n\t Time limit per sentence (default: none)\n" +
+			" --max-queued n\t Refuse requests when this many sentences are waiting (default: " +
+				AdmissionController.DEFAULT_MAX_QUEUED + "; 0 for no limit)\n" +
+			" --max-per-client n\t Refuse requests when a client has this many sentences (default: no limit)\n" +
+			" --max-queue-millis n\t Refuse requests that would wait longer (default: no limit)\n" +
+			" --verbose  \t Print parse output to server stdout.\n";
+
+		HashSet<String> flags = new HashSet<String>();
+		flags.add("-h");
+		flags.add("--help");
+		flags.add("--verbose");
+		HashSet<String> opts = new HashSet<String>();
+		opts.add("-n");
+		opts.add("-p");
+		opts.add("--port");
+		opts.add("--threads");
+		opts.add("--lang");
+		opts.add("--dict");
+		opts.add("--maxSentenceMillis");
+		opts.add("--max-queued");
+		opts.add("--max-per-client");
+		opts.add("--max-queue-millis");
+		Map<String,String> commandMap = CommandLineArgParser.parse(args, opts, flags);
+
+		HttpParseServer srv = new HttpParseServer();
+		try
+		{
+			String opt;
+
+			opt = commandMap.get("-p");
+			if (opt != null) srv.listen_port = Integer.parseInt(opt);
+
+			opt = commandMap.get("--port");
+			if (opt != null) srv.listen_port = Integer.parseInt(opt);
+
+			opt = commandMap.get("--threads");
+			if (opt != null) srv.nthreads = Math.max(1, Integer.parseInt(opt));
+
+			opt = commandMap.get("-n");
+			if (opt != null) srv.max_parses = Math.max(1, Integer.parseInt(opt));
+
+			opt = commandMap.get("--lang");
+			if (opt != null) srv.lang = opt;
+
+			opt = commandMap.get("--dict");
+			if (opt != null) srv.dict_path = opt;
+
+			opt = commandMap.get("--maxSentenceMillis");
+			if (opt != null) srv.max_sentence_millis = Long.parseLong(opt);
+
+			opt = commandMap.get("--max-queued");
+			if (opt != null) srv.max_queued = Integer.parseInt(opt);
+
+			opt = commandMap.get("--max-per-client");
+			if (opt != null) srv.max_per_client = Integer.parseInt(opt);
+
+			opt = commandMap.get("--max-queue-millis");
+			if (opt != null) srv.max_queue_millis = Long.parseLong(opt);
+		}
+		catch (Exception e)
+		{
+			System.err.println("Unrecognized parameter.");
+			System.err.println(usageString);
+			System.exit(1);
+		}
+
+		if (commandMap.get("-h") != null ||
+		    commandMap.get("--help") != null)
+		{
+			System.err.println(usageString);
+			System.exit(0);
+		}
+		if (commandMap.get("--verbose") != null)
+		{
+			System.err.println("Info: Verbose server mode set.");
+			srv.verbose = true;
+		}
+
+		System.err.println("Info: Version: " + Version.getVersion());
+		try
+		{
+			srv.start();
+		}
+		catch (IOException e)
+		{
+			System.err.println("Error: Listen failed on port " + srv.listen_port +
+				": " + e.getMessage());
+			System.exit(-1);
+		}
+		System.err.println("Info: Listening on port " + srv.listen_port +
+			", " + srv.nthreads + " parse threads");
+	}
+}
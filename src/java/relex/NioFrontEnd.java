@@ -0,0 +1,613 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package relex;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import relex.concurrent.AdmissionController;
+import relex.corpus.DocSplitter;
+import relex.corpus.DocSplitterFactory;
+import relex.utils.HeapMonitor;
+
+/**
+ * A non-blocking front end for the Server: one thread reads and writes
+ * every connection, through a selector, and a pool of worker threads
+ * parses the sentences. A connection does not hold a worker while it
+ * is idle, and a client may send many sentences without waiting for
+ * the replies; up to a limit, they are all parsed at the same time.
+ * The replies come back in the order that the sentences were sent,
+ * in the same format as from ServerSession.
+ *
+ * Every input line is a sentence, or in free-text mode, is split into
+ * sentences. Unlike the blocking Server, a connection stays open after
+ * its first sentence, until the client closes its end, or sends an
+ * EOT (ctrl-D); it is closed once the last reply has been written.
+ *
+ * Each sentence may be refused by an AdmissionController, if one is
+ * set; its reply is then "; OVERLOADED: " and the reason, in its
+ * place among the others.
+ *
+ * All input is read into one buffer, which the selector thread reuses
+ * for every connection; only a line that is split across two reads is
+ * copied, into a buffer that the connection keeps for its next line.
+ * A connection that reaches its limit of sentences in flight is not
+ * read from again until replies make room; the rest of its last read
+ * is copied aside, and taken up first.
+ */
+public class NioFrontEnd
+{
+	/** Makes the session that one worker thread parses with. */
+	public interface SessionFactory
+	{
+		ServerSession make(int id);
+	}
+
+	/** Sentences that one connection may have in flight at once. */
+	public static final int DEFAULT_MAX_IN_FLIGHT = 32;
+
+	/** Longest input line; a connection that sends more is closed. */
+	public static final int MAX_LINE_BYTES = 1024 * 1024;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final ServerSocketChannel listen;
+	private final int nthreads;
+	private final boolean free_text;
+	private final SessionFactory factory;
+	private int max_in_flight = DEFAULT_MAX_IN_FLIGHT;
+	private long heap_budget_mb = 0;
+	private AdmissionController admission = null;
+
+	private Selector selector = null;
+	private ExecutorService workers = null;
+	private final ByteBuffer read_buf = ByteBuffer.allocateDirect(64 * 1024);
+
+	// Connections with replies ready, posted by the workers.
+	private final ConcurrentLinkedQueue<Connection> ready =
+		new ConcurrentLinkedQueue<Connection>();
+
+	// Bumped to have every worker make itself a new session.
+	private volatile int generation = 0;
+	private int session_count = 0;
+	private long start_gc_count = 0;
+
+	// stats
+	private int connection_count = 0;
+	private long sentence_count = 0;
+
+	public NioFrontEnd(ServerSocketChannel listen, int nthreads,
+	                   boolean free_text, SessionFactory factory)
+	{
+		this.listen = listen;
+		this.nthreads = nthreads;
+		this.free_text = free_text;
+		this.factory = factory;
+	}
+
+	public void setMaxInFlight(int n) { max_in_flight = Math.max(1, n); }
+	public int getMaxInFlight() { return max_in_flight; }
+
+	/**
+	 * Make the sessions anew if the live heap, after a garbage
+	 * collection, is more than this; zero for never. See Server.
+	 */
+	public void setHeapBudgetMB(long mb) { heap_budget_mb = mb; }
+
+	/** Admit each sentence, or refuse it; null to take them all. */
+	public void setAdmission(AdmissionController ac) { admission = ac; }
+
+	// -----------------------------------------------------------------
+	private class Connection
+	{
+		final SocketChannel chan;
+		final int id;
+		final String client;
+		SelectionKey key = null;
+		volatile boolean closed = false;
+
+		// The rest of a line that did not fit in the last read.
+		final ByteArrayOutputStream line = new ByteArrayOutputStream();
+		DocSplitter ds = null;
+		boolean ds_has_more = false;
+
+		// Input read, but not yet looked at, for lack of room in flight.
+		ByteBuffer pending = null;
+		// The client is done sending; and all of it was submitted.
+		boolean eof = false;
+		boolean input_done = false;
+
+		// Sentences sent, and replies written, so far; the sentences
+		// in between are in flight.
+		long next_seq = 0;
+		long next_out = 0;
+		final ArrayDeque<ByteBuffer> outq = new ArrayDeque<ByteBuffer>();
+
+		// Replies that are done, but may not be written yet.
+		private final HashMap<Long, byte[]> done = new HashMap<Long, byte[]>();
+
+		Connection(SocketChannel chan, int id)
+		{
+			this.chan = chan;
+			this.id = id;
+			this.client = chan.socket().getInetAddress().getHostAddress();
+			if (free_text) ds = DocSplitterFactory.create();
+		}
+
+		int in_flight()
+		{
+			return (int) (next_seq - next_out);
+		}
+
+		/** Called by the workers. */
+		synchronized void complete(long seq, byte[] reply)
+		{
+			done.put(seq, reply);
+		}
+
+		/** Queue the replies that are next in order for writing. */
+		synchronized void take_ready()
+		{
+			long seq = next_out + outq.size();
+			byte[] reply;
+			while (null != (reply = done.remove(seq)))
+			{
+				outq.add(ByteBuffer.wrap(reply));
+				seq++;
+			}
+		}
+	}
+
+	// -----------------------------------------------------------------
+	/**
+	 * A worker thread, with a session of its own, made when it is
+	 * first needed, and made anew if the generation changes.
+	 */
+	private class WorkerThread extends Thread
+	{
+		private ServerSession sess = null;
+		private int sess_generation = 0;
+
+		WorkerThread(Runnable r)
+		{
+			super(r, "relex-nio-worker");
+		}
+
+		ServerSession session()
+		{
+			if (sess != null && sess_generation == generation)
+				return sess;
+			if (sess != null)
+			{
+				System.err.println("Info: " + sess.getMemoryReport());
+				sess.sess_close();
+			}
+			sess_generation = generation;
+			sess = factory.make(next_session_id());
+			return sess;
+		}
+
+		public void run()
+		{
+			try
+			{
+				super.run();
+			}
+			finally
+			{
+				if (sess != null) sess.sess_close();
+				sess = null;
+			}
+		}
+	}
+
+	private synchronized int next_session_id()
+	{
+		return ++session_count;
+	}
+
+	// -----------------------------------------------------------------
+	private class Request implements Runnable
+	{
+		final Connection conn;
+		final long seq;
+		final String sentence;
+		final AdmissionController.Ticket ticket;
+
+		Request(Connection conn, long seq, String sentence,
+		        AdmissionController.Ticket ticket)
+		{
+			this.conn = conn;
+			this.seq = seq;
+			this.sentence = sentence;
+			this.ticket = ticket;
+		}
+
+		public void run()
+		{
+			try
+			{
+				// Nobody to reply to.
+				if (conn.closed) return;
+
+				StringWriter sw = new StringWriter();
+				PrintWriter pw = new PrintWriter(sw);
+				if (ticket != null && !ticket.start())
+				{
+					overloaded(pw, ticket);
+				}
+				else
+				{
+					try
+					{
+						((WorkerThread) Thread.currentThread()).session().respond(sentence, pw);
+					}
+					catch (Exception e)
+					{
+						System.err.println("Error: conn=" + conn.id + " Failed to parse: " + e.getMessage());
+						e.printStackTrace();
+						sw.getBuffer().setLength(0);
+						pw.println("; PARSE FAILED");
+					}
+				}
+				pw.flush();
+				reply(conn, seq, sw.toString());
+			}
+			finally
+			{
+				if (ticket != null) ticket.finish();
+			}
+		}
+	}
+
+	// -----------------------------------------------------------------
+	/** Serve connections until the thread is interrupted. */
+	public void serve() throws IOException
+	{
+		selector = Selector.open();
+		listen.configureBlocking(false);
+		listen.register(selector, SelectionKey.OP_ACCEPT);
+		workers = new ThreadPoolExecutor(nthreads, nthreads,
+			0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(),
+			new ThreadFactory()
+			{
+				public Thread newThread(Runnable r)
+				{
+					return new WorkerThread(r);
+				}
+			});
+		start_gc_count = HeapMonitor.oldCollectionCount();
+		System.err.println("Info: Version: " + Version.getVersion());
+		System.err.println("Info: Non-blocking front end, " + nthreads +
+			" workers, up to " + max_in_flight + " sentences in flight per connection");
+
+		try
+		{
+			while (!Thread.currentThread().isInterrupted())
+			{
+				selector.select();
+
+				Connection rc;
+				while (null != (rc = ready.poll()))
+				{
+					if (rc.closed) continue;
+					rc.take_ready();
+					update_interest(rc);
+				}
+
+				Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+				while (it.hasNext())
+				{
+					SelectionKey key = it.next();
+					it.remove();
+					if (!key.isValid()) continue;
+					if (key.isAcceptable())
+					{
+						accept();
+						continue;
+					}
+					Connection conn = (Connection) key.attachment();
+					try
+					{
+						if (key.isReadable()) read(conn);
+						if (!conn.closed && key.isWritable()) write(conn);
+					}
+					catch (IOException e)
+					{
+						System.err.println("Error: conn=" + conn.id + " " + e.getMessage());
+						close(conn);
+					}
+					catch (RuntimeException e)
+					{
+						// A bug; it should cost this connection, not all.
+						System.err.println("Error: conn=" + conn.id + " " + e);
+						e.printStackTrace();
+						close(conn);
+					}
+				}
+			}
+		}
+		finally
+		{
+			workers.shutdownNow();
+			selector.close();
+		}
+	}
+
+	private void accept()
+	{
+		try
+		{
+			SocketChannel chan = listen.accept();
+			if (chan == null) return;
+			chan.configureBlocking(false);
+			Connection conn = new Connection(chan, ++connection_count);
+			conn.key = chan.register(selector, SelectionKey.OP_READ, conn);
+			System.err.println("Info: conn=" + conn.id + " Accepted " +
+				chan.socket().getRemoteSocketAddress());
+		}
+		catch (IOException e)
+		{
+			System.err.println("Error: Accept failed: " + e.getMessage());
+		}
+	}
+
+	// -----------------------------------------------------------------
+	private void read(Connection conn) throws IOException
+	{
+		read_buf.clear();
+		int n = conn.chan.read(read_buf);
+		if (n < 0)
+		{
+			conn.eof = true;
+		}
+		else
+		{
+			read_buf.flip();
+			conn.pending = read_buf;
+		}
+		drain(conn);
+
+		// The read buffer is shared; keep what is left of it.
+		if (conn.pending == read_buf)
+		{
+			conn.pending = null;
+			if (read_buf.hasRemaining())
+			{
+				conn.pending = ByteBuffer.allocate(read_buf.remaining());
+				conn.pending.put(read_buf);
+				conn.pending.flip();
+			}
+		}
+		update_interest(conn);
+	}
+
+	/**
+	 * Submit the sentences in the input read so far, until the
+	 * connection has max_in_flight of them in flight; the rest waits
+	 * until replies make room.
+	 */
+	private void drain(Connection conn) throws IOException
+	{
+		while (conn.in_flight() < max_in_flight)
+		{
+			// Sentences that the splitter has already found go first.
+			if (conn.ds_has_more)
+			{
+				String sentence = conn.ds.getNextSentence();
+				if (null != sentence)
+				{
+					submit(conn, sentence.trim());
+					continue;
+				}
+				conn.ds_has_more = false;
+			}
+
+			if (conn.pending != null && conn.pending.hasRemaining())
+			{
+				byte b = conn.pending.get();
+				if ('\n' == b) line(conn);
+				else if ('\r' == b) continue;
+				// 0x4 is ASCII EOT aka ctrl-D via telnet.
+				else if (4 == b)
+				{
+					conn.pending.position(conn.pending.limit());
+					conn.eof = true;
+				}
+				else conn.line.write(b);
+				continue;
+			}
+			if (conn.pending != null && conn.pending != read_buf)
+				conn.pending = null;
+
+			if (conn.eof && !conn.input_done)
+			{
+				end_of_input(conn);
+				continue;
+			}
+			break;
+		}
+		if (MAX_LINE_BYTES < conn.line.size())
+			throw new IOException("Input line longer than " + MAX_LINE_BYTES + " bytes");
+	}
+
+	private void line(Connection conn) throws IOException
+	{
+		String text = conn.line.toString("UTF-8");
+		conn.line.reset();
+		if (text.trim().length() == 0) return;
+		System.err.println("Info: conn=" + conn.id + " recv input: \"" + text + "\"");
+
+		// If the free-text flag is set, then use the document
+		// splitter to find sentence boundaries; drain() takes the
+		// sentences from it. Otherwise, assume one sentence per line.
+		if (free_text)
+		{
+			conn.ds.addText(text + " ");
+			conn.ds_has_more = true;
+		}
+		else
+			submit(conn, text.trim());
+	}
+
+	/**
+	 * Called by drain() once everything before the end of the input
+	 * has been submitted; submits the last of it, one step at a time.
+	 */
+	private void end_of_input(Connection conn) throws IOException
+	{
+		if (0 < conn.line.size())
+		{
+			line(conn);
+			return;
+		}
+		if (conn.ds != null)
+		{
+			String rest = conn.ds.getRemainder();
+			conn.ds = null;
+			if (rest != null) submit(conn, rest.trim());
+			return;
+		}
+		conn.input_done = true;
+	}
+
+	private void submit(Connection conn, String sentence)
+	{
+		if (sentence.length() == 0) return;
+		long seq = conn.next_seq++;
+		sentence_count++;
+
+		AdmissionController.Ticket ticket = null;
+		if (admission != null)
+		{
+			ticket = admission.admit(conn.client);
+			if (ticket.isRejected())
+			{
+				StringWriter sw = new StringWriter();
+				PrintWriter pw = new PrintWriter(sw);
+				overloaded(pw, ticket);
+				pw.flush();
+				reply(conn, seq, sw.toString());
+				return;
+			}
+		}
+		workers.execute(new Request(conn, seq, sentence, ticket));
+	}
+
+	private void overloaded(PrintWriter pw, AdmissionController.Ticket ticket)
+	{
+		System.err.println("Warning: Overloaded: " + ticket.getReason());
+		pw.println("; OVERLOADED: " + ticket.getReason());
+	}
+
+	/** Hand a reply to the selector thread; from any thread. */
+	private void reply(Connection conn, long seq, String text)
+	{
+		conn.complete(seq, text.getBytes(UTF8));
+		ready.add(conn);
+		selector.wakeup();
+	}
+
+	// -----------------------------------------------------------------
+	private void write(Connection conn) throws IOException
+	{
+		while (!conn.outq.isEmpty())
+		{
+			ByteBuffer reply = conn.outq.peek();
+			conn.chan.write(reply);
+			if (reply.hasRemaining()) break;
+			conn.outq.poll();
+			conn.next_out++;
+		}
+
+		// There may now be room for input that was held back.
+		drain(conn);
+		update_interest(conn);
+	}
+
+	/**
+	 * Read only while the connection has room for more sentences in
+	 * flight, and write only while there is something to write; close
+	 * once everything has been written.
+	 */
+	private void update_interest(Connection conn)
+	{
+		if (conn.closed) return;
+		if (conn.input_done && 0 == conn.in_flight())
+		{
+			close(conn);
+			return;
+		}
+		int ops = 0;
+		if (!conn.eof && conn.pending == null && conn.in_flight() < max_in_flight)
+			ops |= SelectionKey.OP_READ;
+		if (!conn.outq.isEmpty())
+			ops |= SelectionKey.OP_WRITE;
+		conn.key.interestOps(ops);
+	}
+
+	private void close(Connection conn)
+	{
+		if (conn.closed) return;
+		conn.closed = true;
+		conn.key.cancel();
+		try
+		{
+			conn.chan.close();
+		}
+		catch (IOException e)
+		{
+			System.err.println("Error: conn=" + conn.id + " Socket close failed: " + e.getMessage());
+		}
+		System.err.println("Info: conn=" + conn.id + " Closed after " +
+			conn.next_out + " replies; " + connection_count +
+			" connections and " + sentence_count + " sentences so far" +
+			((admission == null) ? "" : "; " + admission));
+
+		if (over_budget())
+		{
+			System.err.println("Warning: Live heap " +
+				HeapMonitor.mb(HeapMonitor.liveHeapBytes()) +
+				" is over the budget of " + heap_budget_mb + "MB; renewing the sessions");
+			generation++;
+			start_gc_count = HeapMonitor.oldCollectionCount();
+		}
+	}
+
+	// As in Server: only an old collection since the last renewal tells.
+	private boolean over_budget()
+	{
+		if (heap_budget_mb <= 0) return false;
+		if (HeapMonitor.oldCollectionCount() <= start_gc_count) return false;
+		return heap_budget_mb * 1024 * 1024 < HeapMonitor.liveHeapBytes();
+	}
+}
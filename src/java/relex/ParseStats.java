@@ -95,6 +95,24 @@ public class ParseStats
 		relations.bin(relcnt);
 	}
 
+	/**
+	 * Add the statistics of another ParseStats to these; e.g. those
+	 * collected by another thread, or for a single sentence. The
+	 * result is the same as if every sentence had been binned here.
+	 */
+	public void merge(ParseStats other)
+	{
+		count += other.count;
+		failed_parses += other.failed_parses;
+		parse_count.merge(other.parse_count);
+		word_count.merge(other.word_count);
+		first_parse_confidence.merge(other.first_parse_confidence);
+		second_parse_confidence.merge(other.second_parse_confidence);
+		third_parse_confidence.merge(other.third_parse_confidence);
+		fourth_parse_confidence.merge(other.fourth_parse_confidence);
+		relations.merge(other.relations);
+	}
+
 	private class RelCount implements RelationCallback
 	{
 		public Boolean UnaryRelationCB(FeatureNode from, String rel) { return false; }
@@ -30,6 +30,7 @@ import relex.feature.LinkableView;
 import relex.feature.RelationCallback;
 import relex.feature.RelationForeach;
 import relex.stats.SimpleTruthValue;
+import relex.utils.Deadline;
 
 /**
  * A ParsedSentence object stores all of the syntactic and semantic
@@ -77,6 +78,10 @@ public class ParsedSentence
 
 	private String errorString;
 
+	// Set if this parse ranked too low to be worth running the
+	// relex algs on; it then carries the link-grammar data only.
+	private boolean syntaxOnly;
+
 	// An ArrayList of FeatureNodes, each one representing a word in the
 	// sentence.  If there are no "link islands", each can be reached by
 	// following arcs from the others.
@@ -153,6 +158,14 @@ public class ParsedSentence
 		return errorString;
 	}
 
+	public boolean isSyntaxOnly() {
+		return syntaxOnly;
+	}
+
+	public void setSyntaxOnly(boolean so) {
+		syntaxOnly = so;
+	}
+
 	/* -------------------------------------------------------------------- */
 	public int getNumWords()
 	{
@@ -261,6 +274,15 @@ public class ParsedSentence
 		return RelationForeach.foreach(getLeft(), cb);
 	}
 
+	/**
+	 * Call the callback on each relation, stopping early if the
+	 * deadline expires.
+	 */
+	public Boolean foreach(RelationCallback cb, Deadline deadline)
+	{
+		return RelationForeach.foreach(getLeft(), cb, deadline);
+	}
+
 	public List<FeatureNode> getLeafConstituents()
 	{
 	    return this.leafConstituents;
@@ -345,16 +367,28 @@ public class ParsedSentence
 		//
 		// This is all a manula balancing act, until automatic weighting
 		// is implemented in link-grammar.
-		double weight = 1.0 * getNumSkippedWords();
-		weight += 0.2 * getDisjunctCost();
-		weight += 0.003 * getLinkCost();
-
-		weight = Math.exp(-weight);
+		double weight = rankScore(getNumSkippedWords(),
+			getDisjunctCost(), getLinkCost());
 
 		stv.setConfidence(weight);
 		return weight;
 	}
 
+	/**
+	 * The score computed by simpleRankParse(), from the raw costs.
+	 * The parsers use this to rank linkages before building their
+	 * feature graphs.
+	 */
+	public static double rankScore(double numSkippedWords,
+	                               double disjunctCost,
+	                               double linkCost)
+	{
+		double weight = 1.0 * numSkippedWords;
+		weight += 0.2 * disjunctCost;
+		weight += 0.003 * linkCost;
+		return Math.exp(-weight);
+	}
+
 	/**
 	 * Take the current parse confidence, and rescale it by the
 	 * indicated amount.  The method simpleRankParse() must have
@@ -17,17 +17,37 @@
 package relex;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.io.PrintWriter;
 import java.io.InputStreamReader;
 import java.io.BufferedReader;
+import java.io.PrintWriter;
+import java.io.StringReader;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.linkgrammar.JSONUtils;
+import relex.concurrent.AdmissionController;
+import relex.corpus.DocSplitter;
+import relex.corpus.DocSplitterFactory;
 import relex.output.SimpleView;
 import relex.output.StanfordView;
+import relex.parser.JSONReader;
+import relex.parser.LGParser;
+import relex.utils.Deadline;
+import relex.utils.JSONWriter;
 import relex.Version;
 
 
@@ -52,22 +72,665 @@ import relex.Version;
  * <li><b>showStanford</b> Return the Stanford Dependency relations</li>
  * </ul>
  *
+ * Each connection is read and answered on a thread of its own, so that
+ * a slow client holds up no one else; up to --max-connections of them
+ * at once. The sentences are parsed by a fixed number (--threads) of
+ * parse threads, each with its own RelationExtractor, since
+ * link-grammar keeps per-thread state. The options of a request are
+ * carried in an immutable Request, not set on a shared extractor.
+ *
+ * When the server is overloaded, it says so at once, instead of
+ * letting the request wait: a connection over --max-connections is
+ * answered "==== OVERLOADED: ... ====" and closed, without waiting for
+ * a connection thread; and each request, or batch, is admitted by an
+ * AdmissionController, with the sentences as its cost, or refused in
+ * the same way.
+ *
+ * A connection may instead send a batch: one line of JSON, with a list
+ * of "sentences", or a "document" to be split into sentences, and the
+ * same options for all of them. The reply is one line of JSON per
+ * sentence, sent as soon as it is parsed, then a last line with
+ * "done"; the lines are in the order of the sentences, unless the
+ * batch says "ordered":false, in which case each comes as soon as it
+ * is done, and its "seq" tells which sentence it is.
+ *
  * Example usage:
  * echo "maxLinkages:1,showLink:true,text:this is a test" | netcat localhost 3333
+ * echo '{"sentences":["Dogs bark.","Cats meow."],"showRelex":true}' | netcat localhost 3333
  */
 
 public class PlainTextServer
 {
+	public static final int DEFAULT_MAX_CONNECTIONS = 64;
+	public static final int SOCKET_TIMEOUT_MILLIS = 60000;
+
 	private int listen_port;
+	private int num_threads = 1;
+	private int max_connections = DEFAULT_MAX_CONNECTIONS;
+	private long max_sentence_millis = 0;
+	private int max_queued = AdmissionController.DEFAULT_MAX_QUEUED;
+	private int max_per_client = 0;
+	private long max_queue_millis = 0;
+	private boolean verbose = false;
+	private String lang = "en";
+	private String dict_path = null;
+	private LGParser parser_proto = null;
+
+	private AdmissionController admission;
+	private ExecutorService parse_threads;
+	private ExecutorService conn_threads;
+	private Semaphore conn_slots;
+	private final ThreadLocal<RelationExtractor> extractor =
+		new ThreadLocal<RelationExtractor>();
+
+	/**
+	 * One client request: the text, and what to show. Immutable, so
+	 * it can be handed from the connection thread to a parse thread.
+	 */
+	public static final class Request
+	{
+		public final String text;
+		public final int numShow;
+		public final boolean showLink;
+		public final boolean showPhrase;
+		public final boolean showRelex;
+		public final boolean showStanford;
+
+		public Request(String text, int numShow, boolean showLink,
+		               boolean showPhrase, boolean showRelex,
+		               boolean showStanford)
+		{
+			this.text = text;
+			this.numShow = numShow;
+
+			// Turn everything on by default
+			boolean none = !showLink && !showPhrase && !showRelex && !showStanford;
+			this.showLink = showLink || none;
+			this.showPhrase = showPhrase || none;
+			this.showRelex = showRelex || none;
+			this.showStanford = showStanford || none;
+		}
+
+		/** Read a request in the quasi-JSON format, or as plain text. */
+		public static Request read(BufferedReader in) throws IOException
+		{
+			JSONUtils msgreader = new JSONUtils();
+			String line = "";
+			int num_show = 3;
+			boolean show_link = false;
+			boolean show_phrase = false;
+			boolean show_relex = false;
+			boolean show_stanford = false;
+			try {
+				Map<String, String> msg = msgreader.readMsg(in);
+				line = msg.get("text");
+				num_show = JSONUtils.getInt("maxLinkages", msg, num_show);
+				show_link = JSONUtils.getBool("showLink", msg, show_link);
+				show_phrase = JSONUtils.getBool("showPhrase", msg, show_phrase);
+				show_relex = JSONUtils.getBool("showRelex", msg, show_relex);
+				show_stanford = JSONUtils.getBool("showStanford", msg, show_stanford);
+			} catch (RuntimeException e) {
+				line = msgreader.getRawText();
+				line = line.trim();
+			}
+			return new Request(line, num_show, show_link, show_phrase,
+			                   show_relex, show_stanford);
+		}
+
+		/** The same options, for another text. */
+		public Request withText(String other)
+		{
+			return new Request(other, numShow, showLink, showPhrase,
+			                   showRelex, showStanford);
+		}
+	}
+
+	/**
+	 * A batch request: many sentences, with the options of a Request
+	 * (whose text is unused) shared by all of them. Immutable.
+	 */
+	public static final class Batch
+	{
+		public final List<String> sentences;
+		public final Request options;
+		public final boolean ordered;
+
+		public Batch(List<String> sentences, Request options, boolean ordered)
+		{
+			this.sentences = Collections.unmodifiableList(new ArrayList<String>(sentences));
+			this.options = options;
+			this.ordered = ordered;
+		}
+
+		/**
+		 * The batch request in a line of JSON, or null if the line is
+		 * not one: not JSON, or with neither "sentences" nor "document".
+		 */
+		public static Batch parse(String line)
+		{
+			Object json;
+			try {
+				json = new JSONReader().read(line);
+			} catch (RuntimeException e) {
+				return null;
+			}
+			if (!(json instanceof Map)) return null;
+			return fromJSON((Map<?, ?>) json);
+		}
+
+		/** As above, from JSON already read. */
+		public static Batch fromJSON(Map<?, ?> msg)
+		{
+			List<String> sentences;
+			Object list = msg.get("sentences");
+			Object doc = msg.get("document");
+			if (list instanceof List)
+			{
+				sentences = new ArrayList<String>();
+				for (Object o : (List<?>) list)
+				{
+					if (o == null) continue;
+					String t = o.toString().trim();
+					if (t.length() != 0) sentences.add(t);
+				}
+			}
+			else if (doc instanceof String)
+			{
+				sentences = split((String) doc);
+			}
+			else return null;
+
+			Request options = new Request(null,
+				getInt(msg, "maxLinkages", 3),
+				getBool(msg, "showLink", false),
+				getBool(msg, "showPhrase", false),
+				getBool(msg, "showRelex", false),
+				getBool(msg, "showStanford", false));
+			return new Batch(sentences, options, getBool(msg, "ordered", true));
+		}
+
+		/** The sentences of a document, trimmed, without empty ones. */
+		public static List<String> split(String document)
+		{
+			DocSplitter ds = DocSplitterFactory.create();
+			ds.addText(document);
+			List<String> texts = new ArrayList<String>();
+			String t;
+			while (null != (t = ds.getNextSentence()))
+				texts.add(t);
+			// Null if nothing follows the last sentence break.
+			t = ds.getRemainder();
+			if (null != t) texts.add(t);
+
+			List<String> sentences = new ArrayList<String>();
+			for (String text : texts)
+			{
+				text = text.trim();
+				if (text.length() != 0) sentences.add(text);
+			}
+			return sentences;
+		}
+
+		static int getInt(Map<?, ?> msg, String key, int dflt)
+		{
+			Object v = msg.get(key);
+			if (v instanceof Number) return ((Number) v).intValue();
+			if (v instanceof String)
+			{
+				try {
+					return Integer.parseInt((String) v);
+				} catch (NumberFormatException e) {
+				}
+			}
+			return dflt;
+		}
+
+		static boolean getBool(Map<?, ?> msg, String key, boolean dflt)
+		{
+			Object v = msg.get(key);
+			if (v instanceof Boolean) return (Boolean) v;
+			if (v instanceof String) return Boolean.parseBoolean((String) v);
+			return dflt;
+		}
+	}
+
+	/** One sentence of a batch, as a line of JSON. */
+	private static final class Reply
+	{
+		final int seq;
+		final String json;
+
+		Reply(int seq, String json)
+		{
+			this.seq = seq;
+			this.json = json;
+		}
+	}
 
 	public PlainTextServer()
 	{
 		listen_port = 3333;
 	}
 
+	/** Number of sentences to parse at once; call before start(). */
+	public void setThreads(int n)
+	{
+		num_threads = Math.max(1, n);
+	}
+
+	/**
+	 * Parse with copies of the given parser, one per parse thread,
+	 * instead of with link-grammar in this process.
+	 */
+	public void setParser(LGParser proto)
+	{
+		parser_proto = proto;
+	}
+
+	/* ---------------------------------------------------------- */
+	/** Start the parse and connection threads. */
+	public void start()
+	{
+		parse_threads = Executors.newFixedThreadPool(num_threads,
+			threadFactory("relex-parse-", true));
+		conn_threads = Executors.newCachedThreadPool(
+			threadFactory("relex-conn-", false));
+		conn_slots = new Semaphore(max_connections);
+		admission = new AdmissionController(num_threads, max_queued,
+		                                    max_per_client, max_queue_millis);
+	}
+
+	private ThreadFactory threadFactory(final String name, final boolean closeOnExit)
+	{
+		final AtomicInteger n = new AtomicInteger();
+		return new ThreadFactory()
+		{
+			public Thread newThread(final Runnable r)
+			{
+				Runnable body = new Runnable()
+				{
+					public void run()
+					{
+						try
+						{
+							r.run();
+						}
+						finally
+						{
+							// Per-thread link-grammar state is freed
+							// by the thread that made it.
+							RelationExtractor re = extractor.get();
+							if (closeOnExit && re != null) re.close();
+						}
+					}
+				};
+				Thread t = new Thread(body, name + n.getAndIncrement());
+				t.setDaemon(true);
+				return t;
+			}
+		};
+	}
+
+	/** Runs in a parse thread. */
+	private Sentence parse(Request req)
+	{
+		RelationExtractor r = extractor.get();
+		if (r == null)
+		{
+			r = new RelationExtractor();
+			if (null != parser_proto) r.setParser(parser_proto.copyForThread());
+			if (null != lang) r.setLanguage(lang);
+			if (null != dict_path) r.setDictPath(dict_path);
+			extractor.set(r);
+		}
+		return r.processSentence(req.text, Deadline.in(max_sentence_millis),
+		                         req.showStanford, req.showStanford);
+	}
+
+	/** Parse the request on a parse thread, and wait for it. */
+	public Sentence process(Request req)
+		throws InterruptedException, ExecutionException
+	{
+		return process(req, null);
+	}
+
+	/**
+	 * As above, but if the request has waited too long for a parse
+	 * thread, shed it, and return null.
+	 */
+	private Sentence process(final Request req, final AdmissionController.Ticket ticket)
+		throws InterruptedException, ExecutionException
+	{
+		Future<Sentence> f = parse_threads.submit(new Callable<Sentence>()
+		{
+			public Sentence call()
+			{
+				if (ticket != null && !ticket.start()) return null;
+				return parse(req);
+			}
+		});
+		return f.get();
+	}
+
+	/** Write the response to a request. */
+	public void respond(Request req, Sentence sntc, PrintWriter out)
+	{
+		if (sntc == null || sntc.getParses().size() == 0)
+		{
+			out.println("==== NO PARSES ====");
+			return;
+		}
+
+		int num_show = req.numShow;
+		int num_parses = sntc.getParses().size();
+		if (num_parses < num_show) num_show = num_parses;
+
+		for (int i=0; i < num_show; i++)
+		{
+			ParsedSentence parse = sntc.getParses().get(i);
+
+			// Print the phrase string .. why ??
+
+			int ialt = i+1;
+			out.println("==== Parse alternative " + ialt + " ====\n");
+
+			if (req.showLink)
+			{
+				out.println("Link Grammar parse diagram:");
+				out.println(parse.getLinkString());
+			}
+			if (req.showPhrase)
+			{
+				out.println("Phrase Structure parse:\n");
+				out.println("    " + parse.getPhraseString());
+			}
+			if (req.showRelex)
+			{
+				out.println("Dependency relations:\n");
+				String fin = SimpleView.printRelations(parse);
+				out.println(fin);
+			}
+			if (req.showStanford)
+			{
+				out.println("Stanford-style dependency relations:\n");
+				String fin = StanfordView.printRelations(parse, true, "    ");
+				out.println(fin);
+			}
+			if (verbose)
+				System.out.print(SimpleView.printRelations(parse));
+		}
+		out.println("==== END OF SENTENCE ====");
+	}
+
+	/**
+	 * Parse the sentences of a batch, and write a line of JSON for
+	 * each as it is done (in order, if the batch asks for that), then
+	 * a last line with the count. At most two sentences per parse
+	 * thread are queued at once, so that a long batch does not hold
+	 * up the other clients for long.
+	 */
+	public void process(final Batch batch, PrintWriter out)
+		throws InterruptedException, ExecutionException
+	{
+		long start = System.currentTimeMillis();
+		CompletionService<Reply> done =
+			new ExecutorCompletionService<Reply>(parse_threads);
+		HashMap<Integer, String> held = new HashMap<Integer, String>();
+		int n = batch.sentences.size();
+		int window = 2 * num_threads;
+		int submitted = 0;
+		int finished = 0;
+		int written = 0;
+
+		while (finished < n)
+		{
+			while (submitted < n && submitted - finished < window)
+			{
+				final int seq = submitted++;
+				final Request req = batch.options.withText(batch.sentences.get(seq));
+				done.submit(new Callable<Reply>()
+				{
+					public Reply call()
+					{
+						return new Reply(seq, toJSON(seq, req));
+					}
+				});
+			}
+
+			Reply r = done.take().get();
+			finished++;
+			if (batch.ordered)
+			{
+				held.put(r.seq, r.json);
+				String line;
+				while (null != (line = held.remove(written)))
+				{
+					out.println(line);
+					written++;
+				}
+			}
+			else
+			{
+				out.println(r.json);
+			}
+			out.flush();
+
+			// The client has gone away.
+			if (out.checkError()) return;
+		}
+		out.println("{\"done\":true,\"sentences\":" + n +
+			",\"millis\":" + (System.currentTimeMillis() - start) + "}");
+		out.flush();
+	}
+
+	/** Runs in a parse thread. */
+	private String toJSON(int seq, Request req)
+	{
+		StringBuilder sb = new StringBuilder();
+		sb.append("{\"seq\":").append(seq).append(",\"text\":");
+		JSONWriter.quote(req.text, sb);
+
+		Sentence sntc;
+		try {
+			sntc = parse(req);
+		} catch (RuntimeException e) {
+			System.err.println("Error: Processing input failed: " + e);
+			sb.append(",\"error\":");
+			JSONWriter.quote(e.toString(), sb);
+			return sb.append('}').toString();
+		}
+
+		int num_parses = (sntc == null) ? 0 : sntc.getParses().size();
+		int num_show = Math.min(req.numShow, num_parses);
+		sb.append(",\"numParses\":").append(num_parses);
+		sb.append(",\"parses\":[");
+		for (int i = 0; i < num_show; i++)
+		{
+			ParsedSentence parse = sntc.getParses().get(i);
+			if (0 < i) sb.append(',');
+			sb.append("{\"alternative\":").append(i+1);
+			if (req.showLink)
+			{
+				sb.append(",\"link\":");
+				JSONWriter.quote(parse.getLinkString(), sb);
+			}
+			if (req.showPhrase)
+			{
+				sb.append(",\"phrase\":");
+				JSONWriter.quote(parse.getPhraseString(), sb);
+			}
+			if (req.showRelex)
+			{
+				sb.append(",\"relex\":");
+				JSONWriter.quote(SimpleView.printRelations(parse), sb);
+			}
+			if (req.showStanford)
+			{
+				sb.append(",\"stanford\":");
+				JSONWriter.quote(StanfordView.printRelations(parse, true, "    "), sb);
+			}
+			sb.append('}');
+			if (verbose)
+				System.out.print(SimpleView.printRelations(parse));
+		}
+		return sb.append("]}").toString();
+	}
+
+	/** Runs in a connection thread. */
+	private void handle(Socket out_sock)
+	{
+		try
+		{
+			out_sock.setSoTimeout(SOCKET_TIMEOUT_MILLIS);
+			BufferedReader in = new BufferedReader(
+				new InputStreamReader(out_sock.getInputStream()));
+			PrintWriter out = new PrintWriter(out_sock.getOutputStream(), true);
+
+			// A batch is a line of JSON; anything else is one request.
+			Request req;
+			in.mark(1);
+			if ('{' == in.read())
+			{
+				String rest = in.readLine();
+				String line = "{" + ((rest == null) ? "" : rest);
+				Batch batch = Batch.parse(line);
+				if (batch != null)
+				{
+					System.err.println("Info: recv batch of " +
+						batch.sentences.size() + " sentences");
+					AdmissionController.Ticket ticket =
+						admission.admit(client(out_sock), batch.sentences.size());
+					try
+					{
+						// The window in process() paces the sentences.
+						if (ticket.start()) process(batch, out);
+						else
+						{
+							System.err.println("Warning: Overloaded: " + ticket.getReason());
+							out.println("{\"error\":\"overloaded\",\"reason\":" +
+								JSONWriter.quote(ticket.getReason()) + "}");
+						}
+					}
+					finally
+					{
+						ticket.finish();
+					}
+					out.close();
+					System.err.println("Info: Closed printer");
+					return;
+				}
+				req = Request.read(new BufferedReader(new StringReader(line + "\n")));
+			}
+			else
+			{
+				in.reset();
+				req = Request.read(in);
+			}
+			System.err.println("Info: recv input: \"" + req.text + "\"");
+
+			AdmissionController.Ticket ticket = admission.admit(client(out_sock));
+			try
+			{
+				Sentence sntc = ticket.isRejected() ? null : process(req, ticket);
+				if (ticket.isRejected()) overloaded(out, ticket.getReason());
+				else respond(req, sntc, out);
+			}
+			finally
+			{
+				ticket.finish();
+			}
+			out.close();
+			System.err.println("Info: Closed printer");
+		}
+		catch (IOException e)
+		{
+			System.err.println("Error: Processing input failed: " + e);
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+		catch (ExecutionException e)
+		{
+			System.err.println("Error: Processing input failed: " + e.getCause());
+		}
+		finally
+		{
+			try
+			{
+				out_sock.close();
+				System.err.println("Info: Closed socket");
+			}
+			catch (IOException e)
+			{
+				System.err.println("Error: Socket close failed");
+			}
+			conn_slots.release();
+		}
+	}
+
+	private static String client(Socket sock)
+	{
+		return sock.getInetAddress().getHostAddress();
+	}
+
+	/** The whole reply to a request that is turned away. */
+	private static void overloaded(PrintWriter out, String reason)
+	{
+		System.err.println("Warning: Overloaded: " + reason);
+		out.println("==== OVERLOADED: " + reason + " ====");
+	}
+
+	/**
+	 * Accept connections until the socket is closed. This never waits
+	 * for a connection thread: when they are all busy, the connection
+	 * is turned away at once.
+	 */
+	public void serve(ServerSocket listen_sock) throws InterruptedException
+	{
+		while (!listen_sock.isClosed())
+		{
+			final Socket out_sock;
+			try {
+				out_sock = listen_sock.accept();
+			} catch (IOException e) {
+				System.err.println("Error: Socket accept failed");
+				continue;
+			}
+
+			if (!conn_slots.tryAcquire())
+			{
+				try {
+					PrintWriter out = new PrintWriter(out_sock.getOutputStream(), true);
+					overloaded(out, "more than " + max_connections + " connections");
+					out.close();
+					out_sock.close();
+				} catch (IOException e) {
+					System.err.println("Error: Socket close failed");
+				}
+				continue;
+			}
+
+			System.err.println("Info: Socket accept");
+			conn_threads.execute(new Runnable()
+			{
+				public void run()
+				{
+					handle(out_sock);
+				}
+			});
+		}
+	}
+
 	public static void main(String[] args)
 	{
 		int listen_port = 3333;
+		int num_threads = 1;
+		int max_connections = DEFAULT_MAX_CONNECTIONS;
+		long max_sentence_millis = 0;
+		int max_queued = AdmissionController.DEFAULT_MAX_QUEUED;
+		int max_per_client = 0;
+		long max_queue_millis = 0;
 		boolean verbose = false;
 		String lang = "en";
 		String dict_path = null;
@@ -78,6 +741,13 @@ public class PlainTextServer
 			" --port num \t Port number to listen on (default: 3333)\n" +
 			" --lang     \t Language (en, fr, de, ru) default: en\n" +
 			" --dict     \t Dictionary location, default: data/en \n" +
+			" --threads n\t Number of sentences to parse at once (default: 1)\n" +
+			" --max-connections n\t Most clients served at once (default: 64)\n" +
+			" --maxSentenceMillis n\t Time limit per sentence (default: none)\n" +
+			" --max-queued n\t Refuse requests when this many sentences are waiting (default: " +
+				AdmissionController.DEFAULT_MAX_QUEUED + "; 0 for no limit)\n" +
+			" --max-per-client n\t Refuse requests when a client has this many sentences (default: no limit)\n" +
+			" --max-queue-millis n\t Refuse requests that would wait longer (default: no limit)\n" +
 			" --verbose  \t Print parse output to server stdout.\n";
 
 		for (int i = 0; i < args.length; i++)
@@ -120,6 +790,31 @@ public class PlainTextServer
 					System.exit(1);
 				}
 			}
+			else if (args[i].equals("--threads") ||
+			         args[i].equals("--max-connections") ||
+			         args[i].equals("--maxSentenceMillis") ||
+			         args[i].equals("--max-queued") ||
+			         args[i].equals("--max-per-client") ||
+			         args[i].equals("--max-queue-millis"))
+			{
+				String flag = args[i];
+				i++;
+				long n = -1;
+				try {
+					if (i < args.length) n = Long.parseLong(args[i]);
+				} catch (NumberFormatException nfe) {
+				}
+				if (n < 0) {
+					System.err.println("Error: Expected a number after the " + flag + " flag.");
+					System.exit(1);
+				}
+				if (flag.equals("--threads")) num_threads = (int) Math.max(1, n);
+				else if (flag.equals("--max-connections")) max_connections = (int) Math.max(1, n);
+				else if (flag.equals("--max-queued")) max_queued = (int) n;
+				else if (flag.equals("--max-per-client")) max_per_client = (int) n;
+				else if (flag.equals("--max-queue-millis")) max_queue_millis = n;
+				else max_sentence_millis = n;
+			}
 			else if (args[i].equals("--verbose") )
 			{
 				System.err.println("Info: Verbose server mode set.");
@@ -135,12 +830,17 @@ public class PlainTextServer
 
 		System.err.println("Info: Version: " + Version.getVersion());
 
-		RelationExtractor r = new RelationExtractor();
-		if (null != lang) r.setLanguage(lang);
-		if (null != dict_path) r.setDictPath(dict_path);
-
 		PlainTextServer s = new PlainTextServer();
 		s.listen_port = listen_port;
+		s.num_threads = num_threads;
+		s.max_connections = max_connections;
+		s.max_sentence_millis = max_sentence_millis;
+		s.max_queued = max_queued;
+		s.max_per_client = max_per_client;
+		s.max_queue_millis = max_queue_millis;
+		s.verbose = verbose;
+		s.lang = lang;
+		s.dict_path = dict_path;
 		ServerSocket listen_sock = null;
 
 		try
@@ -152,137 +852,17 @@ public class PlainTextServer
 			System.err.println("Error: Listen failed on port " + s.listen_port);
 			System.exit(-1);
 		}
-		System.err.println("Info: Listening on port " + s.listen_port);
+		System.err.println("Info: Listening on port " + s.listen_port +
+			", " + num_threads + " parse threads");
 
-		while(true)
+		s.start();
+		try
 		{
-			Socket out_sock = null;
-			OutputStream outs = null;
-			InputStream ins = null;
-			try {
-				out_sock = listen_sock.accept();
-				ins = out_sock.getInputStream();
-				outs = out_sock.getOutputStream();
-			} catch (IOException e) {
-				System.err.println("Error: Socket accept failed");
-				continue;
-			}
-
-			System.err.println("Info: Socket accept");
-			BufferedReader in = new BufferedReader(new InputStreamReader(ins));
-			PrintWriter out = new PrintWriter(outs, true);
-			JSONUtils msgreader = new JSONUtils();
-
-			try {
-
-				String line = "";
-				int num_show = 3;
-				boolean show_link = false;
-				boolean show_phrase = false;
-				boolean show_relex = false;
-				boolean show_stanford = false;
-				try {
-					Map<String, String> msg = msgreader.readMsg(in);
-					line = msg.get("text");
-					num_show = JSONUtils.getInt("maxLinkages", msg, num_show);
-					show_link = JSONUtils.getBool("showLink", msg, show_link);
-					show_phrase = JSONUtils.getBool("showPhrase", msg, show_phrase);
-					show_relex = JSONUtils.getBool("showRelex", msg, show_relex);
-					show_stanford = JSONUtils.getBool("showStanford", msg, show_stanford);
-				} catch (RuntimeException e) {
-					line = msgreader.getRawText();
-					line = line.trim();
-				}
-				System.err.println("Info: recv input: \"" + line + "\"");
-
-				if (!show_link && !show_phrase && !show_relex &&
-				    !show_stanford)
-				{
-					// Turn everything on by default
-					show_link = true;
-					show_phrase = true;
-					show_relex = true;
-					show_stanford = true;
-				}
-
-				r.do_stanford = show_stanford;
-				r.do_penn_tagging = show_stanford;
-
-				Sentence sntc = r.processSentence(line);
-				if (sntc.getParses().size() == 0)
-				{
-					out.println("==== NO PARSES ====");
-					try
-					{
-						out_sock.close();
-						System.err.println("Info: Closed socket");
-					}
-					catch (IOException e)
-					{
-						System.err.println("Error: Socket close failed");
-					}
-					continue;
-				}
-
-				int num_parses = sntc.getParses().size();
-				if (num_parses < num_show) num_show = num_parses;
-
-				for (int i=0; i < num_show; i++)
-				{
-					ParsedSentence parse = sntc.getParses().get(i);
-
-					// Print the phrase string .. why ??
-
-					int ialt = i+1;
-					out.println("==== Parse alternative " + ialt + " ====\n");
-
-					if (show_link)
-					{
-						out.println("Link Grammar parse diagram:");
-						out.println(parse.getLinkString());
-					}
-					if (show_phrase)
-					{
-						out.println("Phrase Structure parse:\n");
-						out.println("    " + parse.getPhraseString());
-					}
-					if (show_relex)
-					{
-						out.println("Dependency relations:\n");
-						String fin = SimpleView.printRelations(parse);
-						out.println(fin);
-					}
-					if (show_stanford)
-					{
-						out.println("Stanford-style dependency relations:\n");
-						String fin = StanfordView.printRelations(parse, true, "    ");
-						out.println(fin);
-					}
-					if (verbose)
-						System.out.print(SimpleView.printRelations(parse));
-				}
-				out.println("==== END OF SENTENCE ====");
-
-				out.close();
-				System.err.println("Info: Closed printer");
-			}
-			catch (IOException e)
-			{
-				System.err.println("Error: Processing input failed");
-				continue;
-			}
-
-			try
-			{
-				out_sock.close();
-				System.err.println("Info: Closed socket");
-			}
-			catch (IOException e)
-			{
-				System.err.println("Error: Socket close failed");
-				continue;
-			}
+			s.serve(listen_sock);
+		}
+		catch (InterruptedException e)
+		{
+			System.err.println("Info: Interrupted; exiting");
 		}
 	}
 }
-
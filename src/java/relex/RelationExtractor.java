@@ -24,12 +24,15 @@ import java.io.FileWriter;
 import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
 
+import org.linkgrammar.LGConfig;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import relex.algs.SentenceAlgorithmApplier;
+import relex.concurrent.ExtractorPool;
 import relex.concurrent.RelexContext;
 // import relex.corpus.QuotesParensSentenceDetector;
 import relex.corpus.DocSplitter;
@@ -46,11 +49,20 @@ import relex.output.PrologList;
 import relex.output.RawView;
 import relex.output.SimpleView;
 import relex.output.StanfordView;
+import relex.parser.AdaptiveParser;
+import relex.parser.BudgetController;
+import relex.parser.CachingParser;
 import relex.parser.LGParser;
 import relex.parser.LocalLGParser;
+import relex.parser.ParseCache;
+import relex.parser.RecordingParser;
 import relex.parser.RemoteLGParser;
+import relex.parser.ReplayParser;
+import relex.parser.SegmentingParser;
+import relex.parser.TieredParser;
 import relex.stats.TruthValue;
 import relex.stats.SimpleTruthValue;
+import relex.utils.Deadline;
 
 /**
  * The RelationExtractor class provides the central processing
@@ -84,6 +96,9 @@ public class RelationExtractor
 	/** Syntax processing */
 	private LGParser parser;
 
+	/** Splits long sentences, and parses the pieces in parallel. */
+	private SegmentingParser segmenter;
+
 	/** Dependency processing */
 	private SentenceAlgorithmApplier sentenceAlgorithmApplier;
 
@@ -108,6 +123,13 @@ public class RelationExtractor
 	/** Statistics */
 	private ParseStats stats;
 
+	/** Per-sentence time budget, in milliseconds; zero for none. */
+	private long _max_sentence_millis;
+
+	/** Limits on which parses get the relex algs; see setRuleLimits(). */
+	private int _rule_top_k;
+	private double _rule_cost_margin;
+
 	/* ---------------------------------------------------------- */
 	/* Constructors, etc. */
 
@@ -124,6 +146,10 @@ public class RelationExtractor
 		do_stanford = false;
 		do_penn_tagging = false;
 		do_expand_preps = false;
+
+		_max_sentence_millis = 0;
+		_rule_top_k = Integer.MAX_VALUE;
+		_rule_cost_margin = Double.POSITIVE_INFINITY;
 	}
 
 	public RelationExtractor()
@@ -146,7 +172,9 @@ public class RelationExtractor
 		// So, don't waste CPU time on algs if its not English.
 		if (null != _lang && "en" != _lang) do_apply_algs = false;
 
-		parser = _use_sock ? new RemoteLGParser() : new LocalLGParser();
+		// A parser may have been supplied with setParser().
+		if (parser == null)
+			parser = _use_sock ? new RemoteLGParser() : new LocalLGParser();
 		if (null != _lang) parser.setLanguage(_lang);
 		if (null != _dict_path) parser.setDictPath(_dict_path);
 
@@ -180,6 +208,37 @@ public class RelationExtractor
 		cnttime = new TreeMap<String,Long>();
 	}
 
+	/**
+	 * Make a RelationExtractor with the same settings as this one, for
+	 * another thread to use; call it from that thread, since it
+	 * initializes the parser. The parser is copied with
+	 * LGParser.copyForThread(), so that a parse cache, a budget
+	 * controller or a recording stays shared.
+	 */
+	public RelationExtractor copyForThread()
+	{
+		if (!_is_inited) init();
+		RelationExtractor re = new RelationExtractor(_use_sock);
+		re._lang = _lang;
+		re._dict_path = _dict_path;
+		re.parser = parser.copyForThread();
+		re.init();
+
+		// init() sets the defaults; put back the settings of this one.
+		re.parser.setConfig(LGParser.copyConfig(parser.getConfig(), new LGConfig()));
+		re.do_tree_markup = do_tree_markup;
+		re.do_apply_algs = do_apply_algs;
+		re.do_stanford = do_stanford;
+		re.do_penn_tagging = do_penn_tagging;
+		re.do_expand_preps = do_expand_preps;
+		re._max_sentence_millis = _max_sentence_millis;
+		re._rule_top_k = _rule_top_k;
+		re._rule_cost_margin = _rule_cost_margin;
+		if (segmenter != null)
+			re.setSegmentLongSentences(segmenter.getThreshold(), segmenter.getThreads());
+		return re;
+	}
+
 	public String getVersion()
 	{
 		if (!_is_inited) init();
@@ -206,6 +265,7 @@ public class RelationExtractor
 	// threads.)
 	public void doFinalize()
 	{
+		if (segmenter != null) segmenter.shutdown();
 		parser.doFinalize();
 	}
 
@@ -245,6 +305,36 @@ public class RelationExtractor
 		parser.setMaxLinkages(maxLinkages);
 	}
 
+	/**
+	 * Set how many of the parses, best-ranked first, are built and
+	 * processed by processSentence(). The parser ranks all of the
+	 * setMaxParses() linkages on their costs alone; the ones below
+	 * this cut-off are kept in compact form, and are built only if
+	 * processMoreParses() asks for them. Default: all of them.
+	 */
+	public void setEagerParses(int eagerParses)
+	{
+		if (!_is_inited) init();
+		parser.setEagerLinkages(eagerParses);
+	}
+
+	/**
+	 * Limit the parses that the relex algs are run on. The parses are
+	 * ranked on their link-grammar costs as soon as they are parsed;
+	 * the algs then run only on the best topK of them, and of those,
+	 * only on the ones whose cost, as used by simpleRankParse(), is
+	 * within costMargin of the best. The best parse is always done.
+	 * The others are still returned, ranked, but marked with
+	 * setSyntaxOnly(true), and carry no relations.
+	 *
+	 * Default: no limit (Integer.MAX_VALUE and infinity).
+	 */
+	public void setRuleLimits(int topK, double costMargin)
+	{
+		_rule_top_k = Math.max(1, topK);
+		_rule_cost_margin = costMargin;
+	}
+
 	public void setMaxCost(double maxCost)
 	{
 		if (!_is_inited) init();
@@ -254,12 +344,174 @@ public class RelationExtractor
 	public void setMaxParseSeconds(int maxParseSeconds)
 	{
 		if (!_is_inited) init();
-		parser.getConfig().setMaxParseSeconds(maxParseSeconds);
+		parser.setMaxParseSeconds(maxParseSeconds);
+	}
+
+	/**
+	 * Bound the total time spent on one sentence: parsing, rule
+	 * application, and everything else done by processSentence().
+	 * Zero means no bound. See processSentence(String, Deadline).
+	 */
+	public void setMaxSentenceMillis(long millis)
+	{
+		_max_sentence_millis = millis;
+	}
+
+	/**
+	 * Remember parse results in the indicated cache, so that a
+	 * sentence that was already seen is not parsed again. The same
+	 * cache may be shared by several RelationExtractors. Passing null
+	 * turns caching off.
+	 */
+	public void setParseCache(ParseCache cache)
+	{
+		if (!_is_inited) init();
+		if (parser instanceof CachingParser)
+			parser = ((CachingParser) parser).getParser();
+		if (cache != null)
+			parser = new CachingParser(parser, cache);
+		context.setParser(parser);
+		resegment();
+	}
+
+	/**
+	 * Parse each sentence strictly first (no skipped words, a short
+	 * time limit), and permissively only if that fails; see
+	 * TieredParser. Any parse cache is kept in front of the tiers.
+	 */
+	public void setTieredParsing(boolean tiered)
+	{
+		if (!_is_inited) init();
+		rewrap(tiered, getParseBudget());
+	}
+
+	/**
+	 * Let the controller choose the time limit and the number of
+	 * linkages for each sentence; see AdaptiveParser. The limits set
+	 * with setMaxParseSeconds() and setMaxLinkages() become upper
+	 * bounds. The same controller may be shared by several
+	 * RelationExtractors. Passing null turns this off.
+	 */
+	public void setParseBudget(BudgetController controller)
+	{
+		if (!_is_inited) init();
+		rewrap(isTieredParsing(), controller);
+	}
+
+	public BudgetController getParseBudget()
+	{
+		LGParser p = parser;
+		if (p instanceof CachingParser) p = ((CachingParser) p).getParser();
+		if (p instanceof AdaptiveParser) return ((AdaptiveParser) p).getController();
+		return null;
+	}
+
+	private boolean isTieredParsing()
+	{
+		LGParser p = parser;
+		if (p instanceof CachingParser) p = ((CachingParser) p).getParser();
+		if (p instanceof AdaptiveParser) p = ((AdaptiveParser) p).getParser();
+		return p instanceof TieredParser;
+	}
+
+	/**
+	 * Re-build the decorators around the parser, in the order cache,
+	 * budget, tiers: the budget applies to both tiers, and a cache
+	 * hit needs no budget at all.
+	 */
+	private void rewrap(boolean tiered, BudgetController controller)
+	{
+		ParseCache cache = null;
+		LGParser p = parser;
+		if (p instanceof CachingParser)
+		{
+			cache = ((CachingParser) p).getCache();
+			p = ((CachingParser) p).getParser();
+		}
+		if (p instanceof AdaptiveParser)
+			p = ((AdaptiveParser) p).getParser();
+		if (p instanceof TieredParser)
+			p = ((TieredParser) p).getParser();
+		if (tiered)
+			p = new TieredParser(p);
+		if (controller != null)
+			p = new AdaptiveParser(p, controller);
+		if (cache != null)
+			p = new CachingParser(p, cache);
+		parser = p;
+		context.setParser(p);
+		resegment();
+	}
+
+	/**
+	 * Split sentences of the given length, or longer, at clause
+	 * boundaries, and parse the pieces at the same time, on the given
+	 * number of threads; see SegmentingParser. Such sentences are
+	 * then no longer refused for being DEFAULT_MAX_SENTENCE_LENGTH or
+	 * longer. A threshold of zero turns this off.
+	 */
+	public void setSegmentLongSentences(int threshold, int threads)
+	{
+		if (!_is_inited) init();
+		if (segmenter != null) segmenter.shutdown();
+		segmenter = null;
+		if (0 < threshold)
+			segmenter = new SegmentingParser(parser, threshold, threads);
+	}
+
+	// The segmenter wraps the parser; re-make it when that changes.
+	private void resegment()
+	{
+		if (segmenter != null)
+			setSegmentLongSentences(segmenter.getThreshold(), segmenter.getThreads());
+	}
+
+	/**
+	 * Use the given parser, e.g. a RecordingParser wrapping the
+	 * current one, or a ReplayParser. If this is called before
+	 * anything else, the default parser is never created, and so
+	 * link-grammar need not be installed.
+	 */
+	public void setParser(LGParser p)
+	{
+		parser = p;
+		if (_is_inited) context.setParser(p);
+		resegment();
+	}
+
+	public LGParser getParser()
+	{
+		if (!_is_inited) init();
+		return parser;
 	}
 
 	/* ---------------------------------------------------------- */
 
 	public Sentence processSentence(String sentence)
+	{
+		return processSentence(sentence, Deadline.in(_max_sentence_millis));
+	}
+
+	/**
+	 * Process the sentence, giving up once the deadline expires.
+	 * The parser is given whatever time remains as its time limit;
+	 * after that, the deadline is checked between parses, and between
+	 * rules. If it expires, the parses processed so far (the last one
+	 * possibly only in part) are returned, the rest are dropped, and
+	 * the sentence is marked with setTimedOut(true).
+	 */
+	public Sentence processSentence(String sentence, Deadline deadline)
+	{
+		return processSentence(sentence, deadline, do_stanford, do_penn_tagging);
+	}
+
+	/**
+	 * As above, but with the Stanford and Penn tagging rules turned
+	 * on or off for this sentence only, rather than by do_stanford
+	 * and do_penn_tagging.
+	 */
+	public Sentence processSentence(String sentence, Deadline deadline,
+	                                boolean stanford, boolean penn)
 	{
 		if (!_is_inited) init();
 		startTime();
@@ -268,30 +520,41 @@ public class RelationExtractor
 		try
 		{
 			startTime();
-			sntc = parseSentence(sentence);
+			sntc = parseSentence(sentence, deadline);
 			reportTime("Link-parsing: ");
 
-			for (ParsedSentence parse : sntc.getParses())
+			// Rank first, so that the expensive rules can be skipped
+			// on the parses that are unlikely to matter.
+			sntc.simpleParseRank();
+
+			ArrayList<ParsedSentence> parses = sntc.getParses();
+			markSyntaxOnly(parses, _rule_top_k, _rule_cost_margin);
+			int done = 0;
+			boolean complete = true;
+			for (ParsedSentence parse : parses)
 			{
-				if (_lang.equals("en"))
+				if (deadline.isExpired()) break;
+				if (parse.isSyntaxOnly())
 				{
-					stripSubscripts(parse);
+					if (_lang.equals("en")) stripSubscripts(parse);
 				}
-
-				if (do_expand_preps)
+				else
 				{
-					parse.getLeft().set("expand-preps", new FeatureNode("T"));
+					complete = processParse(parse, deadline, stanford, penn);
 				}
-
-				// The actual relation extraction is done here.
-				if (do_apply_algs) sentenceAlgorithmApplier.applyAlgs(parse, context);
-				if (do_stanford) sentenceAlgorithmApplier.extractStanford(parse, context);
-				if (do_penn_tagging) sentenceAlgorithmApplier.pennTag(parse, context);
-
+				done++;
+				if (!complete) break;
 			}
 
-			// Assign a simple parse-ranking score, based on LinkGrammar data.
-			sntc.simpleParseRank();
+			// Drop the parses that were never looked at; the output
+			// views can't do anything sensible with them.
+			if (!complete || done < parses.size())
+			{
+				logger.warn("Deadline expired after {} of {} parses: {}",
+					done, parses.size(), sentence);
+				parses.subList(done, parses.size()).clear();
+				sntc.setTimedOut(true);
+			}
 		}
 		catch (Exception e)
 		{
@@ -302,18 +565,100 @@ public class RelationExtractor
 		return sntc;
 	}
 
+	/**
+	 * Mark the parses that the relex algs are to skip, as set by
+	 * setRuleLimits(): all but the best topK, and of those, the ones
+	 * not within costMargin of the best. The parses must be ranked,
+	 * best first, by Sentence.simpleParseRank(). Returns the number
+	 * left for the algs.
+	 */
+	public static int markSyntaxOnly(List<ParsedSentence> parses,
+	                                 int topK, double costMargin)
+	{
+		if (parses.isEmpty()) return 0;
+		double floor = parses.get(0).getRank() * Math.exp(-costMargin);
+		int n = 0;
+		for (int i = 0; i < parses.size(); i++)
+		{
+			ParsedSentence parse = parses.get(i);
+			boolean skip = 0 < i && (topK <= i || parse.getRank() < floor);
+			parse.setSyntaxOnly(skip);
+			if (!skip) n++;
+		}
+		return n;
+	}
+
+	/**
+	 * Build and process up to n more of the lower-ranked parses that
+	 * were left unbuilt by processSentence(); see setEagerParses().
+	 * The new parses are appended to sntc.getParses(), and returned.
+	 */
+	public ArrayList<ParsedSentence> processMoreParses(Sentence sntc, int n)
+	{
+		if (!_is_inited) init();
+		ArrayList<ParsedSentence> added = sntc.materializeParses(n);
+		for (ParsedSentence parse : added)
+			processParse(parse, Deadline.NONE, do_stanford, do_penn_tagging);
+		return added;
+	}
+
+	/**
+	 * Run the relex algs on one parse. Returns false if the deadline
+	 * expired part-way through.
+	 */
+	private boolean processParse(ParsedSentence parse, Deadline deadline,
+	                             boolean stanford, boolean penn)
+	{
+		if (_lang.equals("en"))
+		{
+			stripSubscripts(parse);
+		}
+
+		if (do_expand_preps)
+		{
+			parse.getLeft().set("expand-preps", new FeatureNode("T"));
+		}
+
+		// The actual relation extraction is done here.
+		boolean complete = true;
+		if (do_apply_algs)
+			complete = sentenceAlgorithmApplier.applyAlgs(parse, context, deadline);
+		if (complete && stanford)
+			complete = sentenceAlgorithmApplier.extractStanford(parse, context, deadline);
+		if (complete && penn)
+			complete = sentenceAlgorithmApplier.pennTag(parse, context, deadline);
+		return complete;
+	}
+
 	/**
 	 * Parses a sentence, using the parser. The private ArrayList of
 	 * currentParses is filled with the ParsedSentences.
 	 */
 	private Sentence
-	parseSentence(String sentence)
+	parseSentence(String sentence, Deadline deadline)
 	{
 		if (sentence == null) return null;
 
 		Sentence sent = null;
-		if (sentence.length() < DEFAULT_MAX_SENTENCE_LENGTH) {
-			sent = parser.parse(sentence);
+		if (deadline.isExpired()) {
+			sent = new Sentence();
+			sent.setSentence(sentence);
+			sent.setTimedOut(true);
+		} else if (sentence.length() < DEFAULT_MAX_SENTENCE_LENGTH || segmenter != null) {
+			// Don't let the parser run past the deadline. The parser
+			// may be shared with other threads, so the shorter time
+			// limit goes with this call, not into the parser's config.
+			LGConfig cfg = parser.getConfig();
+			int limit = cfg.getMaxParseSeconds();
+			int secs = deadline.remainingSeconds(limit);
+			if (secs < limit) {
+				cfg = LGParser.copyConfig(cfg, new LGConfig());
+				cfg.setMaxParseSeconds(secs);
+			}
+			if (segmenter != null)
+				sent = segmenter.parse(sentence, cfg);
+			else
+				sent = parser.parse(sentence, cfg);
 		} else {
 			logger.error("Sentence too long, len={} : {}", sentence.length(), sentence);
 			sent = new Sentence();
@@ -328,7 +673,7 @@ public class RelationExtractor
 	 * in link-grammar is not really rigorous; it gives a general first
 	 * attempt at getting part-of-speech correct, but is not foolproof.
 	 */
-	private void
+	public static void
 	stripSubscripts(ParsedSentence parse)
 	{
 		FeatureNode fn = parse.getLeft();
@@ -410,6 +755,196 @@ public class RelationExtractor
 		}
 	}
 
+	/**
+	 * Prints the output of main() for one sentence; the same for the
+	 * serial and the parallel (-j) modes.
+	 */
+	private static class SentencePrinter implements ExtractorPool.Sink
+	{
+		private final RelationExtractor re;
+		private final Map<String,String> commandMap;
+		private final PrintWriter html;
+		private final OpenCogScheme opencog;
+		private final int maxParses;
+		private int sentence_count = 0;
+
+		SentencePrinter(RelationExtractor re, Map<String,String> commandMap,
+		                PrintWriter html, OpenCogScheme opencog, int maxParses)
+		{
+			this.re = re;
+			this.commandMap = commandMap;
+			this.html = html;
+			this.opencog = opencog;
+			this.maxParses = maxParses;
+		}
+
+		public void accept(ExtractorPool.Result r)
+		{
+			print(r.sentence, r.sntc, r.stats);
+		}
+
+		/**
+		 * Print every parse that processSentence() kept. If it ran out
+		 * of time, it has already dropped the parses it did not get to,
+		 * so the output is not held to the sentence's deadline: the
+		 * partial result is printed in full.
+		 *
+		 * @param sstats The statistics of this sentence alone, to be
+		 *        merged into the totals; or null, to bin it here.
+		 */
+		void print(String sentence, Sentence sntc, ParseStats sstats)
+		{
+			System.out.println("; SENTENCE: ["+sentence+"]");
+
+			// Crazy error condition ... the parser is broken somehow ...
+			if (null == sntc) return;
+
+			re.doco.addSentence(sntc);
+
+			if (html != null)
+				html.printf("<div id='relex-%d'><table><tr><td>%d: %s</td></tr><tr>\n",
+					sentence_count, sentence_count, escape(sentence));
+
+			sentence_count ++;
+			if (sstats == null) re.stats.bin(sntc);
+			else re.stats.merge(sstats);
+			if (sntc.isTimedOut())
+				System.out.println("; TIMED OUT: partial result");
+
+			int np = sntc.getParses().size();
+			if (np > maxParses) np = maxParses;
+
+			double parse_weight = 1.0 / ((double) np);
+			double votes = 1.0e-20;
+			votes = 1.0 / votes;
+			votes *= parse_weight;
+
+			// Print output
+			int numParses = 0;
+			for (ParsedSentence parse: sntc.getParses())
+			{
+				if (commandMap.get("-g") != null)
+				{
+					System.out.println("\n====\n");
+					System.out.println("Link graph:\n");
+					LinkGraphGenerator.generateGraphImage(LinkGraphGenerator.generateGraph("Link Graph", parse, null, false));
+					System.out.println("\n======\n");
+				}
+                    
+				if (commandMap.get("-o") == null)
+				{
+					System.out.println(sentence);
+					System.out.println("\n====\n");
+					System.out.println("Parse " + (numParses+1) +
+				             	" of " + sntc.getParses().size());
+				}
+
+				if (commandMap.get("-i") != null)
+				{
+					System.out.println("\n=====\n");
+					System.out.println(NLGInputView.printRelations(parse));
+					System.out.println("\n=====\n");
+				}
+
+				if (commandMap.get("-r") != null)
+				{
+					System.out.println("\n====\n");
+					System.out.println("Dependency graph:\n");
+					System.out.println(RawView.printZHeads(parse.getLeft()));
+					System.out.println("\n======\n");
+				}
+
+				if (commandMap.get("-t") != null) {
+					System.out.println("\n" + parse.getPhraseString());
+					if (html != null)
+						html.printf("<td colspan='2'>%s</td></tr><tr>", escape(parse.getPhraseString()));
+				}
+
+				// Don't print the link string if xml output is enabled.
+				// XML parsers choke on it.
+				if ((commandMap.get("-l") != null) &&
+				    (commandMap.get("-o") == null))
+					System.out.println("\n" + parse.getLinkString());
+
+				if (commandMap.get("-m") != null)
+				{
+					System.out.println(parse.getMetaData().toString() + "\n");
+				}
+
+				if (commandMap.get("-o") == null)
+				{
+					// Print simple parse ranking
+					Double confidence = parse.getTruthValue().getConfidence();
+					String prt_cnfd = confidence.toString();
+					prt_cnfd = prt_cnfd.substring(0, Math.min(6, prt_cnfd.length()));
+					System.out.println("Parse confidence: " + prt_cnfd);
+					System.out.println(
+						"cost vector = (UNUSED=" + parse.getNumSkippedWords() +
+						" DIS=" + parse.getDisjunctCost() +
+						" LEN=" + parse.getLinkCost() + ")");
+				}
+
+				// Verbose graph.
+				if (commandMap.get("-v") != null)
+					// System.out.println("\n" + parse.fullParseString());
+					System.out.println("\n" +
+					 	parse.getLeft().toString(LinkView.getFilter()));
+
+				if ((commandMap.get("-q") == null) &&
+				    (commandMap.get("-o") == null) &&
+				    re.do_apply_algs)
+				{
+					System.out.println("\n======\n");
+					System.out.println("Dependency relations:\n");
+					if (parse.isSyntaxOnly())
+						System.out.println("    (syntax only; ranked too low for relex)");
+					else
+						System.out.println(SimpleView.printRelations(parse));
+					System.out.println("\n======\n");
+
+					if (html != null)
+						html.printf("<td valign='top'><pre>%s</pre></td>\n", escape(SimpleView.printRelations(parse)));
+				}
+
+				if (commandMap.get("--prolog") != null)
+				{
+					PrologList pl = new PrologList();
+					System.out.println(
+						pl.toPrologList(parse.getLeft(),
+							PrologList.getDefaultFilter(),
+							true));
+					System.out.println("\n======\n");
+				}
+
+				if (commandMap.get("--stanford") != null)
+				{
+					System.out.println("Stanford-style dependency relations:\n");
+					System.out.println(
+						StanfordView.printRelations(parse, re.do_penn_tagging, "    "));
+					System.out.println("\n======\n");
+				}
+
+				if (commandMap.get("-o") != null)
+				{
+					opencog.setParse(parse);
+					System.out.println(opencog.toString());
+				}
+
+				if (html != null) html.println("</tr></table></div>");
+
+				if (++numParses >= maxParses) break;
+			}
+
+			// Print out the stats every now and then.
+			if (sentence_count%5 == 0)
+			{
+				System.err.println ("\n" + re.stats.toString());
+				if (re.getParseBudget() != null)
+					System.err.println ("Parse budget: " + re.getParseBudget());
+			}
+		}
+	}
+
 	/* ---------------------------------------------------------- */
 	/**
 	 * Main entry point
@@ -421,10 +956,19 @@ public class RelationExtractor
 			" [-g (generate link graph - requires graphviz)]" +
 			" [-h (show this help)]" +
 			" [-i (show output for generation)]" +
+			" [-j N (process N sentences at a time; output stays in order)]" +
 			" [-l (show Link Grammar parse diagram)]" +
 			" [--lang language (default en for English)]" +
 			" [-m (show parse metadata)]" +
 			" [--maxParseSeconds N]" +
+			" [--maxSentenceMillis N (total time budget per sentence)]" +
+			" [--ruleTopK N (run relex algs on the best N parses only)]" +
+			" [--ruleMargin X (... and only within cost X of the best)]" +
+			" [--tiered (strict parse first, permissive only on failure)]" +
+			" [--targetMillis N (adapt parse limits to this mean parse time)]" +
+			" [--record file (save the parses, for --replay)]" +
+			" [--replay file (use saved parses, instead of link-grammar)]" +
+			" [--segment N (split sentences of N chars or more into clauses)]" +
 			" [-n max number of parses to display]" +
 			" [-o (show opencog scheme output)]" +
 			" [--penn (generate Penn treebank-style POS tags)]" +
@@ -452,6 +996,7 @@ public class RelationExtractor
 		flags.add("-r");
 		flags.add("--stanford");
 		flags.add("-t");
+		flags.add("--tiered");
 		flags.add("-v");
 		HashSet<String> opts = new HashSet<String>();
 		opts.add("-n");
@@ -459,6 +1004,14 @@ public class RelationExtractor
 		opts.add("--html");
 		opts.add("--lang");
 		opts.add("--maxParseSeconds");
+		opts.add("--maxSentenceMillis");
+		opts.add("--ruleTopK");
+		opts.add("--ruleMargin");
+		opts.add("--record");
+		opts.add("--replay");
+		opts.add("--segment");
+		opts.add("--targetMillis");
+		opts.add("-j");
 		Map<String,String> commandMap = CommandLineArgParser.parse(args, opts, flags);
 
 		// Things that can be set via command line flags; cache till needed.
@@ -466,6 +1019,12 @@ public class RelationExtractor
 		String language = "en";
 		int maxParses = 1;
 		int maxParseSeconds = 6;
+		long maxSentenceMillis = 0;
+		int ruleTopK = Integer.MAX_VALUE;
+		double ruleMargin = Double.POSITIVE_INFINITY;
+		int segment = 0;
+		double targetMillis = -1;
+		int threads = 1;
 		PrintWriter html = null;
 
 		// Check for optional command line arguments.
@@ -485,6 +1044,24 @@ public class RelationExtractor
 
 			opt = commandMap.get("--maxParseSeconds");
 			if (opt != null) maxParseSeconds = Integer.parseInt(opt);
+
+			opt = commandMap.get("--maxSentenceMillis");
+			if (opt != null) maxSentenceMillis = Long.parseLong(opt);
+
+			opt = commandMap.get("--ruleTopK");
+			if (opt != null) ruleTopK = Integer.parseInt(opt);
+
+			opt = commandMap.get("--ruleMargin");
+			if (opt != null) ruleMargin = Double.parseDouble(opt);
+
+			opt = commandMap.get("--segment");
+			if (opt != null) segment = Integer.parseInt(opt);
+
+			opt = commandMap.get("--targetMillis");
+			if (opt != null) targetMillis = Double.parseDouble(opt);
+
+			opt = commandMap.get("-j");
+			if (opt != null) threads = Integer.parseInt(opt);
 		}
 		catch (Exception e)
 		{
@@ -509,8 +1086,32 @@ public class RelationExtractor
 		// careful: set language *before* doing other things,
 		// to avoid call to init()
 		re.setLanguage(language);
+		try
+		{
+			String opt = commandMap.get("--replay");
+			if (opt != null) re.setParser(new ReplayParser(new File(opt)));
+
+			opt = commandMap.get("--record");
+			if (opt != null)
+				re.setParser(new RecordingParser(re.getParser(), new File(opt)));
+		}
+		catch (IOException e)
+		{
+			logger.error("Cannot open parse recording", e);
+			return;
+		}
 		re.setMaxParses(maxParses);
 		re.setMaxParseSeconds(maxParseSeconds);
+		re.setRuleLimits(ruleTopK, ruleMargin);
+		if (commandMap.get("--tiered") != null) re.setTieredParsing(true);
+		if (0 <= targetMillis)
+		{
+			BudgetController budget = new BudgetController();
+			budget.setTargetMillis(targetMillis);
+			re.setParseBudget(budget);
+		}
+		if (0 < segment)
+			re.setSegmentLongSentences(segment, Runtime.getRuntime().availableProcessors());
 		System.out.println("; Version: " + re.getVersion());
 
 		if (commandMap.get("-t") != null) 
@@ -555,7 +1156,11 @@ public class RelationExtractor
 			}
 		}
 		
-		int sentence_count = 0;
+		SentencePrinter printer = new SentencePrinter(re, commandMap, html, opencog, maxParses);
+		ExtractorPool pool = null;
+		if (1 < threads && commandMap.get("-s") == null)
+			pool = new ExtractorPool(re, threads, 0, maxSentenceMillis, printer);
+
 		boolean more_input = true;
 		while (more_input)
 		{
@@ -583,146 +1188,21 @@ public class RelationExtractor
 
 			while (sentence != null)
 			{
-				System.out.println("; SENTENCE: ["+sentence+"]");
-				Sentence sntc = re.processSentence(sentence);
-
-				// Crazy error condition ... the parser is broken somehow ...
-				if (null == sntc) { sentence = ds.getNextSentence(); break; }
-
-				re.doco.addSentence(sntc);
-
-				if (html != null)
-					html.printf("<div id='relex-%d'><table><tr><td>%d: %s</td></tr><tr>\n",
-						sentence_count, sentence_count, escape(sentence));
-
-				sentence_count ++;
-				re.stats.bin(sntc);
-
-				int np = sntc.getParses().size();
-				if (np > maxParses) np = maxParses;
-
-				double parse_weight = 1.0 / ((double) np);
-				double votes = 1.0e-20;
-				votes = 1.0 / votes;
-				votes *= parse_weight;
-
-				// Print output
-				int numParses = 0;
-				for (ParsedSentence parse: sntc.getParses())
+				if (pool != null)
 				{
-					if (commandMap.get("-g") != null)
+					try
 					{
-						System.out.println("\n====\n");
-						System.out.println("Link graph:\n");
-						LinkGraphGenerator.generateGraphImage(LinkGraphGenerator.generateGraph("Link Graph", parse, null, false));
-						System.out.println("\n======\n");
+						pool.submit(sentence);
 					}
-                    
-					if (commandMap.get("-o") == null)
+					catch (Exception e)
 					{
-						System.out.println(sentence);
-						System.out.println("\n====\n");
-						System.out.println("Parse " + (numParses+1) +
-					             	" of " + sntc.getParses().size());
+						logger.error("Failed to process sentence: {}", sentence, e);
 					}
-
-					if (commandMap.get("-i") != null)
-					{
-						System.out.println("\n=====\n");
-						System.out.println(NLGInputView.printRelations(parse));
-						System.out.println("\n=====\n");
-					}
-
-					if (commandMap.get("-r") != null)
-					{
-						System.out.println("\n====\n");
-						System.out.println("Dependency graph:\n");
-						System.out.println(RawView.printZHeads(parse.getLeft()));
-						System.out.println("\n======\n");
-					}
-
-					if (commandMap.get("-t") != null) {
-						System.out.println("\n" + parse.getPhraseString());
-						if (html != null)
-							html.printf("<td colspan='2'>%s</td></tr><tr>", escape(parse.getPhraseString()));
-					}
-
-					// Don't print the link string if xml output is enabled.
-					// XML parsers choke on it.
-					if ((commandMap.get("-l") != null) &&
-					    (commandMap.get("-o") == null))
-						System.out.println("\n" + parse.getLinkString());
-
-					if (commandMap.get("-m") != null)
-					{
-						System.out.println(parse.getMetaData().toString() + "\n");
-					}
-
-					if (commandMap.get("-o") == null)
-					{
-						// Print simple parse ranking
-						Double confidence = parse.getTruthValue().getConfidence();
-						String prt_cnfd = confidence.toString();
-						prt_cnfd = prt_cnfd.substring(0, Math.min(6, prt_cnfd.length()));
-						System.out.println("Parse confidence: " + prt_cnfd);
-						System.out.println(
-							"cost vector = (UNUSED=" + parse.getNumSkippedWords() +
-							" DIS=" + parse.getDisjunctCost() +
-							" LEN=" + parse.getLinkCost() + ")");
-					}
-
-					// Verbose graph.
-					if (commandMap.get("-v") != null)
-						// System.out.println("\n" + parse.fullParseString());
-						System.out.println("\n" +
-						 	parse.getLeft().toString(LinkView.getFilter()));
-
-					if ((commandMap.get("-q") == null) &&
-					    (commandMap.get("-o") == null) &&
-					    re.do_apply_algs)
-					{
-						System.out.println("\n======\n");
-						System.out.println("Dependency relations:\n");
-						System.out.println(SimpleView.printRelations(parse));
-						System.out.println("\n======\n");
-
-						if (html != null)
-							html.printf("<td valign='top'><pre>%s</pre></td>\n", escape(SimpleView.printRelations(parse)));
-					}
-
-					if (commandMap.get("--prolog") != null)
-					{
-						PrologList pl = new PrologList();
-						System.out.println(
-							pl.toPrologList(parse.getLeft(),
-								PrologList.getDefaultFilter(),
-								true));
-						System.out.println("\n======\n");
-					}
-
-					if (commandMap.get("--stanford") != null)
-					{
-						System.out.println("Stanford-style dependency relations:\n");
-						System.out.println(
-							StanfordView.printRelations(parse, re.do_penn_tagging, "    "));
-						System.out.println("\n======\n");
-					}
-
-					if (commandMap.get("-o") != null)
-					{
-						opencog.setParse(parse);
-						System.out.println(opencog.toString());
-					}
-
-					if (html != null) html.println("</tr></table></div>");
-
-					if (++numParses >= maxParses) break;
 				}
-
-				// Print out the stats every now and then.
-				if (sentence_count%5 == 0)
+				else
 				{
-					System.err.println ("\n" + re.stats.toString());
+					Sentence sntc = re.processSentence(sentence, Deadline.in(maxSentenceMillis));
+					printer.print(sentence, sntc, null);
 				}
 
 				if (commandMap.get("-s") != null) break;
@@ -730,6 +1210,17 @@ public class RelationExtractor
 			}
 			if (commandMap.get("-s") != null) break;
 		}
+		if (pool != null)
+		{
+			try
+			{
+				pool.shutdown();
+			}
+			catch (Exception e)
+			{
+				logger.error("Failed to process sentence", e);
+			}
+		}
 
 		if (html != null) {
 			html.println("</html>");
@@ -741,6 +1232,8 @@ public class RelationExtractor
 		{
 			System.out.println(opencog.printDocument(re.doco));
 		}
+		// Closes the recording, if any.
+		if (commandMap.get("--record") != null) re.doFinalize();
 		System.out.println("; Bye.");
 		if (commandMap.get("-o") != null)
 		{
@@ -27,6 +27,7 @@ import java.util.Collections;
 import java.util.UUID;
 
 import relex.output.SimpleView;
+import relex.parser.CompactLinkage;
 
 /**
  * This class encapsulates various information about a sentence,
@@ -47,6 +48,13 @@ public class Sentence implements Serializable
 
 	private String sentenceID;
 
+	// Set if processing was cut short by a deadline.
+	private boolean timedOut = false;
+
+	// Lower-ranked linkages whose feature graphs have not been
+	// built yet, best first.
+	private ArrayList<CompactLinkage> pending = new ArrayList<CompactLinkage>();
+
 	public Sentence()
 	{
 		originalSentence = null;
@@ -119,6 +127,61 @@ public class Sentence implements Serializable
 		return numParses;
 	}
 
+	/**
+	 * Set the linkages that were found, but not yet turned into
+	 * ParsedSentences; they must be ranked below all of getParses().
+	 */
+	public void setPendingLinkages(ArrayList<CompactLinkage> pl)
+	{
+		pending = pl;
+	}
+
+	public ArrayList<CompactLinkage> getPendingLinkages()
+	{
+		return pending;
+	}
+
+	public int getNumPendingParses()
+	{
+		return pending.size();
+	}
+
+	/**
+	 * Build up to n of the pending linkages into ParsedSentences,
+	 * best first, and append them to getParses(). Returns the new
+	 * parses, which have not had any relex algs applied to them.
+	 */
+	public ArrayList<ParsedSentence> materializeParses(int n)
+	{
+		ArrayList<ParsedSentence> added = new ArrayList<ParsedSentence>();
+		while (0 < n-- && !pending.isEmpty())
+		{
+			ParsedSentence parse = pending.remove(0).toParse(originalSentence);
+			parse.setIDString(sentenceID + "_parse_" + parses.size());
+			parse.setSentence(this);
+			parse.assign_id();
+			parse.simpleRankParse();
+			parses.add(parse);
+			added.add(parse);
+		}
+		return added;
+	}
+
+	/**
+	 * True if the processing deadline expired before all of the
+	 * parses were fully processed; the parses held are then only
+	 * a partial result.
+	 */
+	public boolean isTimedOut()
+	{
+		return timedOut;
+	}
+
+	public void setTimedOut(boolean to)
+	{
+		timedOut = to;
+	}
+
 	/**
 	 * Return an array of the words in the sentence
 	 */
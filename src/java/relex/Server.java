@@ -19,18 +19,22 @@ package relex;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.PrintWriter;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
 import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 import java.util.HashSet;
 import java.util.Map;
-import org.linkgrammar.LinkGrammar;
 import relex.ServerSession;
 import relex.Version;
+import relex.concurrent.AdmissionController;
+import relex.parser.LocalLGParser;
+import relex.parser.ParserWorkerPool;
+import relex.utils.HeapMonitor;
 
 /**
  * The Server class provides a multi-threaded socket-based parse server.
@@ -40,6 +44,21 @@ import relex.Version;
  * It is intended that this server be used by OpenCog agents to process
  * text; the text is sent from opencog to this server, and the returned
  * parses are then further processed by OpenCog.
+ *
+ * The sessions keep nothing from one sentence to the next, so the
+ * server runs indefinitely. If a heap budget is set, and the live
+ * heap (measured after a garbage collection) grows past it anyway,
+ * the sessions are closed and made anew; this is logged, as is the
+ * memory use of each session after each connection.
+ *
+ * A connection is admitted, or refused at once with a line saying
+ * "; OVERLOADED", by an AdmissionController: if too many connections
+ * are waiting, or too many from the same client, or if the wait would
+ * be too long. The accept loop itself never waits for a session.
+ *
+ * With --nio, connections are served by an NioFrontEnd instead: one
+ * thread reads and writes them all, and a client may send many
+ * sentences without waiting for the replies.
  */
 
 public class Server
@@ -55,13 +74,26 @@ public class Server
 	private boolean relex_on = false;
 	private boolean link_on = false;
 	private boolean free_text = false;
+	private long recycle_after = 0;
+	private long native_budget_mb = 0;
+	private long heap_budget_mb = 0;
+	private boolean nio = false;
+	private int max_in_flight = NioFrontEnd.DEFAULT_MAX_IN_FLIGHT;
+	private int max_queued = AdmissionController.DEFAULT_MAX_QUEUED;
+	private int max_per_client = 0;
+	private long max_queue_millis = 0;
 
 	// sockets
 	private ServerSocket listen_sock = null;
+	private ServerSocketChannel listen_chan = null;
 	private Socket send_sock = null;
 	private OutputStream outs = null;
 	private PrintWriter out = null;
 
+	// All link-grammar parsing happens in these threads; it outlives
+	// the restarts of run_server().
+	static private ParserWorkerPool parser_pool = null;
+
 	// stats
 	static int restart_count = 0;
 
@@ -82,6 +114,17 @@ public class Server
 			" --relex    \t Output RelEx relations (default)\n" +
 			" --link     \t Output Link Grammar Linkages\n" +
 			" --free-text\t Don't assume one sentence per line; look for !?. to end sentence.\n" +
+			" --recycle-after num\t Restart a parser thread after this many sentences (default: never)\n" +
+			" --native-budget MB\t Restart a parser thread once it grows by this much (default: never)\n" +
+			" --heap-budget MB\t Restart the sessions if the live heap exceeds this (default: never)\n" +
+			" --nio      \t Serve all connections from one thread; each stays open, and may\n" +
+			"            \t have many sentences in flight, until the client closes it.\n" +
+			" --max-in-flight num\t With --nio, sentences in flight per connection (default: " +
+				NioFrontEnd.DEFAULT_MAX_IN_FLIGHT + ")\n" +
+			" --max-queued num\t Refuse requests when this many are waiting (default: " +
+				AdmissionController.DEFAULT_MAX_QUEUED + "; 0 for no limit)\n" +
+			" --max-per-client num\t Refuse requests when a client has this many (default: no limit)\n" +
+			" --max-queue-millis num\t Refuse requests that would wait longer (default: no limit)\n" +
 			" --verbose  \t Print parse output to server stdout.\n";
 
 		HashSet<String> flags = new HashSet<String>();
@@ -91,12 +134,20 @@ public class Server
 		flags.add("--relex");
 		flags.add("--free-text");
 		flags.add("--verbose");
+		flags.add("--nio");
 		HashSet<String> opts = new HashSet<String>();
 		opts.add("-n");
 		opts.add("-p");
 		opts.add("--host");
 		opts.add("--lang");
 		opts.add("--port");
+		opts.add("--recycle-after");
+		opts.add("--native-budget");
+		opts.add("--heap-budget");
+		opts.add("--max-in-flight");
+		opts.add("--max-queued");
+		opts.add("--max-per-client");
+		opts.add("--max-queue-millis");
 		Map<String,String> commandMap = CommandLineArgParser.parse(args, opts, flags);
 
 		try
@@ -122,6 +173,27 @@ public class Server
 
 			opt = commandMap.get("--port");
 			if (opt != null) listen_port = Integer.parseInt(opt);
+
+			opt = commandMap.get("--recycle-after");
+			if (opt != null) recycle_after = Long.parseLong(opt);
+
+			opt = commandMap.get("--native-budget");
+			if (opt != null) native_budget_mb = Long.parseLong(opt);
+
+			opt = commandMap.get("--heap-budget");
+			if (opt != null) heap_budget_mb = Long.parseLong(opt);
+
+			opt = commandMap.get("--max-in-flight");
+			if (opt != null) max_in_flight = Integer.parseInt(opt);
+
+			opt = commandMap.get("--max-queued");
+			if (opt != null) max_queued = Integer.parseInt(opt);
+
+			opt = commandMap.get("--max-per-client");
+			if (opt != null) max_per_client = Integer.parseInt(opt);
+
+			opt = commandMap.get("--max-queue-millis");
+			if (opt != null) max_queue_millis = Long.parseLong(opt);
 		}
 		catch (Exception e)
 		{
@@ -139,6 +211,12 @@ public class Server
 		if (commandMap.get("--link") != null) link_on = true;
 		if (commandMap.get("--relex") != null) relex_on = true;
 		if (commandMap.get("--free-text") != null) free_text = true;
+		if (commandMap.get("--nio") != null) nio = true;
+		if (nio && host_name != null)
+		{
+			System.err.println("Error: --nio returns output on the input socket; it cannot be used with --host");
+			System.exit(1);
+		}
 
 		if (commandMap.get("--verbose") != null)
 		{
@@ -153,7 +231,15 @@ public class Server
 	{
 		try
 		{
-			listen_sock = new ServerSocket(listen_port);
+			if (nio)
+			{
+				listen_chan = ServerSocketChannel.open();
+				listen_chan.socket().bind(new InetSocketAddress(listen_port));
+			}
+			else
+			{
+				listen_sock = new ServerSocket(listen_port);
+			}
 		}
 		catch (IOException e)
 		{
@@ -189,20 +275,70 @@ public class Server
 		}
 	}
 
+	// -----------------------------------------------------------------
+	// Start the parser threads. This also forces link-grammar
+	// initialization, before anything else.
+	public void pool_setup()
+	{
+		LocalLGParser proto = new LocalLGParser();
+		proto.setLanguage(lang);
+		parser_pool = new ParserWorkerPool(proto, NTHREADS);
+		parser_pool.setMaxParsesPerWorker(recycle_after);
+		parser_pool.setNativeBudgetBytes(native_budget_mb * 1024 * 1024);
+		parser_pool.init();
+	}
+
+	// -----------------------------------------------------------------
+	private ServerSession make_session(int id)
+	{
+		ServerSession sess = new ServerSession();
+		sess.id = id;
+		sess.sess_setup(relex_on, link_on, free_text, max_parses, lang, parser_pool);
+		sess.verbose = verbose;
+		return sess;
+	}
+
+	// -----------------------------------------------------------------
+	private AdmissionController new_admission()
+	{
+		return new AdmissionController(NTHREADS, max_queued,
+		                               max_per_client, max_queue_millis);
+	}
+
+	// The whole reply to a connection that is turned away.
+	static void overloaded(PrintWriter out, AdmissionController.Ticket ticket)
+	{
+		System.err.println("Warning: Overloaded: " + ticket.getReason());
+		out.println("; OVERLOADED: " + ticket.getReason());
+		out.flush();
+	}
+
 	// -----------------------------------------------------------------
 	private static class ConnHandler implements Runnable
 	{
 		public ArrayBlockingQueue<ServerSession> sessq = null;
-		public ServerSession sess = null;
+		public AdmissionController.Ticket ticket = null;
 		Socket in_sock = null;
 		PrintWriter out = null;
 		public void run()
 		{
-			System.err.println("Info: Enter thread with handler " + sess.id);
+			ServerSession sess = null;
 			try {
-				sess.handle_session(in_sock, out);
+				// Shed the connection if it waited too long.
+				if (!ticket.start()) {
+					overloaded(out, ticket);
+				} else {
+					// There are as many sessions as threads.
+					sess = sessq.take();
+					System.err.println("Info: Enter thread with handler " + sess.id);
+					sess.handle_session(in_sock, out);
+				}
 			} catch (IOException e) {
 				System.err.println("Error: Cannot handle: " + e.getMessage());
+			} catch (InterruptedException e) {
+				System.err.println("Error: Queue interrupted: " + e.getMessage());
+			} finally {
+				ticket.finish();
 			}
 			out.flush();
 			out.close();
@@ -215,75 +351,56 @@ public class Server
 			}
 			in_sock = null;
 
-			sessq.add(sess);
-			sess = null;
+			if (sess != null)
+			{
+				System.err.println("Info: " + sess.getMemoryReport());
+				sessq.add(sess);
+			}
 			sessq = null;
-
-			// Something here is leaking memory ... 10GB in 10 minutes.
-			// System.gc();
+			ticket = null;
 		}
 	}
 
-	// Block until one copy of this is running in each thread.
-	// When this finally happens, perform link-grammar cleanup
-	// in each thread.
-	private static class ConnCleanup implements Runnable
+	// -----------------------------------------------------------------
+	/**
+	 * True if the live heap is over budget. Only a collection of the
+	 * old pool after the given count shows whether it still is: the
+	 * heap in use after an earlier one may include what has since
+	 * been let go, e.g. by a restart.
+	 */
+	private boolean over_budget(long since_gc_count)
 	{
-		public ServerSession sess = null;
-		public static AtomicInteger count = new AtomicInteger(0);
-		public void run()
-		{
-			count.addAndGet(1);
-			System.err.println("Info: Waiting cleanup thread. cnt=" + count.get());
-
-			// Stall until all threads are running.
-			try {
-				while (count.get() < NTHREADS) { TimeUnit.SECONDS.sleep(1); }
-			} catch (InterruptedException e) {
-				System.err.println("Error: Shtutdown interrupted: " + e.getMessage());
-			}
-			sess.sess_close();
-		}
+		if (heap_budget_mb <= 0) return false;
+		if (HeapMonitor.oldCollectionCount() <= since_gc_count) return false;
+		return heap_budget_mb * 1024 * 1024 < HeapMonitor.liveHeapBytes();
 	}
 
 	// -----------------------------------------------------------------
 	public void run_server()
 	{
-		int loop_count = 0;
+		long loop_count = 0;
+		long start_gc_count = HeapMonitor.oldCollectionCount();
 		System.err.println("===============================================");
 		System.err.println("===============================================");
 		System.err.println("===============================================");
 		System.err.println("Info: Version: " + Version.getVersion());
 
-		{
-			// Force link-grammar initialization, before anything else.
-			ServerSession tmp = new ServerSession();
-			tmp.sess_setup(relex_on, link_on, free_text, max_parses, lang);
-		}
-
 		ArrayBlockingQueue<ServerSession> sessq = null;
 		ExecutorService tpool = null;
 		ServerSession sess = null;
+		AdmissionController admission = new_admission();
 
 		// If the end-point is null, we can (and will) use threads.
 		if (send_sock == null)
 		{
 			sessq = new ArrayBlockingQueue<ServerSession>(NTHREADS);
 			for (int i=0; i<NTHREADS; i++)
-			{
-				sess = new ServerSession();
-				sess.id = i+1;
-				sess.sess_setup(relex_on, link_on, free_text, max_parses, lang);
-				sess.verbose = verbose;
-				sessq.add(sess);
-			}
+				sessq.add(make_session(i+1));
 			tpool = Executors.newFixedThreadPool(NTHREADS);
 		}
 		else
 		{
-			sess = new ServerSession();
-			sess.sess_setup(relex_on, link_on, free_text, max_parses, lang);
-			sess.verbose = verbose;
+			sess = make_session(0);
 		}
 
 		// -----------------------------------------------------------------
@@ -324,63 +441,106 @@ public class Server
 				} catch (IOException e) {
 					System.err.println("Error: Cannot connect: " + e.getMessage());
 				}
+				System.err.println("Info: " + sess.getMemoryReport());
 			}
 			else
 			{
-				try {
-					// Take will block; can throw InterruptedException
-					sess = sessq.take();
+				AdmissionController.Ticket ticket =
+					admission.admit(in_sock.getInetAddress().getHostAddress());
+				if (ticket.isRejected())
+				{
+					// The reply is one line, so it is sent from here.
+					overloaded(out, ticket);
+					out.close();
+					try {
+						in_sock.close();
+					} catch (IOException e) {
+						System.err.println("Error: Cannot close: " + e.getMessage());
+					}
+				}
+				else
+				{
 					ConnHandler cha = new ConnHandler();
-					cha.sess = sess;
 					cha.sessq = sessq;
+					cha.ticket = ticket;
 					cha.in_sock = in_sock;
 					cha.out = out;
 					tpool.execute(cha);
-				} catch (InterruptedException e) {
-					System.err.println("Error: Queue interrupted: " + e.getMessage());
 				}
 			}
 			loop_count++;
 			System.err.println("Loop count=" + loop_count +
-			                   " Restart count=" + restart_count);
-
-			if (loop_count%100 == 0) System.gc();
-			// Basically, don't ever break ...
-			// if (2147483600 < loop_count) break;
+			                   " Restart count=" + restart_count +
+			                   " " + admission);
 
-			// Sometime after about 1000 parses, Java gets old and
-			// slow and tired. Try to work around this.
-			if (1000 < loop_count) break;
+			if (over_budget(start_gc_count))
+			{
+				System.err.println("Warning: Live heap " +
+					HeapMonitor.mb(HeapMonitor.liveHeapBytes()) +
+					" is over the budget of " + heap_budget_mb + "MB");
+				break;
+			}
 		}
 
 		System.err.println("Info: Main loop shutting down");
 
-		// Invoke the Relex close handler in each thread.
-		for (int i=0; i<NTHREADS; i++)
+		// The sessions hold no link-grammar state, (the parser pool
+		// does) so they can be closed from here, once the connections
+		// already accepted have been served.
+		if (sessq != null)
 		{
+			tpool.shutdown();
 			try {
-				// Take will block; can throw InterruptedException
-				sess = sessq.take();
-				ConnCleanup cle = new ConnCleanup();
-				cle.sess = sess;
-				tpool.execute(cle);
+				while (!tpool.awaitTermination(1, TimeUnit.MINUTES))
+					System.err.println("Info: Waiting for connections to finish");
 			} catch (InterruptedException e) {
 				System.err.println("Error: Cleanup interrupted: " + e.getMessage());
 			}
-		}
-		sessq = null;
+			tpool = null;
 
-		// Wait until each thread has been cleaned up.
-		try {
-			tpool.shutdown();
-			tpool.awaitTermination(600, TimeUnit.SECONDS);
-		} catch (InterruptedException e) {
-			System.err.println("Error: Shutdown interrupted: " + e.getMessage());
+			for (int i=0; i<NTHREADS; i++)
+			{
+				try {
+					// Take will block; can throw InterruptedException
+					sessq.take().sess_close();
+				} catch (InterruptedException e) {
+					System.err.println("Error: Cleanup interrupted: " + e.getMessage());
+				}
+			}
+			sessq = null;
+		}
+		else
+		{
+			sess.sess_close();
 		}
-		tpool = null;
+		System.err.println("Info: " + parser_pool);
+	}
 
-		// Now perform Relex finalization.
-		LinkGrammar.doFinalize();
+	// -----------------------------------------------------------------
+	// Serve with the non-blocking front end; it makes the sessions
+	// anew itself, if the heap goes over budget.
+	public void run_nio_server()
+	{
+		NioFrontEnd front = new NioFrontEnd(listen_chan, NTHREADS, free_text,
+			new NioFrontEnd.SessionFactory()
+			{
+				public ServerSession make(int id)
+				{
+					return make_session(id);
+				}
+			});
+		front.setMaxInFlight(max_in_flight);
+		front.setHeapBudgetMB(heap_budget_mb);
+		front.setAdmission(new_admission());
+		try
+		{
+			front.serve();
+		}
+		catch (IOException e)
+		{
+			System.err.println("Error: Front end failed: " + e.getMessage());
+		}
+		System.err.println("Info: " + parser_pool);
 	}
 
 	public static void main(String[] args)
@@ -388,35 +548,25 @@ public class Server
 		Server srv = new Server();
 		srv.parse_args(args);
 		srv.socket_setup();
+		srv.pool_setup();
+
+		if (srv.nio)
+		{
+			srv.run_nio_server();
+			System.exit(1);
+		}
 
-		// Every thousand sentences, the server will auto-exit,
-		// and we will attempt a marathon garage collection.
-		// This appears to (mostly, but not completely?) fix the
-		// performance issues that accumulate over time.
-		//
-		// The core problem seems to be related to very large
-		// parse results being returned -- sometimes ten or
-		// twenty megabytes.  I think that these cause Java memory
-		// fragmentation, and the Java GC is unable to deal with
-		// this or resolve it in any way.  The symptoms are that
-		// this server gets slower and slower, suffering after
-		// about 500 maybe 1000 sentences, and coming to a near-total
-		// grinding halt after about 4 hours of run-time, with the
-		// processing rate dropping to about 5% of the fresh-restart
-		// rate. The periodic clean-sweap done here seems to fix the
-		// issue.
-		//
+		// The server used to auto-exit every thousand sentences, and
+		// force a marathon garbage collection, to work around a server
+		// that got slower and slower, down to about 5% of its initial
+		// rate after a few hours. The sessions were leaking: each one
+		// remembered every word instance that it had ever printed.
+		// Now run_server() only returns if the live heap goes over the
+		// --heap-budget; the sessions are then made anew.
 		while (true)
 		{
 			srv.run_server();
 
-			// Java sucks rocks.
-			System.gc();
-			System.gc();
-			System.gc();
-			System.gc();
-			System.gc();
-
 			restart_count++;
 			System.err.println("===============================================");
 			System.err.println("Restart count = " + restart_count);
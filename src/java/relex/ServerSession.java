@@ -26,12 +26,21 @@ import relex.corpus.DocSplitter;
 import relex.corpus.DocSplitterFactory;
 import relex.output.SimpleView;
 import relex.output.OpenCogScheme;
+import relex.parser.LGParser;
+import relex.utils.Deadline;
+import relex.utils.HeapMonitor;
 import relex.Version;
 
 /**
  * Handler for a single socket session.
  * Accepts input text string on input, delivers relex-parsed
  * syntax tree on output, in the Opencog Atomese format.
+ *
+ * A session is reused for connection after connection, so it must
+ * not grow: once a sentence has been sent, nothing of it is kept --
+ * not the parse, nor its word instances, nor any text left over in
+ * the splitter. What each connection allocated, and the live heap
+ * of the whole server, are reported by getMemoryReport().
  */
 public class ServerSession
 {
@@ -44,9 +53,27 @@ public class ServerSession
 	private boolean free_text = false;
 	private int max_parses;
 
+	// Reused for every input line.
+	private final StringBuilder line_buf = new StringBuilder();
+
+	// stats
+	private long sentence_count = 0;
+	private long connection_count = 0;
+	private long last_allocated = -1;
+	private long total_allocated = 0;
+
 	// Set up the parsers.
 	public void sess_setup(boolean relex_on, boolean link_on,
 	                       boolean ft, int mp, String lang)
+	{
+		sess_setup(relex_on, link_on, ft, mp, lang, null);
+	}
+
+	// As above, but parse with the given parser, typically a
+	// ParserWorkerPool shared by all sessions; null for a private one.
+	public void sess_setup(boolean relex_on, boolean link_on,
+	                       boolean ft, int mp, String lang,
+	                       LGParser parser)
 	{
 		free_text = ft;
 		max_parses = mp;
@@ -54,6 +81,7 @@ public class ServerSession
 		// -----------------------------------------------------------------
 		// After parsing the commmand arguments, set up the assorted classes.
 		re = new RelationExtractor(false);
+		if (parser != null) re.setParser(parser);
 		re.setLanguage(lang);
 		re.setMaxParses(max_parses);
 		if (1000 < max_parses) re.setMaxLinkages(max_parses+100);
@@ -84,7 +112,9 @@ public class ServerSession
 	// Need to close in the same thread in which work was being done,
 	// so as to release allocated memory associated with LinkGrammar,
 	// with that processing thread. The java bindings do a per-thread
-	// malloc.
+	// malloc. (Not so when parsing with a ParserWorkerPool: then the
+	// session thread holds no link-grammar memory, and this can be
+	// called from any thread.)
 	public void sess_close()
 	{
 		ds = null;
@@ -102,6 +132,11 @@ public class ServerSession
 		// System.err.println("Info: Socket accept");
 		InputStream ins = in_sock.getInputStream();
 		BufferedReader in = new BufferedReader(new InputStreamReader(ins));
+		long alloc_start = HeapMonitor.threadAllocatedBytes();
+		connection_count++;
+
+		// Nothing left over from the last connection.
+		ds.clearBuffer();
 
 		// Loop over multiple sentences that may be present in input.
 		while (true)
@@ -127,10 +162,11 @@ public class ServerSession
 					if ('\n' == one_char)
 						continue;
 
-					// Another bright shining example of more java idiocy.
-					char junk[] = {(char)one_char};
-					String line = new String(junk);
-					line += in.readLine();
+					line_buf.setLength(0);
+					line_buf.append((char) one_char);
+					String rest = in.readLine();
+					if (rest != null) line_buf.append(rest);
+					String line = line_buf.toString();
 
 					System.err.println("Info: hndlr=" + id + " recv input: \"" + line + "\"");
 
@@ -160,53 +196,7 @@ public class ServerSession
 
 			try
 			{
-				System.err.println("Info: hndlr=" + id + " sentence: \"" + sentence + "\"");
-				Sentence sntc = re.processSentence(sentence);
-				if (sntc.getParses().size() == 0)
-				{
-					System.err.println("Info: hndlr=" + id + " No parses!");
-					out.println("; NO PARSES");
-
-					// Only one sentence per connection in the non-free-text mode.
-					if (!free_text) break;
-					continue;
-				}
-				int np = Math.min(max_parses, sntc.getParses().size());
-				int pn;
-				for (pn = 0; pn < np; pn++)
-				{
-					ParsedSentence parse = sntc.getParses().get(pn);
-
-					// Print the phrase string ... handy for debugging.
-					out.println("; " + parse.getPhraseString());
-
-					if (verbose)
-					{
-						String fin = SimpleView.printRelationsAlt(parse);
-						System.out.print(fin);
-					}
-					opencog.setParse(parse);
-					out.println(opencog.toString());
-					out.flush();
-					System.err.println("Info: hndlr=" + id + " sent parse " + (pn + 1) + " of " + np);
-
-					// This is for simplifying pre-processing of scheme string
-					// before evaluating it in opencog.
-					out.println("; ##### END OF A PARSE #####");
-					out.flush();
-				}
-
-				// Add a special tag to tell the cog server that it's
-				// just recieved a brand new sentence. The OpenCog scheme
-				// code depends on this being visible, in order to find
-				// the new sentence.
-				out.println("(ListLink (stv 1 1)");
-				out.println("   (AnchorNode \"# New Parsed Sentence\")");
-				out.println("   (SentenceNode \"" + sntc.getID() + "\")");
-				out.println(")");
-
-				out.println("; END OF SENTENCE");
-				out.flush();
+				respond(sentence, out);
 			}
 			catch (Exception e)
 			{
@@ -219,6 +209,14 @@ public class ServerSession
 			if (!free_text) break;
 		}
 
+		ds.clearBuffer();
+		long alloc_end = HeapMonitor.threadAllocatedBytes();
+		if (0 <= alloc_start && 0 <= alloc_end)
+		{
+			last_allocated = alloc_end - alloc_start;
+			total_allocated += last_allocated;
+		}
+
 		try
 		{
 			in_sock.close();
@@ -229,4 +227,101 @@ public class ServerSession
 			System.err.println("Error: hndlr=" + id + " Socket close failed: " + e.getMessage());
 		}
 	}
+
+	// -----------------------------------------------------------------
+	/**
+	 * Parse one sentence, and print its parses to out, in Atomese, or
+	 * "; NO PARSES". Returns false if there were no parses. Nothing of
+	 * the sentence is kept afterwards.
+	 */
+	public boolean respond(String sentence, PrintWriter out)
+		throws Exception
+	{
+		return respond(sentence, out, null);
+	}
+
+	/**
+	 * As above, but give up on the sentence once the deadline expires,
+	 * see RelationExtractor.processSentence(String, Deadline); null
+	 * for the extractor's own time limit.
+	 */
+	public boolean respond(String sentence, PrintWriter out, Deadline deadline)
+		throws Exception
+	{
+		try
+		{
+			System.err.println("Info: hndlr=" + id + " sentence: \"" + sentence + "\"");
+			Sentence sntc = (deadline == null) ?
+				re.processSentence(sentence) :
+				re.processSentence(sentence, deadline);
+			if (sntc.getParses().size() == 0)
+			{
+				System.err.println("Info: hndlr=" + id + " No parses!");
+				out.println("; NO PARSES");
+				out.flush();
+				return false;
+			}
+			int np = Math.min(max_parses, sntc.getParses().size());
+			int pn;
+			for (pn = 0; pn < np; pn++)
+			{
+				ParsedSentence parse = sntc.getParses().get(pn);
+
+				// Print the phrase string ... handy for debugging.
+				out.println("; " + parse.getPhraseString());
+
+				if (verbose)
+				{
+					String fin = SimpleView.printRelationsAlt(parse);
+					System.out.print(fin);
+				}
+				opencog.setParse(parse);
+				out.println(opencog.toString());
+				out.flush();
+				System.err.println("Info: hndlr=" + id + " sent parse " + (pn + 1) + " of " + np);
+
+				// This is for simplifying pre-processing of scheme string
+				// before evaluating it in opencog.
+				out.println("; ##### END OF A PARSE #####");
+				out.flush();
+			}
+
+			// Add a special tag to tell the cog server that it's
+			// just recieved a brand new sentence. The OpenCog scheme
+			// code depends on this being visible, in order to find
+			// the new sentence.
+			out.println("(ListLink (stv 1 1)");
+			out.println("   (AnchorNode \"# New Parsed Sentence\")");
+			out.println("   (SentenceNode \"" + sntc.getID() + "\")");
+			out.println(")");
+
+			out.println("; END OF SENTENCE");
+			out.flush();
+			return true;
+		}
+		finally
+		{
+			// Drop every reference to this sentence's graphs.
+			opencog.clear();
+			sentence_count++;
+		}
+	}
+
+	// -----------------------------------------------------------------
+	/**
+	 * The memory use of this session: what its last connection, and
+	 * all of them, allocated; how much it still holds on to, which
+	 * should be nothing between connections; and the live heap of the
+	 * whole server, after the last garbage collection.
+	 */
+	public String getMemoryReport()
+	{
+		return "hndlr=" + id +
+			" connections=" + connection_count +
+			" sentences=" + sentence_count +
+			" allocated last=" + HeapMonitor.mb(last_allocated) +
+			" total=" + HeapMonitor.mb(total_allocated) +
+			" retained words=" + ((opencog == null) ? 0 : opencog.getWordsSeen()) +
+			" live heap=" + HeapMonitor.mb(HeapMonitor.liveHeapBytes());
+	}
 }
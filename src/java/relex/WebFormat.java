@@ -20,7 +20,7 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.util.HashSet;
 import java.util.Map;
-
+import relex.concurrent.ExtractorPool;
 import relex.corpus.DocSplitter;
 import relex.corpus.DocSplitterFactory;
 import relex.output.CompactView;
@@ -57,6 +57,7 @@ public class WebFormat extends RelationExtractor
 			" [-n max number of parses to display]" +
 			" [-t (do not show constituent tree)]" +
 			" [--url source URL]" +
+			" [-j N (process N sentences at a time; output stays in order)]" +
 			" [--maxParseSeconds N]";
 		HashSet<String> flags = new HashSet<String>();
 		flags.add("-h");
@@ -67,12 +68,14 @@ public class WebFormat extends RelationExtractor
 		opts.add("-n");
 		opts.add("--maxParseSeconds");
 		opts.add("--url");
+		opts.add("-j");
 		Map<String,String> commandMap = CommandLineArgParser.parse(args, opts, flags);
 
 		String url = null;
 		String sentence = null;
 		int maxParses = 30;
 		int maxParseSeconds = 60;
+		int threads = 1;
 
 		CompactView cv = new CompactView();
 
@@ -89,6 +92,9 @@ public class WebFormat extends RelationExtractor
 			maxParseSeconds = commandMap.get("--maxParseSeconds") != null ?
 				Integer.parseInt(commandMap.get("--maxParseSeconds").toString()) : 60;
 			url = commandMap.get("--url");
+
+			if (commandMap.get("-j") != null)
+				threads = Integer.parseInt(commandMap.get("-j"));
 		}
 		catch (Exception e)
 		{
@@ -119,8 +125,10 @@ public class WebFormat extends RelationExtractor
 		DocSplitter ds = DocSplitterFactory.create();
 
 		// Collect statistics
-		int sentence_count = 0;
-		ParseStats stats = new ParseStats();
+		Printer printer = new Printer(cv);
+		ExtractorPool pool = null;
+		if (1 < threads)
+			pool = new ExtractorPool(re, threads, 0, 0, printer);
 
 		System.out.println(cv.header());
 
@@ -133,6 +141,7 @@ public class WebFormat extends RelationExtractor
 					sentence = stdin.readLine();
 					if ((sentence == null) || "END.".equals(sentence))
 					{
+						finish(pool);
 						System.out.println(cv.footer());
 						return;
 					}
@@ -148,24 +157,79 @@ public class WebFormat extends RelationExtractor
 
 			while (sentence != null)
 			{
-				Sentence sntc = re.processSentence(sentence);
-
-				// Print output
-				System.out.println (cv.toString(sntc));
-
-				// Collect statistics
-				sentence_count ++;
-				stats.bin(sntc);
-
-				if (sentence_count%20 == 0)
+				if (pool != null)
 				{
-					System.err.println ("\n" + stats.toString());
+					try
+					{
+						pool.submit(sentence);
+					}
+					catch (Exception e)
+					{
+						System.err.println("Failed to process sentence: " + sentence);
+						e.printStackTrace();
+					}
+				}
+				else
+				{
+					printer.print(re.processSentence(sentence), null);
 				}
 
 				sentence = ds.getNextSentence();
 			}
 		}
 	}
+
+	private static void finish(ExtractorPool pool)
+	{
+		if (pool == null) return;
+		try
+		{
+			pool.shutdown();
+		}
+		catch (Exception e)
+		{
+			System.err.println("Failed to process sentence");
+			e.printStackTrace();
+		}
+	}
+
+	/** Prints the sentences, and collects statistics. */
+	private static class Printer implements ExtractorPool.Sink
+	{
+		private final CompactView cv;
+		private final ParseStats stats = new ParseStats();
+		private int sentence_count = 0;
+
+		Printer(CompactView cv)
+		{
+			this.cv = cv;
+		}
+
+		public void accept(ExtractorPool.Result r)
+		{
+			print(r.sntc, r.stats);
+		}
+
+		/**
+		 * @param sstats The statistics of this sentence alone, or null
+		 *        to bin it here.
+		 */
+		void print(Sentence sntc, ParseStats sstats)
+		{
+			// Print output
+			System.out.println (cv.toString(sntc));
+
+			// Collect statistics
+			sentence_count ++;
+			if (sstats == null) stats.bin(sntc);
+			else stats.merge(sstats);
+
+			if (sentence_count%20 == 0)
+			{
+				System.err.println ("\n" + stats.toString());
+			}
+		}
+	}
 }
 
 /* ============================ END OF FILE ====================== */
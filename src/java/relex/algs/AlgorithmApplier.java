@@ -20,6 +20,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import relex.ParsedSentence;
 import relex.concurrent.RelexContext;
+import relex.utils.Deadline;
 
 import java.io.BufferedReader;
 import java.io.IOException;
@@ -70,6 +71,23 @@ public class AlgorithmApplier
 		}
 	}
 
+	/**
+	 * Apply the algorithms, checking the deadline before each one.
+	 * Returns false if the deadline expired before all of them were
+	 * applied; the sentence then holds whatever the earlier rules
+	 * managed to produce.
+	 */
+	public boolean applyAlgs(ParsedSentence sentence, RelexContext context,
+	                         Deadline deadline)
+	{
+		for (SentenceAlgorithm alg: algs)
+		{
+			if (deadline.isExpired()) return false;
+			alg.apply(sentence, context);
+		}
+		return true;
+	}
+
 	/**
 	 *  Read in the set of SentenceAlgorithms
 	 */
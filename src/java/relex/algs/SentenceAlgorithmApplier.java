@@ -18,6 +18,7 @@ package relex.algs;
 
 import relex.ParsedSentence;
 import relex.concurrent.RelexContext;
+import relex.utils.Deadline;
 
 /**
  * SentenceAlgorithmApplier is responsible for loading SentenceAlgorithms
@@ -74,6 +75,41 @@ public class SentenceAlgorithmApplier
 		semant.applyAlgs(sentence, context);
 	}
 
+	/**
+	 * As above, but stop between rules once the deadline expires.
+	 * Returns false if not all of the rules were applied.
+	 */
+	public boolean applyAlgs(ParsedSentence sentence, RelexContext context,
+	                         Deadline deadline)
+	{
+		if (!tagger.applyAlgs(sentence, context, deadline)) return false;
+		return semant.applyAlgs(sentence, context, deadline);
+	}
+
+	public boolean tagFeatures(ParsedSentence sentence, RelexContext context,
+	                           Deadline deadline)
+	{
+		return tagger.applyAlgs(sentence, context, deadline);
+	}
+
+	public boolean extractSemantics(ParsedSentence sentence, RelexContext context,
+	                                Deadline deadline)
+	{
+		return semant.applyAlgs(sentence, context, deadline);
+	}
+
+	public boolean extractStanford(ParsedSentence sentence, RelexContext context,
+	                               Deadline deadline)
+	{
+		return stanford.applyAlgs(sentence, context, deadline);
+	}
+
+	public boolean pennTag(ParsedSentence sentence, RelexContext context,
+	                       Deadline deadline)
+	{
+		return penn.applyAlgs(sentence, context, deadline);
+	}
+
 	public static void main(String[] args)
 	{
 		new SentenceAlgorithmApplier();
@@ -0,0 +1,266 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package relex.concurrent;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Decides, without blocking, whether a server should take on a request
+ * or turn it away at once as overloaded; so that under a spike the
+ * wait of the requests that are taken stays bounded, instead of every
+ * request waiting longer and longer in a queue, or in the kernel's
+ * accept backlog.
+ *
+ * A request is admitted with a cost, e.g. its number of sentences,
+ * and is refused if:
+ * <ul>
+ * <li>more than maxQueued units would be waiting for a worker,</li>
+ * <li>its client would have more than maxPerClient units waiting or
+ *     running, or</li>
+ * <li>the predicted wait is over maxQueueMillis.</li>
+ * </ul>
+ * A request larger than a limit is still taken if there is nothing
+ * ahead of it, e.g. a long batch on an idle server.
+ * The predicted wait is the work waiting ahead of it, spread over the
+ * workers, at the average time per unit of the requests served so
+ * far. A request that was admitted is still shed when it reaches a
+ * worker, if it has waited longer than maxQueueMillis after all.
+ * Any limit that is zero is not applied.
+ *
+ * Every admitted request must be finished, whatever became of it.
+ */
+public class AdmissionController
+{
+	/** Default for the servers' --max-queued. */
+	public static final int DEFAULT_MAX_QUEUED = 256;
+
+	/** Weight of the latest request in the average service time. */
+	private static final double EWMA_WEIGHT = 0.1;
+
+	private final int workers;
+	private final int maxQueued;
+	private final int maxPerClient;
+	private final long maxQueueMillis;
+
+	private int waiting = 0;
+	private int running = 0;
+	private final Map<String, Integer> perClient = new HashMap<String, Integer>();
+	private double millisPerUnit = 0.0;
+
+	// stats
+	private long admitted = 0;
+	private long rejected = 0;
+	private long shed = 0;
+
+	/**
+	 * @param workers Number of requests that are served at once.
+	 * @param maxQueued Most units of work waiting for a worker.
+	 * @param maxPerClient Most units of work of one client.
+	 * @param maxQueueMillis Longest time that a request may wait.
+	 */
+	public AdmissionController(int workers, int maxQueued,
+	                           int maxPerClient, long maxQueueMillis)
+	{
+		this.workers = Math.max(1, workers);
+		this.maxQueued = maxQueued;
+		this.maxPerClient = maxPerClient;
+		this.maxQueueMillis = maxQueueMillis;
+	}
+
+	public Ticket admit(String client)
+	{
+		return admit(client, 1);
+	}
+
+	/**
+	 * Admit a request, or refuse it; see Ticket.isRejected().
+	 * @param client Who sent it, e.g. the remote address.
+	 * @param cost Units of work, at least 1.
+	 */
+	public synchronized Ticket admit(String client, int cost)
+	{
+		cost = Math.max(1, cost);
+		int mine = perClient.containsKey(client) ? perClient.get(client) : 0;
+		String reason = null;
+		long wait = predictedWaitMillis();
+		int backlog = backlog();
+		if (0 < maxQueued && 0 < backlog && maxQueued < backlog + cost)
+			reason = "server queue is full (" + backlog + " waiting)";
+		else if (0 < maxPerClient && 0 < mine && maxPerClient < mine + cost)
+			reason = "too many requests from " + client + " (" + mine + " in progress)";
+		else if (0 < maxQueueMillis && maxQueueMillis < wait)
+			reason = "predicted wait of " + wait + "ms is over " + maxQueueMillis + "ms";
+
+		if (reason != null)
+		{
+			rejected++;
+			return new Ticket(client, cost, reason, wait);
+		}
+		admitted++;
+		waiting += cost;
+		perClient.put(client, mine + cost);
+		return new Ticket(client, cost, null, wait);
+	}
+
+	/**
+	 * Units of work waiting for a worker. A request may be started
+	 * before all of its units can be worked on, e.g. a batch of
+	 * sentences; those beyond one per worker are waiting too.
+	 */
+	private int backlog()
+	{
+		return waiting + Math.max(0, running - workers);
+	}
+
+	/**
+	 * How long a request admitted now would wait for a worker: the
+	 * work waiting, spread over the workers, plus, if all of them are
+	 * busy, half a unit for the one that frees up first.
+	 */
+	public synchronized long predictedWaitMillis()
+	{
+		double units = (double) backlog() / workers;
+		if (workers <= running) units += 0.5;
+		return (long) (units * millisPerUnit);
+	}
+
+	private synchronized void started(Ticket t)
+	{
+		waiting -= t.cost;
+		running += t.cost;
+	}
+
+	private synchronized void finished(Ticket t, boolean started, long serviceMillis)
+	{
+		if (started) running -= t.cost;
+		else waiting -= t.cost;
+
+		int mine = perClient.get(t.client) - t.cost;
+		if (mine <= 0) perClient.remove(t.client);
+		else perClient.put(t.client, mine);
+
+		if (0 <= serviceMillis)
+		{
+			double perUnit = (double) serviceMillis / t.cost;
+			millisPerUnit = (millisPerUnit == 0.0) ? perUnit
+				: (1.0 - EWMA_WEIGHT) * millisPerUnit + EWMA_WEIGHT * perUnit;
+		}
+	}
+
+	private synchronized void wasShed()
+	{
+		shed++;
+	}
+
+	/** Units of work now waiting for a worker. */
+	public synchronized int getWaiting()
+	{
+		return backlog();
+	}
+
+	public synchronized long getRejected()
+	{
+		return rejected + shed;
+	}
+
+	public synchronized String toString()
+	{
+		return String.format("admission: %d admitted, %d rejected, %d shed; " +
+			"%d waiting, %d running, %.0fms per unit",
+			admitted, rejected, shed, backlog(), running, millisPerUnit);
+	}
+
+	// -----------------------------------------------------------------
+	/** One request, from admission to finish. */
+	public final class Ticket
+	{
+		private final String client;
+		private final int cost;
+		private final long admittedAt = System.currentTimeMillis();
+		private final long predicted;
+		private String reason;
+		private long startedAt = 0;
+		private boolean done = false;
+
+		private Ticket(String client, int cost, String reason, long predicted)
+		{
+			this.client = client;
+			this.cost = cost;
+			this.reason = reason;
+			this.predicted = predicted;
+			if (reason != null) done = true;
+		}
+
+		/** True if the request was refused, or shed by start(). */
+		public boolean isRejected()
+		{
+			return reason != null;
+		}
+
+		/** Why the request was refused, for the overloaded reply. */
+		public String getReason()
+		{
+			return reason;
+		}
+
+		/** The wait predicted when the request came in. */
+		public long getPredictedWaitMillis()
+		{
+			return predicted;
+		}
+
+		/**
+		 * Time left before the request has waited too long; never
+		 * negative, and Long.MAX_VALUE if there is no limit.
+		 */
+		public long getRemainingQueueMillis()
+		{
+			if (maxQueueMillis <= 0) return Long.MAX_VALUE;
+			long left = admittedAt + maxQueueMillis - System.currentTimeMillis();
+			return Math.max(0, left);
+		}
+
+		/**
+		 * Call when a worker takes the request. Returns false, and
+		 * sheds the request, if it has waited longer than allowed;
+		 * it must still be finished.
+		 */
+		public boolean start()
+		{
+			if (reason != null) return false;
+			long waited = System.currentTimeMillis() - admittedAt;
+			if (0 < maxQueueMillis && maxQueueMillis < waited)
+			{
+				reason = "waited " + waited + "ms, over " + maxQueueMillis + "ms";
+				wasShed();
+				return false;
+			}
+			startedAt = System.currentTimeMillis();
+			started(this);
+			return true;
+		}
+
+		/** Call once the request is done with, or given up on. */
+		public void finish()
+		{
+			if (done) return;
+			done = true;
+			boolean started = (startedAt != 0);
+			long service = started ? System.currentTimeMillis() - startedAt : -1;
+			finished(this, started, service);
+		}
+	}
+}
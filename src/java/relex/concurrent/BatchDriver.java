@@ -0,0 +1,735 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package relex.concurrent;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import relex.CommandLineArgParser;
+import relex.RelationExtractor;
+import relex.Sentence;
+import relex.corpus.DocSplitter;
+import relex.corpus.DocSplitterFactory;
+import relex.output.CompactView;
+import relex.parser.ReplayParser;
+
+/**
+ * Parses a large corpus, a directory tree of text files, into the
+ * compact output format of WebFormat, one output file per shard;
+ * the replacement for batch-wiki.sh, multi-page.sh and cpu-control.pl.
+ *
+ * Each input file is a shard, or, if --shard-bytes is given, each
+ * byte range of that size of a larger file is. A byte range is cut
+ * at line boundaries: a shard holds the lines that start within it,
+ * so the input should have one paragraph (or sentence) per line.
+ *
+ * The shards are parsed by threads of this JVM (-j N), each with its
+ * own RelationExtractor, or else by worker JVMs (--processes N), each
+ * parsing one shard at a time. The output of a shard is written to a
+ * temporary file, which is renamed into place only once the shard is
+ * done; then the shard is appended to the manifest file in the output
+ * directory. A run that is stopped, or crashes, is resumed by running
+ * it again with the same input and --shard-bytes: the shards in the
+ * manifest are skipped.
+ *
+ * With --max-cpu P, workers pause between sentences to keep the CPU
+ * usage of the whole machine below P percent; see CpuThrottle. With
+ * --processes, each worker JVM throttles itself, and they all tend to
+ * pause and resume together.
+ */
+public class BatchDriver
+{
+	private static final Logger logger = LoggerFactory.getLogger(BatchDriver.class);
+
+	public static final String MANIFEST = "manifest.txt";
+
+	/** A file, or a byte range of one. */
+	public static class Shard
+	{
+		public final File file;
+		public final String name;
+		public final long start;
+		public final long end;
+
+		/**
+		 * @param name The file's path, relative to the input directory.
+		 * @param end End of the range, or -1 for the whole file.
+		 */
+		Shard(File file, String name, long start, long end)
+		{
+			this.file = file;
+			this.name = name;
+			this.start = start;
+			this.end = end;
+		}
+
+		/** Names the shard in the manifest. */
+		public String getId()
+		{
+			if (end < 0) return name;
+			return name + "@" + start + "-" + end;
+		}
+
+		/** Name of the output file, in the output directory. */
+		String getOutputName()
+		{
+			return getId().replace(File.separatorChar, '_').replace('/', '_') + ".xml";
+		}
+	}
+
+	private final File outDir;
+	private final File manifest;
+	private int maxParses = 4;
+	private int maxParseSeconds = 60;
+	private String urlPrefix = null;
+	private CpuThrottle throttle = null;
+
+	private final AtomicInteger done = new AtomicInteger();
+	private final AtomicInteger failed = new AtomicInteger();
+	private final AtomicInteger sentences = new AtomicInteger();
+
+	public BatchDriver(File outDir)
+	{
+		this.outDir = outDir;
+		this.manifest = new File(outDir, MANIFEST);
+	}
+
+	public void setMaxParses(int n)
+	{
+		maxParses = n;
+	}
+
+	public void setMaxParseSeconds(int secs)
+	{
+		maxParseSeconds = secs;
+	}
+
+	/** The source URL of a file is the prefix, then the file name. */
+	public void setUrlPrefix(String prefix)
+	{
+		urlPrefix = prefix;
+	}
+
+	public void setThrottle(CpuThrottle t)
+	{
+		throttle = t;
+	}
+
+	/* ---------------------------------------------------------------- */
+	/**
+	 * Split the input into shards: every file under it, in sorted
+	 * order, and, if shardBytes is positive, every byte range of
+	 * that size of each file. The same input and shardBytes give the
+	 * same shards, which is what makes resuming possible.
+	 */
+	public static List<Shard> plan(File input, long shardBytes)
+	{
+		List<Shard> shards = new ArrayList<Shard>();
+		List<String> names = new ArrayList<String>();
+		if (input.isDirectory()) listFiles(input, "", names);
+		else names.add(input.getName());
+
+		for (String name : names)
+		{
+			File f = input.isDirectory() ? new File(input, name) : input;
+			long len = f.length();
+			if (shardBytes <= 0 || len <= shardBytes)
+			{
+				shards.add(new Shard(f, name, 0, -1));
+				continue;
+			}
+			for (long at = 0; at < len; at += shardBytes)
+				shards.add(new Shard(f, name, at, Math.min(len, at + shardBytes)));
+		}
+		return shards;
+	}
+
+	private static void listFiles(File dir, String prefix, List<String> names)
+	{
+		String[] entries = dir.list();
+		if (entries == null) return;
+		Arrays.sort(entries);
+		for (String e : entries)
+		{
+			File f = new File(dir, e);
+			if (f.isDirectory()) listFiles(f, prefix + e + File.separator, names);
+			else if (f.isFile()) names.add(prefix + e);
+		}
+	}
+
+	/** The ids of the shards already done. */
+	public Set<String> readManifest() throws IOException
+	{
+		Set<String> ids = new HashSet<String>();
+		if (!manifest.exists()) return ids;
+		BufferedReader in = new BufferedReader(new InputStreamReader(
+			new FileInputStream(manifest), StandardCharsets.UTF_8));
+		try
+		{
+			String line;
+			while ((line = in.readLine()) != null)
+			{
+				// A line cut short by a crash has fewer fields; its shard
+				// gets done again.
+				String[] fields = line.split("\t");
+				if (fields.length == 3 && !line.startsWith("#")) ids.add(fields[0]);
+			}
+		}
+		finally
+		{
+			in.close();
+		}
+		return ids;
+	}
+
+	/**
+	 * Append a finished shard to the manifest, and sync it to disk.
+	 * A line cut short by a crash is ended first, so that it does not
+	 * run into this one.
+	 */
+	public synchronized void markDone(Shard s, int count, long millis) throws IOException
+	{
+		boolean cut = false;
+		if (0 < manifest.length())
+		{
+			RandomAccessFile raf = new RandomAccessFile(manifest, "r");
+			try
+			{
+				raf.seek(raf.length() - 1);
+				cut = raf.read() != '\n';
+			}
+			finally
+			{
+				raf.close();
+			}
+		}
+		FileOutputStream out = new FileOutputStream(manifest, true);
+		try
+		{
+			String line = (cut ? "\n" : "") + s.getId() + "\t" + count + "\t" + millis + "\n";
+			out.write(line.getBytes(StandardCharsets.UTF_8));
+			out.getFD().sync();
+		}
+		finally
+		{
+			out.close();
+		}
+		done.incrementAndGet();
+		sentences.addAndGet(count);
+	}
+
+	/** Move a finished output file into place, all at once. */
+	static void commit(File tmp, File out) throws IOException
+	{
+		try
+		{
+			Files.move(tmp.toPath(), out.toPath(),
+				StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		}
+		catch (java.nio.file.AtomicMoveNotSupportedException ex)
+		{
+			Files.move(tmp.toPath(), out.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	/* ---------------------------------------------------------------- */
+	/**
+	 * Parse one shard, writing the compact output to out.
+	 * @return The number of sentences.
+	 */
+	int process(Shard s, RelationExtractor re, PrintWriter out)
+		throws IOException, InterruptedException
+	{
+		CompactView cv = new CompactView();
+		cv.setMaxParses(maxParses);
+		cv.setVersion(re.getVersion());
+		cv.setSourceURL((urlPrefix == null) ? s.file.getPath()
+			: urlPrefix + s.file.getName());
+		out.println(cv.header());
+
+		DocSplitter ds = DocSplitterFactory.create();
+		int count = 0;
+		LineReader in = new LineReader(s.file, s.start, s.end);
+		try
+		{
+			String line;
+			while ((line = in.readLine()) != null)
+			{
+				ds.addText(line + " ");
+				String sentence;
+				while ((sentence = ds.getNextSentence()) != null)
+				{
+					parse(sentence, re, cv, out);
+					count++;
+				}
+			}
+			String rest = ds.getRemainder();
+			if (rest != null && 0 < rest.trim().length())
+			{
+				parse(rest.trim(), re, cv, out);
+				count++;
+			}
+		}
+		finally
+		{
+			in.close();
+		}
+		out.println(cv.footer());
+		return count;
+	}
+
+	private void parse(String sentence, RelationExtractor re, CompactView cv, PrintWriter out)
+		throws InterruptedException
+	{
+		if (throttle != null) throttle.acquire();
+		try
+		{
+			Sentence sntc = re.processSentence(sentence);
+			out.println(cv.toString(sntc));
+		}
+		finally
+		{
+			if (throttle != null) throttle.release();
+		}
+	}
+
+	/** Parse a shard into its output file, and record it as done. */
+	private void runShard(Shard s, RelationExtractor re)
+	{
+		File out = new File(outDir, s.getOutputName());
+		File tmp = new File(outDir, s.getOutputName() + ".tmp");
+		long start = System.currentTimeMillis();
+		try
+		{
+			PrintWriter pw = new PrintWriter(new OutputStreamWriter(
+				new FileOutputStream(tmp), StandardCharsets.UTF_8));
+			int count;
+			try
+			{
+				count = process(s, re, pw);
+			}
+			finally
+			{
+				pw.close();
+			}
+			if (pw.checkError()) throw new IOException("Error writing " + tmp);
+			commit(tmp, out);
+			markDone(s, count, System.currentTimeMillis() - start);
+			logger.info("Done {}: {} sentences", s.getId(), count);
+		}
+		catch (InterruptedException ex)
+		{
+			tmp.delete();
+			Thread.currentThread().interrupt();
+		}
+		catch (Exception ex)
+		{
+			logger.error("Failed on {}", s.getId(), ex);
+			tmp.delete();
+			failed.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Parse the shards on threads of this JVM; each thread has its own
+	 * copy of the prototype.
+	 */
+	public void runInProcess(List<Shard> shards, final RelationExtractor prototype, int nthreads)
+		throws InterruptedException
+	{
+		final ConcurrentLinkedQueue<Shard> queue = new ConcurrentLinkedQueue<Shard>(shards);
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int i = 0; i < Math.max(1, nthreads); i++)
+		{
+			Thread t = new Thread("relex-batch-" + i)
+			{
+				public void run()
+				{
+					RelationExtractor re;
+					synchronized (prototype)
+					{
+						re = prototype.copyForThread();
+					}
+					try
+					{
+						Shard s;
+						while (!isInterrupted() && (s = queue.poll()) != null)
+							runShard(s, re);
+					}
+					finally
+					{
+						re.close();
+					}
+				}
+			};
+			threads.add(t);
+			t.start();
+		}
+		for (Thread t : threads) t.join();
+	}
+
+	/**
+	 * Parse the shards in worker JVMs, started with the same JVM
+	 * options and class path as this one, plus jvmOpts; each worker
+	 * parses one shard, into a temporary file that is committed here.
+	 * The stderr of a worker goes to the shard's ".err" file.
+	 *
+	 * @param workerArgs Passed on to each worker's command line.
+	 */
+	public void runProcesses(List<Shard> shards, int nprocs,
+	                         final List<String> jvmOpts, final List<String> workerArgs)
+		throws InterruptedException
+	{
+		final ConcurrentLinkedQueue<Shard> queue = new ConcurrentLinkedQueue<Shard>(shards);
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int i = 0; i < Math.max(1, nprocs); i++)
+		{
+			Thread t = new Thread("relex-batch-" + i)
+			{
+				public void run()
+				{
+					Shard s;
+					while (!isInterrupted() && (s = queue.poll()) != null)
+						runWorker(s, jvmOpts, workerArgs);
+				}
+			};
+			threads.add(t);
+			t.start();
+		}
+		for (Thread t : threads) t.join();
+	}
+
+	private void runWorker(Shard s, List<String> jvmOpts, List<String> workerArgs)
+	{
+		File out = new File(outDir, s.getOutputName());
+		File tmp = new File(outDir, s.getOutputName() + ".tmp");
+		File err = new File(outDir, s.getOutputName() + ".err");
+
+		List<String> cmd = new ArrayList<String>();
+		cmd.add(new File(new File(System.getProperty("java.home"), "bin"), "java").getPath());
+		cmd.addAll(ManagementFactory.getRuntimeMXBean().getInputArguments());
+		cmd.addAll(jvmOpts);
+		cmd.add("-cp");
+		cmd.add(System.getProperty("java.class.path"));
+		cmd.add(BatchDriver.class.getName());
+		cmd.addAll(workerArgs);
+		cmd.addAll(Arrays.asList("--worker", s.file.getPath(),
+			"--start", Long.toString(s.start), "--end", Long.toString(s.end),
+			"--out", tmp.getPath()));
+
+		long start = System.currentTimeMillis();
+		Process p = null;
+		try
+		{
+			ProcessBuilder pb = new ProcessBuilder(cmd);
+			pb.redirectError(err);
+			p = pb.start();
+			p.getOutputStream().close();
+
+			// The worker's last line of output is the sentence count.
+			BufferedReader in = new BufferedReader(new InputStreamReader(
+				p.getInputStream(), StandardCharsets.UTF_8));
+			String line, last = null;
+			while ((line = in.readLine()) != null) last = line;
+			int status = p.waitFor();
+			if (status != 0 || last == null)
+				throw new IOException("Worker exited with status " + status + "; see " + err);
+
+			commit(tmp, out);
+			int count = Integer.parseInt(last.trim());
+			markDone(s, count, System.currentTimeMillis() - start);
+			if (err.length() == 0) err.delete();
+			logger.info("Done {}: {} sentences", s.getId(), count);
+		}
+		catch (InterruptedException ex)
+		{
+			p.destroy();
+			tmp.delete();
+			Thread.currentThread().interrupt();
+		}
+		catch (Exception ex)
+		{
+			logger.error("Failed on {}", s.getId(), ex);
+			tmp.delete();
+			failed.incrementAndGet();
+		}
+	}
+
+	public int getDone()
+	{
+		return done.get();
+	}
+
+	public int getFailed()
+	{
+		return failed.get();
+	}
+
+	public int getSentences()
+	{
+		return sentences.get();
+	}
+
+	/* ---------------------------------------------------------------- */
+	/**
+	 * Reads the lines that start within a byte range of a file.
+	 */
+	public static class LineReader implements Closeable
+	{
+		private final InputStream in;
+		private final long end;
+		private long pos;
+
+		/** @param end End of the range, or -1 for the end of the file. */
+		public LineReader(File f, long start, long end) throws IOException
+		{
+			FileInputStream fis = new FileInputStream(f);
+			long from = Math.max(0, start - 1);
+			fis.getChannel().position(from);
+			in = new BufferedInputStream(fis, 1 << 16);
+			pos = from;
+			this.end = (end < 0) ? Long.MAX_VALUE : end;
+
+			// A line that starts before the range belongs to the shard
+			// before; it ends at the first newline at or after start-1.
+			if (0 < start) readBytes();
+		}
+
+		/** The next line, without its line ending; null at the end. */
+		public String readLine() throws IOException
+		{
+			if (end <= pos) return null;
+			byte[] b = readBytes();
+			if (b == null) return null;
+			int len = b.length;
+			if (0 < len && b[len - 1] == '\r') len--;
+			return new String(b, 0, len, StandardCharsets.UTF_8);
+		}
+
+		private byte[] readBytes() throws IOException
+		{
+			ByteArrayOutputStream buf = new ByteArrayOutputStream();
+			int c;
+			while ((c = in.read()) >= 0)
+			{
+				pos++;
+				if (c == '\n') return buf.toByteArray();
+				buf.write(c);
+			}
+			return (buf.size() == 0) ? null : buf.toByteArray();
+		}
+
+		public void close() throws IOException
+		{
+			in.close();
+		}
+	}
+
+	/* ---------------------------------------------------------------- */
+	private static final String USAGE = "BatchDriver" +
+		" --input file-or-directory" +
+		" -o output-directory" +
+		" [-j N (parse N shards at a time in this JVM; default: number of CPUs)]" +
+		" [--processes N (parse N shards at a time in worker JVMs instead)]" +
+		" [--jvm-opts \"opts\" (extra options for the worker JVMs)]" +
+		" [--shard-bytes N (split files larger than N bytes into shards)]" +
+		" [--max-cpu P (pause to keep CPU usage below P percent)]" +
+		" [-n max number of parses to show (default 4)]" +
+		" [--maxParseSeconds N]" +
+		" [--url prefix (source URL of a file is the prefix + file name)]" +
+		" [--replay file (use saved parses, instead of link-grammar)]";
+
+	/**
+	 * Run a batch, or, with --worker, parse one shard for a batch run
+	 * with --processes.
+	 */
+	public static void main(String[] args)
+	{
+		HashSet<String> flags = new HashSet<String>();
+		flags.add("-h");
+		HashSet<String> opts = new HashSet<String>();
+		opts.add("--input");
+		opts.add("-o");
+		opts.add("-j");
+		opts.add("--processes");
+		opts.add("--jvm-opts");
+		opts.add("--shard-bytes");
+		opts.add("--max-cpu");
+		opts.add("-n");
+		opts.add("--maxParseSeconds");
+		opts.add("--url");
+		opts.add("--replay");
+		opts.add("--worker");
+		opts.add("--start");
+		opts.add("--end");
+		opts.add("--out");
+		Map<String,String> commandMap = CommandLineArgParser.parse(args, opts, flags);
+
+		if (commandMap.get("-h") != null ||
+		    (commandMap.get("--worker") == null &&
+		     (commandMap.get("--input") == null || commandMap.get("-o") == null)))
+		{
+			System.err.println(USAGE);
+			System.exit(commandMap.get("-h") != null ? 0 : 1);
+		}
+
+		try
+		{
+			System.exit(run(commandMap) ? 0 : 1);
+		}
+		catch (Exception ex)
+		{
+			logger.error("Batch failed", ex);
+			System.exit(1);
+		}
+	}
+
+	private static boolean run(Map<String,String> commandMap) throws Exception
+	{
+		int ncpus = Runtime.getRuntime().availableProcessors();
+		int threads = ncpus;
+		int procs = 0;
+		long shardBytes = 0;
+		double maxCpu = 0;
+
+		String opt = commandMap.get("-j");
+		if (opt != null) threads = Integer.parseInt(opt);
+		opt = commandMap.get("--processes");
+		if (opt != null) procs = Integer.parseInt(opt);
+		opt = commandMap.get("--shard-bytes");
+		if (opt != null) shardBytes = Long.parseLong(opt);
+		opt = commandMap.get("--max-cpu");
+		if (opt != null) maxCpu = Double.parseDouble(opt);
+
+		// The options that a worker JVM gets too.
+		List<String> workerArgs = new ArrayList<String>();
+		for (String o : new String[] {"-n", "--maxParseSeconds", "--url", "--replay", "--max-cpu"})
+		{
+			if (commandMap.get(o) == null) continue;
+			workerArgs.add(o);
+			workerArgs.add(commandMap.get(o));
+		}
+
+		String worker = commandMap.get("--worker");
+		File outDir = (worker != null) ? new File(commandMap.get("--out")).getParentFile()
+			: new File(commandMap.get("-o"));
+		if (outDir == null) outDir = new File(".");
+		if (!outDir.isDirectory() && !outDir.mkdirs())
+			throw new IOException("Cannot make the output directory " + outDir);
+
+		BatchDriver driver = new BatchDriver(outDir);
+		opt = commandMap.get("-n");
+		if (opt != null) driver.setMaxParses(Integer.parseInt(opt));
+		opt = commandMap.get("--maxParseSeconds");
+		if (opt != null) driver.setMaxParseSeconds(Integer.parseInt(opt));
+		driver.setUrlPrefix(commandMap.get("--url"));
+
+		if (worker != null)
+			return runWorkerMain(driver, commandMap, maxCpu);
+
+		List<Shard> all = plan(new File(commandMap.get("--input")), shardBytes);
+		Set<String> finished = driver.readManifest();
+		List<Shard> todo = new ArrayList<Shard>();
+		for (Shard s : all)
+			if (!finished.contains(s.getId())) todo.add(s);
+		logger.info("{} shards, {} already done, {} to do",
+			all.size(), all.size() - todo.size(), todo.size());
+
+		long start = System.currentTimeMillis();
+		if (0 < procs)
+		{
+			List<String> jvmOpts = new ArrayList<String>();
+			opt = commandMap.get("--jvm-opts");
+			if (opt != null && 0 < opt.trim().length())
+				jvmOpts.addAll(Arrays.asList(opt.trim().split("\\s+")));
+			driver.runProcesses(todo, procs, jvmOpts, workerArgs);
+		}
+		else
+		{
+			if (0 < maxCpu) driver.setThrottle(new CpuThrottle(maxCpu, threads));
+			RelationExtractor re = driver.newExtractor(commandMap.get("--replay"));
+			driver.runInProcess(todo, re, threads);
+			re.doFinalize();
+		}
+
+		long secs = (System.currentTimeMillis() - start) / 1000;
+		System.err.println("; Done " + driver.getDone() + " shards, "
+			+ driver.getSentences() + " sentences, in " + secs + " secs; "
+			+ driver.getFailed() + " failed, "
+			+ (all.size() - todo.size()) + " skipped (already done)");
+		return driver.getFailed() == 0;
+	}
+
+	/** Parse the one shard given by --worker, --start, --end, --out. */
+	private static boolean runWorkerMain(BatchDriver driver, Map<String,String> commandMap,
+	                                     double maxCpu) throws Exception
+	{
+		File f = new File(commandMap.get("--worker"));
+		long start = Long.parseLong(commandMap.get("--start"));
+		long end = Long.parseLong(commandMap.get("--end"));
+		if (0 < maxCpu) driver.setThrottle(new CpuThrottle(maxCpu, 1));
+
+		RelationExtractor re = driver.newExtractor(commandMap.get("--replay"));
+		PrintWriter out = new PrintWriter(new OutputStreamWriter(
+			new FileOutputStream(commandMap.get("--out")), StandardCharsets.UTF_8));
+		int count;
+		try
+		{
+			count = driver.process(new Shard(f, f.getName(), start, end), re, out);
+		}
+		finally
+		{
+			out.close();
+		}
+		re.doFinalize();
+		if (out.checkError()) return false;
+		System.out.println(count);
+		return true;
+	}
+
+	private RelationExtractor newExtractor(String replay) throws IOException
+	{
+		RelationExtractor re = new RelationExtractor();
+		if (replay != null) re.setParser(new ReplayParser(new File(replay)));
+		re.setMaxParses(maxParses);
+		re.setMaxParseSeconds(maxParseSeconds);
+		return re;
+	}
+}
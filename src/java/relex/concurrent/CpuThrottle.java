@@ -0,0 +1,178 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package relex.concurrent;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.lang.reflect.Method;
+
+/**
+ * Keeps the CPU usage of the whole machine below a given percentage,
+ * by letting fewer of a set of workers run at once; the in-process
+ * replacement for src/perl/cpu-control.pl, which SIGSTOPped and
+ * SIGCONTed the java processes themselves.
+ *
+ * Every worker calls acquire() before each unit of work, e.g. a
+ * sentence, and release() after it. The machine's load is sampled at
+ * most once per sample period; if it is above the maximum, one fewer
+ * worker is allowed to run, and if it is below the maximum less the
+ * share of one CPU (or half the maximum, if less), one more is. As
+ * with cpu-control.pl, a worker that is already running finishes its
+ * sentence before it stops.
+ *
+ * A throttle only knows about the workers of its own JVM. With
+ * BatchDriver --processes, each worker JVM has its own throttle, for
+ * one worker, and all of them sample the same machine-wide load; so
+ * they all pause, and resume, at about the same time, and the load
+ * swings between the two thresholds rather than settling between
+ * them. The cap on the load still holds.
+ */
+public class CpuThrottle
+{
+	public static final long DEFAULT_SAMPLE_MILLIS = 3000;
+
+	// getCpuLoad() where there is one (Java 14 and up), else the
+	// older getSystemCpuLoad(), which is deprecated from then on.
+	private static final Method CPU_LOAD = findCpuLoad();
+
+	private final double maxLoad;
+	private final double resumeLoad;
+	private final int workers;
+	private final long sampleMillis;
+
+	private int allowed;
+	private int running = 0;
+	private long lastSample = 0;
+	private double load = 0.0;
+	private long pausedMillis = 0;
+
+	/**
+	 * @param maxPercent The most CPU that may be used, 1 to 99.
+	 * @param workers Number of workers that share the throttle.
+	 */
+	public CpuThrottle(double maxPercent, int workers)
+	{
+		this(maxPercent, workers, DEFAULT_SAMPLE_MILLIS);
+	}
+
+	public CpuThrottle(double maxPercent, int workers, long sampleMillis)
+	{
+		int ncpus = Runtime.getRuntime().availableProcessors();
+		this.maxLoad = maxPercent / 100.0;
+		// On a machine with few CPUs, one CPU's share is too wide a gap.
+		this.resumeLoad = maxLoad - Math.min(1.0 / ncpus, maxLoad / 2);
+		this.workers = Math.max(1, workers);
+		this.sampleMillis = sampleMillis;
+		allowed = this.workers;
+	}
+
+	/** Wait until this worker may run. */
+	public synchronized void acquire() throws InterruptedException
+	{
+		long start = 0;
+		while (true)
+		{
+			sample();
+			if (running < allowed) break;
+			if (start == 0) start = System.currentTimeMillis();
+			wait(sampleMillis);
+		}
+		running++;
+		if (start != 0) pausedMillis += System.currentTimeMillis() - start;
+	}
+
+	public synchronized void release()
+	{
+		running--;
+		notifyAll();
+	}
+
+	private void sample()
+	{
+		long now = System.currentTimeMillis();
+		if (now - lastSample < sampleMillis) return;
+		lastSample = now;
+
+		load = systemLoad();
+		if (load < 0.0) return;
+		if (maxLoad < load && 0 < allowed) allowed--;
+		else if (load < resumeLoad && allowed < workers) allowed++;
+	}
+
+	/** The last load sampled, 0.0 to 1.0. */
+	public synchronized double getLoad()
+	{
+		return load;
+	}
+
+	/** Number of workers now allowed to run. */
+	public synchronized int getAllowed()
+	{
+		return allowed;
+	}
+
+	/** Total time that workers have spent waiting in acquire(). */
+	public synchronized long getPausedMillis()
+	{
+		return pausedMillis;
+	}
+
+	/**
+	 * The CPU usage of the whole machine, 0.0 to 1.0, or negative if
+	 * it is not known. Falls back to the load average over the
+	 * number of CPUs, where the JVM cannot measure the usage.
+	 */
+	public static double systemLoad()
+	{
+		OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+		if (CPU_LOAD != null && CPU_LOAD.getDeclaringClass().isInstance(os))
+		{
+			try
+			{
+				double cpu = ((Number) CPU_LOAD.invoke(os)).doubleValue();
+				if (0.0 <= cpu) return cpu;
+			}
+			catch (Exception ex)
+			{
+				// Use the load average instead.
+			}
+		}
+		double avg = os.getSystemLoadAverage();
+		if (avg < 0.0) return -1.0;
+		return avg / os.getAvailableProcessors();
+	}
+
+	private static Method findCpuLoad()
+	{
+		for (String name : new String[] {"getCpuLoad", "getSystemCpuLoad"})
+		{
+			try
+			{
+				return Class.forName("com.sun.management.OperatingSystemMXBean").getMethod(name);
+			}
+			catch (Exception ex)
+			{
+				// Not this one.
+			}
+		}
+		return null;
+	}
+
+	public synchronized String toString()
+	{
+		return String.format("cpu %.0f%% (max %.0f%%), %d of %d workers allowed",
+			100.0 * load, 100.0 * maxLoad, allowed, workers);
+	}
+}
@@ -0,0 +1,209 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package relex.concurrent;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import relex.ParseStats;
+import relex.RelationExtractor;
+import relex.Sentence;
+import relex.utils.Deadline;
+
+/**
+ * Runs RelationExtractor.processSentence() for the command-line tools
+ * on several threads, and hands the results back, in the order in
+ * which the sentences were submitted, to the thread that submitted
+ * them; so the output is exactly that of a serial run.
+ *
+ * Each thread has its own RelationExtractor, a copy of the prototype
+ * made with RelationExtractor.copyForThread(), and closes it when the
+ * thread exits. Each sentence is also binned into a ParseStats of its
+ * own, on the worker thread, for the caller to merge into its totals.
+ *
+ * The results are delivered by submit() itself, once "window"
+ * sentences are outstanding, and by flush(); the window bounds both
+ * the work queued ahead and the results held back for ordering. Not
+ * thread-safe: one thread should submit, and receive the results.
+ */
+public class ExtractorPool
+{
+	/** Receives the results, in order, on the submitting thread. */
+	public interface Sink
+	{
+		void accept(Result r) throws Exception;
+	}
+
+	/** One processed sentence. */
+	public static class Result
+	{
+		public final int index;
+		public final String sentence;
+		public final Deadline deadline;
+		public final Sentence sntc;
+		public final ParseStats stats;
+
+		Result(int index, String sentence, Deadline deadline,
+		       Sentence sntc, ParseStats stats)
+		{
+			this.index = index;
+			this.sentence = sentence;
+			this.deadline = deadline;
+			this.sntc = sntc;
+			this.stats = stats;
+		}
+	}
+
+	private final RelationExtractor prototype;
+	private final long maxSentenceMillis;
+	private final int window;
+	private final Sink sink;
+
+	private final ExecutorService exec;
+	private final ThreadLocal<RelationExtractor> extractor = new ThreadLocal<RelationExtractor>();
+	private final List<Thread> threads = new ArrayList<Thread>();
+	private final ArrayDeque<Future<Result>> pending = new ArrayDeque<Future<Result>>();
+	private int count = 0;
+
+	/**
+	 * @param prototype Set up as it should be; copied once per thread.
+	 * @param nthreads Number of sentences processed at once.
+	 * @param window Most sentences outstanding; zero for 4 per thread.
+	 * @param maxSentenceMillis Time budget of each sentence, counted
+	 *        from when a thread starts on it; zero for none.
+	 * @param sink Gets the results.
+	 */
+	public ExtractorPool(RelationExtractor prototype, int nthreads, int window,
+	                     long maxSentenceMillis, Sink sink)
+	{
+		this.prototype = prototype;
+		this.window = (0 < window) ? window : 4 * Math.max(1, nthreads);
+		this.maxSentenceMillis = maxSentenceMillis;
+		this.sink = sink;
+
+		exec = Executors.newFixedThreadPool(Math.max(1, nthreads), new ThreadFactory()
+		{
+			public Thread newThread(final Runnable r)
+			{
+				Runnable body = new Runnable()
+				{
+					public void run()
+					{
+						try
+						{
+							r.run();
+						}
+						finally
+						{
+							// Per-thread link-grammar state is freed
+							// by the thread that made it.
+							RelationExtractor re = extractor.get();
+							if (re != null) re.close();
+						}
+					}
+				};
+				Thread t;
+				synchronized (threads)
+				{
+					t = new Thread(body, "relex-extractor-" + threads.size());
+					threads.add(t);
+				}
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * Queue a sentence. If the window is full, first wait for the
+	 * oldest outstanding sentence, and hand it to the sink.
+	 */
+	public void submit(final String sentence) throws Exception
+	{
+		while (window <= pending.size()) deliver();
+
+		final int index = count++;
+		pending.add(exec.submit(new Callable<Result>()
+		{
+			public Result call()
+			{
+				RelationExtractor re = extractor.get();
+				if (re == null)
+				{
+					synchronized (prototype)
+					{
+						re = prototype.copyForThread();
+					}
+					extractor.set(re);
+				}
+				Deadline deadline = Deadline.in(maxSentenceMillis);
+				Sentence sntc = re.processSentence(sentence, deadline);
+				ParseStats stats = new ParseStats();
+				stats.bin(sntc);
+				return new Result(index, sentence, deadline, sntc, stats);
+			}
+		}));
+	}
+
+	/** Hand every outstanding sentence to the sink, in order. */
+	public void flush() throws Exception
+	{
+		while (!pending.isEmpty()) deliver();
+	}
+
+	private void deliver() throws Exception
+	{
+		Future<Result> f = pending.removeFirst();
+		try
+		{
+			sink.accept(f.get());
+		}
+		catch (ExecutionException ex)
+		{
+			if (ex.getCause() instanceof Exception)
+				throw (Exception) ex.getCause();
+			throw ex;
+		}
+	}
+
+	/** Number of sentences submitted, but not yet handed to the sink. */
+	public int getPending()
+	{
+		return pending.size();
+	}
+
+	/**
+	 * Flush, stop the threads, and wait for them to close their
+	 * extractors. The prototype is left alone.
+	 */
+	public void shutdown() throws Exception
+	{
+		flush();
+		exec.shutdown();
+		exec.awaitTermination(60, TimeUnit.SECONDS);
+		synchronized (threads)
+		{
+			for (Thread t : threads) t.join(TimeUnit.SECONDS.toMillis(10));
+		}
+	}
+}
@@ -19,140 +19,433 @@ package relex.concurrent;
 import java.io.BufferedReader;
 import java.io.FileReader;
 import java.io.IOException;
-import java.util.concurrent.ArrayBlockingQueue;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingDeque;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import relex.CommandLineArgParser;
 import relex.algs.SentenceAlgorithmApplier;
 import relex.corpus.DocSplitter;
 import relex.corpus.DocSplitterFactory;
 import relex.morphy.Morphy;
 import relex.morphy.MorphyFactory;
-import relex.parser.RemoteLGParser;
-
-public class ParallelRelationExtractor {
+import relex.parser.LGParser;
 
+/**
+ * Parses sentences, and applies the relex algs to them, on a fixed
+ * pool of worker threads.
+ *
+ * Each worker makes its own parser with the ParserFactory, the first
+ * time that it is needed, and closes it when the worker exits, so that
+ * link-grammar's per-thread state stays with the thread that made it.
+ *
+ * At most "window" sentences may be in flight -- pushed, but not yet
+ * taken -- at once; push() blocks, and offer() times out, when the
+ * window is full, so that a fast producer cannot run ahead of the
+ * workers. Results are taken in the order in which the sentences were
+ * pushed: a sentence that is done before the ones ahead of it waits
+ * in the window, which is thus also the reorder buffer.
+ *
+ * By default the workers start on the sentences in the order in which
+ * they were pushed. With Scheduling.LONGEST_FIRST, an idle worker
+ * instead starts on the waiting sentence that SentenceCost predicts
+ * to be the slowest, so that a long sentence pushed late does not
+ * keep one worker busy long after the others have run out of work.
+ * The window bounds how long a short sentence can be passed over:
+ * once it is the oldest one not taken, no more are pushed until it
+ * is done.
+ *
+ * Any number of threads may push; results should be taken by one.
+ * After shutdown(), take() returns the remaining results, and then
+ * null.
+ */
+public class ParallelRelationExtractor
+{
 	private static final String DEFAULT_HOST = "localhost";
 	public static final int FIRST_PORT = 9000;
-	public static final int CLIENT_POOL_SIZE = 1;
+	/** Sentences in flight per worker, by default. */
+	public static final int DEFAULT_WINDOW_PER_THREAD = 4;
+
+	/** The order in which the workers start on the sentences. */
+	public enum Scheduling
+	{
+		/** In the order pushed. */
+		FIFO,
+		/** The most expensive first, as predicted by SentenceCost. */
+		LONGEST_FIRST
+	}
 
-    private ExecutorService exec;
+	// Marks the end of the results, after shutdown().
+	private static final Future<RelexTaskResult> END =
+		CompletableFuture.completedFuture(null);
 
-	private BlockingQueue<RelexContext> pool;
+	private final int threads;
+	private final int window;
+	private final ParserFactory factory;
+	private final Scheduling scheduling;
 
-	private LinkedBlockingQueue<Future<RelexTaskResult>> results;
+	private final ThreadPoolExecutor exec;
+	private final Semaphore slots;
+	private final LinkedBlockingDeque<Future<RelexTaskResult>> results =
+		new LinkedBlockingDeque<Future<RelexTaskResult>>();
 
-	public int count = 0;
+	private final Object pushLock = new Object();
+	private int count = 0;
+	private volatile boolean stop = false;
+	private boolean finalized = false;
 
-	private boolean stop;
+	private final AtomicInteger threadIds = new AtomicInteger();
+	private final List<Thread> threadList = new ArrayList<Thread>();
+	private final AtomicInteger workers = new AtomicInteger();
+	private final ThreadLocal<RelexContext> context = new ThreadLocal<RelexContext>();
 
 	// Thread-safe processors
-	/** Syntactic processing */
-//	private LinkParser linkParser;
+	private final Morphy morphy;
 
 	/** Semantic (RelEx) processing */
-	private SentenceAlgorithmApplier sentenceAlgorithmApplier;
+	private final SentenceAlgorithmApplier sentenceAlgorithmApplier;
 
+	/**
+	 * One worker per core, each a client of the link-grammar server
+	 * on DEFAULT_HOST:FIRST_PORT.
+	 */
 	public ParallelRelationExtractor()
 	{
-		initializePool();
-		results = new LinkedBlockingQueue<Future<RelexTaskResult>>();
-//		linkParser = new LinkParser();
-		sentenceAlgorithmApplier = new SentenceAlgorithmApplier();
+		this(ParserFactory.remote(DEFAULT_HOST, FIRST_PORT, 1));
+	}
+
+	/** One worker per core. */
+	public ParallelRelationExtractor(ParserFactory factory)
+	{
+		this(factory, 0, 0);
 	}
 
 	/**
-	 * Initialize the pool of LinkParserClients, creating
-	 * CLIENT_POOL_SIZE instances, which connects to ports FIRST_PORT,
-	 * FIRST_PORT+1, ..., FIRST_PORT+(CLIENT_POOL_SIZE-1)
+	 * @param factory Makes the parser for each worker.
+	 * @param threads Number of workers; zero for one per core.
+	 * @param window Most sentences in flight at once; zero for
+	 *        DEFAULT_WINDOW_PER_THREAD per worker.
 	 */
-	private void initializePool()
-	{
-		exec = Executors.newFixedThreadPool(CLIENT_POOL_SIZE); // thread pool
-		pool = new ArrayBlockingQueue<RelexContext>(CLIENT_POOL_SIZE);
-		Morphy morphy = MorphyFactory.getImplementation(MorphyFactory.DEFAULT_MULTI_THREAD_IMPLEMENTATION);
-		morphy.initialize();
-
-		for (int i = 0 ; i < CLIENT_POOL_SIZE; i++)
-		{
-//			LinkParserClient lpc = new LinkParserSocketClient(DEFAULT_HOST, FIRST_PORT+i);
-//			lpc.setAllowSkippedWords(true);
-			RemoteLGParser parser = new RemoteLGParser();
-			parser.getLinkGrammarClient().setHostname(DEFAULT_HOST);
-			parser.getLinkGrammarClient().setPort(FIRST_PORT+i);
-			RelexContext context = new RelexContext(parser, morphy);
-			try
-			{
-				pool.put(context);
-			}
-			catch (InterruptedException e)
+	public ParallelRelationExtractor(ParserFactory factory, int threads, int window)
+	{
+		this(factory, threads, window, Scheduling.FIFO);
+	}
+
+	/**
+	 * @param factory Makes the parser for each worker.
+	 * @param threads Number of workers; zero for one per core.
+	 * @param window Most sentences in flight at once; zero for
+	 *        DEFAULT_WINDOW_PER_THREAD per worker.
+	 * @param scheduling The order in which to start on the sentences.
+	 */
+	public ParallelRelationExtractor(ParserFactory factory, int threads, int window,
+	                                 Scheduling scheduling)
+	{
+		this.factory = factory;
+		this.scheduling = scheduling;
+		this.threads = (0 < threads) ? threads : Runtime.getRuntime().availableProcessors();
+		this.window = (0 < window) ? window : DEFAULT_WINDOW_PER_THREAD * this.threads;
+		slots = new Semaphore(this.window);
+
+		morphy = MorphyFactory.getImplementation(MorphyFactory.DEFAULT_MULTI_THREAD_IMPLEMENTATION);
+		sentenceAlgorithmApplier = new SentenceAlgorithmApplier();
+
+		// All of the workers share one queue; with LONGEST_FIRST it is
+		// a priority queue, from which any idle worker takes the most
+		// expensive sentence.
+		BlockingQueue<Runnable> queue = (scheduling == Scheduling.LONGEST_FIRST)
+			? new PriorityBlockingQueue<Runnable>()
+			: new LinkedBlockingQueue<Runnable>();
+		exec = new ThreadPoolExecutor(this.threads, this.threads, 0L, TimeUnit.MILLISECONDS,
+			queue, new ThreadFactory()
+		{
+			public Thread newThread(final Runnable r)
 			{
+				Runnable body = new Runnable()
+				{
+					public void run()
+					{
+						try
+						{
+							r.run();
+						}
+						finally
+						{
+							// Per-thread parser state is freed by the
+							// thread that made it.
+							RelexContext c = context.get();
+							if (c != null) ((LGParser) c.getParser()).close();
+						}
+					}
+				};
+				Thread t = new Thread(body, "relex-worker-" + threadIds.getAndIncrement());
+				t.setDaemon(true);
+				synchronized (threadList)
+				{
+					threadList.add(t);
+				}
+				return t;
 			}
+		});
+
+		// Otherwise the first sentences would go straight to new
+		// workers, in the order pushed, without being queued.
+		if (scheduling == Scheduling.LONGEST_FIRST)
+			exec.prestartAllCoreThreads();
+	}
+
+	public int getThreads()
+	{
+		return threads;
+	}
+
+	public int getWindow()
+	{
+		return window;
+	}
+
+	public Scheduling getScheduling()
+	{
+		return scheduling;
+	}
+
+	/** Number of sentences pushed so far. */
+	public int getCount()
+	{
+		synchronized (pushLock)
+		{
+			return count;
 		}
 	}
 
+	/** Number of sentences pushed, but not yet taken. */
+	public int getInFlight()
+	{
+		return window - slots.availablePermits();
+	}
+
+	/* ---------------------------------------------------------------- */
 	/**
-	 * Submit a new sentence to be processed, blocking if no resources
-	 * are available. Results are obtained calling take(), and are
-	 * returned in order of submission.
+	 * Submit a new sentence to be processed, blocking while the window
+	 * is full. Results are obtained calling take(), and are returned
+	 * in order of submission.
 	 *
 	 * @param sentence The sentence to be processed.
 	 * @throws InterruptedException
+	 * @throws IllegalStateException after shutdown().
 	 */
 	public void push(String sentence) throws InterruptedException
 	{
-		RelexContext context = pool.take();
-		Callable<RelexTaskResult> callable =
-			new RelexTask(count++, sentence,
-					sentenceAlgorithmApplier, context, pool);
-		Future<RelexTaskResult> submit = exec.submit(callable);
-        results.add(submit);
+		slots.acquire();
+		submit(sentence);
+	}
+
+	/**
+	 * Like push(), but give up, and return false, if the window is
+	 * still full after the given time.
+	 */
+	public boolean offer(String sentence, long timeout, TimeUnit unit)
+		throws InterruptedException
+	{
+		if (!slots.tryAcquire(timeout, unit)) return false;
+		submit(sentence);
+		return true;
+	}
+
+	// Called holding a slot.
+	private void submit(final String sentence)
+	{
+		synchronized (pushLock)
+		{
+			if (stop)
+			{
+				slots.release();
+				throw new IllegalStateException("ParallelRelationExtractor is shut down");
+			}
+			final int index = count++;
+			Task task = new Task(index, SentenceCost.estimate(sentence),
+				new Callable<RelexTaskResult>()
+			{
+				public RelexTaskResult call() throws IOException
+				{
+					return new RelexTask(index, sentence,
+						sentenceAlgorithmApplier, getContext(), null).call();
+				}
+			});
+			results.add(task);
+			exec.execute(task);
+		}
+	}
+
+	/**
+	 * A queued sentence; the most expensive comes first, and, of equal
+	 * ones, the first pushed.
+	 */
+	private static class Task extends FutureTask<RelexTaskResult>
+		implements Comparable<Task>
+	{
+		private final int index;
+		private final double cost;
+
+		Task(int index, double cost, Callable<RelexTaskResult> body)
+		{
+			super(body);
+			this.index = index;
+			this.cost = cost;
+		}
+
+		public int compareTo(Task other)
+		{
+			int c = Double.compare(other.cost, cost);
+			return (c != 0) ? c : Integer.compare(index, other.index);
+		}
+	}
+
+	// This worker's context, made on first use.
+	private RelexContext getContext() throws IOException
+	{
+		RelexContext c = context.get();
+		if (c == null)
+		{
+			LGParser parser = factory.create(workers.getAndIncrement());
+			parser.init();
+			c = new RelexContext(parser, morphy);
+			context.set(c);
+		}
+		return c;
 	}
 
 	/**
-	 * Return the next result, in order of submission, or blocks until
-	 * it's ready
+	 * Return the next result, in order of submission, blocking until
+	 * it's ready; or null, once shutdown() was called and every result
+	 * was taken.
 	 *
 	 * @return The next result
 	 * @throws InterruptedException
-	 * @throws ExecutionException
+	 * @throws ExecutionException if the worker failed, e.g. could not
+	 *         make its parser.
 	 */
-	protected RelexTaskResult take() throws InterruptedException, ExecutionException
+	public RelexTaskResult take() throws InterruptedException, ExecutionException
 	{
-		Future<RelexTaskResult> first = results.take();
-		RelexTaskResult taskResult = first.get();
-
-		return taskResult;
+		Future<RelexTaskResult> first = results.takeFirst();
+		if (first == END)
+		{
+			results.addFirst(END);
+			return null;
+		}
+		try
+		{
+			RelexTaskResult taskResult = first.get();
+			slots.release();
+			return taskResult;
+		}
+		catch (InterruptedException ex)
+		{
+			// Still the next one; leave it for the next take().
+			results.addFirst(first);
+			throw ex;
+		}
+		catch (ExecutionException ex)
+		{
+			slots.release();
+			throw ex;
+		}
 	}
 
 	/**
-	 * Stop accepting requests, and shutdown the thread pool after all
-	 * remaining requests are done.
+	 * Stop accepting sentences. Those already pushed are still
+	 * processed, and may be taken as usual.
 	 */
 	public void shutdown()
 	{
-		stop = true;
+		synchronized (pushLock)
+		{
+			if (stop) return;
+			stop = true;
+			results.add(END);
+		}
 		exec.shutdown();
 	}
 
 	/**
-	 * @return true is no more sentences are accepted (i.e., shutdown()
-	 * was called) and there are no pending results.
+	 * Shut down, and return all of the remaining results, in order.
+	 */
+	public List<RelexTaskResult> drain() throws InterruptedException, ExecutionException
+	{
+		shutdown();
+		List<RelexTaskResult> rest = new ArrayList<RelexTaskResult>();
+		RelexTaskResult r;
+		while ((r = take()) != null) rest.add(r);
+		return rest;
+	}
+
+	/**
+	 * Shut down, and wait for the workers to finish and close their
+	 * parsers; then finalize the parser factory. Returns false if the
+	 * workers were still busy when the time ran out.
 	 */
-	protected boolean isRunning()
+	public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException
 	{
-		return !stop || !results.isEmpty();
+		shutdown();
+		if (!exec.awaitTermination(timeout, unit)) return false;
+		// The pool is terminated before its threads have run their
+		// clean-up; wait for them to close their parsers.
+		synchronized (threadList)
+		{
+			for (Thread t : threadList) t.join(TimeUnit.SECONDS.toMillis(10));
+		}
+		synchronized (pushLock)
+		{
+			if (finalized) return true;
+			finalized = true;
+		}
+		factory.doFinalize();
+		return true;
+	}
+
+	/**
+	 * Shut down, and cancel the sentences that are not yet being
+	 * processed; take() throws CancellationException for those.
+	 */
+	public void shutdownNow()
+	{
+		shutdown();
+		exec.shutdownNow();
+		for (Future<RelexTaskResult> f : results) f.cancel(false);
+	}
+
+	/**
+	 * @return true unless shutdown() was called, and every result was
+	 * taken.
+	 */
+	public boolean isRunning()
+	{
+		return !stop || results.peekFirst() != END;
 	}
 
 	/**
 	 * Unit test. Read a text file and process its sentences in parallel.
-	 * Assumes link-grammar servers running on DEFAULT_HOST,
-	 * listening to ports FIRST_PORT, FIRST_PORT+1, ..., FIRST_PORT+(CLIENT_POOL_SIZE-1)
+	 * Usage: ParallelRelationExtractor [-t threads] [--window N]
+	 *    [--longest-first] [--local] [--lang xx] [--host h] [--port p] [--ports n]
+	 *    [--replay recording] file
+	 * By default, each thread is a client of the link-grammar server on
+	 * DEFAULT_HOST:FIRST_PORT; with --ports n, thread i uses port
+	 * FIRST_PORT + (i % n).
 	 *
 	 * @param args The text file to be read
 	 * @throws IOException
@@ -161,9 +454,35 @@ public class ParallelRelationExtractor {
 	public static void main(final String[] args)
 		throws IOException, InterruptedException
 	{
+		HashSet<String> flags = new HashSet<String>();
+		HashSet<String> opts = new HashSet<String>();
+		opts.add("-t");
+		opts.add("--window");
+		flags.add("--longest-first");
+		ParserFactory.addOptions(opts, flags);
+		Map<String,String> commandMap = CommandLineArgParser.parse(args, opts, flags);
+		if (args.length == 0)
+		{
+			System.err.println("Usage: ParallelRelationExtractor [-t threads] [--window N]" +
+				" [--longest-first] [--local] [--lang xx] [--host h] [--port p] [--ports n]" +
+				" [--replay recording] file");
+			System.exit(1);
+		}
+		final String fileName = args[args.length - 1];
+
+		ParserFactory factory = ParserFactory.fromOptions(commandMap, DEFAULT_HOST, FIRST_PORT);
+		String opt = commandMap.get("-t");
+		int threads = (opt == null) ? 0 : Integer.parseInt(opt);
+		opt = commandMap.get("--window");
+		int window = (opt == null) ? 0 : Integer.parseInt(opt);
+		Scheduling scheduling = (commandMap.get("--longest-first") != null)
+			? Scheduling.LONGEST_FIRST : Scheduling.FIFO;
+
 		long t = System.currentTimeMillis();
-		final ParallelRelationExtractor pre = new ParallelRelationExtractor();
+		final ParallelRelationExtractor pre = new ParallelRelationExtractor(factory, threads, window, scheduling);
 		System.err.println("Initialization time: "+((System.currentTimeMillis() - t)/1000)+" s");
+		System.err.println("Threads: " + pre.getThreads() + ", window: " + pre.getWindow()
+			+ ", scheduling: " + pre.getScheduling());
 
 		final long xt = System.currentTimeMillis();
 		// Producer - submits sentences from a file
@@ -176,7 +495,7 @@ public class ParallelRelationExtractor {
 				{
 					// Read entire file
 					StringBuilder sb = new StringBuilder();
-					BufferedReader in = new BufferedReader(new FileReader(args[0]));
+					BufferedReader in = new BufferedReader(new FileReader(fileName));
 					String line = in.readLine();
 					while (line!=null){
 						sb.append(" "+line+" ");
@@ -203,23 +522,19 @@ public class ParallelRelationExtractor {
 		}}).start();
 
 		// Consumer - print the results, in the original order
-		new Thread(new Runnable()
+		try
 		{
-			public void run()
+			RelexTaskResult r;
+			while ((r = pre.take()) != null)
 			{
-				try
-				{
-					while (pre.isRunning())
-					{
-						System.err.println(pre.take());
-					}
-				}
-				catch (Exception e)
-				{
-					e.printStackTrace();
-				}
-				System.err.println("Elapsed time: "+((System.currentTimeMillis() - xt)/1000)+" s");
+				System.err.println(r);
 			}
-		}).start();
+		}
+		catch (Exception e)
+		{
+			e.printStackTrace();
+		}
+		pre.awaitTermination(60, TimeUnit.SECONDS);
+		System.err.println("Elapsed time: "+((System.currentTimeMillis() - xt)/1000)+" s");
 	}
 }
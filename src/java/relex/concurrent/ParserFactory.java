@@ -0,0 +1,146 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package relex.concurrent;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.Set;
+
+import relex.parser.LGParser;
+import relex.parser.LocalLGParser;
+import relex.parser.RemoteLGParser;
+import relex.parser.ReplayParser;
+
+/**
+ * Makes the parsers for the worker threads of a
+ * ParallelRelationExtractor. Each worker calls create() once, on its
+ * own thread, then init(), and closes the parser on that same thread
+ * when it exits; link-grammar keeps per-thread state. A factory may
+ * instead hand the same thread-safe parser to every worker, as
+ * shared() does.
+ */
+public abstract class ParserFactory
+{
+	/** Make the parser for the given worker, numbered from 0. */
+	public abstract LGParser create(int worker) throws IOException;
+
+	/**
+	 * Called once, after all of the workers have closed their
+	 * parsers.
+	 */
+	public abstract void doFinalize();
+
+	/** A link-grammar library parser in each worker. */
+	public static ParserFactory local(final String lang)
+	{
+		return new ParserFactory()
+		{
+			public LGParser create(int worker)
+			{
+				LocalLGParser p = new LocalLGParser();
+				if (lang != null) p.setLanguage(lang);
+				return p;
+			}
+
+			public void doFinalize()
+			{
+				new LocalLGParser().doFinalize();
+			}
+		};
+	}
+
+	/**
+	 * A client of a link-grammar server in each worker; worker i uses
+	 * port firstPort + (i % ports).
+	 */
+	public static ParserFactory remote(final String host, final int firstPort, final int ports)
+	{
+		return new ParserFactory()
+		{
+			public LGParser create(int worker)
+			{
+				RemoteLGParser p = new RemoteLGParser();
+				p.getLinkGrammarClient().setHostname(host);
+				p.getLinkGrammarClient().setPort(firstPort + worker % Math.max(1, ports));
+				return p;
+			}
+
+			public void doFinalize()
+			{
+			}
+		};
+	}
+
+	/** The parses recorded in a file; loaded once, and shared. */
+	public static ParserFactory replay(File file) throws IOException
+	{
+		return shared(new ReplayParser(file));
+	}
+
+	/**
+	 * One thread-safe parser, e.g. a PooledRemoteLGParser or a
+	 * ParserWorkerPool, for all of the workers.
+	 */
+	public static ParserFactory shared(final LGParser parser)
+	{
+		return new ParserFactory()
+		{
+			public LGParser create(int worker)
+			{
+				return parser;
+			}
+
+			public void doFinalize()
+			{
+				parser.doFinalize();
+			}
+		};
+	}
+
+	/**
+	 * The parser factory chosen by the command-line options:
+	 * --replay file, or --local [--lang xx], or else remote, with
+	 * [--host h] [--port p] [--ports n].
+	 */
+	public static ParserFactory fromOptions(Map<String,String> commandMap,
+	                                        String defaultHost, int defaultPort)
+		throws IOException
+	{
+		String opt = commandMap.get("--replay");
+		if (opt != null)
+			return replay(new File(opt));
+		if (commandMap.containsKey("--local"))
+			return local(commandMap.get("--lang"));
+
+		String host = commandMap.get("--host");
+		opt = commandMap.get("--port");
+		int port = (opt == null) ? defaultPort : Integer.parseInt(opt);
+		opt = commandMap.get("--ports");
+		int ports = (opt == null) ? 1 : Integer.parseInt(opt);
+		return remote((host == null) ? defaultHost : host, port, ports);
+	}
+
+	/** Add the options of fromOptions() to those of a command line. */
+	public static void addOptions(Set<String> opts, Set<String> flags)
+	{
+		flags.add("--local");
+		opts.add("--lang");
+		opts.add("--host");
+		opts.add("--port");
+		opts.add("--ports");
+		opts.add("--replay");
+	}
+}
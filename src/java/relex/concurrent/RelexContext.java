@@ -38,6 +38,11 @@ public class RelexContext
 		return parser;
 	}
 
+	public void setParser(IParser parser)
+	{
+		this.parser = parser;
+	}
+
 	public Morphy getMorphy() {
 		return morphy;
 	}
@@ -0,0 +1,742 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package relex.concurrent;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.linkgrammar.LGConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import relex.CommandLineArgParser;
+import relex.ParsedSentence;
+import relex.RelationExtractor;
+import relex.Sentence;
+import relex.algs.SentenceAlgorithmApplier;
+import relex.corpus.DocSplitter;
+import relex.corpus.DocSplitterFactory;
+import relex.morphy.Morphy;
+import relex.morphy.MorphyFactory;
+import relex.output.SimpleView;
+import relex.parser.LGParser;
+import relex.utils.Deadline;
+
+/**
+ * Processes text in stages, each with its own threads and its own
+ * bounded queue:
+ * <pre>
+ *   split -> parse -> tag -> semantic [-> stanford] -> render
+ * </pre>
+ * Parsing waits on link-grammar (or on a server), while the rule
+ * stages keep a CPU busy; with a stage per step, each can be given as
+ * many threads as it needs, and getStageStats() shows which one is
+ * the bottleneck: the one with a full queue, and busy threads.
+ *
+ * A stage hands each sentence to the next by putting it on that
+ * stage's queue, and waits if it is full; so a slow stage holds up
+ * the ones before it, rather than letting work pile up in memory.
+ * Splitting has a single thread, which numbers the sentences in the
+ * order of the text. At most maxInFlight sentences may be between
+ * splitting and take() at once; they may finish out of order, and are
+ * held until take() can return them in order.
+ *
+ * Each parse thread makes its own parser with the ParserFactory, and
+ * closes it when the thread exits.
+ *
+ * As in RelationExtractor, the rules run only on the parses picked
+ * by setRuleLimits(); the others are marked syntax-only. A sentence
+ * may also be given a time budget, see setMaxSentenceMillis(): the
+ * parser gets what is left of it as its time limit, and the rules
+ * stop once it is used up. The parse they stopped on is kept, with
+ * what was done of it, and the parses after it are dropped; the
+ * sentence is then marked with setTimedOut(true).
+ *
+ * Usage: set the threads and queue sizes, start(), submit() text from
+ * any number of threads, finish(), and take() the results in order,
+ * from one thread, until it returns null; then shutdown().
+ */
+public class RelexPipeline
+{
+	private static final Logger logger = LoggerFactory.getLogger(RelexPipeline.class);
+
+	public static final String SPLIT = "split";
+	public static final String PARSE = "parse";
+	public static final String TAG = "tag";
+	public static final String SEMANTIC = "semantic";
+	public static final String STANFORD = "stanford";
+	public static final String RENDER = "render";
+
+	public static final int DEFAULT_QUEUE_CAPACITY = 64;
+	public static final int DEFAULT_MAX_IN_FLIGHT = 256;
+
+	/** Turns a processed sentence into output text. */
+	public interface Renderer
+	{
+		String render(Sentence sntc);
+	}
+
+	/** A sentence, processed, and its output. */
+	public static class Result extends RelexTaskResult
+	{
+		private static final long serialVersionUID = 1L;
+
+		/** The renderer's output, or null. */
+		public String output;
+
+		/** What went wrong, if anything; the later stages were skipped. */
+		public Throwable error;
+
+		Result(int index, String sentence)
+		{
+			super(index, sentence, null);
+		}
+	}
+
+	/** The number of threads, queue depth and timing of one stage. */
+	public static class StageStats
+	{
+		public final String name;
+		public final int threads;
+		public final int active;
+		public final int queued;
+		public final int capacity;
+		public final long processed;
+		public final double meanMillis;
+
+		StageStats(Stage s)
+		{
+			name = s.name;
+			threads = s.threads;
+			active = (s.exec == null) ? 0 : s.exec.getActiveCount();
+			queued = (s.exec == null) ? 0 : s.exec.getQueue().size();
+			capacity = s.capacity;
+			processed = s.processed.get();
+			meanMillis = (processed == 0) ? 0.0 : s.nanos.get() / 1.0e6 / processed;
+		}
+
+		public String toString()
+		{
+			return String.format("%-9s threads=%d active=%d queued=%d/%d processed=%d mean=%.2fms",
+				name, threads, active, queued, capacity, processed, meanMillis);
+		}
+	}
+
+	private class Stage
+	{
+		final String name;
+		int threads = 1;
+		int capacity = DEFAULT_QUEUE_CAPACITY;
+		ThreadPoolExecutor exec;
+		final AtomicLong processed = new AtomicLong();
+		final AtomicLong nanos = new AtomicLong();
+
+		Stage(String name)
+		{
+			this.name = name;
+		}
+
+		void start(ThreadFactory tf)
+		{
+			// A full queue blocks the stage that is handing work on.
+			exec = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(capacity), tf,
+				new RejectedExecutionHandler()
+				{
+					public void rejectedExecution(Runnable r, ThreadPoolExecutor e)
+					{
+						if (e.isShutdown())
+							throw new RejectedExecutionException("Stage " + name + " is shut down");
+						try
+						{
+							e.getQueue().put(r);
+						}
+						catch (InterruptedException ex)
+						{
+							Thread.currentThread().interrupt();
+							throw new RejectedExecutionException(ex);
+						}
+					}
+				});
+		}
+
+		void run(final Item item)
+		{
+			exec.execute(new Runnable()
+			{
+				public void run()
+				{
+					long t = System.nanoTime();
+					try
+					{
+						process(Stage.this, item);
+					}
+					catch (Throwable ex)
+					{
+						logger.error("Stage {} failed on sentence: {}", name, item.result.sentence, ex);
+						item.result.error = ex;
+					}
+					nanos.addAndGet(System.nanoTime() - t);
+					processed.incrementAndGet();
+					forward(Stage.this, item);
+				}
+			});
+		}
+	}
+
+	// A sentence on its way through the stages.
+	private static class Item
+	{
+		final Result result;
+		final String text;
+		Deadline deadline = Deadline.NONE;
+
+		Item(int index, String text)
+		{
+			this.text = text;
+			result = new Result(index, text);
+		}
+	}
+
+	private final ParserFactory factory;
+	private final Renderer renderer;
+	private final SentenceAlgorithmApplier sentenceAlgorithmApplier;
+	private final RelexContext ruleContext;
+	private final ThreadLocal<LGParser> parser = new ThreadLocal<LGParser>();
+	private final AtomicInteger parsers = new AtomicInteger();
+	private final List<Thread> threads = new ArrayList<Thread>();
+
+	private final Stage split = new Stage(SPLIT);
+	private final Stage parse = new Stage(PARSE);
+	private final Stage tag = new Stage(TAG);
+	private final Stage semantic = new Stage(SEMANTIC);
+	private final Stage stanford = new Stage(STANFORD);
+	private final Stage render = new Stage(RENDER);
+	private final Stage[] stages = { split, parse, tag, semantic, stanford, render };
+
+	private volatile boolean doStanford = false;
+	private volatile boolean doPennTagging = false;
+	private String lang = "en";
+	private int ruleTopK = Integer.MAX_VALUE;
+	private double ruleCostMargin = Double.POSITIVE_INFINITY;
+	private long maxSentenceMillis = 0;
+	private int maxInFlight = DEFAULT_MAX_IN_FLIGHT;
+	private Semaphore slots;
+
+	// Sentences that are done, but wait for earlier ones.
+	private final HashMap<Integer, Result> done = new HashMap<Integer, Result>();
+	private int next = 0;
+	private int count = 0;
+	private int total = -1;
+	private boolean started = false;
+
+	/**
+	 * @param factory Makes the parser of each parse thread.
+	 * @param renderer Makes the output of each sentence; may be null.
+	 */
+	public RelexPipeline(ParserFactory factory, Renderer renderer)
+	{
+		this.factory = factory;
+		this.renderer = renderer;
+		sentenceAlgorithmApplier = new SentenceAlgorithmApplier();
+		Morphy morphy = MorphyFactory.getImplementation(MorphyFactory.DEFAULT_MULTI_THREAD_IMPLEMENTATION);
+		// The rules use only the Morphy, which is thread-safe.
+		ruleContext = new RelexContext(null, morphy);
+	}
+
+	private Stage stage(String name)
+	{
+		for (Stage s : stages)
+			if (s.name.equals(name)) return s;
+		throw new IllegalArgumentException("No such stage: " + name);
+	}
+
+	/**
+	 * Set the number of threads of a stage; must be called before
+	 * start(). The split stage always has one thread.
+	 */
+	public void setThreads(String stage, int n)
+	{
+		if (started) throw new IllegalStateException("Pipeline already started");
+		if (SPLIT.equals(stage)) return;
+		stage(stage).threads = Math.max(1, n);
+	}
+
+	/** Set the queue size of a stage; must be called before start(). */
+	public void setQueueCapacity(String stage, int n)
+	{
+		if (started) throw new IllegalStateException("Pipeline already started");
+		stage(stage).capacity = Math.max(1, n);
+	}
+
+	/** Most sentences between splitting and take(). */
+	public void setMaxInFlight(int n)
+	{
+		if (started) throw new IllegalStateException("Pipeline already started");
+		maxInFlight = Math.max(1, n);
+	}
+
+	/** Run the Stanford rules, in a stage of their own. */
+	public void setStanford(boolean b)
+	{
+		doStanford = b;
+	}
+
+	/** Run the Penn tagging rules, in the Stanford stage. */
+	public void setPennTagging(boolean b)
+	{
+		doPennTagging = b;
+	}
+
+	public void setLanguage(String lang)
+	{
+		this.lang = lang;
+	}
+
+	/**
+	 * Run the rules on the best topK parses only, and of those, only
+	 * on the ones within costMargin of the best; see
+	 * RelationExtractor.setRuleLimits(). Must be called before start().
+	 */
+	public void setRuleLimits(int topK, double costMargin)
+	{
+		if (started) throw new IllegalStateException("Pipeline already started");
+		ruleTopK = Math.max(1, topK);
+		ruleCostMargin = costMargin;
+	}
+
+	/**
+	 * Time budget of each sentence, counted from when a parse thread
+	 * starts on it; zero for none. Must be called before start().
+	 */
+	public void setMaxSentenceMillis(long millis)
+	{
+		if (started) throw new IllegalStateException("Pipeline already started");
+		maxSentenceMillis = Math.max(0, millis);
+	}
+
+	/* ---------------------------------------------------------------- */
+	public synchronized void start()
+	{
+		if (started) return;
+		started = true;
+		slots = new Semaphore(maxInFlight);
+		for (final Stage s : stages)
+		{
+			final AtomicInteger n = new AtomicInteger();
+			s.start(new ThreadFactory()
+			{
+				public Thread newThread(final Runnable r)
+				{
+					Runnable body = new Runnable()
+					{
+						public void run()
+						{
+							try
+							{
+								r.run();
+							}
+							finally
+							{
+								// Per-thread parser state is freed by
+								// the thread that made it.
+								LGParser p = parser.get();
+								if (p != null) p.close();
+							}
+						}
+					};
+					Thread t = new Thread(body, "relex-" + s.name + "-" + n.getAndIncrement());
+					t.setDaemon(true);
+					synchronized (threads)
+					{
+						threads.add(t);
+					}
+					return t;
+				}
+			});
+		}
+	}
+
+	/**
+	 * Queue text to be split into sentences and processed. The text
+	 * of one call is split on its own, so it should end at the end of
+	 * a sentence; whatever follows the last sentence break, e.g. a
+	 * heading, is taken as one more sentence.
+	 */
+	public void submit(final String text)
+	{
+		if (!started) throw new IllegalStateException("Pipeline not started");
+		split.exec.execute(new Runnable()
+		{
+			public void run()
+			{
+				long t = System.nanoTime();
+				DocSplitter ds = DocSplitterFactory.create();
+				ds.addText(text + " ");
+				List<String> sentences = new ArrayList<String>();
+				String sentence;
+				while ((sentence = ds.getNextSentence()) != null)
+					sentences.add(sentence);
+				String rest = ds.getRemainder();
+				if (rest != null && 0 < rest.trim().length())
+					sentences.add(rest.trim());
+				split.nanos.addAndGet(System.nanoTime() - t);
+				split.processed.incrementAndGet();
+
+				for (String s : sentences)
+					submitSentence(s);
+			}
+		});
+	}
+
+	/**
+	 * Queue one sentence, that needs no splitting. Should not be mixed
+	 * with submit(), as the sentences would be numbered in the order in
+	 * which they get here.
+	 */
+	public void submitSentence(String sentence)
+	{
+		try
+		{
+			slots.acquire();
+		}
+		catch (InterruptedException ex)
+		{
+			Thread.currentThread().interrupt();
+			throw new RejectedExecutionException(ex);
+		}
+		int index;
+		synchronized (this)
+		{
+			if (0 <= total)
+			{
+				slots.release();
+				throw new IllegalStateException("Pipeline is finished");
+			}
+			index = count++;
+		}
+		Item item = new Item(index, sentence);
+		parse.run(item);
+	}
+
+	/**
+	 * No more text is coming. Once everything submitted so far has
+	 * been taken, take() returns null.
+	 */
+	public void finish()
+	{
+		// After any text still being split.
+		split.exec.execute(new Runnable()
+		{
+			public void run()
+			{
+				synchronized (RelexPipeline.this)
+				{
+					total = count;
+					RelexPipeline.this.notifyAll();
+				}
+			}
+		});
+	}
+
+	/**
+	 * The next result, in order, waiting for it if need be; or null,
+	 * after finish(), once all of them were taken.
+	 */
+	public synchronized Result take() throws InterruptedException
+	{
+		while (!done.containsKey(next))
+		{
+			if (0 <= total && total <= next) return null;
+			wait();
+		}
+		Result r = done.remove(next++);
+		slots.release();
+		return r;
+	}
+
+	/* ---------------------------------------------------------------- */
+	private void process(Stage s, Item item) throws IOException
+	{
+		Result r = item.result;
+		if (r.error != null) return;
+
+		if (s == parse)
+		{
+			item.deadline = Deadline.in(maxSentenceMillis);
+			r.result = parseSentence(item.text, item.deadline);
+		}
+		else if (s == tag || s == semantic || s == stanford)
+		{
+			List<ParsedSentence> parses = r.result.getParses();
+			for (int i = 0; i < parses.size(); i++)
+			{
+				ParsedSentence p = parses.get(i);
+				if (p.isSyntaxOnly()) continue;
+				if (!applyRules(s, p, item.deadline))
+				{
+					logger.warn("Deadline expired in stage {} after {} of {} parses: {}",
+						s.name, i, parses.size(), item.text);
+					parses.subList(i + 1, parses.size()).clear();
+					r.result.setTimedOut(true);
+					break;
+				}
+			}
+		}
+		else if (s == render)
+		{
+			if (renderer != null) r.output = renderer.render(r.result);
+		}
+	}
+
+	// The rules of one stage, on one parse; false if cut short.
+	private boolean applyRules(Stage s, ParsedSentence p, Deadline deadline)
+	{
+		if (s == tag)
+			return sentenceAlgorithmApplier.tagFeatures(p, ruleContext, deadline);
+		if (s == semantic)
+			return sentenceAlgorithmApplier.extractSemantics(p, ruleContext, deadline);
+		if (!sentenceAlgorithmApplier.extractStanford(p, ruleContext, deadline))
+			return false;
+		return !doPennTagging || sentenceAlgorithmApplier.pennTag(p, ruleContext, deadline);
+	}
+
+	private Sentence parseSentence(String text, Deadline deadline) throws IOException
+	{
+		LGParser p = parser.get();
+		if (p == null)
+		{
+			p = factory.create(parsers.getAndIncrement());
+			p.init();
+			parser.set(p);
+		}
+
+		Sentence sntc = null;
+		try
+		{
+			// As in RelationExtractor: the parser gets what is left of
+			// the budget, and none at all if it is used up already.
+			LGConfig cfg = p.getConfig();
+			int limit = cfg.getMaxParseSeconds();
+			int secs = deadline.remainingSeconds(limit);
+			if (secs < limit)
+			{
+				cfg = LGParser.copyConfig(cfg, new LGConfig());
+				cfg.setMaxParseSeconds(secs);
+			}
+			if (!deadline.isExpired()) sntc = p.parse(text, cfg);
+		}
+		catch (RuntimeException ex)
+		{
+			logger.warn("Failed to parse: {}", text, ex);
+			sntc = null;
+		}
+		if (sntc == null)
+		{
+			sntc = new Sentence();
+			sntc.setSentence(text);
+			if (deadline.isExpired()) sntc.setTimedOut(true);
+		}
+
+		sntc.simpleParseRank();
+		RelationExtractor.markSyntaxOnly(sntc.getParses(), ruleTopK, ruleCostMargin);
+		if ("en".equals(lang))
+		{
+			for (ParsedSentence parse : sntc.getParses())
+				RelationExtractor.stripSubscripts(parse);
+		}
+		return sntc;
+	}
+
+	// Hand the item on to the next stage, or to take().
+	private void forward(Stage s, Item item)
+	{
+		Stage to = null;
+		if (s == parse) to = tag;
+		else if (s == tag) to = semantic;
+		else if (s == semantic) to = doStanford ? stanford : render;
+		else if (s == stanford) to = render;
+
+		if (to != null)
+		{
+			to.run(item);
+			return;
+		}
+		synchronized (this)
+		{
+			done.put(item.result.index, item.result);
+			notifyAll();
+		}
+	}
+
+	/* ---------------------------------------------------------------- */
+	/** The state of each stage, in order. */
+	public List<StageStats> getStageStats()
+	{
+		List<StageStats> list = new ArrayList<StageStats>();
+		for (Stage s : stages)
+			if (s != stanford || doStanford) list.add(new StageStats(s));
+		return list;
+	}
+
+	/** Queue depth of each stage, by name. */
+	public Map<String, Integer> getQueueDepths()
+	{
+		Map<String, Integer> m = new LinkedHashMap<String, Integer>();
+		for (StageStats st : getStageStats()) m.put(st.name, st.queued);
+		return m;
+	}
+
+	public String toString()
+	{
+		StringBuilder sb = new StringBuilder("RelexPipeline:");
+		for (StageStats st : getStageStats()) sb.append("\n  ").append(st);
+		return sb.toString();
+	}
+
+	/**
+	 * Stop the threads of every stage, in order, waiting for each to
+	 * finish what it has; the parse threads close their parsers. Then
+	 * finalize the parser factory.
+	 */
+	public void shutdown() throws InterruptedException
+	{
+		if (!started) return;
+		for (Stage s : stages)
+		{
+			s.exec.shutdown();
+			s.exec.awaitTermination(60, TimeUnit.SECONDS);
+		}
+		// The pool is terminated before its threads have run their
+		// clean-up; wait for them to close their parsers.
+		synchronized (threads)
+		{
+			for (Thread t : threads) t.join(TimeUnit.SECONDS.toMillis(10));
+		}
+		factory.doFinalize();
+	}
+
+	/**
+	 * Read text from stdin, and print the relations of the best parse
+	 * of each sentence, and then the stage statistics. Usage:
+	 * RelexPipeline [--parse N] [--rules N] [--render N] [--stanford]
+	 *    [--maxSentenceMillis N] [--ruleTopK N] [--ruleMargin X]
+	 *    [--local] [--lang xx] [--host h] [--port p] [--ports n]
+	 *    [--replay recording]
+	 * --rules sets the threads of each rule stage.
+	 */
+	public static void main(String[] args) throws Exception
+	{
+		HashSet<String> flags = new HashSet<String>();
+		flags.add("--stanford");
+		HashSet<String> opts = new HashSet<String>();
+		opts.add("--parse");
+		opts.add("--rules");
+		opts.add("--render");
+		opts.add("--maxSentenceMillis");
+		opts.add("--ruleTopK");
+		opts.add("--ruleMargin");
+		ParserFactory.addOptions(opts, flags);
+		Map<String,String> commandMap = CommandLineArgParser.parse(args, opts, flags);
+
+		int cores = Runtime.getRuntime().availableProcessors();
+		final RelexPipeline pipe = new RelexPipeline(
+			ParserFactory.fromOptions(commandMap, "localhost", ParallelRelationExtractor.FIRST_PORT),
+			new Renderer()
+			{
+				public String render(Sentence sntc)
+				{
+					if (sntc.getParses().isEmpty()) return "";
+					return SimpleView.printRelations(sntc.getParses().get(0));
+				}
+			});
+		String opt = commandMap.get("--parse");
+		pipe.setThreads(PARSE, (opt == null) ? cores : Integer.parseInt(opt));
+		opt = commandMap.get("--rules");
+		int rules = (opt == null) ? Math.max(1, cores / 2) : Integer.parseInt(opt);
+		pipe.setThreads(TAG, rules);
+		pipe.setThreads(SEMANTIC, rules);
+		pipe.setThreads(STANFORD, rules);
+		opt = commandMap.get("--render");
+		if (opt != null) pipe.setThreads(RENDER, Integer.parseInt(opt));
+		pipe.setStanford(commandMap.containsKey("--stanford"));
+		opt = commandMap.get("--maxSentenceMillis");
+		if (opt != null) pipe.setMaxSentenceMillis(Long.parseLong(opt));
+		opt = commandMap.get("--ruleTopK");
+		String margin = commandMap.get("--ruleMargin");
+		if (opt != null || margin != null)
+			pipe.setRuleLimits((opt == null) ? Integer.MAX_VALUE : Integer.parseInt(opt),
+				(margin == null) ? Double.POSITIVE_INFINITY : Double.parseDouble(margin));
+		if (commandMap.get("--lang") != null) pipe.setLanguage(commandMap.get("--lang"));
+		pipe.start();
+
+		final long t = System.currentTimeMillis();
+		new Thread(new Runnable()
+		{
+			public void run()
+			{
+				BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
+				try
+				{
+					// One paragraph at a time.
+					StringBuilder para = new StringBuilder();
+					String line;
+					while ((line = in.readLine()) != null)
+					{
+						if (line.trim().length() == 0 && para.length() > 0)
+						{
+							pipe.submit(para.toString());
+							para.setLength(0);
+						}
+						para.append(line).append(' ');
+					}
+					if (para.length() > 0) pipe.submit(para.toString());
+				}
+				catch (IOException e)
+				{
+					e.printStackTrace();
+				}
+				pipe.finish();
+			}
+		}).start();
+
+		Result r;
+		while ((r = pipe.take()) != null)
+		{
+			System.out.println("; SENTENCE: [" + r.sentence + "]");
+			if (r.error != null) System.out.println("; ERROR: " + r.error);
+			else System.out.println(r.output);
+		}
+		System.err.println(pipe);
+		System.err.println("Elapsed time: " + (System.currentTimeMillis() - t) + " ms");
+		pipe.shutdown();
+	}
+}
@@ -25,7 +25,7 @@ import relex.algs.SentenceAlgorithmApplier;
 
 /**
  * Processes a sentence using the given LinkParserClient. When processing is
- * finished, returns the LPC to the pool.
+ * finished, returns the LPC to the pool, if there is one.
  *
  * @author muriloq
  */
@@ -87,10 +87,12 @@ public class RelexTask implements Callable<RelexTaskResult>
 		{
 			if (DEBUG > 0)
 				System.err.println("[" + index + "] End processing");
-			try {
-				pool.put(context);
-			} catch (InterruptedException e) {
-				e.printStackTrace();
+			if (pool != null) {
+				try {
+					pool.put(context);
+				} catch (InterruptedException e) {
+					e.printStackTrace();
+				}
 			}
 			if (DEBUG > 0) System.err.println("[" + index + "] Release resources");
 		}
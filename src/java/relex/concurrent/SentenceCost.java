@@ -0,0 +1,58 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package relex.concurrent;
+
+/**
+ * A rough guess at how long a sentence will take to parse, before it
+ * is parsed; good enough to tell a sentence that will take minutes
+ * from one that will take milliseconds, which is all that scheduling
+ * needs. The units are arbitrary.
+ *
+ * As in BudgetController, parse time is taken to grow with the cube
+ * of the number of words. Commas, semicolons, colons and brackets
+ * each make it larger still, since every one of them opens up more
+ * ways to attach the clauses on either side.
+ */
+public class SentenceCost
+{
+	/** Extra cost of each punctuation mark, as a fraction. */
+	public static final double PUNCTUATION_WEIGHT = 0.25;
+
+	public static double estimate(String sentence)
+	{
+		int words = 0;
+		int punct = 0;
+		boolean inWord = false;
+		for (int i = 0; i < sentence.length(); i++)
+		{
+			char c = sentence.charAt(i);
+			if (Character.isWhitespace(c))
+			{
+				inWord = false;
+				continue;
+			}
+			if (!inWord) words++;
+			inWord = true;
+			switch (c)
+			{
+				case ',': case ';': case ':':
+				case '(': case ')': case '[': case ']':
+					punct++;
+			}
+		}
+		double n = words;
+		return n * n * n * (1.0 + PUNCTUATION_WEIGHT * punct);
+	}
+}
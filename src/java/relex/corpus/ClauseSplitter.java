@@ -0,0 +1,97 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package relex.corpus;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Breaks a long, run-on sentence into clause-sized pieces that can be
+ * parsed on their own. The breaks are made at semicolons, at colons
+ * and dashes followed by white-space, and before a coordinating
+ * conjunction that follows a comma ("..., but ..."). The conjunction
+ * is kept, at the start of the next piece; the punctuation is dropped.
+ *
+ * Pieces shorter than the minimum length (e.g. a lone interjection
+ * before a colon) are merged with the piece before them, or, if
+ * there is none, with the piece after. The pieces are returned as
+ * intervals into the original text, so that character offsets can
+ * be carried back.
+ */
+public class ClauseSplitter
+{
+	private static final Pattern BOUNDARY = Pattern.compile(
+		"\\s*;\\s*" +
+		"|\\s*:\\s+" +
+		"|\\s+(?:--|-|\u2013|\u2014)\\s+" +
+		"|\\s*\u2014\\s*" +
+		"|\\s*,\\s+(?=(?:and|but|or|nor|so|yet)\\s)",
+		Pattern.CASE_INSENSITIVE);
+
+	public static final int DEFAULT_MIN_LENGTH = 20;
+
+	private int minLength = DEFAULT_MIN_LENGTH;
+
+	public void setMinLength(int len)
+	{
+		minLength = len;
+	}
+
+	public int getMinLength()
+	{
+		return minLength;
+	}
+
+	/**
+	 * Return the pieces of the text, in order. A text with no break
+	 * in it comes back as a single piece, trimmed of white-space.
+	 */
+	public List<TextInterval> split(String text)
+	{
+		ArrayList<TextInterval> pieces = new ArrayList<TextInterval>();
+		Matcher m = BOUNDARY.matcher(text);
+		int start = 0;
+		while (m.find())
+		{
+			add(pieces, text, start, m.start());
+			start = m.end();
+		}
+		add(pieces, text, start, text.length());
+		return pieces;
+	}
+
+	private void add(List<TextInterval> pieces, String text, int start, int end)
+	{
+		while (start < end && Character.isWhitespace(text.charAt(start))) start++;
+		while (start < end && Character.isWhitespace(text.charAt(end-1))) end--;
+		if (start == end) return;
+
+		// Join a short piece to the one before; and a piece to a
+		// short one before it, which had nothing before it to join.
+		int last = pieces.size() - 1;
+		if (0 <= last && (end - start < minLength || length(pieces.get(last)) < minLength))
+		{
+			pieces.set(last, new TextInterval(pieces.get(last).getStart(), end));
+			return;
+		}
+		pieces.add(new TextInterval(start, end));
+	}
+
+	private static int length(TextInterval ti)
+	{
+		return ti.getEnd() - ti.getStart();
+	}
+}
@@ -19,6 +19,8 @@ package relex.feature;
 
 import java.util.HashSet;
 
+import relex.utils.Deadline;
+
 /**
  * The RelationForeach class provides a simple, easy-to-use way of
  * traversing all of the unary and binary relations in a feature graph.
@@ -64,10 +66,26 @@ public class RelationForeach
 	_graphCrawl(FeatureNode f,
 	            HashSet<FeatureNode> alreadyVisited,
 	            FeatureNodeCallback cb)
+	{
+		return _graphCrawl(f, alreadyVisited, cb, Deadline.NONE);
+	}
+
+	/**
+	 * As above, but give up once the deadline has expired; this
+	 * is reported by returning true, just as if the callback had
+	 * asked to stop.
+	 */
+	private static Boolean
+	_graphCrawl(FeatureNode f,
+	            HashSet<FeatureNode> alreadyVisited,
+	            FeatureNodeCallback cb,
+	            Deadline deadline)
 	{
 		Boolean rc = false;
 		if (alreadyVisited.contains(f))
 			return rc;
+		if (deadline.isExpired())
+			return true;
 
 		alreadyVisited.add(f);
 
@@ -119,7 +137,7 @@ public class RelationForeach
 			}
 
 			if (!fn.isValued()) {
-				rc = _graphCrawl(fn, alreadyVisited, cb);
+				rc = _graphCrawl(fn, alreadyVisited, cb, deadline);
 				if (rc) return rc;
 			}
 		}
@@ -250,6 +268,20 @@ public class RelationForeach
 		Boolean rc = _graphCrawl(root, alreadyVisited, relcb);
 		return rc;
 	}
+
+	/**
+	 * Walk the relations until done, or until the deadline expires.
+	 * Returns true if the walk was cut short, either by the callback
+	 * or by the deadline.
+	 */
+	public static Boolean foreach(FeatureNode root, RelationCallback cb,
+	                              Deadline deadline)
+	{
+		HashSet<FeatureNode> alreadyVisited = new HashSet<FeatureNode>();
+		RelCB relcb = new RelCB(cb);
+		Boolean rc = _graphCrawl(root, alreadyVisited, relcb, deadline);
+		return rc;
+	}
 }
 
 /* =========================== END OF FILE ========================= */
@@ -0,0 +1,210 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package relex.morphy;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import relex.feature.FeatureNode;
+
+/**
+ * A bounded, least-recently-used cache in front of another Morphy.
+ *
+ * Word frequencies are very skewed, so most lookups are of a few
+ * thousand words, each of which costs a WordNet lookup (or worse,
+ * a "wn" process) every time. The cache remembers only the roots
+ * found for each part of speech, in an immutable MorphEntry, and not
+ * the Morphed object itself: the feature nodes in a Morphed become
+ * part of the parse graph, and are modified by the relex algs, so
+ * every call to morph() builds a fresh one.
+ *
+ * The cache is split into stripes, each with its own lock, so that
+ * threads looking up different words rarely wait on one another. It
+ * is thread-safe as long as the wrapped Morphy is; a miss calls the
+ * wrapped Morphy outside of any lock.
+ */
+public class CachingMorphy implements Morphy
+{
+	public static final int DEFAULT_MAX_ENTRIES = 50000;
+	private static final int STRIPES = 16;
+
+	/** The roots of a word, for each part of speech that it has. */
+	public static final class MorphEntry
+	{
+		private final String original;
+		private final String[] types;
+		private final String[] roots;
+		private final boolean[] negative;
+
+		MorphEntry(Morphed m)
+		{
+			original = m.getOriginal();
+			int n = m.getFeatures().size();
+			types = new String[n];
+			roots = new String[n];
+			negative = new boolean[n];
+			int i = 0;
+			for (Map.Entry<String, FeatureNode> e : m.getFeatures().entrySet())
+			{
+				types[i] = e.getKey();
+				roots[i] = e.getValue().get(ROOT_F).getValue();
+				negative[i] = (e.getValue().get(NEG_F) != null);
+				i++;
+			}
+		}
+
+		public String getOriginal()
+		{
+			return original;
+		}
+
+		/** The root for a part of speech, e.g. Morphy.NOUN_F, or null. */
+		public String getRoot(String type)
+		{
+			for (int i = 0; i < types.length; i++)
+				if (types[i].equals(type)) return roots[i];
+			return null;
+		}
+
+		/** Build a brand-new Morphed, as the wrapped Morphy would. */
+		public Morphed toMorphed()
+		{
+			Morphed m = new Morphed(original);
+			for (int i = 0; i < types.length; i++)
+			{
+				if (negative[i])
+					m.putRootNegative(types[i], roots[i]);
+				else
+					m.putRoot(types[i], roots[i]);
+			}
+			return m;
+		}
+	}
+
+	private final Morphy morphy;
+	private final Stripe[] stripes = new Stripe[STRIPES];
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+
+	private class Stripe extends LinkedHashMap<String, MorphEntry>
+	{
+		private static final long serialVersionUID = 1L;
+		private final int capacity;
+
+		Stripe(int capacity)
+		{
+			super(16, 0.75f, true);
+			this.capacity = capacity;
+		}
+
+		protected boolean removeEldestEntry(Map.Entry<String, MorphEntry> eldest)
+		{
+			if (size() <= capacity) return false;
+			evictions.incrementAndGet();
+			return true;
+		}
+	}
+
+	public CachingMorphy(Morphy morphy)
+	{
+		this(morphy, DEFAULT_MAX_ENTRIES);
+	}
+
+	public CachingMorphy(Morphy morphy, int maxEntries)
+	{
+		this.morphy = morphy;
+		int per = Math.max(1, (maxEntries + STRIPES - 1) / STRIPES);
+		for (int i = 0; i < STRIPES; i++)
+			stripes[i] = new Stripe(per);
+	}
+
+	public Morphy getMorphy()
+	{
+		return morphy;
+	}
+
+	/** The wrapped Morphy is expected to be initialized already. */
+	public void initialize()
+	{
+	}
+
+	public Morphed morph(String word)
+	{
+		return lookup(word).toMorphed();
+	}
+
+	/**
+	 * Return the cached roots of the word, looking them up if need
+	 * be. The result may be shared between threads.
+	 */
+	public MorphEntry lookup(String word)
+	{
+		Stripe s = stripes[(word.hashCode() & 0x7fffffff) % STRIPES];
+		MorphEntry e;
+		synchronized (s)
+		{
+			e = s.get(word);
+		}
+		if (e != null)
+		{
+			hits.incrementAndGet();
+			return e;
+		}
+
+		misses.incrementAndGet();
+		e = new MorphEntry(morphy.morph(word));
+		synchronized (s)
+		{
+			s.put(word, e);
+		}
+		return e;
+	}
+
+	public long getHits() { return hits.get(); }
+	public long getMisses() { return misses.get(); }
+	public long getEvictions() { return evictions.get(); }
+
+	public int size()
+	{
+		int n = 0;
+		for (Stripe s : stripes)
+		{
+			synchronized (s)
+			{
+				n += s.size();
+			}
+		}
+		return n;
+	}
+
+	public void clear()
+	{
+		for (Stripe s : stripes)
+		{
+			synchronized (s)
+			{
+				s.clear();
+			}
+		}
+	}
+
+	public String toString()
+	{
+		return "CachingMorphy: " + size() + " words, " + hits.get() + " hits, "
+			+ misses.get() + " misses, " + evictions.get() + " evictions";
+	}
+}
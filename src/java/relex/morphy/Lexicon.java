@@ -0,0 +1,96 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package relex.morphy;
+
+/**
+ * The WordNet lemmas and exception lists, and the lookup of a word's
+ * base form in them, the way that JWNL does with the configuration
+ * in data/wordnet/file_properties.xml: the word itself, if it is a
+ * lemma; else its entry in the exception list; else the first
+ * suffix-stripped form that is a lemma or is in the exception list.
+ * For words with spaces or dashes, the form with underscores (as in
+ * the WordNet index) is tried too; JWNL's more elaborate tokenizing
+ * is not reproduced.
+ *
+ * Subclasses say only where the lemmas and exceptions are kept:
+ * WordNetIndex reads them into the heap, MappedLexicon maps them
+ * from a file.
+ */
+public abstract class Lexicon
+{
+	/** The parts of speech, in the order of the index p below. */
+	static final String[] POS_NAMES = {
+		Morphy.NOUN_F, Morphy.VERB_F, Morphy.ADJ_F, Morphy.ADV_F };
+
+	// Suffix, replacement pairs; the same as in file_properties.xml.
+	private static final String[][] SUFFIXES = {
+		{ "s", "", "ses", "s", "xes", "x", "zes", "z", "ches", "ch",
+		  "shes", "sh", "men", "man", "ies", "y" },
+		{ "s", "", "ies", "y", "es", "e", "es", "", "ed", "e", "ed", "",
+		  "ing", "e", "ing", "" },
+		{ "er", "", "est", "", "er", "e", "est", "e" },
+		{ } };
+
+	/**
+	 * Return the base form of the word, for the given part of speech
+	 * (one of the Morphy.NOUN_F, ... constants), with spaces between
+	 * the parts of a compound; or null if WordNet does not know it.
+	 */
+	public String lookup(String pos, String word)
+	{
+		int p = posIndex(pos);
+		String w = word.trim().toLowerCase();
+		String base = lookupForm(p, w);
+		if (base == null && (w.indexOf(' ') >= 0 || w.indexOf('-') >= 0))
+			base = lookupForm(p, w.replace(' ', '_').replace('-', '_'));
+		return (base == null) ? null : base.replace('_', ' ');
+	}
+
+	private String lookupForm(int p, String w)
+	{
+		w = w.replace(' ', '_');
+		if (isLemma(p, w)) return w;
+
+		String base = exception(p, w);
+		if (base != null) return base;
+
+		String[] rules = SUFFIXES[p];
+		for (int i = 0; i < rules.length; i += 2)
+		{
+			if (!w.endsWith(rules[i])) continue;
+			String stem = w.substring(0, w.length() - rules[i].length()) + rules[i+1];
+			if (stem.length() == 0) continue;
+			if (isLemma(p, stem)) return stem;
+			base = exception(p, stem);
+			if (base != null) return base;
+		}
+		return null;
+	}
+
+	/** True if the word, with underscores, is a lemma of the p'th POS. */
+	abstract boolean isLemma(int p, String w);
+
+	/** The word's base form in the p'th exception list, or null. */
+	abstract String exception(int p, String w);
+
+	/** Number of lemmas, over all parts of speech. */
+	public abstract int size();
+
+	static int posIndex(String pos)
+	{
+		for (int p = 0; p < POS_NAMES.length; p++)
+			if (POS_NAMES[p].equals(pos)) return p;
+		throw new IllegalArgumentException("Unknown part of speech: " + pos);
+	}
+}
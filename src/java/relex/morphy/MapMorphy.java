@@ -15,7 +15,9 @@
  */
 package relex.morphy;
 
+import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
@@ -92,8 +94,30 @@ public class MapMorphy implements Morphy
 
 	Map<POS, Map<String, TreeSet<String>>> exceptions = new HashMap<POS, Map<String, TreeSet<String>>>();
 
-	@SuppressWarnings("unchecked")
+	/** When set, used instead of the JWNL maps above. */
+	MappedLexicon lexicon = null;
+
+	/**
+	 * Uses the memory-mapped lexicon file, if there is one (see
+	 * MappedLexicon.findLexicon()), which takes no time at all; else
+	 * loads every WordNet index word into memory, with JWNL.
+	 */
 	public void initialize() {
+		File f = MappedLexicon.findLexicon();
+		if (f != null) {
+			try {
+				lexicon = MappedLexicon.open(f);
+				return;
+			} catch (IOException e) {
+				System.err.println("Warning: cannot read lexicon " + f + ": " + e
+					+ "; loading WordNet instead");
+			}
+		}
+		loadJWNL();
+	}
+
+	@SuppressWarnings("unchecked")
+	private void loadJWNL() {
 		MorphyFactory.initializeJWNL();
 
 		Dictionary d = Dictionary.getInstance();
@@ -137,7 +161,22 @@ public class MapMorphy implements Morphy
 		return m;
 	}
 
-	private IndexWord lookup(POS pos, String word){
+	/** The lemma of the word, for the part of speech, or null. */
+	private String lookup(POS pos, String word){
+		if (lexicon != null)
+			return lexicon.lookup(posName(pos), word);
+		IndexWord indexWord = lookupIndexWord(pos, word);
+		return (indexWord == null) ? null : indexWord.getLemma();
+	}
+
+	private static String posName(POS pos) {
+		if (pos == POS.NOUN) return NOUN_F;
+		if (pos == POS.VERB) return VERB_F;
+		if (pos == POS.ADJECTIVE) return ADJ_F;
+		return ADV_F;
+	}
+
+	private IndexWord lookupIndexWord(POS pos, String word){
 		String lookup = word.trim().toLowerCase();
 		IndexWord indexWord = partsOfSpeech.get(pos).get(lookup);
 		if (indexWord != null) return indexWord;
@@ -187,7 +226,7 @@ public class MapMorphy implements Morphy
 
 		word = convertStandardContraction(word);
 
-		IndexWord verb = lookup(POS.VERB, word);
+		String verb = lookup(POS.VERB, word);
 
 			// Dont check for non-verb roots if we already
 			// know its a negative verb.
@@ -195,25 +234,25 @@ public class MapMorphy implements Morphy
 				return;
 			}
 
-			IndexWord noun = lookup(POS.NOUN, word);
-			IndexWord adj = lookup(POS.ADJECTIVE, word);
-			IndexWord adv = lookup(POS.ADVERB, word);
+			String noun = lookup(POS.NOUN, word);
+			String adj = lookup(POS.ADJECTIVE, word);
+			String adv = lookup(POS.ADVERB, word);
 
 			if (noun != null) {
-				m.putRoot(NOUN_F, maybeChangeFirstLetter(m.getOriginal(), noun.getLemma()));
+				m.putRoot(NOUN_F, maybeChangeFirstLetter(m.getOriginal(), noun));
 			}
 			if (verb != null) {
 				if (negativeVerb) {
-					m.putRootNegative(VERB_F, maybeChangeFirstLetter(m.getOriginal(), verb.getLemma()));
+					m.putRootNegative(VERB_F, maybeChangeFirstLetter(m.getOriginal(), verb));
 				} else {
-					m.putRoot(VERB_F, maybeChangeFirstLetter(m.getOriginal(), verb.getLemma()));
+					m.putRoot(VERB_F, maybeChangeFirstLetter(m.getOriginal(), verb));
 				}
 			}
 			if (adj != null) {
-				m.putRoot(ADJ_F, maybeChangeFirstLetter(m.getOriginal(), adj.getLemma()));
+				m.putRoot(ADJ_F, maybeChangeFirstLetter(m.getOriginal(), adj));
 			}
 			if (adv != null) {
-				m.putRoot(ADV_F, maybeChangeFirstLetter(m.getOriginal(), adv.getLemma()));
+				m.putRoot(ADV_F, maybeChangeFirstLetter(m.getOriginal(), adv));
 			}
 
 
@@ -0,0 +1,367 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package relex.morphy;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+
+/**
+ * The WordNet lemmas and exception lists, in one compact, sorted file
+ * that is memory-mapped rather than read into the heap.
+ *
+ * The file is written once, by main(), from the WordNet dictionary
+ * files; opening it then takes no time at all, and costs no heap.
+ * Since the mapping is read-only, the operating system shares its
+ * pages between all the JVMs on the machine that use the same file.
+ *
+ * Layout (all integers big-endian):
+ * <pre>
+ *   int magic, version, entries, lemmas, blocks
+ *   int[blocks]   offset of each block in the file
+ *   blocks of up to BLOCK_SIZE entries, in UTF-8 byte order:
+ *     varint shared, varint length, byte[length] suffix
+ *     byte lemma mask, byte exception mask
+ *     for each bit of the exception mask: varint length, byte[length] base
+ * </pre>
+ * Keys are front-coded: each one stores only what follows the prefix
+ * it shares with the one before it, except the first of a block,
+ * which is stored whole so that the blocks can be binary-searched.
+ * Bit p of a mask is for the p'th part of speech of Lexicon.
+ *
+ * Lookups are the same as WordNetIndex's; see Lexicon. The buffer is only read
+ * at absolute positions, so any number of threads may share it.
+ */
+public class MappedLexicon extends Lexicon
+{
+	/** System property naming the lexicon file. */
+	public static final String LEXICON_PROPERTY = "relex.morphy.lexicon";
+	public static final String DEFAULT_LEXICON = "./data/wordnet/relex-lexicon.bin";
+
+	public static final int BLOCK_SIZE = 16;
+
+	private static final int MAGIC = 0x524c584c;   // "RLXL"
+	private static final int VERSION = 1;
+	private static final int HEADER = 5 * 4;
+
+	private final ByteBuffer buf;
+	private final int entries;
+	private final int lemmaCount;
+	private final int blocks;
+
+	private MappedLexicon(ByteBuffer buf) throws IOException
+	{
+		this.buf = buf;
+		if (buf.getInt(0) != MAGIC || buf.getInt(4) != VERSION)
+			throw new IOException("Not a version " + VERSION + " lexicon file");
+		entries = buf.getInt(8);
+		lemmaCount = buf.getInt(12);
+		blocks = buf.getInt(16);
+	}
+
+	/** Map a lexicon file written by write(). */
+	public static MappedLexicon open(File f) throws IOException
+	{
+		RandomAccessFile raf = new RandomAccessFile(f, "r");
+		try
+		{
+			FileChannel ch = raf.getChannel();
+			// The mapping stays valid after the file is closed.
+			return new MappedLexicon(ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size()));
+		}
+		finally
+		{
+			raf.close();
+		}
+	}
+
+	/**
+	 * Find the lexicon file: the one named by the LEXICON_PROPERTY, or
+	 * else DEFAULT_LEXICON; null if there is no such file.
+	 */
+	public static File findLexicon()
+	{
+		File f = new File(System.getProperty(LEXICON_PROPERTY, DEFAULT_LEXICON));
+		return f.isFile() ? f : null;
+	}
+
+	/** Number of lemmas, over all parts of speech. */
+	public int size()
+	{
+		return lemmaCount;
+	}
+
+	/** Number of distinct words, lemmas or exceptions. */
+	public int getEntries()
+	{
+		return entries;
+	}
+
+	/* ---------------------------------------------------------------- */
+
+	boolean isLemma(int p, String w)
+	{
+		int at = find(w);
+		return 0 <= at && (buf.get(at) & (1 << p)) != 0;
+	}
+
+	String exception(int p, String w)
+	{
+		int at = find(w);
+		if (at < 0) return null;
+		int excMask = buf.get(at + 1);
+		if ((excMask & (1 << p)) == 0) return null;
+
+		Cursor c = new Cursor(at + 2);
+		for (int q = 0; q < p; q++)
+			if ((excMask & (1 << q)) != 0) c.skip();
+		int len = c.varint();
+		return new String(bytes(c.pos, len), StandardCharsets.UTF_8);
+	}
+
+	/** Position of the masks of the word's entry, or -1. */
+	private int find(String w)
+	{
+		byte[] key = w.getBytes(StandardCharsets.UTF_8);
+
+		// Last block whose first key is not greater than the key.
+		int lo = 0, hi = blocks - 1, block = -1;
+		while (lo <= hi)
+		{
+			int mid = (lo + hi) >>> 1;
+			Cursor c = new Cursor(blockOffset(mid));
+			c.varint();
+			int len = c.varint();
+			int cmp = compare(key, c.pos, len);
+			if (cmp == 0) return c.pos + len;
+			if (cmp > 0) { block = mid; lo = mid + 1; }
+			else hi = mid - 1;
+		}
+		if (block < 0) return -1;
+
+		Cursor c = new Cursor(blockOffset(block));
+		byte[] cur = new byte[Math.max(64, key.length)];
+		int n = Math.min(BLOCK_SIZE, entries - block * BLOCK_SIZE);
+		for (int i = 0; i < n; i++)
+		{
+			int shared = c.varint();
+			int len = c.varint();
+			if (cur.length < shared + len)
+				cur = Arrays.copyOf(cur, 2 * (shared + len));
+			for (int j = 0; j < len; j++)
+				cur[shared + j] = buf.get(c.pos + j);
+			c.pos += len;
+			int cmp = compare(key, cur, shared + len);
+			if (cmp == 0) return c.pos;
+			if (cmp < 0) return -1;
+
+			// Skip the masks and the base forms.
+			int excMask = buf.get(c.pos + 1);
+			c.pos += 2;
+			for (int q = 0; q < 8; q++)
+				if ((excMask & (1 << q)) != 0) c.skip();
+		}
+		return -1;
+	}
+
+	private int blockOffset(int b)
+	{
+		return buf.getInt(HEADER + 4 * b);
+	}
+
+	private byte[] bytes(int at, int len)
+	{
+		byte[] b = new byte[len];
+		for (int i = 0; i < len; i++) b[i] = buf.get(at + i);
+		return b;
+	}
+
+	// Compare the key with len bytes of the buffer at position at.
+	private int compare(byte[] key, int at, int len)
+	{
+		int n = Math.min(key.length, len);
+		for (int i = 0; i < n; i++)
+		{
+			int d = (key[i] & 0xff) - (buf.get(at + i) & 0xff);
+			if (d != 0) return d;
+		}
+		return key.length - len;
+	}
+
+	private static int compare(byte[] a, byte[] b, int blen)
+	{
+		int n = Math.min(a.length, blen);
+		for (int i = 0; i < n; i++)
+		{
+			int d = (a[i] & 0xff) - (b[i] & 0xff);
+			if (d != 0) return d;
+		}
+		return a.length - blen;
+	}
+
+	private class Cursor
+	{
+		int pos;
+
+		Cursor(int pos)
+		{
+			this.pos = pos;
+		}
+
+		int varint()
+		{
+			int v = 0;
+			for (int shift = 0; ; shift += 7)
+			{
+				byte b = buf.get(pos++);
+				v |= (b & 0x7f) << shift;
+				if (b >= 0) return v;
+			}
+		}
+
+		// Skip a length-prefixed string.
+		void skip()
+		{
+			int len = varint();
+			pos += len;
+		}
+	}
+
+	/* ---------------------------------------------------------------- */
+	/**
+	 * Write the lemmas and exception lists of a WordNetIndex to a
+	 * lexicon file.
+	 */
+	public static void write(WordNetIndex wn, File out) throws IOException
+	{
+		int npos = POS_NAMES.length;
+		HashSet<String> words = new HashSet<String>();
+		int lemmaCount = 0;
+		for (int p = 0; p < npos; p++)
+		{
+			words.addAll(wn.lemmas(p));
+			words.addAll(wn.exceptions(p).keySet());
+			lemmaCount += wn.lemmas(p).size();
+		}
+
+		ArrayList<byte[]> keys = new ArrayList<byte[]>(words.size());
+		for (String w : words)
+			keys.add(w.getBytes(StandardCharsets.UTF_8));
+		Collections.sort(keys, new Comparator<byte[]>()
+		{
+			public int compare(byte[] a, byte[] b)
+			{
+				return MappedLexicon.compare(a, b, b.length);
+			}
+		});
+
+		int blocks = (keys.size() + BLOCK_SIZE - 1) / BLOCK_SIZE;
+		int dataStart = HEADER + 4 * blocks;
+		int[] offsets = new int[blocks];
+		ByteArrayOutputStream data = new ByteArrayOutputStream();
+		byte[] prev = new byte[0];
+		for (int i = 0; i < keys.size(); i++)
+		{
+			byte[] key = keys.get(i);
+			int shared = 0;
+			if (i % BLOCK_SIZE == 0)
+				offsets[i / BLOCK_SIZE] = dataStart + data.size();
+			else
+				while (shared < prev.length && shared < key.length
+				       && prev[shared] == key[shared]) shared++;
+			writeVarint(data, shared);
+			writeVarint(data, key.length - shared);
+			data.write(key, shared, key.length - shared);
+
+			String w = new String(key, StandardCharsets.UTF_8);
+			int lemmaMask = 0, excMask = 0;
+			for (int p = 0; p < npos; p++)
+			{
+				if (wn.lemmas(p).contains(w)) lemmaMask |= 1 << p;
+				if (wn.exceptions(p).containsKey(w)) excMask |= 1 << p;
+			}
+			data.write(lemmaMask);
+			data.write(excMask);
+			for (int p = 0; p < npos; p++)
+			{
+				if ((excMask & (1 << p)) == 0) continue;
+				byte[] base = wn.exceptions(p).get(w).getBytes(StandardCharsets.UTF_8);
+				writeVarint(data, base.length);
+				data.write(base, 0, base.length);
+			}
+			prev = key;
+		}
+
+		DataOutputStream dos = new DataOutputStream(new FileOutputStream(out));
+		try
+		{
+			dos.writeInt(MAGIC);
+			dos.writeInt(VERSION);
+			dos.writeInt(keys.size());
+			dos.writeInt(lemmaCount);
+			dos.writeInt(blocks);
+			for (int off : offsets) dos.writeInt(off);
+			data.writeTo(dos);
+		}
+		finally
+		{
+			dos.close();
+		}
+	}
+
+	private static void writeVarint(ByteArrayOutputStream out, int v)
+	{
+		while ((v & ~0x7f) != 0)
+		{
+			out.write((v & 0x7f) | 0x80);
+			v >>>= 7;
+		}
+		out.write(v);
+	}
+
+	/**
+	 * Build a lexicon file. Usage:
+	 * MappedLexicon [wordnet-dict-dir] [lexicon-file]
+	 * The defaults are WordNetIndex.findDictionary() and DEFAULT_LEXICON.
+	 */
+	public static void main(String[] args) throws IOException
+	{
+		File dir = (args.length > 0) ? new File(args[0]) : WordNetIndex.findDictionary();
+		File out = new File((args.length > 1) ? args[1] : DEFAULT_LEXICON);
+		if (dir == null)
+		{
+			System.err.println("Cannot find the WordNet dictionary; give its directory.");
+			System.exit(1);
+		}
+
+		long t = System.currentTimeMillis();
+		WordNetIndex wn = WordNetIndex.load(dir);
+		write(wn, out);
+		MappedLexicon lex = open(out);
+		System.out.println("Wrote " + lex.getEntries() + " words, " + lex.size()
+			+ " lemmas, " + out.length() + " bytes to " + out + " in "
+			+ (System.currentTimeMillis() - t) + " ms");
+	}
+}
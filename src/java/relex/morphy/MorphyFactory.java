@@ -13,6 +13,12 @@ public class MorphyFactory
 	public static final String DEFAULT_SINGLE_THREAD_IMPLEMENTATION = "relex.morphy.MorphyJWNL";
 	public static final String DEFAULT_MULTI_THREAD_IMPLEMENTATION = "relex.morphy.MapMorphy";
 
+	/**
+	 * Number of words to remember in a CachingMorphy in front of the
+	 * implementation; set to 0 to turn the cache off.
+	 */
+	public static final String MORPHY_CACHE_SIZE_PROPERTY = "relex.morphy.cacheSize";
+
 	private static final String WORDNET_PROPERTY = "wordnet.configfile";
 	private static final String JWNL_FILE_PROPERTIES_XML = "file_properties.xml";
 	private static final String JWNL_DIR_PROPERTIES_XML = "./data/wordnet";
@@ -21,6 +27,8 @@ public class MorphyFactory
 	 * Obtains a Morphy instance. If the system property
 	 * MORPHY_IMPLEMENTATION_PROPERTY is defined, try to instantiate
 	 * the class specified by it; if not, uses the given class name.
+	 * Unless MORPHY_CACHE_SIZE_PROPERTY is 0, the instance is wrapped
+	 * in a CachingMorphy.
 	 *
 	 * @param defaultImplementation
 	 * @return
@@ -37,6 +45,11 @@ public class MorphyFactory
 			Class<?> cl = Class.forName(implementationClassname);
 			instance = (Morphy)cl.newInstance();
 			instance.initialize();
+
+			int cacheSize = Integer.getInteger(MORPHY_CACHE_SIZE_PROPERTY,
+				CachingMorphy.DEFAULT_MAX_ENTRIES);
+			if (0 < cacheSize)
+				instance = new CachingMorphy(instance, cacheSize);
 		}
 		catch (Exception ex)
 		{
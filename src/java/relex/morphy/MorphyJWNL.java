@@ -16,6 +16,8 @@
 
 package relex.morphy;
 
+import java.io.File;
+import java.io.IOException;
 import java.lang.Math;
 import java.util.HashMap;
 import java.util.Iterator;
@@ -45,8 +47,12 @@ import net.didion.jwnl.dictionary.Dictionary;
  * The system attempts to load locally installed wordnet databases
  * as specified in the "file_properties.xml" config file. This
  * file can be specified with the java system -Dwordnet.configfile
- * option. If the config file cannot be found, then it attempts to
- * use the command-line wordnet command instead. It assumes the
+ * option. If JWNL cannot be initialized, then it reads the wordnet
+ * index and exception files itself, with a WordNetIndex.
+ *
+ * Only if that fails too, and the java system property
+ * -Drelex.morphy.wnCommand=true is set, does it run the command-line
+ * wordnet command instead, once per word looked up. It assumes the
  * command-line command is called "wn" and can be found in the
  * system executable file search path.
  */
@@ -106,7 +112,12 @@ public class MorphyJWNL implements Morphy
 		defaultNounStems.put("men", "man");
 	}
 
+	/** Set this system property to "true" to allow running "wn". */
+	public static final String WN_COMMAND_PROPERTY = "relex.morphy.wnCommand";
+
 	private boolean javaWordnetFound = false;
+	private WordNetIndex wordnetIndex = null;
+	private boolean useCommand = false;
 
 	public MorphyJWNL()
 	{
@@ -117,26 +128,47 @@ public class MorphyJWNL implements Morphy
 	 */
 	public void initialize()
 	{
-		if (!MorphyFactory.initializeJWNL()) {
-			System.err.println("Warning: Unable to initialize WordNet " +
-					"Java API (JWNL).\n" +
-					"\tWas -Dwordnet.configfile set correctly?\n" +
-					"\tDoes the wordnet.configfile contain the  right paths?\n" +
-					"\tWill use command-line interface; " +
-					"this will negatively impact performance.");
-		} else {
+		if (MorphyFactory.initializeJWNL()) {
 		    javaWordnetFound = true;
+		    return;
+		}
+
+		File dir = WordNetIndex.findDictionary();
+		if (dir != null) {
+			try {
+				wordnetIndex = WordNetIndex.load(dir);
+				System.err.println("Warning: Unable to initialize WordNet " +
+						"Java API (JWNL).\n" +
+						"\tWill read the WordNet files in " + dir + " directly.");
+				return;
+			} catch (IOException e) {
+				System.err.println("Error: Unable to read WordNet files in " +
+						dir + ": " + e);
+			}
 		}
+
+		useCommand = Boolean.getBoolean(WN_COMMAND_PROPERTY);
+		System.err.println("Warning: Unable to initialize WordNet " +
+				"Java API (JWNL).\n" +
+				"\tWas -Dwordnet.configfile set correctly?\n" +
+				"\tDoes the wordnet.configfile contain the  right paths?\n" +
+				"\tNo WordNet dictionary found; set -D" +
+				WordNetIndex.DICT_DIR_PROPERTY + " to its directory.\n" +
+				(useCommand ?
+					"\tWill use command-line interface; " +
+					"this will negatively impact performance." :
+					"\tWords will not be stemmed. Set -D" + WN_COMMAND_PROPERTY +
+					"=true to use the command-line interface."));
 	}
 
 	public Morphed morph(String word)
 	{
 		Morphed m = new Morphed(word);
-		// Run either the JWNL version, or the command-line version.
-		if (javaWordnetFound)
-			loadLocal(m);
-		else
+		// Run either the in-process version, or the command-line version.
+		if (useCommand)
 			loadCMD(m);
+		else
+			loadLocal(m);
 		return m;
 	}
 
@@ -304,8 +336,29 @@ public class MorphyJWNL implements Morphy
 	}
 
 	/**
-	 * Use the jwnl interfaces to look up a word, straight from
-	 * the locally-installed wordnet databases.
+	 * The lemma of the word for a part of speech, from JWNL or else
+	 * from the WordNetIndex; null if not found, or if neither is
+	 * available.
+	 */
+	private String lookupLemma(String pos, String word) throws JWNLException
+	{
+		if (javaWordnetFound)
+		{
+			POS jpos = POS.NOUN;
+			if (pos.equals(VERB_F)) jpos = POS.VERB;
+			else if (pos.equals(ADJ_F)) jpos = POS.ADJECTIVE;
+			else if (pos.equals(ADV_F)) jpos = POS.ADVERB;
+			IndexWord iw = Dictionary.getInstance().lookupIndexWord(jpos, word);
+			return (iw == null) ? null : iw.getLemma();
+		}
+		if (wordnetIndex != null)
+			return wordnetIndex.lookup(pos, word);
+		return null;
+	}
+
+	/**
+	 * Use the jwnl interfaces, or the WordNetIndex, to look up a word,
+	 * straight from the locally-installed wordnet databases.
 	 */
 	private void loadLocal(Morphed m)
 	{
@@ -347,8 +400,6 @@ public class MorphyJWNL implements Morphy
 		word = convertNounStems(word);
 
 		try {
-			Dictionary dict = Dictionary.getInstance();
-
 			/**************
 			 * There may be several root forms for any given word. The code
 			 * below demonstrates how to look these up in JWNL. Unfortunately
@@ -375,33 +426,34 @@ public class MorphyJWNL implements Morphy
 			}
 			****************/
 
-			IndexWord verb = dict.lookupIndexWord(POS.VERB, word);
+			String verb = lookupLemma(VERB_F, word);
 
 			// If we've stripped an n't from something that isn't a verb,
 			// then its ... a weird word that I certainly don't know.
-			if (negativeVerb && verb == null) {
+			// (Unless there is no wordnet at all; see below.)
+			if (negativeVerb && verb == null && (javaWordnetFound || wordnetIndex != null)) {
 				return;
 			}
 
 			if (verb != null) {
 				if (negativeVerb) {
-					m.putRootNegative(VERB_F, undoDamage(m.getOriginal(), verb.getLemma()));
+					m.putRootNegative(VERB_F, undoDamage(m.getOriginal(), verb));
 				} else {
-					m.putRoot(VERB_F, undoDamage(m.getOriginal(), verb.getLemma()));
+					m.putRoot(VERB_F, undoDamage(m.getOriginal(), verb));
 				}
 			}
 
-			IndexWord noun = dict.lookupIndexWord(POS.NOUN, word);
-			IndexWord adj = dict.lookupIndexWord(POS.ADJECTIVE, word);
-			IndexWord adv = dict.lookupIndexWord(POS.ADVERB, word);
+			String noun = lookupLemma(NOUN_F, word);
+			String adj = lookupLemma(ADJ_F, word);
+			String adv = lookupLemma(ADV_F, word);
 			if (noun != null) {
-				m.putRoot(NOUN_F, undoDamage(m.getOriginal(), noun.getLemma()));
+				m.putRoot(NOUN_F, undoDamage(m.getOriginal(), noun));
 			}
 			if (adj != null) {
-				m.putRoot(ADJ_F, undoDamage(m.getOriginal(), adj.getLemma()));
+				m.putRoot(ADJ_F, undoDamage(m.getOriginal(), adj));
 			}
 			if (adv != null) {
-				m.putRoot(ADV_F, undoDamage(m.getOriginal(), adv.getLemma()));
+				m.putRoot(ADV_F, undoDamage(m.getOriginal(), adv));
 			}
 
 		} catch (JWNLException ex) {
@@ -411,7 +463,7 @@ public class MorphyJWNL implements Morphy
 		}
 
 		// In case root wasn't in wordnet, add it here.
-		// WTF -- this can never be reached, due to above test?
+		// This is reached only when there is no wordnet at all.
 		if (negativeVerb && m.getVerbString() == null) {
 			m.putRootNegative("verb", word);
 		}
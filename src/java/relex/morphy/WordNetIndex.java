@@ -0,0 +1,217 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package relex.morphy;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import relex.utils.ResourceUtils;
+
+/**
+ * A pure-Java reader of the WordNet index.* and *.exc files, that
+ * finds the base form (lemma) of a word the way that JWNL does; see
+ * Lexicon.
+ *
+ * Only the lemmas are kept, not the synsets, so the whole index fits
+ * in a few tens of megabytes, and loads in about a second. After
+ * loading, it is read-only, and may be shared by any number of
+ * threads.
+ */
+public class WordNetIndex extends Lexicon
+{
+	/** System property naming the WordNet dictionary directory. */
+	public static final String DICT_DIR_PROPERTY = "wordnet.dictdir";
+
+	private static final String[] FILE_NAMES = { "noun", "verb", "adj", "adv" };
+
+	private final List<Set<String>> lemmas = new ArrayList<Set<String>>(POS_NAMES.length);
+	private final List<Map<String, String>> exceptions =
+		new ArrayList<Map<String, String>>(POS_NAMES.length);
+
+	WordNetIndex()
+	{
+	}
+
+	/**
+	 * Load the index and exception files from a WordNet dictionary
+	 * directory, e.g. /usr/share/wordnet.
+	 */
+	public static WordNetIndex load(File dir) throws IOException
+	{
+		WordNetIndex wn = new WordNetIndex();
+		for (int p = 0; p < POS_NAMES.length; p++)
+		{
+			wn.lemmas.add(readIndex(new File(dir, "index." + FILE_NAMES[p])));
+			File exc = new File(dir, FILE_NAMES[p] + ".exc");
+			wn.exceptions.add(exc.exists() ?
+				readExceptions(exc) : new HashMap<String, String>());
+		}
+		return wn;
+	}
+
+	/**
+	 * Find the WordNet dictionary: the directory named by the
+	 * DICT_DIR_PROPERTY, or data/wordnet, or the dictionary_path of
+	 * the JWNL configuration, whichever first has an index.noun file
+	 * in it. Returns null if none does.
+	 */
+	public static File findDictionary()
+	{
+		String prop = System.getProperty(DICT_DIR_PROPERTY);
+		if (prop != null && isDictionary(new File(prop)))
+			return new File(prop);
+
+		File data = new File("./data/wordnet");
+		if (isDictionary(data)) return data;
+
+		try
+		{
+			InputStream in = ResourceUtils.getResource(
+				"wordnet.configfile", "file_properties.xml", "./data/wordnet");
+			String path = findDictionaryPath(in);
+			if (path != null && isDictionary(new File(path)))
+				return new File(path);
+		}
+		catch (Exception e)
+		{
+			// No configuration; no dictionary.
+		}
+		return null;
+	}
+
+	private static boolean isDictionary(File dir)
+	{
+		return new File(dir, "index.noun").exists();
+	}
+
+	// The dictionary_path that is not commented out.
+	private static String findDictionaryPath(InputStream in) throws IOException
+	{
+		Pattern p = Pattern.compile("name=\"dictionary_path\"\\s+value=\"([^\"]*)\"");
+		BufferedReader r = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+		try
+		{
+			boolean comment = false;
+			String line;
+			while ((line = r.readLine()) != null)
+			{
+				boolean commented = comment || line.contains("<!--");
+				if (line.contains("<!--")) comment = !line.contains("-->");
+				else if (line.contains("-->")) comment = false;
+				if (commented) continue;
+
+				Matcher m = p.matcher(line);
+				if (m.find()) return m.group(1);
+			}
+			return null;
+		}
+		finally
+		{
+			r.close();
+		}
+	}
+
+	private static HashSet<String> readIndex(File f) throws IOException
+	{
+		HashSet<String> set = new HashSet<String>();
+		BufferedReader r = open(f);
+		try
+		{
+			String line;
+			while ((line = r.readLine()) != null)
+			{
+				// The license text at the top is indented.
+				if (line.length() == 0 || line.charAt(0) == ' ') continue;
+				int sp = line.indexOf(' ');
+				set.add(sp < 0 ? line : line.substring(0, sp));
+			}
+		}
+		finally
+		{
+			r.close();
+		}
+		return set;
+	}
+
+	private static HashMap<String, String> readExceptions(File f) throws IOException
+	{
+		HashMap<String, String> map = new HashMap<String, String>();
+		BufferedReader r = open(f);
+		try
+		{
+			String line;
+			while ((line = r.readLine()) != null)
+			{
+				String[] w = line.trim().split("\\s+");
+				if (w.length < 2) continue;
+				// Keep the first base form, as JWNL does.
+				if (!map.containsKey(w[0])) map.put(w[0], w[1]);
+			}
+		}
+		finally
+		{
+			r.close();
+		}
+		return map;
+	}
+
+	private static BufferedReader open(File f) throws IOException
+	{
+		return new BufferedReader(new InputStreamReader(new FileInputStream(f), "UTF-8"));
+	}
+
+	/* ---------------------------------------------------------------- */
+
+	boolean isLemma(int p, String w)
+	{
+		return lemmas.get(p).contains(w);
+	}
+
+	String exception(int p, String w)
+	{
+		return exceptions.get(p).get(w);
+	}
+
+	/** The lemmas of one part of speech, with underscores. */
+	Set<String> lemmas(int p)
+	{
+		return Collections.unmodifiableSet(lemmas.get(p));
+	}
+
+	/** The exception list of one part of speech: word to base form. */
+	Map<String, String> exceptions(int p)
+	{
+		return Collections.unmodifiableMap(exceptions.get(p));
+	}
+
+	public int size()
+	{
+		int n = 0;
+		for (Set<String> s : lemmas) n += s.size();
+		return n;
+	}
+}
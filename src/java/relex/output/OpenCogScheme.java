@@ -83,6 +83,29 @@ public class OpenCogScheme
 		rel_scheme.setParse(_parse);
 	}
 
+	/**
+	 * Forget the parse, and the word instances seen so far. Call this
+	 * after each sentence, when one OpenCogScheme prints the parses of
+	 * many sentences, as a server session does; otherwise it holds on
+	 * to the last parse, and to every word instance ever printed. The
+	 * word instances are unique to their sentence, so none of them
+	 * would have been seen again. Sequence numbers keep counting up.
+	 */
+	public void clear()
+	{
+		_parse = null;
+		orig_sentence = "";
+		link_scheme.setParse(null);
+		rel_scheme.setParse(null);
+		previous_words.clear();
+	}
+
+	/** Number of word instances remembered; see clear(). */
+	public int getWordsSeen()
+	{
+		return previous_words.size();
+	}
+
 	/* -------------------------------------------------------------------- */
 
 	/**
@@ -20,6 +20,7 @@ import java.util.HashMap;
 import relex.feature.FeatureNode;
 import relex.feature.RelationCallback;
 import relex.ParsedSentence;
+import relex.utils.Deadline;
 
 /**
  * Implements a very simple, direct printout of the
@@ -46,13 +47,24 @@ public class SimpleView
 	}
 	public static String printRelations(ParsedSentence parse,
 	                                    HashMap<FeatureNode,String> map)
+	{
+		return printRelations(parse, map, Deadline.NONE);
+	}
+
+	/**
+	 * As above, but stop once the deadline expires; the relations
+	 * found up to that point are returned.
+	 */
+	public static String printRelations(ParsedSentence parse,
+	                                    HashMap<FeatureNode,String> map,
+	                                    Deadline deadline)
 	{
 		Visit v = new Visit();
 		v.id_map = map;
 		v.binary_str = "";
 		v.unary_str = "";
 		v.indent = "    ";
-		parse.foreach(v);
+		parse.foreach(v, deadline);
 		return v.binary_str + "\nAttributes:\n\n" + v.unary_str;
 	}
 
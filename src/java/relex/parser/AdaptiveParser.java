@@ -0,0 +1,177 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package relex.parser;
+
+import org.linkgrammar.LGConfig;
+
+import relex.Sentence;
+
+/**
+ * A parser that sets the time limit and the number of linkages for
+ * each sentence, as chosen by a BudgetController, and reports back
+ * how long each parse took.
+ *
+ * The limits chosen, and the predicted parse time, are recorded in
+ * the parse metadata, under "budget_seconds", "budget_linkages" and
+ * "predicted_millis".
+ *
+ * The limits go with the parse call, see LGParser.parse(String,
+ * LGConfig); the wrapped parser's own config is never changed, so
+ * that it may be shared by several threads, as may the controller.
+ */
+public class AdaptiveParser extends LGParser
+{
+	private final LGParser parser;
+	private final BudgetController controller;
+
+	public AdaptiveParser(LGParser parser, BudgetController controller)
+	{
+		this.parser = parser;
+		this.controller = controller;
+	}
+
+	public LGParser getParser()
+	{
+		return parser;
+	}
+
+	public BudgetController getController()
+	{
+		return controller;
+	}
+
+	public Sentence parse(String text) throws ParseException
+	{
+		return parse(text, parser.getConfig());
+	}
+
+	public Sentence parse(String text, LGConfig config) throws ParseException
+	{
+		LGConfig base = (config != null) ? config : parser.getConfig();
+		if (text == null) return parser.parse(text, base);
+
+		BudgetController.Budget b = controller.decide(countWords(text),
+			base.getMaxParseSeconds(), base.getMaxLinkages());
+
+		LGConfig cfg = copyConfig(base, new LGConfig());
+		cfg.setMaxParseSeconds(b.seconds);
+		cfg.setMaxLinkages(b.linkages);
+
+		long start = System.currentTimeMillis();
+		Sentence sntc = parser.parse(text, cfg);
+		long millis = System.currentTimeMillis() - start;
+
+		// Link-grammar does not say whether it timed out; a parse that
+		// used up nearly all of its time limit surely did.
+		controller.observe(b, millis, 950L * b.seconds <= millis);
+
+		if (sntc != null)
+		{
+			setMeta(sntc, "budget_seconds", Integer.toString(b.seconds));
+			setMeta(sntc, "budget_linkages", Integer.toString(b.linkages));
+			setMeta(sntc, "predicted_millis", Long.toString(Math.round(b.predictedMillis)));
+		}
+		return sntc;
+	}
+
+	private static int countWords(String text)
+	{
+		String t = text.trim();
+		return (t.length() == 0) ? 0 : t.split("\\s+").length;
+	}
+
+	/* ---------------------------------------------------------------- */
+	/* Everything else goes straight to the wrapped parser. */
+	public LGConfig getConfig()
+	{
+		return parser.getConfig();
+	}
+
+	public void setConfig(LGConfig config)
+	{
+		parser.setConfig(config);
+	}
+
+	public void setDictPath(String path)
+	{
+		parser.setDictPath(path);
+	}
+
+	public String getDictPath()
+	{
+		return parser.getDictPath();
+	}
+
+	public void setLanguage(String lang)
+	{
+		parser.setLanguage(lang);
+	}
+
+	public String getLanguage()
+	{
+		return parser.getLanguage();
+	}
+
+	public void setMaxLinkages(int ml)
+	{
+		parser.setMaxLinkages(ml);
+	}
+
+	public int getMaxLinkages()
+	{
+		return parser.getMaxLinkages();
+	}
+
+	public void setEagerLinkages(int n)
+	{
+		parser.setEagerLinkages(n);
+	}
+
+	public int getEagerLinkages()
+	{
+		return parser.getEagerLinkages();
+	}
+
+	public void setMaxParseSeconds(int secs)
+	{
+		parser.setMaxParseSeconds(secs);
+	}
+
+	public LGParser copyForThread()
+	{
+		LGParser p = parser.copyForThread();
+		return (p == parser) ? this : new AdaptiveParser(p, controller);
+	}
+
+	public String getVersion()
+	{
+		return parser.getVersion();
+	}
+
+	public void init()
+	{
+		parser.init();
+	}
+
+	public void close()
+	{
+		parser.close();
+	}
+
+	public void doFinalize()
+	{
+		parser.doFinalize();
+	}
+}
@@ -0,0 +1,250 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package relex.parser;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Chooses the parse time limit and the number of linkages for each
+ * sentence, from its length and from how long sentences of about
+ * that length have recently taken.
+ *
+ * Short sentences parse in a few milliseconds, and need no limit;
+ * long ones may run into the time limit, and use all of it. The
+ * controller keeps a running average of the parse time for each
+ * range of sentence lengths (an exponentially-weighted moving
+ * average, so that it follows changes in the text). A length that
+ * has not been seen yet is predicted from the nearest one that has,
+ * assuming that parse time grows with the cube of the length.
+ *
+ * The time limit is then set to a few times the predicted time, so
+ * that a sentence that is slow for its length is cut off early. If a
+ * target latency is set (see setTargetMillis()), sentences predicted
+ * to take longer than the target get a time limit of a few times the
+ * target instead, and proportionally fewer linkages. When the recent
+ * average exceeds the target, all budgets are scaled down further,
+ * until it recovers. Neither limit is ever raised above the parser's
+ * own setting.
+ *
+ * Every linkage kept is made twice, once to rank it and once to
+ * build it, and its link and constituent strings are rendered; so,
+ * past the parse itself, the cost grows linearly with the number of
+ * linkages kept.
+ *
+ * One controller may be shared by the AdaptiveParsers of several
+ * threads; it is thread-safe.
+ */
+public class BudgetController
+{
+	public static final int BUCKET_WIDTH = 4;
+	public static final int NUM_BUCKETS = 25;
+	public static final double DEFAULT_HEADROOM = 3.0;
+	public static final int DEFAULT_MIN_LINKAGES = 1;
+
+	// Weight of the newest sample in the moving averages.
+	private static final double ALPHA = 0.2;
+
+	/** The limits chosen for one sentence. */
+	public static class Budget
+	{
+		public final int words;
+		public final double predictedMillis;
+		public final int seconds;
+		public final int linkages;
+
+		Budget(int words, double predictedMillis, int seconds, int linkages)
+		{
+			this.words = words;
+			this.predictedMillis = predictedMillis;
+			this.seconds = seconds;
+			this.linkages = linkages;
+		}
+	}
+
+	private double targetMillis = 0;
+	private double headroom = DEFAULT_HEADROOM;
+	private int minLinkages = DEFAULT_MIN_LINKAGES;
+
+	private final double[] avgMillis = new double[NUM_BUCKETS];
+	private final long[] count = new long[NUM_BUCKETS];
+	private final long[] timeouts = new long[NUM_BUCKETS];
+	private double recentMillis = 0;
+
+	private long sentences = 0;
+	private long secondsCut = 0;
+	private long linkagesCut = 0;
+	private long totalTimeouts = 0;
+	private double sumAbsError = 0;
+	private long predicted = 0;
+
+	/**
+	 * Aim for an average parse time of this many milliseconds per
+	 * sentence, per thread; zero for no target. A throughput target
+	 * of N sentences per second per thread is a target of 1000/N.
+	 */
+	public synchronized void setTargetMillis(double millis)
+	{
+		targetMillis = Math.max(0, millis);
+	}
+
+	public synchronized double getTargetMillis()
+	{
+		return targetMillis;
+	}
+
+	/** The time limit is this many times the predicted time. */
+	public synchronized void setHeadroom(double h)
+	{
+		headroom = Math.max(1.0, h);
+	}
+
+	/** Never cut the number of linkages below this. */
+	public synchronized void setMinLinkages(int n)
+	{
+		minLinkages = Math.max(1, n);
+	}
+
+	/* ---------------------------------------------------------------- */
+	/**
+	 * Choose the limits for a sentence of the given number of words,
+	 * given the parser's own (maximum) limits.
+	 */
+	public synchronized Budget decide(int words, int maxSeconds, int maxLinkages)
+	{
+		double pred = predictMillis(words);
+
+		// Budget for this sentence, scaled down if running behind.
+		double budget = Double.POSITIVE_INFINITY;
+		if (0 < targetMillis)
+		{
+			budget = targetMillis;
+			if (targetMillis < recentMillis)
+				budget *= Math.max(0.25, targetMillis / recentMillis);
+		}
+
+		double limit = headroom * budget;
+		if (0 <= pred) limit = Math.min(limit, headroom * pred);
+
+		int secs = maxSeconds;
+		if (limit < 1000.0 * maxSeconds)
+			secs = Math.max(1, (int) Math.ceil(limit / 1000.0));
+
+		int links = maxLinkages;
+		if (0 <= pred && budget < pred)
+			links = Math.max(Math.min(minLinkages, maxLinkages),
+			                 (int) (maxLinkages * budget / pred));
+
+		if (secs < maxSeconds) secondsCut++;
+		if (links < maxLinkages) linkagesCut++;
+		return new Budget(words, pred, secs, links);
+	}
+
+	/**
+	 * Record how long a parse actually took. A parse that ran into
+	 * its time limit would have taken longer; it is counted as taking
+	 * twice as long, so that the prediction moves up quickly.
+	 */
+	public synchronized void observe(Budget b, long millis, boolean timedOut)
+	{
+		int k = bucket(b.words);
+		double sample = timedOut ? 2.0 * millis : millis;
+		avgMillis[k] = (count[k] == 0) ? sample : avgMillis[k] + ALPHA * (sample - avgMillis[k]);
+		count[k]++;
+		recentMillis = (sentences == 0) ? millis : recentMillis + ALPHA * (millis - recentMillis);
+		sentences++;
+
+		if (timedOut)
+		{
+			timeouts[k]++;
+			totalTimeouts++;
+		}
+		if (0 <= b.predictedMillis)
+		{
+			sumAbsError += Math.abs(millis - b.predictedMillis);
+			predicted++;
+		}
+	}
+
+	/**
+	 * Predicted parse time in milliseconds, or -1 if nothing at all
+	 * has been seen yet.
+	 */
+	public synchronized double predictMillis(int words)
+	{
+		int k = bucket(words);
+		if (0 < count[k]) return avgMillis[k];
+
+		// Nearest length range with data; prefer the shorter.
+		for (int d = 1; d < NUM_BUCKETS; d++)
+		{
+			for (int j : new int[] {k - d, k + d})
+			{
+				if (j < 0 || NUM_BUCKETS <= j || count[j] == 0) continue;
+				double ratio = middle(k) / middle(j);
+				return avgMillis[j] * ratio * ratio * ratio;
+			}
+		}
+		return -1;
+	}
+
+	private static int bucket(int words)
+	{
+		return Math.min(NUM_BUCKETS - 1, Math.max(0, words) / BUCKET_WIDTH);
+	}
+
+	private static double middle(int k)
+	{
+		return k * BUCKET_WIDTH + BUCKET_WIDTH / 2.0;
+	}
+
+	/* ---------------------------------------------------------------- */
+	/**
+	 * The controller's decisions, and the state of its model, by name:
+	 * the number of sentences, how many had their time limit or
+	 * linkage count cut, how many timed out, the recent average
+	 * parse time, and the mean prediction error.
+	 */
+	public synchronized Map<String, Number> getMetrics()
+	{
+		LinkedHashMap<String, Number> m = new LinkedHashMap<String, Number>();
+		m.put("sentences", sentences);
+		m.put("seconds_cut", secondsCut);
+		m.put("linkages_cut", linkagesCut);
+		m.put("timeouts", totalTimeouts);
+		m.put("recent_millis", recentMillis);
+		m.put("mean_abs_error_millis", (predicted == 0) ? 0.0 : sumAbsError / predicted);
+		m.put("target_millis", targetMillis);
+		return m;
+	}
+
+	public synchronized String toString()
+	{
+		StringBuilder sb = new StringBuilder();
+		for (Map.Entry<String, Number> e : getMetrics().entrySet())
+			sb.append(e.getKey()).append('=').append(e.getValue()).append(' ');
+		sb.append("\nwords\tcount\ttimeouts\tavg_millis");
+		for (int k = 0; k < NUM_BUCKETS; k++)
+		{
+			if (count[k] == 0) continue;
+			sb.append('\n').append(k * BUCKET_WIDTH)
+			  .append((k == NUM_BUCKETS - 1) ? "+" : "-" + ((k + 1) * BUCKET_WIDTH - 1))
+			  .append('\t').append(count[k])
+			  .append('\t').append(timeouts[k])
+			  .append('\t').append(Math.round(avgMillis[k]));
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,224 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package relex.parser;
+
+import org.linkgrammar.LGConfig;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import relex.Sentence;
+
+/**
+ * A parser that remembers what it has already parsed. Text that
+ * repeats -- boilerplate, headlines, canned chat responses -- is
+ * parsed by link-grammar only once; after that, the linkages are
+ * pulled from a ParseCache, and re-built into fresh ParsedSentences.
+ *
+ * This is a decorator: all configuration and life-cycle calls are
+ * passed through to the wrapped parser. The cache key includes the
+ * sentence, with white-space normalized, and every setting that can
+ * change the parse result (language, dictionary, linkage and cost
+ * limits), so that changing the configuration does not return stale
+ * results.
+ *
+ * The time limit is not part of the key: RelationExtractor lowers it
+ * to fit each sentence's deadline, and the same sentence would get a
+ * new key every time. Instead, a parse that used up nearly all of its
+ * time limit is taken to have timed out, and is not remembered.
+ */
+public class CachingParser extends LGParser
+{
+	private static final Logger logger = LoggerFactory.getLogger(CachingParser.class);
+
+	private final LGParser parser;
+	private final ParseCache cache;
+
+	public CachingParser(LGParser parser, ParseCache cache)
+	{
+		this.parser = parser;
+		this.cache = cache;
+	}
+
+	public LGParser getParser()
+	{
+		return parser;
+	}
+
+	public ParseCache getCache()
+	{
+		return cache;
+	}
+
+	public Sentence parse(String text) throws ParseException
+	{
+		return parse(text, parser.getConfig());
+	}
+
+	public Sentence parse(String text, LGConfig config) throws ParseException
+	{
+		if (config == null) config = parser.getConfig();
+		if (text == null) return parser.parse(text, config);
+
+		String norm = normalize(text);
+		String key = makeKey(norm, config);
+		ParseCache.Entry e = cache.get(key);
+		if (e != null)
+		{
+			logger.trace("parse cache hit [{}]", norm);
+			return materialize(e, text);
+		}
+
+		int limit = config.getMaxParseSeconds();
+		long start = System.currentTimeMillis();
+		Sentence sntc = parser.parse(text, config);
+		if (sntc == null) return sntc;
+
+		// Don't remember failures, nor parses that were probably cut
+		// short by the time limit; the next try might be luckier.
+		// Link-grammar does not say whether it timed out.
+		long millis = System.currentTimeMillis() - start;
+		if (0 < limit && 950L * limit <= millis) return sntc;
+		ParseCache.Entry entry = ParseCache.Entry.fromSentence(text, sntc);
+		if (entry != null) cache.put(key, entry);
+		return sntc;
+	}
+
+	private Sentence materialize(ParseCache.Entry e, String text)
+	{
+		return e.toSentence(text, parser.getEagerLinkages());
+	}
+
+	/**
+	 * Trim the text, and collapse runs of white-space to a single
+	 * blank; link-grammar does not distinguish between these.
+	 */
+	static String normalize(String text)
+	{
+		StringBuilder sb = new StringBuilder(text.length());
+		boolean blank = false;
+		for (int i = 0; i < text.length(); i++)
+		{
+			char c = text.charAt(i);
+			if (Character.isWhitespace(c))
+			{
+				blank = (sb.length() > 0);
+				continue;
+			}
+			if (blank) sb.append(' ');
+			blank = false;
+			sb.append(c);
+		}
+		return sb.toString();
+	}
+
+	private String makeKey(String norm, LGConfig cfg)
+	{
+		StringBuilder sb = new StringBuilder(norm.length() + 64);
+		sb.append(parser.getLanguage()).append('|')
+		  .append(parser.getDictPath()).append('|')
+		  .append(parser.getMaxLinkages()).append('|')
+		  .append(cfg.getMaxLinkages()).append('|')
+		  .append(cfg.getMaxCost()).append('|')
+		  .append(cfg.isAllowSkippedWords()).append('|')
+		  .append(cfg.isStoreConstituentString()).append('\n')
+		  .append(norm);
+		return sb.toString();
+	}
+
+	/* ---------------------------------------------------------------- */
+	/* Everything else goes straight to the wrapped parser. */
+
+	public LGConfig getConfig()
+	{
+		return parser.getConfig();
+	}
+
+	public void setConfig(LGConfig config)
+	{
+		parser.setConfig(config);
+	}
+
+	public void setDictPath(String path)
+	{
+		parser.setDictPath(path);
+	}
+
+	public String getDictPath()
+	{
+		return parser.getDictPath();
+	}
+
+	public void setLanguage(String lang)
+	{
+		parser.setLanguage(lang);
+	}
+
+	public String getLanguage()
+	{
+		return parser.getLanguage();
+	}
+
+	public void setMaxLinkages(int ml)
+	{
+		parser.setMaxLinkages(ml);
+	}
+
+	public int getMaxLinkages()
+	{
+		return parser.getMaxLinkages();
+	}
+
+	public void setEagerLinkages(int n)
+	{
+		parser.setEagerLinkages(n);
+	}
+
+	public int getEagerLinkages()
+	{
+		return parser.getEagerLinkages();
+	}
+
+	public void setMaxParseSeconds(int secs)
+	{
+		parser.setMaxParseSeconds(secs);
+	}
+
+	public LGParser copyForThread()
+	{
+		// The cache itself is thread-safe, and is shared.
+		LGParser copy = parser.copyForThread();
+		return (copy == parser) ? this : new CachingParser(copy, cache);
+	}
+
+	public String getVersion()
+	{
+		return parser.getVersion();
+	}
+
+	public void init()
+	{
+		parser.init();
+	}
+
+	public void close()
+	{
+		parser.close();
+	}
+
+	public void doFinalize()
+	{
+		parser.doFinalize();
+	}
+}
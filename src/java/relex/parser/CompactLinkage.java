@@ -0,0 +1,510 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package relex.parser;
+
+import java.io.Serializable;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import relex.ParsedSentence;
+import relex.feature.FeatureNode;
+import relex.feature.LinkView;
+import relex.feature.LinkableView;
+
+/**
+ * A compact, immutable description of a single linkage: the words,
+ * their character offsets, the links between them, the disjuncts,
+ * the constituent and link-diagram strings, and the parse metadata.
+ *
+ * This holds exactly what the parsers put into a fresh ParsedSentence,
+ * and nothing that the relex algs add afterwards. It is a few arrays
+ * of strings, instead of a feature graph, and so is cheap to keep
+ * around, to serialize, and to re-materialize into a brand-new
+ * ParsedSentence with toParse().
+ */
+public class CompactLinkage implements Serializable
+{
+	private static final long serialVersionUID = 2671848094377362001L;
+
+	private static final String ENTITY_FLAG = "ENTITY-FLAG";
+	private static final String DISJUNCT = "DISJUNCT";
+	private static final List<String> SUMMED_META = Arrays.asList(
+		"num_skipped_words", "disjunct_cost", "link_cost", "num_violations");
+
+	private final String[] words;
+	private final int[] startChar;
+	private final int[] endChar;
+	private final boolean[] entity;
+	private final String[] disjuncts;
+
+	private final int[] linkLeft;
+	private final int[] linkRight;
+	private final String[] linkLLabel;
+	private final String[] linkRLabel;
+	private final String[] linkLabel;
+
+	private final String[] metaKeys;
+	private final String[] metaValues;
+
+	private final String phraseString;
+	private final String linkString;
+
+	CompactLinkage(String[] words, int[] startChar, int[] endChar,
+	                       boolean[] entity, String[] disjuncts,
+	                       int[] linkLeft, int[] linkRight,
+	                       String[] linkLLabel, String[] linkRLabel,
+	                       String[] linkLabel,
+	                       String[] metaKeys, String[] metaValues,
+	                       String phraseString, String linkString)
+	{
+		this.words = words;
+		this.startChar = startChar;
+		this.endChar = endChar;
+		this.entity = entity;
+		this.disjuncts = disjuncts;
+		this.linkLeft = linkLeft;
+		this.linkRight = linkRight;
+		this.linkLLabel = linkLLabel;
+		this.linkRLabel = linkRLabel;
+		this.linkLabel = linkLabel;
+		this.metaKeys = metaKeys;
+		this.metaValues = metaValues;
+		this.phraseString = phraseString;
+		this.linkString = linkString;
+	}
+
+	/* ---------------------------------------------------------------- */
+	/**
+	 * Capture the linkage held in a freshly-parsed sentence, i.e. one
+	 * that has not yet been touched by the relex algs.
+	 */
+	public static CompactLinkage fromParse(ParsedSentence parse)
+	{
+		List<FeatureNode> wl = parse.getLeafConstituents();
+		int nw = wl.size();
+
+		String[] words = new String[nw];
+		int[] startChar = new int[nw];
+		int[] endChar = new int[nw];
+		boolean[] entity = new boolean[nw];
+		String[] disjuncts = new String[nw];
+
+		IdentityHashMap<FeatureNode,Integer> wordIndex =
+			new IdentityHashMap<FeatureNode,Integer>();
+		for (int i = 0; i < nw; i++)
+		{
+			FeatureNode fn = wl.get(i);
+			wordIndex.put(fn, i);
+			words[i] = LinkableView.getOrigWordString(fn);
+			startChar[i] = LinkableView.getStartChar(fn);
+			endChar[i] = LinkableView.getEndChar(fn);
+			entity[i] = (fn.get(ENTITY_FLAG) != null);
+			FeatureNode dj = fn.get(DISJUNCT);
+			disjuncts[i] = (dj == null) ? null : dj.getValue();
+		}
+
+		// Collect the links, and put them back into an order that
+		// reproduces the same linkL<n> and linkR<n> numbering on every
+		// word, as the rules refer to links by these names.
+		List<FeatureNode> links = orderLinks(wl);
+		int nl = links.size();
+		int[] linkLeft = new int[nl];
+		int[] linkRight = new int[nl];
+		String[] linkLLabel = new String[nl];
+		String[] linkRLabel = new String[nl];
+		String[] linkLabel = new String[nl];
+		for (int j = 0; j < nl; j++)
+		{
+			FeatureNode lnk = links.get(j);
+			linkLeft[j] = wordIndex.get(LinkView.getLeft(lnk));
+			linkRight[j] = wordIndex.get(LinkView.getRight(lnk));
+			linkLLabel[j] = LinkView.getLabel(lnk, -1);
+			linkRLabel[j] = LinkView.getLabel(lnk, 1);
+			linkLabel[j] = LinkView.getLabel(lnk, 0);
+		}
+
+		String[] metaKeys = new String[0];
+		String[] metaValues = new String[0];
+		FeatureNode meta = (nw == 0) ? null : parse.getMetaData();
+		if (meta != null && !meta.isValued())
+		{
+			ArrayList<String> keys = new ArrayList<String>();
+			ArrayList<String> vals = new ArrayList<String>();
+			for (String key : meta.getFeatureNames())
+			{
+				FeatureNode v = meta.get(key);
+				if (v == null || !v.isValued()) continue;
+				keys.add(key);
+				vals.add(v.getValue());
+			}
+			metaKeys = keys.toArray(metaKeys);
+			metaValues = vals.toArray(metaValues);
+		}
+
+		return new CompactLinkage(words, startChar, endChar, entity, disjuncts,
+			linkLeft, linkRight, linkLLabel, linkRLabel, linkLabel,
+			metaKeys, metaValues,
+			parse.getPhraseString(), parse.getLinkString());
+	}
+
+	/**
+	 * Return the link nodes in an order consistent with the linkL and
+	 * linkR numbering of every word. Each word imposes an order on its
+	 * left links and on its right links; a topological sort of these
+	 * constraints gives an order that, when the links are added back
+	 * one by one, numbers them exactly as before.
+	 */
+	private static List<FeatureNode> orderLinks(List<FeatureNode> wl)
+	{
+		IdentityHashMap<FeatureNode,Integer> linkId =
+			new IdentityHashMap<FeatureNode,Integer>();
+		ArrayList<FeatureNode> links = new ArrayList<FeatureNode>();
+		for (FeatureNode w : wl)
+		{
+			int nr = LinkableView.numLinks(w, 1);
+			for (int k = 0; k < nr; k++)
+			{
+				FeatureNode lnk = LinkableView.getLink(w, 1, k);
+				if (!linkId.containsKey(lnk))
+				{
+					linkId.put(lnk, links.size());
+					links.add(lnk);
+				}
+			}
+		}
+
+		int nl = links.size();
+		int[] succR = new int[nl];
+		int[] succL = new int[nl];
+		int[] indeg = new int[nl];
+		for (int j = 0; j < nl; j++)
+		{
+			succR[j] = -1;
+			succL[j] = -1;
+		}
+		for (FeatureNode w : wl)
+		{
+			chain(w, 1, linkId, succR, indeg);
+			chain(w, -1, linkId, succL, indeg);
+		}
+
+		ArrayDeque<Integer> ready = new ArrayDeque<Integer>();
+		for (int j = 0; j < nl; j++)
+			if (indeg[j] == 0) ready.add(j);
+
+		ArrayList<FeatureNode> ordered = new ArrayList<FeatureNode>(nl);
+		while (!ready.isEmpty())
+		{
+			int j = ready.poll();
+			ordered.add(links.get(j));
+			if (0 <= succR[j] && --indeg[succR[j]] == 0) ready.add(succR[j]);
+			if (0 <= succL[j] && --indeg[succL[j]] == 0) ready.add(succL[j]);
+		}
+		return ordered;
+	}
+
+	private static void chain(FeatureNode w, int direction,
+	                          IdentityHashMap<FeatureNode,Integer> linkId,
+	                          int[] succ, int[] indeg)
+	{
+		int n = LinkableView.numLinks(w, direction);
+		Integer prev = null;
+		for (int k = 0; k < n; k++)
+		{
+			Integer cur = linkId.get(LinkableView.getLink(w, direction, k));
+			if (cur == null) continue;
+			if (prev != null)
+			{
+				succ[prev] = cur;
+				indeg[cur] ++;
+			}
+			prev = cur;
+		}
+	}
+
+	/* ---------------------------------------------------------------- */
+	/**
+	 * Build a brand-new ParsedSentence from this description. The
+	 * result is indistinguishable from the one the parser returned.
+	 */
+	public ParsedSentence toParse(String text)
+	{
+		ParsedSentence s = new ParsedSentence(text);
+		if (words.length == 0) return s;
+
+		FeatureNode leftWall = null;
+		FeatureNode lastFN = null;
+		for (int i = 0; i < words.length; i++)
+		{
+			FeatureNode fn = new FeatureNode();
+			if (leftWall == null) leftWall = fn;
+			LinkableView.setWord(fn, words[i]);
+			fn.set("this", fn);
+			fn.set("wall", leftWall);
+			if (lastFN != null)
+			{
+				LinkableView.setNext(lastFN, fn);
+				LinkableView.setPrev(fn, lastFN);
+			}
+			if (entity[i])
+				LinkableView.setEntityFlag(fn);
+
+			s.addWord(fn);
+			LinkableView.setCharIndices(fn, startChar[i], endChar[i], i);
+			lastFN = fn;
+		}
+
+		FeatureNode meta = new FeatureNode();
+		for (int k = 0; k < metaKeys.length; k++)
+			meta.set(metaKeys[k], new FeatureNode(metaValues[k]));
+		s.setMetaData(meta);
+
+		s.setLinkString(linkString);
+		for (int j = 0; j < linkLeft.length; j++)
+		{
+			FeatureNode f = new FeatureNode();
+			LinkView.setLinkFeatures(f,
+				linkLLabel[j], linkRLabel[j], linkLabel[j],
+				s.getWordAsNode(linkLeft[j]),
+				s.getWordAsNode(linkRight[j]));
+		}
+
+		for (int i = 0; i < words.length; i++)
+		{
+			if (disjuncts[i] != null)
+				s.getWordAsNode(i).set(DISJUNCT, new FeatureNode(disjuncts[i]));
+		}
+		s.setPhraseString(phraseString);
+		return s;
+	}
+
+	/**
+	 * Return a copy of this linkage, with the character offsets
+	 * recomputed against a different rendering of the same sentence,
+	 * e.g. one that differs only in white-space.
+	 */
+	public CompactLinkage realign(String text)
+	{
+		return realign(new TokenAligner(text));
+	}
+
+	/**
+	 * As above, with an aligner that may be shared by all of the
+	 * linkages of one sentence.
+	 */
+	public CompactLinkage realign(TokenAligner aligner)
+	{
+		TokenAligner.Offsets off = aligner.align(words);
+		int[] start = off.start.clone();
+		int[] end = off.end.clone();
+		return new CompactLinkage(words, start, end, entity, disjuncts,
+			linkLeft, linkRight, linkLLabel, linkRLabel, linkLabel,
+			metaKeys, metaValues, phraseString, linkString);
+	}
+
+	/**
+	 * Return a copy of this linkage with one metadata entry added,
+	 * or replaced.
+	 */
+	public CompactLinkage withMeta(String key, String value)
+	{
+		int n = metaKeys.length;
+		for (int k = 0; k < metaKeys.length; k++)
+			if (metaKeys[k].equals(key)) n = k;
+		String[] keys = Arrays.copyOf(metaKeys, Math.max(n + 1, metaKeys.length));
+		String[] vals = Arrays.copyOf(metaValues, keys.length);
+		keys[n] = key;
+		vals[n] = value;
+		return new CompactLinkage(words, startChar, endChar, entity, disjuncts,
+			linkLeft, linkRight, linkLLabel, linkRLabel, linkLabel,
+			keys, vals, phraseString, linkString);
+	}
+
+	/**
+	 * Join the linkages of consecutive pieces of one sentence into a
+	 * single linkage of the whole. The character offsets of piece j
+	 * are shifted by shift[j]. The LEFT-WALL of every piece but the
+	 * first is dropped, and its links are attached to the first one;
+	 * the pieces are not otherwise linked to one another. The costs
+	 * in the metadata are summed; other numeric entries, such as the
+	 * parse tier, keep the largest value.
+	 */
+	public static CompactLinkage concat(List<CompactLinkage> pieces, int[] shift)
+	{
+		int nw = 0;
+		int nl = 0;
+		for (int j = 0; j < pieces.size(); j++)
+		{
+			nw += pieces.get(j).words.length - dropWall(pieces.get(j), j);
+			nl += pieces.get(j).linkLeft.length;
+		}
+
+		String[] words = new String[nw];
+		int[] startChar = new int[nw];
+		int[] endChar = new int[nw];
+		boolean[] entity = new boolean[nw];
+		String[] disjuncts = new String[nw];
+		int[] linkLeft = new int[nl];
+		int[] linkRight = new int[nl];
+		String[] linkLLabel = new String[nl];
+		String[] linkRLabel = new String[nl];
+		String[] linkLabel = new String[nl];
+		LinkedHashMap<String,String> meta = new LinkedHashMap<String,String>();
+		StringBuilder phrase = null;
+		StringBuilder diagram = null;
+
+		int w = 0;
+		int l = 0;
+		for (int j = 0; j < pieces.size(); j++)
+		{
+			CompactLinkage cl = pieces.get(j);
+			int skip = dropWall(cl, j);
+			int base = w - skip;
+			for (int i = skip; i < cl.words.length; i++, w++)
+			{
+				words[w] = cl.words[i];
+				startChar[w] = (cl.startChar[i] < 0) ? -1 : cl.startChar[i] + shift[j];
+				endChar[w] = (cl.endChar[i] < 0) ? -1 : cl.endChar[i] + shift[j];
+				entity[w] = cl.entity[i];
+				disjuncts[w] = cl.disjuncts[i];
+			}
+			for (int k = 0; k < cl.linkLeft.length; k++, l++)
+			{
+				linkLeft[l] = (cl.linkLeft[k] < skip) ? 0 : base + cl.linkLeft[k];
+				linkRight[l] = (cl.linkRight[k] < skip) ? 0 : base + cl.linkRight[k];
+				linkLLabel[l] = cl.linkLLabel[k];
+				linkRLabel[l] = cl.linkRLabel[k];
+				linkLabel[l] = cl.linkLabel[k];
+			}
+			for (int k = 0; k < cl.metaKeys.length; k++)
+			{
+				String key = cl.metaKeys[k];
+				meta.put(key, mergeMeta(key, meta.get(key), cl.metaValues[k]));
+			}
+
+			if (cl.phraseString != null)
+				phrase = (phrase == null) ? new StringBuilder(cl.phraseString)
+				                          : phrase.append(' ').append(cl.phraseString);
+			if (cl.linkString != null)
+				diagram = (diagram == null) ? new StringBuilder(cl.linkString)
+				                            : diagram.append('\n').append(cl.linkString);
+		}
+
+		String[] metaKeys = new String[meta.size()];
+		String[] metaValues = new String[meta.size()];
+		int k = 0;
+		for (Map.Entry<String,String> e : meta.entrySet())
+		{
+			metaKeys[k] = e.getKey();
+			metaValues[k++] = e.getValue();
+		}
+
+		return new CompactLinkage(words, startChar, endChar, entity, disjuncts,
+			linkLeft, linkRight, linkLLabel, linkRLabel, linkLabel,
+			metaKeys, metaValues,
+			(phrase == null) ? null : phrase.toString(),
+			(diagram == null) ? null : diagram.toString());
+	}
+
+	private static int dropWall(CompactLinkage cl, int piece)
+	{
+		if (piece == 0 || cl.words.length == 0) return 0;
+		return "LEFT-WALL".equals(cl.words[0]) ? 1 : 0;
+	}
+
+	private static String mergeMeta(String key, String a, String b)
+	{
+		if (a == null) return b;
+		boolean sum = SUMMED_META.contains(key);
+		try
+		{
+			long x = Long.parseLong(a);
+			long y = Long.parseLong(b);
+			return Long.toString(sum ? x + y : Math.max(x, y));
+		}
+		catch (NumberFormatException e) {}
+		try
+		{
+			double x = Double.parseDouble(a);
+			double y = Double.parseDouble(b);
+			return Double.toString(sum ? x + y : Math.max(x, y));
+		}
+		catch (NumberFormatException e)
+		{
+			return a;
+		}
+	}
+
+	/* ---------------------------------------------------------------- */
+	public int getNumWords()
+	{
+		return words.length;
+	}
+
+	public String getWord(int i)
+	{
+		return words[i];
+	}
+
+	public int getNumLinks()
+	{
+		return linkLeft.length;
+	}
+
+	/**
+	 * Return the value of a metadata entry, such as "disjunct_cost",
+	 * or null if there is no such entry.
+	 */
+	public String getMeta(String key)
+	{
+		for (int k = 0; k < metaKeys.length; k++)
+			if (metaKeys[k].equals(key)) return metaValues[k];
+		return null;
+	}
+
+	/**
+	 * A rough estimate, in bytes, of the heap occupied by this object.
+	 * Used for size-aware cache eviction; it need not be exact.
+	 */
+	public long estimateSize()
+	{
+		long sz = 128;
+		sz += sizeOf(words) + sizeOf(disjuncts);
+		sz += 3 * (16 + 4L * words.length);
+		sz += sizeOf(linkLLabel) + sizeOf(linkRLabel) + sizeOf(linkLabel);
+		sz += 2 * (16 + 4L * linkLeft.length);
+		sz += sizeOf(metaKeys) + sizeOf(metaValues);
+		sz += sizeOf(phraseString) + sizeOf(linkString);
+		return sz;
+	}
+
+	private static long sizeOf(String[] sa)
+	{
+		long sz = 16 + 8L * sa.length;
+		for (String s : sa) sz += sizeOf(s);
+		return sz;
+	}
+
+	private static long sizeOf(String s)
+	{
+		if (s == null) return 0;
+		return 40 + 2L * s.length();
+	}
+}
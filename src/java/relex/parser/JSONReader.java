@@ -93,6 +93,9 @@ public class JSONReader
     private Object read() {
         skipWhiteSpace();
         char ch = c;
+        // Truncated input would otherwise never end an object or array.
+        if (ch == CharacterIterator.DONE)
+            throw new RuntimeException("Invalid JSON: unexpected end of text.");
         next();
         switch (ch) {
             case '"': token = string(); break;
@@ -106,21 +109,26 @@ public class JSONReader
                 if (c != 'r' || next() != 'u' || next() != 'e')
                 	throw new RuntimeException("Invalid JSON token: expected 'true' keyword.");
                 token = Boolean.TRUE;
+                next();
                 break;
             case'f':
                 if (c != 'a' || next() != 'l' || next() != 's' || next() != 'e')
                 	throw new RuntimeException("Invalid JSON token: expected 'false' keyword.");
                 token = Boolean.FALSE;
+                next();
                 break;
             case 'n':
                 if (c != 'u' || next() != 'l' || next() != 'l')
                 	throw new RuntimeException("Invalid JSON token: expected 'null' keyword.");
                 token = null;
+                next();
                 break;
             default:
                 c = it.previous();
                 if (Character.isDigit(c) || c == '-') {
                     token = number();
+                } else {
+                    throw new RuntimeException("Invalid JSON token at '" + c + "'.");
                 }
         }
         // System.out.println("token: " + token); // enable this line to see the token stream
@@ -195,6 +203,8 @@ public class JSONReader
     private Object string() {
         buf.setLength(0);
         while (c != '"') {
+            if (c == CharacterIterator.DONE)
+                throw new RuntimeException("Invalid JSON: unterminated string.");
             if (c == '\\') {
                 next();
                 if (c == 'u') {
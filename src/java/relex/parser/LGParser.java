@@ -17,14 +17,21 @@
 
 package relex.parser;
 
+import java.util.ArrayList;
+
 import org.linkgrammar.LGConfig;
 
+import relex.ParsedSentence;
+import relex.Sentence;
+import relex.feature.FeatureNode;
+
 public abstract class LGParser implements IParser
 {
 	protected LGConfig _config = new LGConfig();
 	protected String _dict_path = null;
 	protected String _lang = "en";
 	protected int _max_linkages = 1000; // consistent with jni-client.h in link-grammar
+	protected int _eager_linkages = Integer.MAX_VALUE;
 
 	public LGConfig getConfig()
 	{
@@ -35,22 +42,146 @@ public abstract class LGParser implements IParser
 	{
 		_config = config;
 	}	
+
+	/**
+	 * Copy the settings of one config into another, and return the
+	 * latter; LGConfig has no copy constructor of its own.
+	 */
+	public static LGConfig copyConfig(LGConfig from, LGConfig to)
+	{
+		to.setMaxLinkages(from.getMaxLinkages());
+		to.setMaxParseSeconds(from.getMaxParseSeconds());
+		to.setMaxCost(from.getMaxCost());
+		to.setAllowSkippedWords(from.isAllowSkippedWords());
+		to.setStoreConstituentString(from.isStoreConstituentString());
+		return to;
+	}
 	
 	public void setDictPath(String path)
 	{
 		_dict_path = path;
 	}	
 	
+	public String getDictPath()
+	{
+		return _dict_path;
+	}
+
 	public void setLanguage(String lang)
 	{
 		_lang = lang;
 	}	
 	
+	public String getLanguage()
+	{
+		return _lang;
+	}
+
 	public void setMaxLinkages(int ml)
 	{
 		_max_linkages = ml;
 	}	
+
+	public int getMaxLinkages()
+	{
+		return _max_linkages;
+	}
+
+	/**
+	 * Set how many of the returned linkages, best-ranked first, get
+	 * a feature graph built right away. The rest are kept in compact
+	 * form, and built only if asked for; see
+	 * Sentence.materializeParses(). Parsers that cannot defer the
+	 * work ignore this.
+	 */
+	public void setEagerLinkages(int n)
+	{
+		_eager_linkages = Math.max(1, n);
+	}
+
+	public int getEagerLinkages()
+	{
+		return _eager_linkages;
+	}
+
+	/**
+	 * Change the parse time limit. To give one sentence a shorter
+	 * limit, e.g. to fit a per-sentence deadline, pass a config to
+	 * parse(String, LGConfig) instead; the parser may be shared.
+	 */
+	public void setMaxParseSeconds(int secs)
+	{
+		_config.setMaxParseSeconds(secs);
+	}
 	
+	/**
+	 * Parse with the given config in place of this parser's own, for
+	 * this one call; e.g. with the time limit cut down to what is left
+	 * of a deadline. The parser's own config is not changed, so that
+	 * each of the threads sharing a parser may pass a different one.
+	 *
+	 * This default swaps the config in, and back out again, which is
+	 * safe only for a parser used by a single thread. Parsers that
+	 * are shared (copyForThread() returns this), and wrappers, must
+	 * override it.
+	 */
+	public Sentence parse(String text, LGConfig config) throws ParseException
+	{
+		LGConfig own = getConfig();
+		if (config == null || config == own) return parse(text);
+		setConfig(config);
+		try
+		{
+			return parse(text);
+		}
+		finally
+		{
+			setConfig(own);
+		}
+	}
+
+	/**
+	 * Return a parser, set up like this one, that another thread may
+	 * use at the same time as this one; link-grammar keeps its parse
+	 * state per thread. Parsers that are already safe to share return
+	 * themselves. A copy must be init()'ed by the thread that uses it.
+	 */
+	public LGParser copyForThread()
+	{
+		return this;
+	}
+
+	/**
+	 * Copy the settings of this parser into another, for use by
+	 * copyForThread(); the config is copied, not shared.
+	 */
+	protected <T extends LGParser> T copySettingsTo(T p)
+	{
+		p._config = copyConfig(_config, new LGConfig());
+		p._dict_path = _dict_path;
+		p._lang = _lang;
+		p._max_linkages = _max_linkages;
+		p._eager_linkages = _eager_linkages;
+		return p;
+	}
+
+	/**
+	 * Add an entry to the metadata of every parse of a sentence,
+	 * including those not yet materialized.
+	 */
+	protected static void setMeta(Sentence sntc, String key, String value)
+	{
+		for (ParsedSentence parse : sntc.getParses())
+		{
+			FeatureNode meta = parse.getMetaData();
+			if (meta != null) meta.set(key, new FeatureNode(value));
+		}
+
+		ArrayList<CompactLinkage> pending = sntc.getPendingLinkages();
+		for (int i = 0; i < pending.size(); i++)
+			pending.set(i, pending.get(i).withMeta(key, value));
+	}
+
 	public abstract String getVersion();
 
 	// Most initialization must happen *after* above paramter setting.
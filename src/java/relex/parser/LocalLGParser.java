@@ -17,9 +17,11 @@
 package relex.parser;
 
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.concurrent.atomic.AtomicBoolean;
 
+import org.linkgrammar.LGConfig;
 import org.linkgrammar.LGService;
 import org.linkgrammar.LinkGrammar;
 
@@ -69,6 +71,32 @@ public class LocalLGParser extends LGParser
 		LGService.configure(_config);
 	}
 
+	@Override
+	public void setConfig(LGConfig config)
+	{
+		super.setConfig(config);
+
+		// As below; once initialized, changes must be pushed through.
+		if (initialized.get())
+			LGService.configure(config);
+	}
+
+	@Override
+	public void setMaxParseSeconds(int secs)
+	{
+		super.setMaxParseSeconds(secs);
+
+		// The config was already pushed into link-grammar by init().
+		if (initialized.get())
+			LinkGrammar.setMaxParseSeconds(secs);
+	}
+
+	@Override
+	public LGParser copyForThread()
+	{
+		return copySettingsTo(new LocalLGParser());
+	}
+
 	public void close()
 	{
 		LinkGrammar.close();
@@ -105,8 +133,20 @@ public class LocalLGParser extends LGParser
 			return sntc;
 		}
 
-		for (int i = 0; i < numParses && i < _config.getMaxLinkages(); i++)
+		// Character offsets are computed once per distinct tokenization,
+		// not once per linkage.
+		TokenAligner aligner = new TokenAligner(sentence);
+
+		// Rank the linkages on their costs alone, which are cheap to
+		// get; then build feature graphs for the best ones only. The
+		// rest are captured in compact form, to be built on demand.
+		int numKept = Math.min(numParses, _config.getMaxLinkages());
+		Integer[] order = rankLinkages(numKept);
+		int numEager = Math.min(numKept, _eager_linkages);
+
+		for (int r = 0; r < numEager; r++)
 		{
+			int i = order[r];
 			logger.trace("making linkage for parse {}", i);
 			LinkGrammar.makeLinkage(i);
 
@@ -123,36 +163,18 @@ public class LocalLGParser extends LGParser
 			 * partial parses -- must take this action carefully
 			 */
 
-			/*
-			 * In order to find the start character of each word/token, we need
-			 * to keep track of previous instances of the word (in case the same
-			 * word appears more than once in the sentence). The variables
-			 * "index" and "timesTokenSeen" are used for this:
-			 */
-			int startChar = 0;
-			HashMap<String,Integer> timesTokenSeen = new HashMap<String,Integer>();
+			// Clean up the words first, so that they can all be
+			// aligned with the sentence text in one pass.
+			String[] words = readWords(numWords);
+			TokenAligner.Offsets offsets = aligner.align(words);
 
 			int skip_count = 0;
 			int[] skip_map = new int[numWords];
 			for (int w = 0; w < numWords; w++)
 			{
-				String wordString = LinkGrammar.getLinkageWord(w);
+				String wordString = words[w];
 				logger.trace(" Processing Word {}", wordString);
 
-				// If link-grammar guesses a word, it will add [?] to the
-				// end of it. The regex guess will add [!] and the spell
-				// guesser will add [~]. The run-on tokenizer adds [&].
-				// Remove these.
-				int idx = wordString.indexOf("[");
-				if (0 < idx)
-					wordString = wordString.substring(0,idx);
-
-				// If link-grammar cannot use a word, it will put square
-				// brackets around it. We really do not want these, they
-				// garble up processing for us.
-				wordString = wordString.replace("[","");
-				wordString = wordString.replace("]","");
-
 				// In Russian, some words (suffixes) can be zero-length.
 				if (0 == wordString.length())
 				{
@@ -197,32 +219,8 @@ public class LocalLGParser extends LGParser
 					s.addWord(fn);
 
 					// Add char-index information to the feature node
-					// FYI, the JNI call (*env)->NewStringUTF(env, str);
-					// will return NULL if str is utf8-encoded Japanese or Chinese. Go figure.
-					String tokenString = wordString;
-					if (null != tokenString) tokenString = tokenString.toLowerCase(); // normalize cases
-					else tokenString = "";
-
-					// System.err.println("DOING INFO FOR " + tokenString);
-					String sentenceString = sentence.toLowerCase();
-					Integer timesSeenInt = timesTokenSeen.get(tokenString);
-					int timesSeen = (timesSeenInt == null ? 0 : timesSeenInt.intValue());
-
-					// "x<=" means we will do at least once
-					for (int x = 0; x <= timesSeen; x++)
-					{
-						startChar = sentenceString.indexOf(tokenString,startChar);
-					}
-
-					timesTokenSeen.put(tokenString, new Integer(timesSeen + 1));
-					int endChar = (startChar >= 0 ? startChar + tokenString.length() : -1);
-					// System.err.println("INFO IS " + startChar + "," + endChar);
-					LinkableView.setCharIndices(fn, startChar, endChar, w-skip_count);
-
-					// Increment index to start looking for next tokenString
-					// after the current one. Use "max" to prevent decreasing
-					// index in the case the tokenString end is -1
-					startChar = Math.max(startChar, endChar);
+					LinkableView.setCharIndices(fn, offsets.start[w],
+						offsets.end[w], w-skip_count);
 					lastFN = fn;
 				}
 			}
@@ -255,7 +253,15 @@ public class LocalLGParser extends LGParser
 			parses.add(s);
 		}
 
+		ArrayList<CompactLinkage> pending = new ArrayList<CompactLinkage>();
+		for (int r = numEager; r < numKept; r++)
+		{
+			LinkGrammar.makeLinkage(order[r]);
+			pending.add(captureLinkage(sentence, aligner));
+		}
+
 		sntc.setParses(parses);
+		sntc.setPendingLinkages(pending);
 		sntc.setNumParses(LinkGrammar.getNumLinkages());
 
 		Long now = System.currentTimeMillis();
@@ -266,6 +272,159 @@ public class LocalLGParser extends LGParser
 		return sntc;
 	}
 
+	/**
+	 * Return the indexes of the first n linkages, best first, as
+	 * ranked by ParsedSentence.rankScore(). Ties keep the order
+	 * given by link-grammar.
+	 */
+	private Integer[] rankLinkages(int n)
+	{
+		final double[] score = new double[n];
+		Integer[] order = new Integer[n];
+		for (int i = 0; i < n; i++) order[i] = i;
+		if (n < 2) return order;
+
+		for (int i = 0; i < n; i++)
+		{
+			LinkGrammar.makeLinkage(i);
+			score[i] = ParsedSentence.rankScore(
+				LinkGrammar.getNumSkippedWords(),
+				LinkGrammar.getLinkageDisjunctCost(),
+				LinkGrammar.getLinkageLinkCost());
+		}
+		Arrays.sort(order, new Comparator<Integer>()
+		{
+			public int compare(Integer a, Integer b)
+			{
+				return Double.compare(score[b], score[a]);
+			}
+		});
+		return order;
+	}
+
+	/**
+	 * Return the words of the current linkage, with the guess marks
+	 * and brackets that link-grammar adds stripped off.
+	 */
+	private String[] readWords(int numWords)
+	{
+		String[] words = new String[numWords];
+		for (int w = 0; w < numWords; w++)
+		{
+			String wordString = LinkGrammar.getLinkageWord(w);
+
+			// FYI, the JNI call (*env)->NewStringUTF(env, str);
+			// will return NULL if str is utf8-encoded Japanese or Chinese. Go figure.
+			if (null == wordString) wordString = "";
+
+			// If link-grammar guesses a word, it will add [?] to the
+			// end of it. The regex guess will add [!] and the spell
+			// guesser will add [~]. The run-on tokenizer adds [&].
+			// Remove these.
+			int idx = wordString.indexOf("[");
+			if (0 < idx)
+				wordString = wordString.substring(0,idx);
+
+			// If link-grammar cannot use a word, it will put square
+			// brackets around it. We really do not want these, they
+			// garble up processing for us.
+			wordString = wordString.replace("[","");
+			wordString = wordString.replace("]","");
+			words[w] = wordString;
+		}
+		return words;
+	}
+
+	/**
+	 * Capture the current linkage as a CompactLinkage, holding the
+	 * same words, links and metadata that parse() would have put into
+	 * a ParsedSentence, but without building the feature graph.
+	 */
+	private CompactLinkage captureLinkage(String sentence, TokenAligner aligner)
+	{
+		int numWords = LinkGrammar.getNumWords();
+		String[] lgWords = readWords(numWords);
+		TokenAligner.Offsets offsets = aligner.align(lgWords);
+
+		// Same word skipping as in parse(): blank words are dropped,
+		// and so is the RIGHT-WALL, but it still counts in skip_map.
+		int skip_count = 0;
+		int[] skip_map = new int[numWords];
+		boolean ignoreLast = false;
+		ArrayList<Integer> kept = new ArrayList<Integer>();
+		for (int w = 0; w < numWords; w++)
+		{
+			if (0 == lgWords[w].length())
+			{
+				skip_count ++;
+				skip_map[w] = w-skip_count;
+				continue;
+			}
+			skip_map[w] = w-skip_count;
+			if (lgWords[w].equals("RIGHT-WALL"))
+				ignoreLast = true;
+			else
+				kept.add(w);
+		}
+
+		int nw = kept.size();
+		String[] words = new String[nw];
+		int[] start = new int[nw];
+		int[] end = new int[nw];
+		boolean[] entity = new boolean[nw];
+		String[] disjuncts = new String[nw];
+		for (int k = 0; k < nw; k++)
+		{
+			int w = kept.get(k);
+			words[k] = lgWords[w];
+			start[k] = offsets.start[w];
+			end[k] = offsets.end[w];
+			entity[k] = Character.isUpperCase(words[k].charAt(0));
+			disjuncts[k] = LinkGrammar.getLinkageDisjunct(k);
+		}
+
+		// Same link filtering as in addLinkageStructure().
+		int length = (0 < numWords) ? skip_map[numWords-1] + 1 : 0;
+		int numLinks = LinkGrammar.getNumLinks();
+		ArrayList<Integer> links = new ArrayList<Integer>();
+		for (int i = 0; i < numLinks; i++)
+		{
+			int right = skip_map[LinkGrammar.getLinkRWord(i)];
+			if (ignoreLast && (right == length - 1)) continue;
+			links.add(i);
+		}
+		int nl = links.size();
+		int[] linkLeft = new int[nl];
+		int[] linkRight = new int[nl];
+		String[] linkLLabel = new String[nl];
+		String[] linkRLabel = new String[nl];
+		String[] linkLabel = new String[nl];
+		for (int j = 0; j < nl; j++)
+		{
+			int i = links.get(j);
+			linkLeft[j] = skip_map[LinkGrammar.getLinkLWord(i)];
+			linkRight[j] = skip_map[LinkGrammar.getLinkRWord(i)];
+			linkLLabel[j] = LinkGrammar.getLinkLLabel(i);
+			linkRLabel[j] = LinkGrammar.getLinkRLabel(i);
+			linkLabel[j] = LinkGrammar.getLinkLabel(i);
+		}
+
+		String[] metaKeys = new String[] {
+			"num_skipped_words", "disjunct_cost", "link_cost", "num_violations"};
+		String[] metaValues = new String[] {
+			Integer.toString(LinkGrammar.getNumSkippedWords()),
+			Double.toString(LinkGrammar.getLinkageDisjunctCost()),
+			Double.toString(LinkGrammar.getLinkageLinkCost()),
+			Integer.toString(LinkGrammar.getLinkageNumViolations())};
+
+		String phrase = _config.isStoreConstituentString() ?
+			LinkGrammar.getConstituentString() : null;
+
+		return new CompactLinkage(words, start, end, entity, disjuncts,
+			linkLeft, linkRight, linkLLabel, linkRLabel, linkLabel,
+			metaKeys, metaValues, phrase, LinkGrammar.getLinkString());
+	}
+
 	private void addLinkageStructure(ParsedSentence s,
 	                                 boolean ignoreFirst,
 	                                 boolean ignoreLast,
@@ -0,0 +1,364 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package relex.parser;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import relex.ParsedSentence;
+import relex.Sentence;
+
+/**
+ * A two-tier store of parse results, keyed by a string that
+ * identifies both the sentence and the parser configuration.
+ *
+ * The first tier is an in-memory LRU map, bounded by the estimated
+ * size of its entries rather than their count, since a long sentence
+ * with many linkages can be a hundred times larger than a short one.
+ * The optional second tier is a directory holding one serialized
+ * file per entry; it survives restarts and can be shared by several
+ * processes.
+ *
+ * A single ParseCache is thread-safe, and may be shared by any number
+ * of CachingParser instances.
+ */
+public class ParseCache
+{
+	private static final Logger logger = LoggerFactory.getLogger(ParseCache.class);
+
+	public static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+
+	/**
+	 * The cached result for one sentence: the text that was parsed,
+	 * the total number of linkages found, and the linkages kept.
+	 */
+	public static class Entry implements Serializable
+	{
+		private static final long serialVersionUID = -6021594329105587372L;
+
+		public final String text;
+		public final int numParses;
+		public final CompactLinkage[] linkages;
+		private final long size;
+
+		public Entry(String text, int numParses, CompactLinkage[] linkages)
+		{
+			this.text = text;
+			this.numParses = numParses;
+			this.linkages = linkages;
+			long sz = 64 + 2L * text.length();
+			for (CompactLinkage cl : linkages) sz += cl.estimateSize();
+			this.size = sz;
+		}
+
+		public long estimateSize()
+		{
+			return size;
+		}
+
+		/**
+		 * Capture a freshly-parsed sentence, both its built parses
+		 * and its pending linkages. Returns null if it has no parses.
+		 */
+		public static Entry fromSentence(String text, Sentence sntc)
+		{
+			ArrayList<ParsedSentence> parses = sntc.getParses();
+			if (parses.size() == 0) return null;
+
+			ArrayList<CompactLinkage> pending = sntc.getPendingLinkages();
+			CompactLinkage[] linkages = new CompactLinkage[parses.size() + pending.size()];
+			for (int i = 0; i < parses.size(); i++)
+				linkages[i] = CompactLinkage.fromParse(parses.get(i));
+			for (int i = 0; i < pending.size(); i++)
+				linkages[parses.size() + i] = pending.get(i);
+			return new Entry(text, sntc.getNumParses(), linkages);
+		}
+
+		/**
+		 * Re-build a brand-new Sentence for the given text, which
+		 * may differ from the original in white-space. Only the first
+		 * "eager" linkages are built; the rest are left pending.
+		 */
+		public Sentence toSentence(String text, int eager)
+		{
+			TokenAligner aligner = this.text.equals(text) ? null : new TokenAligner(text);
+			ArrayList<ParsedSentence> parses = new ArrayList<ParsedSentence>();
+			ArrayList<CompactLinkage> pending = new ArrayList<CompactLinkage>();
+			for (CompactLinkage cl : linkages)
+			{
+				if (aligner != null) cl = cl.realign(aligner);
+				if (parses.size() < eager)
+					parses.add(cl.toParse(text));
+				else
+					pending.add(cl);
+			}
+
+			Sentence sntc = new Sentence();
+			sntc.setSentence(text);
+			sntc.setParses(parses);
+			sntc.setPendingLinkages(pending);
+			sntc.setNumParses(numParses);
+			return sntc;
+		}
+	}
+
+	// What actually goes to disk; the key is kept so that a hash
+	// collision on the file name is detected, and not served up.
+	private static class DiskRecord implements Serializable
+	{
+		private static final long serialVersionUID = 4401979262640937124L;
+		String key;
+		Entry entry;
+	}
+
+	private final long maxBytes;
+	private final File diskDir;
+	private long curBytes = 0;
+	private final LinkedHashMap<String, Entry> mem =
+		new LinkedHashMap<String, Entry>(256, 0.75f, true);
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong diskHits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+
+	public ParseCache()
+	{
+		this(DEFAULT_MAX_BYTES, null);
+	}
+
+	public ParseCache(long maxBytes)
+	{
+		this(maxBytes, null);
+	}
+
+	/**
+	 * @param maxBytes Approximate upper bound on the heap used by the
+	 *        in-memory tier.
+	 * @param diskDir Directory for the on-disk tier, or null for none.
+	 *        It is created if it does not exist.
+	 */
+	public ParseCache(long maxBytes, File diskDir)
+	{
+		this.maxBytes = maxBytes;
+		if (diskDir != null && !diskDir.isDirectory() && !diskDir.mkdirs())
+		{
+			logger.warn("Cannot create parse cache directory {}; " +
+				"disk tier disabled", diskDir);
+			diskDir = null;
+		}
+		this.diskDir = diskDir;
+	}
+
+	/**
+	 * Return the entry for the key, or null if it is in neither tier.
+	 * An entry found on disk is promoted to the in-memory tier.
+	 */
+	public Entry get(String key)
+	{
+		Entry e;
+		synchronized (mem)
+		{
+			e = mem.get(key);
+		}
+		if (e != null)
+		{
+			hits.incrementAndGet();
+			return e;
+		}
+
+		e = readDisk(key);
+		if (e != null)
+		{
+			diskHits.incrementAndGet();
+			putMem(key, e);
+			return e;
+		}
+		misses.incrementAndGet();
+		return null;
+	}
+
+	public void put(String key, Entry e)
+	{
+		putMem(key, e);
+		writeDisk(key, e);
+	}
+
+	private void putMem(String key, Entry e)
+	{
+		// An entry larger than the whole budget would just flush
+		// everything else out; leave it to the disk tier.
+		if (e.estimateSize() > maxBytes) return;
+
+		synchronized (mem)
+		{
+			Entry old = mem.put(key, e);
+			if (old != null) curBytes -= old.estimateSize();
+			curBytes += e.estimateSize();
+
+			Iterator<Map.Entry<String, Entry>> it = mem.entrySet().iterator();
+			while (curBytes > maxBytes && it.hasNext())
+			{
+				Map.Entry<String, Entry> eldest = it.next();
+				curBytes -= eldest.getValue().estimateSize();
+				it.remove();
+				evictions.incrementAndGet();
+			}
+		}
+	}
+
+	public void clear()
+	{
+		synchronized (mem)
+		{
+			mem.clear();
+			curBytes = 0;
+		}
+	}
+
+	/* ---------------------------------------------------------------- */
+	private File diskFile(String key)
+	{
+		try
+		{
+			MessageDigest md = MessageDigest.getInstance("SHA-1");
+			byte[] dig = md.digest(key.getBytes(StandardCharsets.UTF_8));
+			StringBuilder sb = new StringBuilder(2 * dig.length + 4);
+			for (byte b : dig)
+				sb.append(Character.forDigit((b >> 4) & 0xf, 16))
+				  .append(Character.forDigit(b & 0xf, 16));
+			sb.append(".ser");
+			return new File(diskDir, sb.toString());
+		}
+		catch (NoSuchAlgorithmException ex)
+		{
+			throw new RuntimeException(ex);
+		}
+	}
+
+	private Entry readDisk(String key)
+	{
+		if (diskDir == null) return null;
+		File f = diskFile(key);
+		if (!f.exists()) return null;
+
+		ObjectInputStream in = null;
+		try
+		{
+			in = new ObjectInputStream(
+				new BufferedInputStream(new FileInputStream(f)));
+			DiskRecord rec = (DiskRecord) in.readObject();
+			if (key.equals(rec.key)) return rec.entry;
+		}
+		catch (Exception ex)
+		{
+			// A stale or truncated file is just a miss.
+			logger.debug("Ignoring unreadable parse cache file {}", f, ex);
+		}
+		finally
+		{
+			if (in != null)
+				try { in.close(); } catch (IOException ex) {}
+		}
+		return null;
+	}
+
+	private void writeDisk(String key, Entry e)
+	{
+		if (diskDir == null) return;
+
+		DiskRecord rec = new DiskRecord();
+		rec.key = key;
+		rec.entry = e;
+		File tmp = null;
+		try
+		{
+			// Write to a temp file, and rename it into place, so that
+			// readers never see a partial file.
+			tmp = File.createTempFile("parse", ".tmp", diskDir);
+			ObjectOutputStream out = new ObjectOutputStream(
+				new BufferedOutputStream(new FileOutputStream(tmp)));
+			try
+			{
+				out.writeObject(rec);
+			}
+			finally
+			{
+				out.close();
+			}
+			Files.move(tmp.toPath(), diskFile(key).toPath(),
+				StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+			tmp = null;
+		}
+		catch (IOException ex)
+		{
+			logger.warn("Failed to write parse cache entry", ex);
+		}
+		finally
+		{
+			if (tmp != null) tmp.delete();
+		}
+	}
+
+	/* ---------------------------------------------------------------- */
+	public long getHits() { return hits.get(); }
+	public long getDiskHits() { return diskHits.get(); }
+	public long getMisses() { return misses.get(); }
+	public long getEvictions() { return evictions.get(); }
+
+	public long getBytes()
+	{
+		synchronized (mem)
+		{
+			return curBytes;
+		}
+	}
+
+	public int size()
+	{
+		synchronized (mem)
+		{
+			return mem.size();
+		}
+	}
+
+	public String toString()
+	{
+		return "ParseCache: entries=" + size() +
+			" bytes=" + getBytes() + "/" + maxBytes +
+			" hits=" + getHits() + " disk-hits=" + getDiskHits() +
+			" misses=" + getMisses() + " evictions=" + getEvictions();
+	}
+}
@@ -0,0 +1,594 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package relex.parser;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.linkgrammar.LGConfig;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import relex.Sentence;
+
+/**
+ * A fixed set of long-lived parser threads, each with its own
+ * initialized link-grammar context, that parse the sentences handed
+ * to them by any number of other threads.
+ *
+ * Link-grammar allocates native memory for each thread that parses,
+ * which is released only by close(), called from that same thread.
+ * Confining all parsing to these workers means that the threads that
+ * call parse() hold no link-grammar state at all, and need no
+ * clean-up. Each worker keeps track of how many sentences it parsed,
+ * and of how much the process grew while it was parsing; once either
+ * goes over its budget, that worker closes its parser and is replaced
+ * by a fresh one, while the others carry on.
+ *
+ * The growth of the process is read from /proc/self/statm, less the
+ * growth of the committed Java heap. It is charged to a worker only
+ * for a sentence that it parsed alone, with no other worker parsing
+ * at any time in between, since the growth could not otherwise be
+ * told apart; so under a steady load the native budget is seldom
+ * checked, and the sentence count is what bounds a worker. Where
+ * /proc is not available, only the sentence count is used.
+ *
+ * A replacement that fails to initialize is retried, with a growing
+ * pause in between. Once every worker has given up, the sentences
+ * still queued fail, and so does every later one; parse() in any case
+ * waits only so long for a worker to take its sentence.
+ *
+ * The pool is itself an LGParser, and is thread-safe; hand the same
+ * instance to every RelationExtractor. The settings (config, time
+ * limit and so on) are shared, and are copied to a worker before
+ * each sentence that it parses; a sentence that needs different
+ * ones, e.g. a shorter time limit, brings its own config with it.
+ */
+public class ParserWorkerPool extends LGParser
+{
+	private static final Logger logger = LoggerFactory.getLogger(ParserWorkerPool.class);
+
+	private static final long PAGE_SIZE = 4096;
+
+	/** Attempts to initialize a replacement worker, before giving up. */
+	public static final int MAX_INIT_ATTEMPTS = 6;
+
+	/** Default for setMaxWaitSeconds(). */
+	public static final int DEFAULT_MAX_WAIT_SECONDS = 60;
+
+	private static class Job
+	{
+		final String text;
+		final LGConfig config;
+		final CompletableFuture<Sentence> result = new CompletableFuture<Sentence>();
+
+		Job(String text, LGConfig config)
+		{
+			this.text = text;
+			this.config = config;
+		}
+	}
+
+	private final LGParser prototype;
+	private final int size;
+	private final LinkedBlockingQueue<Job> jobs = new LinkedBlockingQueue<Job>();
+	private final Worker[] workers;
+
+	private long maxParsesPerWorker = 0;
+	private long nativeBudgetBytes = 0;
+	private volatile int maxWaitSeconds = DEFAULT_MAX_WAIT_SECONDS;
+	private volatile long initRetryMillis = 500;
+
+	private volatile boolean running = false;
+	private final AtomicLong recycled = new AtomicLong();
+	private final AtomicLong generation = new AtomicLong();
+
+	// Workers that are up, or still trying to come up.
+	private final AtomicInteger alive = new AtomicInteger();
+
+	// Workers parsing right now; and parses started so far, so that a
+	// worker can tell whether any other one parsed while it did.
+	private final AtomicInteger parsing = new AtomicInteger();
+	private final AtomicLong parseStarts = new AtomicLong();
+
+	/**
+	 * @param prototype The parser to copy, once per worker, with
+	 *        copyForThread(). It is not used to parse, and need not
+	 *        be initialized.
+	 * @param size The number of workers.
+	 */
+	public ParserWorkerPool(LGParser prototype, int size)
+	{
+		this.prototype = prototype;
+		this.size = Math.max(1, size);
+		workers = new Worker[this.size];
+	}
+
+	/** Replace a worker after this many sentences; zero for never. */
+	public void setMaxParsesPerWorker(long n)
+	{
+		maxParsesPerWorker = Math.max(0, n);
+	}
+
+	/**
+	 * Replace a worker once the process has grown by this many bytes
+	 * while it was parsing; zero for never.
+	 */
+	public void setNativeBudgetBytes(long bytes)
+	{
+		nativeBudgetBytes = Math.max(0, bytes);
+	}
+
+	/**
+	 * Longest time that parse() waits for a worker to take up its
+	 * sentence, on top of the sentence's own time limit; zero for no
+	 * limit.
+	 */
+	public void setMaxWaitSeconds(int secs)
+	{
+		maxWaitSeconds = Math.max(0, secs);
+	}
+
+	public int getMaxWaitSeconds()
+	{
+		return maxWaitSeconds;
+	}
+
+	/**
+	 * Pause before the first retry of a replacement worker that failed
+	 * to initialize; each later one waits twice as long.
+	 */
+	public void setInitRetryMillis(long millis)
+	{
+		initRetryMillis = Math.max(1, millis);
+	}
+
+	public int getSize()
+	{
+		return size;
+	}
+
+	/** Number of workers up, or still trying to come up. */
+	public int getAlive()
+	{
+		return alive.get();
+	}
+
+	/** Number of sentences waiting for a worker. */
+	public int getQueueLength()
+	{
+		return jobs.size();
+	}
+
+	/** Number of workers replaced so far. */
+	public long getRecycled()
+	{
+		return recycled.get();
+	}
+
+	/* ---------------------------------------------------------------- */
+	/**
+	 * Queue a sentence for parsing, and return at once. The pool must
+	 * have been initialized, and have a worker left.
+	 */
+	public Future<Sentence> submit(String text)
+	{
+		return submit(text, null);
+	}
+
+	/**
+	 * As above, but parse with the given config rather than the
+	 * pool's own; see LGParser.parse(String, LGConfig).
+	 */
+	public Future<Sentence> submit(String text, LGConfig config)
+	{
+		if (!running)
+			throw new ParseException("Parser worker pool is not running");
+		if (alive.get() == 0)
+			throw new ParseException("Parser worker pool has no workers left");
+		Job job = new Job(text, config);
+		jobs.add(job);
+
+		// The last worker may have given up, and failed the queue,
+		// just before the job went in.
+		if (alive.get() == 0 && jobs.remove(job))
+			throw new ParseException("Parser worker pool has no workers left");
+		return job.result;
+	}
+
+	public Sentence parse(String text) throws ParseException
+	{
+		return parse(text, null);
+	}
+
+	public Sentence parse(String text, LGConfig config) throws ParseException
+	{
+		Future<Sentence> f = submit(text, config);
+		try
+		{
+			int wait = maxWaitSeconds;
+			if (wait <= 0) return f.get();
+
+			LGConfig cfg = (config != null) ? config : prototype.getConfig();
+			return f.get(wait + Math.max(0, cfg.getMaxParseSeconds()), TimeUnit.SECONDS);
+		}
+		catch (TimeoutException ex)
+		{
+			f.cancel(false);
+			throw new ParseException("No parser worker took the sentence in time: " + text, ex);
+		}
+		catch (InterruptedException ex)
+		{
+			f.cancel(true);
+			Thread.currentThread().interrupt();
+			throw new ParseException("Thread interrupted.", ex);
+		}
+		catch (ExecutionException ex)
+		{
+			if (ex.getCause() instanceof ParseException)
+				throw (ParseException) ex.getCause();
+			throw new ParseException(text, ex.getCause());
+		}
+	}
+
+	/* ---------------------------------------------------------------- */
+	private class Worker extends Thread
+	{
+		final int slot;
+		// Counted down once the first workers are up; null for a
+		// replacement, which nothing waits for.
+		final CountDownLatch ready;
+		volatile Throwable initError = null;
+		volatile long parses = 0;
+		volatile long nativeBytes = 0;
+
+		Worker(int slot, CountDownLatch ready)
+		{
+			super("relex-parser-" + slot + "." + generation.incrementAndGet());
+			this.slot = slot;
+			this.ready = ready;
+			setDaemon(true);
+		}
+
+		public void run()
+		{
+			LGParser p = initParser();
+			if (ready != null) ready.countDown();
+			if (p == null)
+			{
+				workerLost();
+				return;
+			}
+
+			boolean recycle = false;
+			try
+			{
+				while (running && !recycle)
+				{
+					Job job = jobs.poll(1, TimeUnit.SECONDS);
+					if (job == null || job.result.isCancelled()) continue;
+
+					boolean alone = (parsing.incrementAndGet() == 1);
+					long start = parseStarts.incrementAndGet();
+					long before = residentBytes();
+					long heapBefore = committedHeapBytes();
+					try
+					{
+						LGConfig cfg = (job.config != null) ? job.config : prototype.getConfig();
+						p.setConfig(copyConfig(cfg, new LGConfig()));
+						job.result.complete(p.parse(job.text));
+					}
+					catch (Throwable t)
+					{
+						job.result.completeExceptionally(t);
+					}
+					long after = residentBytes();
+					long heapAfter = committedHeapBytes();
+					alone = alone && (parseStarts.get() == start);
+					parsing.decrementAndGet();
+					parses++;
+
+					long grown = (after - before) - Math.max(0, heapAfter - heapBefore);
+					if (alone && 0 <= before && 0 < grown) nativeBytes += grown;
+
+					recycle = (0 < maxParsesPerWorker && maxParsesPerWorker <= parses)
+						|| (0 < nativeBudgetBytes && nativeBudgetBytes <= nativeBytes);
+				}
+			}
+			catch (InterruptedException ex)
+			{
+				// Shutting down.
+			}
+			finally
+			{
+				// Frees this thread's native memory.
+				p.close();
+			}
+
+			if (recycle && running)
+			{
+				logger.info("Recycling {} after {} parses, ~{} bytes native",
+					getName(), parses, nativeBytes);
+				recycled.incrementAndGet();
+				startWorker(slot, null);
+			}
+			else
+			{
+				workerLost();
+			}
+		}
+
+		/**
+		 * Copy and initialize this worker's parser; null if it could
+		 * not be. One of the first workers tries once, and init()
+		 * reports its failure; a replacement tries again, after a
+		 * pause that doubles every time, up to MAX_INIT_ATTEMPTS.
+		 */
+		private LGParser initParser()
+		{
+			long pause = initRetryMillis;
+			for (int attempt = 1; ; attempt++)
+			{
+				try
+				{
+					LGParser p = prototype.copyForThread();
+					p.init();
+					return p;
+				}
+				catch (Throwable t)
+				{
+					initError = t;
+					if (ready != null || MAX_INIT_ATTEMPTS <= attempt || !running)
+					{
+						logger.error("Parser worker {} failed to initialize", getName(), t);
+						return null;
+					}
+					logger.warn("Parser worker {} failed to initialize; " +
+						"retrying in {}ms", getName(), pause, t);
+				}
+				try
+				{
+					Thread.sleep(pause);
+				}
+				catch (InterruptedException ex)
+				{
+					return null;
+				}
+				pause *= 2;
+			}
+		}
+	}
+
+	/**
+	 * Called as a worker exits for good. Once none are left, the
+	 * sentences still queued can never be parsed; fail them.
+	 */
+	private void workerLost()
+	{
+		if (alive.decrementAndGet() > 0 || !running) return;
+		logger.error("No parser workers left; failing the queued sentences");
+		Job job;
+		while ((job = jobs.poll()) != null)
+			job.result.completeExceptionally(new ParseException("Parser worker pool has no workers left"));
+	}
+
+	private synchronized void startWorker(int slot, CountDownLatch ready)
+	{
+		// Don't replace a worker that quit during shut-down.
+		if (!running)
+		{
+			workerLost();
+			return;
+		}
+		Worker w = new Worker(slot, ready);
+		workers[slot] = w;
+		w.start();
+	}
+
+	/** Java heap committed by this process. */
+	private static long committedHeapBytes()
+	{
+		return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getCommitted();
+	}
+
+	/** Resident size of this process, or -1 if not known. */
+	private static long residentBytes()
+	{
+		BufferedReader r = null;
+		try
+		{
+			r = new BufferedReader(new FileReader("/proc/self/statm"));
+			String[] f = r.readLine().trim().split("\\s+");
+			return Long.parseLong(f[1]) * PAGE_SIZE;
+		}
+		catch (Exception ex)
+		{
+			return -1;
+		}
+		finally
+		{
+			if (r != null) try { r.close(); } catch (IOException ex) {}
+		}
+	}
+
+	/**
+	 * Start the workers, and wait for them to initialize link-grammar.
+	 * Does nothing if they are already running.
+	 */
+	public synchronized void init()
+	{
+		if (running) return;
+		running = true;
+
+		alive.set(size);
+		CountDownLatch ready = new CountDownLatch(size);
+		for (int i = 0; i < size; i++)
+			startWorker(i, ready);
+		try
+		{
+			ready.await();
+		}
+		catch (InterruptedException ex)
+		{
+			Thread.currentThread().interrupt();
+		}
+
+		for (Worker w : workers)
+		{
+			if (w.initError != null)
+			{
+				doFinalize();
+				throw new RuntimeException("Parser worker failed to initialize", w.initError);
+			}
+		}
+		logger.info("Started {} parser workers", size);
+	}
+
+	public synchronized String toString()
+	{
+		StringBuilder sb = new StringBuilder();
+		sb.append("ParserWorkerPool: ").append(size).append(" workers, ")
+		  .append(jobs.size()).append(" queued, ")
+		  .append(recycled.get()).append(" recycled");
+		for (Worker w : workers)
+		{
+			if (w == null) continue;
+			sb.append("\n  ").append(w.getName())
+			  .append(" parses=").append(w.parses)
+			  .append(" native~").append(w.nativeBytes);
+		}
+		return sb.toString();
+	}
+
+	/* ---------------------------------------------------------------- */
+	/* Settings are kept in the prototype, and copied to the workers. */
+
+	public LGConfig getConfig()
+	{
+		return prototype.getConfig();
+	}
+
+	public void setConfig(LGConfig config)
+	{
+		prototype.setConfig(config);
+	}
+
+	public void setDictPath(String path)
+	{
+		prototype.setDictPath(path);
+	}
+
+	public String getDictPath()
+	{
+		return prototype.getDictPath();
+	}
+
+	public void setLanguage(String lang)
+	{
+		prototype.setLanguage(lang);
+	}
+
+	public String getLanguage()
+	{
+		return prototype.getLanguage();
+	}
+
+	public void setMaxLinkages(int ml)
+	{
+		prototype.setMaxLinkages(ml);
+	}
+
+	public int getMaxLinkages()
+	{
+		return prototype.getMaxLinkages();
+	}
+
+	public void setEagerLinkages(int n)
+	{
+		prototype.setEagerLinkages(n);
+	}
+
+	public int getEagerLinkages()
+	{
+		return prototype.getEagerLinkages();
+	}
+
+	public void setMaxParseSeconds(int secs)
+	{
+		prototype.setMaxParseSeconds(secs);
+	}
+
+	public String getVersion()
+	{
+		return prototype.getVersion();
+	}
+
+	/** The pool is shared by all threads. */
+	public LGParser copyForThread()
+	{
+		return this;
+	}
+
+	/**
+	 * Nothing to do: the calling thread holds no link-grammar state.
+	 */
+	public void close()
+	{
+	}
+
+	/**
+	 * Stop the workers, which close their parsers as they exit; fail
+	 * any sentences still queued; and then finalize link-grammar.
+	 */
+	public void doFinalize()
+	{
+		Worker[] ws;
+		synchronized (this)
+		{
+			running = false;
+			ws = workers.clone();
+		}
+		for (Worker w : ws)
+		{
+			if (w == null) continue;
+			try
+			{
+				w.join(TimeUnit.SECONDS.toMillis(60));
+			}
+			catch (InterruptedException ex)
+			{
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+
+		Job job;
+		while ((job = jobs.poll()) != null)
+			job.result.completeExceptionally(new ParseException("Parser worker pool was shut down"));
+
+		prototype.doFinalize();
+	}
+}
@@ -0,0 +1,475 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package relex.parser;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.linkgrammar.LGConfig;
+import org.linkgrammar.LGRemoteClient;
+import org.linkgrammar.ParseResult;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import relex.Sentence;
+
+/**
+ * A parser that spreads its work over several link-grammar servers.
+ *
+ * Each endpoint (host:port) keeps a set of reusable clients, and may
+ * have up to maxInFlight requests outstanding at once. A request goes
+ * to the healthy endpoint with the fewest outstanding requests; ties
+ * are broken by the smoothed response time. A request that cannot
+ * reach its server is retried on another one, never the same one
+ * twice. An endpoint that cannot be reached several times in a row
+ * is taken out of rotation, and a background health check puts it
+ * back once it answers again. An endpoint whose
+ * smoothed latency is far above that of the fastest endpoint is used
+ * only when nothing better is free.
+ *
+ * The link-grammar server protocol answers exactly one request per
+ * connection, so requests cannot be pipelined on one socket; instead,
+ * concurrency per server is obtained by having several connections
+ * open to it at once.
+ *
+ * This class is thread-safe: one instance can be shared by all of the
+ * threads of a ParallelRelationExtractor.
+ */
+public class PooledRemoteLGParser extends LGParser
+{
+	private static final Logger logger = LoggerFactory.getLogger(PooledRemoteLGParser.class);
+
+	public static final int DEFAULT_MAX_IN_FLIGHT = 4;
+	public static final int DEFAULT_MAX_FAILURES = 3;
+	public static final int DEFAULT_HEALTH_CHECK_SECONDS = 5;
+	public static final double DEFAULT_SLOW_FACTOR = 4.0;
+
+	// Weight given to the newest sample in the smoothed latency.
+	private static final double EWMA_WEIGHT = 0.2;
+
+	/**
+	 * A single link-grammar server, and the bookkeeping for it.
+	 * All fields other than the client queue are guarded by the
+	 * lock of the owning PooledRemoteLGParser.
+	 */
+	public static class Endpoint
+	{
+		final String host;
+		final int port;
+		final ConcurrentLinkedQueue<LGRemoteClient> idle =
+			new ConcurrentLinkedQueue<LGRemoteClient>();
+
+		int outstanding = 0;
+		int failures = 0;
+		boolean healthy = true;
+		double latency = 0.0;  // smoothed, in milliseconds
+		long requests = 0;
+		long errors = 0;
+
+		Endpoint(String host, int port)
+		{
+			this.host = host;
+			this.port = port;
+		}
+
+		public String getHost() { return host; }
+		public int getPort() { return port; }
+
+		public String toString()
+		{
+			return host + ":" + port;
+		}
+	}
+
+	private final ArrayList<Endpoint> endpoints = new ArrayList<Endpoint>();
+	private int maxInFlight = DEFAULT_MAX_IN_FLIGHT;
+	private int maxFailures = DEFAULT_MAX_FAILURES;
+	private int healthCheckSeconds = DEFAULT_HEALTH_CHECK_SECONDS;
+	private double slowFactor = DEFAULT_SLOW_FACTOR;
+
+	private ScheduledExecutorService checker = null;
+
+	/**
+	 * @param hostPorts List of link-grammar servers, each written as
+	 *        "host:port".
+	 */
+	public PooledRemoteLGParser(List<String> hostPorts)
+	{
+		for (String hp : hostPorts)
+		{
+			String[] parts = hp.trim().split(":");
+			if (parts.length != 2)
+				throw new IllegalArgumentException("Expected host:port, got " + hp);
+			endpoints.add(new Endpoint(parts[0].trim(),
+				Integer.parseInt(parts[1].trim())));
+		}
+		if (endpoints.isEmpty())
+			throw new IllegalArgumentException("No link-grammar servers given");
+	}
+
+	/* ---------------------------------------------------------------- */
+	/* Tuning knobs; set these before calling init(). */
+
+	/** Max number of requests outstanding at one server. */
+	public void setMaxInFlight(int n)
+	{
+		maxInFlight = Math.max(1, n);
+	}
+
+	/** Consecutive failures before a server is taken out of rotation. */
+	public void setMaxFailures(int n)
+	{
+		maxFailures = Math.max(1, n);
+	}
+
+	/** How often servers out of rotation are probed; zero disables. */
+	public void setHealthCheckSeconds(int secs)
+	{
+		healthCheckSeconds = secs;
+	}
+
+	/**
+	 * A server slower than this multiple of the fastest one is used
+	 * only when no faster server has spare capacity.
+	 */
+	public void setSlowFactor(double f)
+	{
+		slowFactor = f;
+	}
+
+	public List<Endpoint> getEndpoints()
+	{
+		return endpoints;
+	}
+
+	/* ---------------------------------------------------------------- */
+	public Sentence parse(String sentence) throws ParseException
+	{
+		return parse(sentence, _config);
+	}
+
+	public Sentence parse(String sentence, LGConfig config) throws ParseException
+	{
+		if (config == null) config = _config;
+		Throwable last = null;
+
+		// Try each server at most once before giving up.
+		HashSet<Endpoint> tried = new HashSet<Endpoint>();
+		while (true)
+		{
+			Endpoint ep = acquire(tried);
+			if (ep == null) break;
+			tried.add(ep);
+			LGRemoteClient client = checkout(ep, config);
+			long start = System.currentTimeMillis();
+			boolean ok = false;
+			boolean down = false;
+			try
+			{
+				ParseResult parseResult = client.parse(sentence);
+				ok = true;
+				if (parseResult == null)
+					return null;
+				parseResult.setText(sentence);
+				return RemoteLGParser.parseResultToSentence(parseResult);
+			}
+			catch (InterruptedException ex)
+			{
+				Thread.currentThread().interrupt();
+				throw new ParseException("Thread interrupted.", ex);
+			}
+			catch (Throwable t)
+			{
+				// Only a failure to talk to the server counts against
+				// it; anything else is the sentence's fault, and would
+				// fail on any other server just the same.
+				down = isTransportError(t);
+				if (!down)
+					throw new ParseException(sentence, t);
+				last = t;
+				logger.warn("Parse failed on {}: {}", ep, t.toString());
+			}
+			finally
+			{
+				ep.idle.add(client);
+				release(ep, ok, down, System.currentTimeMillis() - start);
+			}
+		}
+		throw new ParseException(sentence, last);
+	}
+
+	/** True if the error, or one of its causes, is an I/O error. */
+	private static boolean isTransportError(Throwable t)
+	{
+		for (int depth = 0; t != null && depth < 8; depth++)
+		{
+			if (t instanceof IOException) return true;
+			t = t.getCause();
+		}
+		return false;
+	}
+
+	/**
+	 * Pick a server not yet tried, and count one more request against
+	 * it. Blocks while every such server in rotation is at its
+	 * in-flight limit. Returns null if there is no such server left,
+	 * after some were tried; throws if none was.
+	 */
+	private synchronized Endpoint acquire(Set<Endpoint> tried) throws ParseException
+	{
+		while (true)
+		{
+			double fastest = Double.MAX_VALUE;
+			boolean anyLeft = false;
+			for (Endpoint ep : endpoints)
+			{
+				if (!ep.healthy) continue;
+				if (0 < ep.requests && ep.latency < fastest)
+					fastest = ep.latency;
+				if (!tried.contains(ep)) anyLeft = true;
+			}
+			if (!anyLeft)
+			{
+				if (!tried.isEmpty()) return null;
+				throw new ParseException("No link-grammar server is available: " + endpoints);
+			}
+
+			Endpoint best = null;
+			boolean bestSlow = true;
+			for (Endpoint ep : endpoints)
+			{
+				if (!ep.healthy || ep.outstanding >= maxInFlight || tried.contains(ep)) continue;
+				boolean slow = (0 < ep.requests && fastest < Double.MAX_VALUE &&
+				                ep.latency > slowFactor * fastest);
+				if (best == null ||
+				    (bestSlow && !slow) ||
+				    (bestSlow == slow &&
+				     (ep.outstanding < best.outstanding ||
+				      (ep.outstanding == best.outstanding && ep.latency < best.latency))))
+				{
+					best = ep;
+					bestSlow = slow;
+				}
+			}
+			if (best != null)
+			{
+				best.outstanding ++;
+				return best;
+			}
+
+			try
+			{
+				wait();
+			}
+			catch (InterruptedException ex)
+			{
+				Thread.currentThread().interrupt();
+				throw new ParseException("Thread interrupted.", ex);
+			}
+		}
+	}
+
+	/**
+	 * Count a request as done. Only failing to reach the server, or
+	 * losing the connection to it (down), counts toward taking it out
+	 * of rotation.
+	 */
+	private synchronized void release(Endpoint ep, boolean ok, boolean down, long millis)
+	{
+		ep.outstanding --;
+		ep.requests ++;
+		if (ok)
+		{
+			ep.failures = 0;
+			if (ep.requests == 1)
+				ep.latency = millis;
+			else
+				ep.latency += EWMA_WEIGHT * (millis - ep.latency);
+		}
+		else if (down)
+		{
+			ep.errors ++;
+			ep.failures ++;
+			if (ep.healthy && ep.failures >= maxFailures)
+			{
+				logger.warn("Taking link-grammar server {} out of rotation", ep);
+				ep.healthy = false;
+			}
+		}
+		notifyAll();
+	}
+
+	private LGRemoteClient checkout(Endpoint ep, LGConfig config)
+	{
+		LGRemoteClient client = ep.idle.poll();
+		if (client == null) client = newClient(ep);
+
+		// The clients carry their own config; a client is used by one
+		// request at a time, so it can take that request's config.
+		copyConfig(config, client.getConfig());
+		return client;
+	}
+
+	/** A new connection to the given server. */
+	protected LGRemoteClient newClient(Endpoint ep)
+	{
+		LGRemoteClient client = new LGRemoteClient();
+		client.setHostname(ep.host);
+		client.setPort(ep.port);
+		return client;
+	}
+
+	/* ---------------------------------------------------------------- */
+	/* Health checks */
+
+	private void checkHealth()
+	{
+		for (Endpoint ep : endpoints)
+		{
+			synchronized (this)
+			{
+				if (ep.healthy) continue;
+			}
+			LGRemoteClient client = checkout(ep, _config);
+			try
+			{
+				String version = client.getVersion();
+				if (version == null) continue;
+				synchronized (this)
+				{
+					logger.info("Link-grammar server {} is back", ep);
+					ep.healthy = true;
+					ep.failures = 0;
+					notifyAll();
+				}
+			}
+			catch (Throwable t)
+			{
+				logger.debug("Link-grammar server {} still down: {}", ep, t.toString());
+			}
+			finally
+			{
+				ep.idle.add(client);
+			}
+		}
+	}
+
+	@Override
+	public synchronized void init()
+	{
+		if (checker != null || healthCheckSeconds <= 0) return;
+		checker = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+		{
+			public Thread newThread(Runnable r)
+			{
+				Thread t = new Thread(r, "lg-health-check");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		checker.scheduleWithFixedDelay(new Runnable()
+		{
+			public void run()
+			{
+				checkHealth();
+			}
+		}, healthCheckSeconds, healthCheckSeconds, TimeUnit.SECONDS);
+	}
+
+	@Override
+	public void close()
+	{
+		// Nothing per-thread to release; the clients are shared.
+	}
+
+	@Override
+	public synchronized void doFinalize()
+	{
+		if (checker != null)
+		{
+			checker.shutdownNow();
+			checker = null;
+		}
+		for (Endpoint ep : endpoints)
+			ep.idle.clear();
+	}
+
+	@Override
+	public String getVersion()
+	{
+		Throwable last = null;
+		for (Endpoint ep : endpoints)
+		{
+			LGRemoteClient client = checkout(ep, _config);
+			try
+			{
+				return client.getVersion();
+			}
+			catch (Throwable t)
+			{
+				last = t;
+			}
+			finally
+			{
+				ep.idle.add(client);
+			}
+		}
+		throw new ParseException("No link-grammar server answered", last);
+	}
+
+	/**
+	 * Return a one-line-per-server summary of the load and health.
+	 */
+	public synchronized String toString()
+	{
+		StringBuilder sb = new StringBuilder();
+		for (Endpoint ep : endpoints)
+		{
+			sb.append(ep).append(ep.healthy ? " up" : " DOWN")
+			  .append(" outstanding=").append(ep.outstanding)
+			  .append(" requests=").append(ep.requests)
+			  .append(" errors=").append(ep.errors)
+			  .append(" latency=").append((long) ep.latency).append("ms\n");
+		}
+		return sb.toString();
+	}
+
+	public static void main(String[] args)
+	{
+		if (args.length < 2)
+		{
+			System.out.println("Syntax: PooledRemoteLGParser host:port[,host:port...] sentence");
+			System.exit(-1);
+		}
+		List<String> hps = new ArrayList<String>();
+		for (String hp : args[0].split(","))
+			hps.add(hp);
+		PooledRemoteLGParser parser = new PooledRemoteLGParser(hps);
+		parser.getConfig().setMaxLinkages(5);
+		parser.init();
+		Sentence sntc = parser.parse(args[1]);
+		System.out.println("Found " + sntc.getParses().size() + " parse(s)");
+		System.out.print(parser);
+		parser.doFinalize();
+	}
+}
@@ -0,0 +1,223 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package relex.parser;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.linkgrammar.LGConfig;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import relex.Sentence;
+
+/**
+ * A parser that writes down everything it parses. Each result from
+ * the wrapped parser -- the words, links, labels, disjuncts,
+ * constituent strings and metadata of every linkage -- is appended
+ * to a gzipped file, which a ReplayParser can later serve back
+ * without link-grammar.
+ *
+ * The file is flushed after every sentence, so that a recording cut
+ * short by a crash is still usable up to that point. Call
+ * doFinalize() to close it properly.
+ */
+public class RecordingParser extends LGParser
+{
+	private static final Logger logger = LoggerFactory.getLogger(RecordingParser.class);
+
+	/** First object in every recording; identifies the format. */
+	static final String MAGIC = "relex-parse-recording-1";
+
+	private final LGParser parser;
+	private final File file;
+	private final RecordingParser owner;
+	private ObjectOutputStream out;
+	private long count = 0;
+
+	/**
+	 * @param parser The parser that does the actual work.
+	 * @param file File to record to; it is overwritten.
+	 */
+	public RecordingParser(LGParser parser, File file) throws IOException
+	{
+		this.parser = parser;
+		this.file = file;
+		this.owner = this;
+		out = new ObjectOutputStream(new GZIPOutputStream(
+			new BufferedOutputStream(new FileOutputStream(file)), true));
+		out.writeObject(MAGIC);
+		out.writeObject(parser.getVersion());
+		out.flush();
+	}
+
+	// A copy for another thread, that writes to the owner's file.
+	private RecordingParser(LGParser parser, RecordingParser owner)
+	{
+		this.parser = parser;
+		this.file = owner.file;
+		this.owner = owner;
+	}
+
+	public LGParser getParser()
+	{
+		return parser;
+	}
+
+	public long getCount()
+	{
+		return owner.count;
+	}
+
+	public Sentence parse(String text) throws ParseException
+	{
+		return parse(text, parser.getConfig());
+	}
+
+	public Sentence parse(String text, LGConfig config) throws ParseException
+	{
+		Sentence sntc = parser.parse(text, config);
+		if (sntc == null || text == null) return sntc;
+
+		ParseCache.Entry e = ParseCache.Entry.fromSentence(text, sntc);
+		if (e == null)
+			e = new ParseCache.Entry(text, sntc.getNumParses(), new CompactLinkage[0]);
+		owner.record(e);
+		return sntc;
+	}
+
+	private synchronized void record(ParseCache.Entry e)
+	{
+		if (out == null) return;
+		try
+		{
+			out.writeObject(e);
+			// Don't let the stream hold on to every object written.
+			out.reset();
+			out.flush();
+			count++;
+		}
+		catch (IOException ex)
+		{
+			throw new ParseException("Cannot write parse recording " + file, ex);
+		}
+	}
+
+	/* ---------------------------------------------------------------- */
+	/* Everything else goes straight to the wrapped parser. */
+
+	public LGConfig getConfig()
+	{
+		return parser.getConfig();
+	}
+
+	public void setConfig(LGConfig config)
+	{
+		parser.setConfig(config);
+	}
+
+	public void setDictPath(String path)
+	{
+		parser.setDictPath(path);
+	}
+
+	public String getDictPath()
+	{
+		return parser.getDictPath();
+	}
+
+	public void setLanguage(String lang)
+	{
+		parser.setLanguage(lang);
+	}
+
+	public String getLanguage()
+	{
+		return parser.getLanguage();
+	}
+
+	public void setMaxLinkages(int ml)
+	{
+		parser.setMaxLinkages(ml);
+	}
+
+	public int getMaxLinkages()
+	{
+		return parser.getMaxLinkages();
+	}
+
+	public void setEagerLinkages(int n)
+	{
+		parser.setEagerLinkages(n);
+	}
+
+	public int getEagerLinkages()
+	{
+		return parser.getEagerLinkages();
+	}
+
+	public void setMaxParseSeconds(int secs)
+	{
+		parser.setMaxParseSeconds(secs);
+	}
+
+	public LGParser copyForThread()
+	{
+		LGParser copy = parser.copyForThread();
+		return (copy == parser) ? this : new RecordingParser(copy, owner);
+	}
+
+	public String getVersion()
+	{
+		return parser.getVersion();
+	}
+
+	public void init()
+	{
+		parser.init();
+	}
+
+	public void close()
+	{
+		parser.close();
+	}
+
+	public void doFinalize()
+	{
+		synchronized (this)
+		{
+			if (out != null)
+			{
+				try
+				{
+					// A null marks a cleanly-closed recording.
+					out.writeObject(null);
+					out.close();
+				}
+				catch (IOException ex)
+				{
+					logger.warn("Error closing parse recording {}", file, ex);
+				}
+				out = null;
+				logger.info("Recorded {} sentences to {}", count, file);
+			}
+		}
+		parser.doFinalize();
+	}
+}
@@ -16,8 +16,6 @@
 
 package relex.parser;
 
-import java.util.HashMap;
-
 import org.linkgrammar.*;
 
 import relex.ParsedSentence;
@@ -30,7 +28,11 @@ public class RemoteLGParser extends LGParser
 {
 	private LGRemoteClient linkGrammarClient = new LGRemoteClient();
 
-	private Sentence parseResultToSentence(ParseResult parseResult)
+	/**
+	 * Convert the link-grammar server's reply into a Sentence.
+	 * Shared with PooledRemoteLGParser.
+	 */
+	static Sentence parseResultToSentence(ParseResult parseResult)
 	{
 		Sentence sntc = new Sentence();
 		sntc.setSentence(parseResult.getText());
@@ -38,7 +40,9 @@ public class RemoteLGParser extends LGParser
 		if (parseResult.getLinkages().isEmpty())
 			return sntc;
 
-		String lowerCaseText = parseResult.getText().toLowerCase();
+		// Character offsets are computed once per distinct tokenization,
+		// not once per linkage.
+		TokenAligner aligner = new TokenAligner(parseResult.getText());
 
 		for (Linkage linkage : parseResult)
 		{
@@ -50,8 +54,11 @@ public class RemoteLGParser extends LGParser
 			FeatureNode lastFN = null;
 			FeatureNode leftWall = null;
 
-			int startChar = 0;
-			HashMap<String,Integer> timesTokenSeen = new HashMap<String,Integer>();
+			String[] words = new String[linkage.getLinkedWordCount()];
+			for (int w = 0; w < words.length; w++)
+				words[w] = linkage.wordAt(w);
+			TokenAligner.Offsets offsets = aligner.align(words);
+
 			for (int w = 0; w < linkage.getLinkedWordCount(); w++)
 			{
 				String wordString = linkage.wordAt(w);
@@ -90,32 +97,8 @@ public class RemoteLGParser extends LGParser
 
 					parsedSentence.addWord(fnv.fn());
 
-					//
 					// Add char-index information to the feature node
-					//
-					// Boris: I don't quite understand this code which is copied over previous
-					// version of this class. In case of skipped words, how are you going to get the
-					// character index right? Need to know which words exactly have been skipped.
-					String tokenString = linkage.wordAt(w).toLowerCase(); // normalize cases
-
-					Integer timesSeenInt = timesTokenSeen.get(tokenString);
-					int timesSeen = (timesSeenInt == null ? 0 : timesSeenInt.intValue());
-
-					// "x<=" means we will do at least once
-					for (int x = 0; x <= timesSeen; x++)
-					{
-						startChar = lowerCaseText.indexOf(tokenString,startChar);
-					}
-
-					timesTokenSeen.put(tokenString, new Integer(timesSeen + 1));
-					int endChar = (startChar >= 0 ? startChar + tokenString.length() : -1);
-					// System.out.println("INFO IS " + startChar + "," + endChar);
-					fnv.setCharIndices(startChar, endChar, w);
-
-					// Increment index to start looking for next tokenString
-					// after the current one. Use "max" to prevent decreasing
-					// index in the case the tokenString end is -1
-					startChar = Math.max(startChar, endChar);
+					fnv.setCharIndices(offsets.start[w], offsets.end[w], w);
 					lastFN = fnv.fn();
 				}
 			}
@@ -167,6 +150,32 @@ public class RemoteLGParser extends LGParser
 		}
 	}
 
+	@Override
+	public void setConfig(LGConfig config)
+	{
+		super.setConfig(config);
+		copyConfig(config, getLinkGrammarClient().getConfig());
+	}
+
+	@Override
+	public void setMaxParseSeconds(int secs)
+	{
+		super.setMaxParseSeconds(secs);
+		getLinkGrammarClient().getConfig().setMaxParseSeconds(secs);
+	}
+
+	@Override
+	public LGParser copyForThread()
+	{
+		// One client per thread, talking to the same server.
+		RemoteLGParser p = copySettingsTo(new RemoteLGParser());
+		LGRemoteClient client = p.getLinkGrammarClient();
+		client.setHostname(linkGrammarClient.getHostname());
+		client.setPort(linkGrammarClient.getPort());
+		copyConfig(linkGrammarClient.getConfig(), client.getConfig());
+		return p;
+	}
+
 	@Override
 	public String getVersion()
 	{
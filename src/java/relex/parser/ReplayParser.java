@@ -0,0 +1,121 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package relex.parser;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.util.HashMap;
+import java.util.zip.GZIPInputStream;
+
+import org.linkgrammar.LGConfig;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import relex.Sentence;
+
+/**
+ * A parser that serves back the parses saved by a RecordingParser.
+ * It needs neither the link-grammar library nor its dictionaries,
+ * and takes no time to speak of, so that the rest of the pipeline
+ * (the relex algs, the output views) can be benchmarked and
+ * regression-tested on its own, with results that do not vary from
+ * run to run.
+ *
+ * Sentences are looked up by their text, with white-space normalized.
+ * Asking for a sentence that was not recorded is an error.
+ */
+public class ReplayParser extends LGParser
+{
+	private static final Logger logger = LoggerFactory.getLogger(ReplayParser.class);
+
+	private final HashMap<String, ParseCache.Entry> entries =
+		new HashMap<String, ParseCache.Entry>();
+	private String version = "replay";
+
+	public ReplayParser(File file) throws IOException
+	{
+		ObjectInputStream in = new ObjectInputStream(new GZIPInputStream(
+			new BufferedInputStream(new FileInputStream(file))));
+		try
+		{
+			Object magic = in.readObject();
+			if (!RecordingParser.MAGIC.equals(magic))
+				throw new IOException("Not a parse recording: " + file);
+			version = "replay of " + in.readObject();
+
+			while (true)
+			{
+				ParseCache.Entry e = (ParseCache.Entry) in.readObject();
+				if (e == null) break;
+				entries.put(CachingParser.normalize(e.text), e);
+			}
+		}
+		catch (EOFException ex)
+		{
+			// The recording was not closed cleanly; use what's there.
+			logger.warn("Parse recording {} is truncated", file);
+		}
+		catch (ClassNotFoundException ex)
+		{
+			throw new IOException("Corrupt parse recording: " + file, ex);
+		}
+		finally
+		{
+			in.close();
+		}
+		logger.info("Loaded {} recorded sentences from {}", entries.size(), file);
+	}
+
+	public int size()
+	{
+		return entries.size();
+	}
+
+	public Sentence parse(String text) throws ParseException
+	{
+		if (text == null) return null;
+		ParseCache.Entry e = entries.get(CachingParser.normalize(text));
+		if (e == null)
+			throw new ParseException("Sentence was not recorded: " + text);
+		return e.toSentence(text, _eager_linkages);
+	}
+
+	/** The recording was made with some config; any other is ignored. */
+	public Sentence parse(String text, LGConfig config) throws ParseException
+	{
+		return parse(text);
+	}
+
+	public String getVersion()
+	{
+		return version;
+	}
+
+	public void init()
+	{
+	}
+
+	public void close()
+	{
+	}
+
+	public void doFinalize()
+	{
+	}
+}
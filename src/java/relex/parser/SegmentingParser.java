@@ -0,0 +1,387 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package relex.parser;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.linkgrammar.LGConfig;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import relex.Sentence;
+import relex.corpus.ClauseSplitter;
+import relex.corpus.TextInterval;
+import relex.utils.Deadline;
+
+/**
+ * A parser that breaks long, run-on sentences into clauses, and
+ * parses the clauses at the same time, on a pool of threads.
+ *
+ * Link-grammar's parse time grows much faster than the length of the
+ * sentence, so that a sentence of a few hundred words may not parse
+ * at all within the time limit, while its clauses, parsed one by one,
+ * take a second or two. Sentences shorter than the threshold are
+ * passed straight to the wrapped parser; longer ones are split with a
+ * ClauseSplitter.
+ *
+ * The parses of the pieces are joined into parses of the whole
+ * sentence, with character offsets into the whole sentence; see
+ * CompactLinkage.concat(). The n'th parse joins the n'th-best parse
+ * of every piece (or its last, if it has fewer). A piece that fails
+ * to parse, is still too long, or is not reached within the time
+ * limit, is left out, and its words are counted as skipped. The time
+ * limit is for the sentence as a whole, not for each piece.
+ *
+ * Each pool thread parses with its own copy of the wrapped parser,
+ * made with LGParser.copyForThread(), so that link-grammar's
+ * per-thread state is not shared.
+ */
+public class SegmentingParser extends LGParser
+{
+	private static final Logger logger = LoggerFactory.getLogger(SegmentingParser.class);
+
+	public static final int DEFAULT_THRESHOLD = 300;
+	public static final int DEFAULT_MAX_PIECE_LENGTH = 1024;
+
+	private final LGParser parser;
+	private final int threshold;
+	private final int threads;
+	private int maxPieceLength = DEFAULT_MAX_PIECE_LENGTH;
+	private final ClauseSplitter splitter = new ClauseSplitter();
+
+	private final ExecutorService pool;
+	private final ThreadLocal<LGParser> worker = new ThreadLocal<LGParser>();
+
+	/**
+	 * @param parser The parser that does the actual work.
+	 * @param threshold Sentences this long, or longer, are split.
+	 * @param threads Number of pieces to parse at the same time.
+	 */
+	public SegmentingParser(LGParser parser, int threshold, int threads)
+	{
+		this.parser = parser;
+		this.threshold = threshold;
+		this.threads = Math.max(1, threads);
+		pool = Executors.newFixedThreadPool(this.threads, new ThreadFactory()
+		{
+			public Thread newThread(final Runnable r)
+			{
+				Runnable body = new Runnable()
+				{
+					public void run()
+					{
+						try
+						{
+							r.run();
+						}
+						finally
+						{
+							// close() cleans up per-thread state, so it
+							// has to run here, as the thread exits.
+							LGParser p = worker.get();
+							if (p != null && p != SegmentingParser.this.parser) p.close();
+						}
+					}
+				};
+				Thread t = new Thread(body, "relex-segment-parser");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	public LGParser getParser()
+	{
+		return parser;
+	}
+
+	public int getThreshold()
+	{
+		return threshold;
+	}
+
+	public int getThreads()
+	{
+		return threads;
+	}
+
+	/** Pieces this long, or longer, are not parsed. */
+	public void setMaxPieceLength(int len)
+	{
+		maxPieceLength = len;
+	}
+
+	public ClauseSplitter getSplitter()
+	{
+		return splitter;
+	}
+
+	public Sentence parse(String text) throws ParseException
+	{
+		return parse(text, parser.getConfig());
+	}
+
+	public Sentence parse(String text, final LGConfig config) throws ParseException
+	{
+		if (text == null || text.length() < threshold)
+			return parser.parse(text, config);
+
+		List<TextInterval> pieces = splitter.split(text);
+		if (pieces.size() < 2)
+		{
+			if (text.length() < maxPieceLength)
+				return parser.parse(text, config);
+			logger.error("Sentence too long, and cannot be split, len={} : {}",
+				text.length(), text);
+			Sentence sntc = new Sentence();
+			sntc.setSentence(text);
+			return sntc;
+		}
+		logger.debug("Parsing sentence of len={} as {} pieces", text.length(), pieces.size());
+
+		// The time limit is for the whole sentence. With more pieces
+		// than threads, the pieces are parsed in waves, and each gets
+		// only what is left of it.
+		LGConfig cfg = (config != null) ? config : parser.getConfig();
+		final Deadline deadline = Deadline.in(1000L * cfg.getMaxParseSeconds());
+
+		ArrayList<Future<CompactLinkage[]>> futures = new ArrayList<Future<CompactLinkage[]>>();
+		for (TextInterval ti : pieces)
+		{
+			final String piece = text.substring(ti.getStart(), ti.getEnd());
+			futures.add(pool.submit(new Callable<CompactLinkage[]>()
+			{
+				public CompactLinkage[] call()
+				{
+					return parsePiece(piece, config, deadline);
+				}
+			}));
+		}
+
+		ArrayList<CompactLinkage[]> parsed = new ArrayList<CompactLinkage[]>();
+		ArrayList<Integer> shifts = new ArrayList<Integer>();
+		int extraSkipped = 0;
+		for (int j = 0; j < pieces.size(); j++)
+		{
+			TextInterval ti = pieces.get(j);
+			CompactLinkage[] linkages = null;
+
+			// Out of time: drop the pieces not yet started. Those that
+			// are running were given no more than what was left.
+			if (deadline.isExpired())
+				for (Future<CompactLinkage[]> f : futures) f.cancel(false);
+			try
+			{
+				linkages = futures.get(j).get();
+			}
+			catch (CancellationException ex)
+			{
+				logger.debug("Out of time for piece {} of sentence: {}", j, text);
+			}
+			catch (InterruptedException ex)
+			{
+				for (Future<CompactLinkage[]> f : futures) f.cancel(true);
+				Thread.currentThread().interrupt();
+				throw new ParseException("Thread interrupted.", ex);
+			}
+			catch (ExecutionException ex)
+			{
+				logger.warn("Failed to parse piece {} of sentence: {}", j, text, ex.getCause());
+			}
+
+			if (linkages == null || linkages.length == 0)
+			{
+				String piece = text.substring(ti.getStart(), ti.getEnd());
+				extraSkipped += piece.split("\\s+").length;
+				continue;
+			}
+			parsed.add(linkages);
+			shifts.add(ti.getStart());
+		}
+
+		if (parsed.isEmpty())
+		{
+			Sentence sntc = new Sentence();
+			sntc.setSentence(text);
+			return sntc;
+		}
+
+		int[] shift = new int[shifts.size()];
+		int most = 0;
+		for (int j = 0; j < shift.length; j++)
+		{
+			shift[j] = shifts.get(j);
+			most = Math.max(most, parsed.get(j).length);
+		}
+		int n = Math.min(most, Math.max(1, cfg.getMaxLinkages()));
+
+		CompactLinkage[] joined = new CompactLinkage[n];
+		CompactLinkage[] pick = new CompactLinkage[parsed.size()];
+		for (int k = 0; k < n; k++)
+		{
+			for (int j = 0; j < pick.length; j++)
+			{
+				CompactLinkage[] lks = parsed.get(j);
+				pick[j] = lks[Math.min(k, lks.length - 1)];
+			}
+			CompactLinkage cl = CompactLinkage.concat(Arrays.asList(pick), shift);
+			if (extraSkipped > 0)
+			{
+				String s = cl.getMeta("num_skipped_words");
+				int skipped = (s == null) ? 0 : Integer.parseInt(s);
+				cl = cl.withMeta("num_skipped_words", Integer.toString(skipped + extraSkipped));
+			}
+			joined[k] = cl;
+		}
+
+		return new ParseCache.Entry(text, n, joined).toSentence(text, parser.getEagerLinkages());
+	}
+
+	/** Runs in a pool thread. Returns null on failure, or if out of time. */
+	private CompactLinkage[] parsePiece(String piece, LGConfig config, Deadline deadline)
+	{
+		if (deadline.isExpired()) return null;
+
+		if (piece.length() >= maxPieceLength)
+		{
+			logger.error("Sentence piece too long, len={} : {}", piece.length(), piece);
+			return null;
+		}
+
+		LGParser p = worker.get();
+		if (p == null)
+		{
+			p = parser.copyForThread();
+			if (p != parser) p.init();
+			worker.set(p);
+		}
+
+		// The config is the caller's, e.g. with a shorter time limit
+		// to fit a sentence deadline; parse with a copy of it, as the
+		// same one goes to every piece, cut down to the time left.
+		LGConfig cfg = copyConfig((config != null) ? config : parser.getConfig(), new LGConfig());
+		cfg.setMaxParseSeconds(deadline.remainingSeconds(cfg.getMaxParseSeconds()));
+		Sentence sntc = p.parse(piece, cfg);
+		if (sntc == null) return null;
+		ParseCache.Entry e = ParseCache.Entry.fromSentence(piece, sntc);
+		return (e == null) ? null : e.linkages;
+	}
+
+	/* ---------------------------------------------------------------- */
+	/* Everything else goes straight to the wrapped parser. */
+
+	public LGConfig getConfig()
+	{
+		return parser.getConfig();
+	}
+
+	public void setConfig(LGConfig config)
+	{
+		parser.setConfig(config);
+	}
+
+	public void setDictPath(String path)
+	{
+		parser.setDictPath(path);
+	}
+
+	public String getDictPath()
+	{
+		return parser.getDictPath();
+	}
+
+	public void setLanguage(String lang)
+	{
+		parser.setLanguage(lang);
+	}
+
+	public String getLanguage()
+	{
+		return parser.getLanguage();
+	}
+
+	public void setMaxLinkages(int ml)
+	{
+		parser.setMaxLinkages(ml);
+	}
+
+	public int getMaxLinkages()
+	{
+		return parser.getMaxLinkages();
+	}
+
+	public void setEagerLinkages(int n)
+	{
+		parser.setEagerLinkages(n);
+	}
+
+	public int getEagerLinkages()
+	{
+		return parser.getEagerLinkages();
+	}
+
+	public void setMaxParseSeconds(int secs)
+	{
+		parser.setMaxParseSeconds(secs);
+	}
+
+	public String getVersion()
+	{
+		return parser.getVersion();
+	}
+
+	public void init()
+	{
+		parser.init();
+	}
+
+	public void close()
+	{
+		parser.close();
+	}
+
+	/**
+	 * Stop the pool threads, which close their parsers as they exit.
+	 * The wrapped parser is left alone.
+	 */
+	public void shutdown()
+	{
+		pool.shutdown();
+		try
+		{
+			pool.awaitTermination(10, TimeUnit.SECONDS);
+		}
+		catch (InterruptedException ex)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	public void doFinalize()
+	{
+		shutdown();
+		parser.doFinalize();
+	}
+}
@@ -0,0 +1,216 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package relex.parser;
+
+import org.linkgrammar.LGConfig;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import relex.ParsedSentence;
+import relex.Sentence;
+
+/**
+ * A parser that tries a cheap, strict parse first, and falls back to
+ * the configured, permissive one only if that fails.
+ *
+ * Skipped words (null links) make link-grammar explore a much larger
+ * search space, yet most sentences parse completely without them.
+ * The first tier therefore disallows skipped words, and uses a short
+ * timeout and a small number of linkages. Only if it finds no
+ * complete linkage is the sentence parsed again with the wrapped
+ * parser's own configuration.
+ *
+ * The tier that produced each parse is recorded in the parse
+ * metadata, under "parse_tier", as "1" or "2".
+ *
+ * The strict tier's config goes with the parse call, see
+ * LGParser.parse(String, LGConfig); the wrapped parser's own config
+ * is never changed, so that it may be shared by several threads.
+ * The time that the strict tier took comes out of the permissive
+ * tier's time limit, so that the two together keep to the caller's
+ * limit, e.g. what is left of a sentence's deadline; but the second
+ * tier always gets at least a second.
+ */
+public class TieredParser extends LGParser
+{
+	private static final Logger logger = LoggerFactory.getLogger(TieredParser.class);
+
+	public static final String TIER_KEY = "parse_tier";
+	public static final int DEFAULT_STRICT_SECONDS = 2;
+	public static final int DEFAULT_STRICT_LINKAGES = 4;
+
+	private final LGParser parser;
+	private int strictSeconds = DEFAULT_STRICT_SECONDS;
+	private int strictLinkages = DEFAULT_STRICT_LINKAGES;
+
+	private long strictHits = 0;
+	private long fallbacks = 0;
+
+	public TieredParser(LGParser parser)
+	{
+		this.parser = parser;
+	}
+
+	public LGParser getParser()
+	{
+		return parser;
+	}
+
+	/** Time limit for the strict tier; capped by the permissive one. */
+	public void setStrictSeconds(int secs)
+	{
+		strictSeconds = Math.max(1, secs);
+	}
+
+	/** Linkage limit for the strict tier; capped by the permissive one. */
+	public void setStrictLinkages(int n)
+	{
+		strictLinkages = Math.max(1, n);
+	}
+
+	public synchronized long getStrictHits() { return strictHits; }
+	public synchronized long getFallbacks() { return fallbacks; }
+
+	public Sentence parse(String text) throws ParseException
+	{
+		return parse(text, parser.getConfig());
+	}
+
+	/** The given config is the permissive tier's. */
+	public Sentence parse(String text, LGConfig config) throws ParseException
+	{
+		LGConfig permissive = (config != null) ? config : parser.getConfig();
+		LGConfig strict = copyConfig(permissive, new LGConfig());
+		strict.setAllowSkippedWords(false);
+		strict.setMaxParseSeconds(Math.min(strictSeconds, permissive.getMaxParseSeconds()));
+		strict.setMaxLinkages(Math.min(strictLinkages, permissive.getMaxLinkages()));
+
+		long start = System.currentTimeMillis();
+		Sentence sntc = parser.parse(text, strict);
+
+		if (isComplete(sntc))
+		{
+			synchronized (this) { strictHits++; }
+			setMeta(sntc, TIER_KEY, "1");
+			return sntc;
+		}
+
+		logger.trace("strict parse failed, retrying [{}]", text);
+		synchronized (this) { fallbacks++; }
+		int spent = (int) ((System.currentTimeMillis() - start + 999) / 1000);
+		LGConfig rest = copyConfig(permissive, new LGConfig());
+		rest.setMaxParseSeconds(Math.max(1, permissive.getMaxParseSeconds() - spent));
+		sntc = parser.parse(text, rest);
+		if (sntc != null) setMeta(sntc, TIER_KEY, "2");
+		return sntc;
+	}
+
+	/** True if some parse links up every word. */
+	private static boolean isComplete(Sentence sntc)
+	{
+		if (sntc == null) return false;
+		for (ParsedSentence parse : sntc.getParses())
+			if (parse.getNumSkippedWords() == 0) return true;
+		return false;
+	}
+
+	/* ---------------------------------------------------------------- */
+	/* Everything else goes straight to the wrapped parser. */
+
+	public LGConfig getConfig()
+	{
+		return parser.getConfig();
+	}
+
+	public void setConfig(LGConfig config)
+	{
+		parser.setConfig(config);
+	}
+
+	public void setDictPath(String path)
+	{
+		parser.setDictPath(path);
+	}
+
+	public String getDictPath()
+	{
+		return parser.getDictPath();
+	}
+
+	public void setLanguage(String lang)
+	{
+		parser.setLanguage(lang);
+	}
+
+	public String getLanguage()
+	{
+		return parser.getLanguage();
+	}
+
+	public void setMaxLinkages(int ml)
+	{
+		parser.setMaxLinkages(ml);
+	}
+
+	public int getMaxLinkages()
+	{
+		return parser.getMaxLinkages();
+	}
+
+	public void setEagerLinkages(int n)
+	{
+		parser.setEagerLinkages(n);
+	}
+
+	public int getEagerLinkages()
+	{
+		return parser.getEagerLinkages();
+	}
+
+	public void setMaxParseSeconds(int secs)
+	{
+		parser.setMaxParseSeconds(secs);
+	}
+
+	public LGParser copyForThread()
+	{
+		LGParser p = parser.copyForThread();
+		if (p == parser) return this;
+		TieredParser copy = new TieredParser(p);
+		copy.strictSeconds = strictSeconds;
+		copy.strictLinkages = strictLinkages;
+		return copy;
+	}
+
+	public String getVersion()
+	{
+		return parser.getVersion();
+	}
+
+	public void init()
+	{
+		parser.init();
+	}
+
+	public void close()
+	{
+		parser.close();
+	}
+
+	public void doFinalize()
+	{
+		parser.doFinalize();
+	}
+}
@@ -0,0 +1,107 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package relex.parser;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Finds the character offsets of the parser's tokens in the original
+ * sentence text.
+ *
+ * The text is lower-cased once, and the tokens are located with a
+ * single forward scan, so that a repeated word is matched to its
+ * next occurrence, not its first. A token that cannot be found (the
+ * walls, or a token that link-grammar has rewritten) gets offsets of
+ * -1, and the scan carries on from where it was.
+ *
+ * Different linkages of one sentence almost always tokenize it the
+ * same way, so the offsets are remembered per distinct token sequence:
+ * create one TokenAligner per sentence, and call align() for each
+ * linkage.
+ */
+public class TokenAligner
+{
+	/** Start and end offsets, one pair per token. */
+	public static class Offsets
+	{
+		public final int[] start;
+		public final int[] end;
+
+		Offsets(int n)
+		{
+			start = new int[n];
+			end = new int[n];
+		}
+	}
+
+	private final String lowerText;
+	private final HashMap<List<String>, Offsets> seen =
+		new HashMap<List<String>, Offsets>();
+
+	public TokenAligner(String text)
+	{
+		lowerText = (text == null) ? "" : text.toLowerCase();
+	}
+
+	/**
+	 * Return the offsets of the tokens. Null or empty tokens, and
+	 * the walls, are not looked for. The returned arrays are shared
+	 * between calls with the same tokens, and must not be modified.
+	 */
+	public Offsets align(String[] tokens)
+	{
+		List<String> key = Arrays.asList(tokens);
+		Offsets off = seen.get(key);
+		if (off != null) return off;
+
+		off = new Offsets(tokens.length);
+		int cursor = 0;
+		for (int i = 0; i < tokens.length; i++)
+		{
+			off.start[i] = -1;
+			off.end[i] = -1;
+
+			String tok = tokens[i];
+			if (tok == null || tok.length() == 0) continue;
+			if (tok.equals("LEFT-WALL") || tok.equals("RIGHT-WALL")) continue;
+
+			tok = tok.toLowerCase();
+			int at = lowerText.indexOf(tok, cursor);
+
+			// Subscripted words, e.g. "ran.v", appear in the text
+			// without the subscript.
+			if (at < 0)
+			{
+				int dot = tok.lastIndexOf('.');
+				if (0 < dot && dot < tok.length() - 1)
+				{
+					tok = tok.substring(0, dot);
+					at = lowerText.indexOf(tok, cursor);
+				}
+			}
+			if (at < 0) continue;
+
+			off.start[i] = at;
+			off.end[i] = at + tok.length();
+			cursor = off.end[i];
+		}
+
+		// Clone the key; the caller is free to re-use its array.
+		seen.put(Arrays.asList(tokens.clone()), off);
+		return off;
+	}
+}
@@ -175,5 +175,30 @@ public class Histogram implements TruthValue
 		return (((double)peak) + midpoint) * delta + min_value;
 	}
 
+	/**
+	 * Add the counts of another histogram, with the same bins, to
+	 * this one; as if all of its values had been binned here too.
+	 */
+	public void merge(Histogram other)
+	{
+		if (other.nbins != nbins || other.min_value != min_value ||
+		    other.max_value != max_value)
+			throw new IllegalArgumentException("Histograms have different bins");
+
+		for (int i = 0; i < nbins; i++)
+		{
+			bins[i] += other.bins[i];
+		}
+		underflow += other.underflow;
+		overflow += other.overflow;
+
+		if (other.all_time_low < all_time_low) all_time_low = other.all_time_low;
+		if (other.all_time_high > all_time_high) all_time_high = other.all_time_high;
+
+		cnt += other.cnt;
+		sum += other.sum;
+		sumsq += other.sumsq;
+	}
+
 }
 
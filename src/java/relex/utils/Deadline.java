@@ -0,0 +1,99 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package relex.utils;
+
+/**
+ * A point in time after which work on a sentence should stop.
+ *
+ * Cancellation is cooperative: nothing is interrupted. Long-running
+ * loops (the rule applier, the per-parse loop in RelationExtractor,
+ * the relation walkers used by the output views) check isExpired()
+ * between steps, and return whatever they have so far. A deadline
+ * may also be cancelled explicitly, e.g. by a server whose client
+ * has gone away.
+ */
+public class Deadline
+{
+	/** A deadline that never expires. */
+	public static final Deadline NONE = new Deadline(Long.MAX_VALUE);
+
+	private final long expiresAt;
+	private volatile boolean cancelled = false;
+
+	private Deadline(long expiresAt)
+	{
+		this.expiresAt = expiresAt;
+	}
+
+	/**
+	 * Return a deadline that expires the given number of
+	 * milliseconds from now. Zero or less means no deadline.
+	 */
+	public static Deadline in(long millis)
+	{
+		if (millis <= 0) return new Deadline(Long.MAX_VALUE);
+		return new Deadline(System.currentTimeMillis() + millis);
+	}
+
+	/** Expire this deadline right now. NONE cannot be cancelled. */
+	public void cancel()
+	{
+		if (this != NONE) cancelled = true;
+	}
+
+	public boolean isCancelled()
+	{
+		return cancelled;
+	}
+
+	public boolean isExpired()
+	{
+		if (cancelled) return true;
+		if (expiresAt == Long.MAX_VALUE) return false;
+		return System.currentTimeMillis() >= expiresAt;
+	}
+
+	/**
+	 * Milliseconds left; zero if expired, Long.MAX_VALUE if there
+	 * is no deadline.
+	 */
+	public long remainingMillis()
+	{
+		if (cancelled) return 0;
+		if (expiresAt == Long.MAX_VALUE) return Long.MAX_VALUE;
+		return Math.max(0, expiresAt - System.currentTimeMillis());
+	}
+
+	/**
+	 * Whole seconds left, rounded up, and capped at the given limit;
+	 * suitable for handing to link-grammar as its parse timeout.
+	 * Never less than one, since link-grammar treats zero as "no
+	 * time at all" and gives up before it starts.
+	 */
+	public int remainingSeconds(int cap)
+	{
+		long ms = remainingMillis();
+		if (ms == Long.MAX_VALUE) return cap;
+		long secs = (ms + 999) / 1000;
+		return (int) Math.max(1, Math.min(cap, secs));
+	}
+
+	public String toString()
+	{
+		if (expiresAt == Long.MAX_VALUE && !cancelled) return "Deadline: none";
+		return "Deadline: " + remainingMillis() + " ms left" +
+			(cancelled ? " (cancelled)" : "");
+	}
+}
@@ -0,0 +1,110 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package relex.utils;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * How much of the Java heap is live, and how much each thread
+ * allocates, without forcing a garbage collection.
+ *
+ * The live heap is what was still in use right after the most recent
+ * collection of each heap pool, as reported by the JVM. Between
+ * collections the heap also holds garbage, the old pool most of all,
+ * since it is collected so rarely; so its current size says little.
+ * The old pool's figure changes only when the old pool is collected,
+ * see oldCollectionCount(); until then it may still count what was
+ * let go since, e.g. by a restart.
+ *
+ * The allocation counts are per thread, so a server that runs each
+ * session on one thread can charge them to the session.
+ */
+public class HeapMonitor
+{
+	/**
+	 * Bytes of live heap, as above; or the heap now in use, if the JVM
+	 * does not report the pools' collections.
+	 */
+	public static long liveHeapBytes()
+	{
+		long live = 0;
+		boolean known = false;
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+		{
+			if (pool.getType() != MemoryType.HEAP) continue;
+			MemoryUsage u = pool.getCollectionUsage();
+			if (u == null) continue;
+			live += u.getUsed();
+			known = true;
+		}
+		if (known) return live;
+		Runtime rt = Runtime.getRuntime();
+		return rt.totalMemory() - rt.freeMemory();
+	}
+
+	/**
+	 * Number of garbage collections so far by the collectors that
+	 * collect the old pool. Once it goes up, liveHeapBytes() no longer
+	 * counts what was let go before.
+	 */
+	public static long oldCollectionCount()
+	{
+		long n = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+		{
+			for (String pool : gc.getMemoryPoolNames())
+			{
+				if (isOld(pool))
+				{
+					n += Math.max(0, gc.getCollectionCount());
+					break;
+				}
+			}
+		}
+		return n;
+	}
+
+	private static boolean isOld(String pool)
+	{
+		return pool.contains("Old") || pool.contains("Tenured");
+	}
+
+	/**
+	 * Bytes allocated by the calling thread so far, or -1 if the JVM
+	 * cannot say.
+	 */
+	@SuppressWarnings("restriction")
+	public static long threadAllocatedBytes()
+	{
+		ThreadMXBean tmx = ManagementFactory.getThreadMXBean();
+		if (!(tmx instanceof com.sun.management.ThreadMXBean)) return -1;
+		com.sun.management.ThreadMXBean sun = (com.sun.management.ThreadMXBean) tmx;
+		if (!sun.isThreadAllocatedMemorySupported() || !sun.isThreadAllocatedMemoryEnabled())
+			return -1;
+		return sun.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+
+	/** Bytes, as megabytes, for log messages. */
+	public static String mb(long bytes)
+	{
+		if (bytes < 0) return "?";
+		return String.format("%.1fMB", bytes / (1024.0 * 1024.0));
+	}
+}
@@ -0,0 +1,61 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package relex.utils;
+
+/**
+ * Just enough JSON output for the servers' replies, which are built
+ * up as strings; the reading side is relex.parser.JSONReader.
+ */
+public class JSONWriter
+{
+	/** The string as a JSON string literal, quotes included. */
+	public static String quote(String s)
+	{
+		if (s == null) return "null";
+		StringBuilder sb = new StringBuilder(s.length() + 16);
+		quote(s, sb);
+		return sb.toString();
+	}
+
+	public static void quote(String s, StringBuilder sb)
+	{
+		if (s == null)
+		{
+			sb.append("null");
+			return;
+		}
+		sb.append('"');
+		for (int i = 0; i < s.length(); i++)
+		{
+			char c = s.charAt(i);
+			switch (c)
+			{
+				case '"': sb.append("\\\""); break;
+				case '\\': sb.append("\\\\"); break;
+				case '\n': sb.append("\\n"); break;
+				case '\r': sb.append("\\r"); break;
+				case '\t': sb.append("\\t"); break;
+				case '\b': sb.append("\\b"); break;
+				case '\f': sb.append("\\f"); break;
+				default:
+					if (c < 0x20)
+						sb.append(String.format("\\u%04x", (int) c));
+					else
+						sb.append(c);
+			}
+		}
+		sb.append('"');
+	}
+}
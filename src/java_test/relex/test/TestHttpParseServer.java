@@ -0,0 +1,353 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package relex.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import relex.HttpParseServer;
+import relex.ParsedSentence;
+import relex.Sentence;
+import relex.feature.FeatureNode;
+import relex.feature.LinkView;
+import relex.feature.LinkableView;
+import relex.morphy.MappedLexicon;
+import relex.morphy.MorphyFactory;
+import relex.morphy.WordNetIndex;
+import relex.parser.LGParser;
+
+/**
+ * The HTTP side of the HttpParseServer, with a stub parser in place
+ * of link-grammar.
+ */
+public class TestHttpParseServer
+{
+	@ClassRule
+	public static TemporaryFolder tmp = new TemporaryFolder();
+
+	private HttpParseServer srv;
+
+	/**
+	 * Links each word to the next. A sentence that starts with "Slow"
+	 * takes a second and a half.
+	 */
+	private static class ChainParser extends LGParser
+	{
+		public Sentence parse(String text)
+		{
+			if (text.startsWith("Slow"))
+			{
+				try
+				{
+					Thread.sleep(1500);
+				}
+				catch (InterruptedException e)
+				{
+					Thread.currentThread().interrupt();
+				}
+			}
+			String[] toks = text.substring(0, text.length() - 1).split(" ");
+			ParsedSentence s = new ParsedSentence(text);
+			FeatureNode leftWall = null;
+			FeatureNode lastFN = null;
+			int at = 0;
+			for (int i = 0; i <= toks.length + 1; i++)
+			{
+				String w = (i == 0) ? "LEFT-WALL" : (i <= toks.length) ? toks[i-1] : ".";
+				FeatureNode fn = new FeatureNode();
+				if (leftWall == null) leftWall = fn;
+				LinkableView.setWord(fn, w);
+				fn.set("this", fn);
+				fn.set("wall", leftWall);
+				if (lastFN != null)
+				{
+					LinkableView.setNext(lastFN, fn);
+					LinkableView.setPrev(fn, lastFN);
+				}
+				s.addWord(fn);
+				if (i == 0)
+				{
+					LinkableView.setCharIndices(fn, -1, -1, i);
+				}
+				else
+				{
+					LinkableView.setCharIndices(fn, at, at + w.length(), i);
+					at += w.length() + ((i < toks.length) ? 1 : 0);
+				}
+				lastFN = fn;
+			}
+			LinkView.setLinkFeatures(new FeatureNode(), "Xp", "Xp", "Xp",
+				s.getWordAsNode(0), s.getWordAsNode(toks.length + 1));
+			LinkView.setLinkFeatures(new FeatureNode(), "Wd", "Wd", "Wd",
+				s.getWordAsNode(0), s.getWordAsNode(1));
+			for (int i = 1; i < toks.length; i++)
+				LinkView.setLinkFeatures(new FeatureNode(), "A", "A", "A",
+					s.getWordAsNode(i), s.getWordAsNode(i + 1));
+			s.setMetaData(new FeatureNode());
+
+			ArrayList<ParsedSentence> parses = new ArrayList<ParsedSentence>();
+			parses.add(s);
+			Sentence sntc = new Sentence();
+			sntc.setSentence(text);
+			sntc.setParses(parses);
+			sntc.setNumParses(1);
+			return sntc;
+		}
+
+		public LGParser copyForThread() { return new ChainParser(); }
+		public String getVersion() { return "chain"; }
+		public void init() {}
+		public void close() {}
+		public void doFinalize() {}
+	}
+
+	@BeforeClass
+	public static void setUp() throws IOException
+	{
+		// MapMorphy, from a lexicon that knows only "dog" and "bark".
+		File dict = tmp.newFolder("dict");
+		write(new File(dict, "index.noun"), "dog n 1 1 @ 1 0 02084071\n");
+		write(new File(dict, "index.verb"), "bark v 1 0 1 0 01047745\n");
+		write(new File(dict, "index.adj"), "");
+		write(new File(dict, "index.adv"), "");
+		File lex = new File(tmp.getRoot(), "lexicon.bin");
+		MappedLexicon.write(WordNetIndex.load(dict), lex);
+		System.setProperty(MorphyFactory.MORPHY_IMPLEMENTATION_PROPERTY,
+			MorphyFactory.DEFAULT_MULTI_THREAD_IMPLEMENTATION);
+		System.setProperty(MappedLexicon.LEXICON_PROPERTY, lex.getPath());
+	}
+
+	@AfterClass
+	public static void tearDownClass()
+	{
+		System.clearProperty(MorphyFactory.MORPHY_IMPLEMENTATION_PROPERTY);
+		System.clearProperty(MappedLexicon.LEXICON_PROPERTY);
+	}
+
+	@After
+	public void tearDown()
+	{
+		if (srv != null) srv.stop();
+	}
+
+	private static void write(File f, String text) throws IOException
+	{
+		FileOutputStream out = new FileOutputStream(f);
+		try
+		{
+			out.write(text.getBytes("UTF-8"));
+		}
+		finally
+		{
+			out.close();
+		}
+	}
+
+	private void start(int threads, long max_sentence_millis, int max_per_client)
+		throws IOException
+	{
+		srv = new HttpParseServer();
+		srv.setPort(0);
+		srv.setThreads(threads);
+		srv.setMaxSentenceMillis(max_sentence_millis);
+		srv.setAdmissionLimits(0, max_per_client, 0);
+		srv.start(new ChainParser());
+	}
+
+	private HttpURLConnection post(String path, String body, String accept)
+		throws IOException
+	{
+		HttpURLConnection c = (HttpURLConnection)
+			new URL("http://localhost:" + srv.getPort() + path).openConnection();
+		c.setRequestMethod("POST");
+		c.setDoOutput(true);
+		if (accept != null) c.setRequestProperty("Accept-Encoding", accept);
+		OutputStream out = c.getOutputStream();
+		out.write(body.getBytes("UTF-8"));
+		out.close();
+		return c;
+	}
+
+	private static String read(InputStream in) throws IOException
+	{
+		ByteArrayOutputStream buf = new ByteArrayOutputStream();
+		byte[] b = new byte[8192];
+		int n;
+		while ((n = in.read(b)) > 0) buf.write(b, 0, n);
+		in.close();
+		return buf.toString("UTF-8");
+	}
+
+	private static String body(HttpURLConnection c) throws IOException
+	{
+		InputStream in = (c.getResponseCode() < 400) ? c.getInputStream() : c.getErrorStream();
+		if ("gzip".equals(c.getHeaderField("Content-Encoding")))
+			in = new GZIPInputStream(in);
+		return read(in);
+	}
+
+	@Test
+	public void testStreamed() throws Exception
+	{
+		start(1, 0, 0);
+		long t0 = System.currentTimeMillis();
+		HttpURLConnection c = post("/parse/batch?format=opencog",
+			"{\"sentences\": [\"Dogs bark.\", \"Slow dogs bark.\"]}", null);
+		assertEquals(200, c.getResponseCode());
+		assertEquals("chunked", c.getHeaderField("Transfer-Encoding"));
+
+		// The first sentence comes before the second is parsed.
+		BufferedReader in = new BufferedReader(new InputStreamReader(c.getInputStream(), "UTF-8"));
+		String l;
+		while (!"; END OF SENTENCE".equals(l = in.readLine())) assertNotNull(l);
+		long first = System.currentTimeMillis() - t0;
+		int ends = 1;
+		while ((l = in.readLine()) != null)
+			if (l.equals("; END OF SENTENCE")) ends++;
+		long all = System.currentTimeMillis() - t0;
+		assertEquals(2, ends);
+		assertTrue("first " + first + "ms, all " + all + "ms", first + 1000 < all);
+	}
+
+	@Test
+	public void testGzip() throws Exception
+	{
+		start(1, 0, 0);
+		// Stanford output has no time stamps in it.
+		String plain = body(post("/parse?format=stanford", "Dogs bark.", null));
+		assertTrue(plain, plain.contains("Dogs bark."));
+
+		HttpURLConnection c = post("/parse?format=stanford", "Dogs bark.", "deflate, gzip");
+		assertEquals("gzip", c.getHeaderField("Content-Encoding"));
+		assertEquals(plain, body(c));
+
+		// Streamed, as well.
+		c = post("/parse/batch", "Dogs bark. Dogs bark.", "gzip;q=0.5");
+		assertEquals("gzip", c.getHeaderField("Content-Encoding"));
+		assertTrue(body(c).contains("Dogs bark."));
+
+		// Refused outright.
+		c = post("/parse?format=stanford", "Dogs bark.", "gzip;q=0, identity");
+		assertNull(c.getHeaderField("Content-Encoding"));
+		assertEquals(plain, body(c));
+		c = post("/parse?format=stanford", "Dogs bark.", "gzip; q=0");
+		assertNull(c.getHeaderField("Content-Encoding"));
+		assertEquals(plain, body(c));
+	}
+
+	@Test
+	public void testErrors() throws Exception
+	{
+		start(1, 0, 0);
+		assertEquals(404, post("/parse/more", "Dogs bark.", null).getResponseCode());
+
+		HttpURLConnection c = (HttpURLConnection)
+			new URL("http://localhost:" + srv.getPort() + "/parse").openConnection();
+		assertEquals(405, c.getResponseCode());
+		assertEquals("POST", c.getHeaderField("Allow"));
+
+		assertEquals(400, post("/parse?format=latin", "Dogs bark.", null).getResponseCode());
+		assertEquals(400, post("/parse", "{\"text\": ", null).getResponseCode());
+		assertEquals(400, post("/parse", "{\"words\": \"Dogs bark.\"}", null).getResponseCode());
+		assertEquals(400, post("/parse/batch", "{\"words\": []}", null).getResponseCode());
+		assertEquals(400, post("/parse?maxLinkages=many", "Dogs bark.", null).getResponseCode());
+		assertEquals(400, post("/parse", "  ", null).getResponseCode());
+
+		StringBuilder big = new StringBuilder(HttpParseServer.MAX_BODY_BYTES + 1);
+		while (big.length() <= HttpParseServer.MAX_BODY_BYTES) big.append("Dogs bark. ");
+		c = post("/parse/batch", big.toString(), null);
+		assertEquals(413, c.getResponseCode());
+		assertTrue(body(c).startsWith("Request body over"));
+	}
+
+	@Test
+	public void testOverloaded() throws Exception
+	{
+		start(1, 0, 1);
+		final int[] status = new int[1];
+		Thread slow = new Thread()
+		{
+			public void run()
+			{
+				try
+				{
+					status[0] = post("/parse", "Slow dogs bark.", null).getResponseCode();
+				}
+				catch (IOException e)
+				{
+					status[0] = -1;
+				}
+			}
+		};
+		slow.start();
+		Thread.sleep(500);
+
+		// One request at a time from each client.
+		HttpURLConnection c = post("/parse", "Dogs bark.", null);
+		assertEquals(503, c.getResponseCode());
+		assertNotNull(c.getHeaderField("Retry-After"));
+		assertTrue(1 <= Integer.parseInt(c.getHeaderField("Retry-After")));
+		assertTrue(body(c).startsWith("Overloaded: too many requests from"));
+
+		slow.join(10000);
+		assertEquals(200, status[0]);
+
+		// The slow one is let go of just after its reply is sent.
+		for (int i = 0; i < 50; i++)
+		{
+			c = post("/parse", "Dogs bark.", null);
+			if (c.getResponseCode() != 503) break;
+			body(c);
+			Thread.sleep(20);
+		}
+		assertEquals(200, c.getResponseCode());
+		assertTrue(body(c).contains("Dogs bark."));
+	}
+
+	@Test
+	public void testOpenCogDeadline() throws Exception
+	{
+		start(1, 300, 0);
+
+		// Out of time by the end of the parse: no parse is processed.
+		String out = body(post("/parse?format=opencog", "Slow dogs bark.", null));
+		assertEquals("; NO PARSES\n", out);
+
+		out = body(post("/parse?format=opencog", "Dogs bark.", null));
+		assertTrue(out, out.endsWith("; END OF SENTENCE\n"));
+	}
+}
@@ -0,0 +1,223 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package relex.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+import relex.NioFrontEnd;
+import relex.ServerSession;
+
+/**
+ * The framing and reply order of the NioFrontEnd, with sessions that
+ * echo each sentence back instead of parsing it.
+ */
+public class TestNioFrontEnd
+{
+	private ServerSocketChannel listen;
+	private Thread server;
+
+	// Sentences being responded to right now, and the most at once.
+	private final AtomicInteger busy = new AtomicInteger();
+	private final AtomicInteger most_busy = new AtomicInteger();
+
+	private class EchoSession extends ServerSession
+	{
+		public boolean respond(String sentence, PrintWriter out) throws Exception
+		{
+			int n = busy.incrementAndGet();
+			while (most_busy.get() < n) most_busy.compareAndSet(most_busy.get(), n);
+			try
+			{
+				// Finish out of order.
+				Thread.sleep((sentence.hashCode() & 0x7) * 2);
+				if (sentence.contains("boom")) throw new Exception("boom");
+				out.println("; ECHO " + sentence);
+				return true;
+			}
+			finally
+			{
+				busy.decrementAndGet();
+			}
+		}
+
+		public void sess_close()
+		{
+		}
+	}
+
+	private int start(boolean free_text, int threads, int max_in_flight) throws IOException
+	{
+		listen = ServerSocketChannel.open();
+		listen.socket().bind(new InetSocketAddress("localhost", 0));
+		final NioFrontEnd fe = new NioFrontEnd(listen, threads, free_text,
+			new NioFrontEnd.SessionFactory()
+		{
+			public ServerSession make(int id)
+			{
+				return new EchoSession();
+			}
+		});
+		fe.setMaxInFlight(max_in_flight);
+		server = new Thread("nio-front-end")
+		{
+			public void run()
+			{
+				try
+				{
+					fe.serve();
+				}
+				catch (IOException e)
+				{
+					e.printStackTrace();
+				}
+			}
+		};
+		server.setDaemon(true);
+		server.start();
+		return listen.socket().getLocalPort();
+	}
+
+	@After
+	public void tearDown() throws Exception
+	{
+		server.interrupt();
+		server.join(10000);
+		listen.close();
+	}
+
+	/**
+	 * Send the text a few bytes at a time, then end the input, either
+	 * by closing the output or with an EOT; return the reply lines.
+	 */
+	private static List<String> converse(int port, String text, int chunk, boolean eot)
+		throws IOException
+	{
+		Socket s = new Socket("localhost", port);
+		try
+		{
+			OutputStream out = s.getOutputStream();
+			byte[] b = text.getBytes("UTF-8");
+			for (int i = 0; i < b.length; i += chunk)
+			{
+				out.write(b, i, Math.min(chunk, b.length - i));
+				out.flush();
+			}
+			if (eot) out.write(4);
+			else s.shutdownOutput();
+
+			List<String> lines = new ArrayList<String>();
+			BufferedReader in = new BufferedReader(
+				new InputStreamReader(s.getInputStream(), "UTF-8"));
+			String l;
+			while ((l = in.readLine()) != null) lines.add(l);
+			return lines;
+		}
+		finally
+		{
+			s.close();
+		}
+	}
+
+	@Test
+	public void testLinesInOrder() throws Exception
+	{
+		int port = start(false, 4, 3);
+		StringBuilder text = new StringBuilder();
+		List<String> expect = new ArrayList<String>();
+		for (int i = 0; i < 30; i++)
+		{
+			String snt = (i % 11 == 5) ? "Dogs boom " + i + "." : "Dogs bark " + i + ".";
+			// CRLF, blank lines and surrounding blanks are all dropped.
+			text.append((i % 4 == 0) ? "  " + snt + " \r\n\n" : snt + "\n");
+			expect.add(snt.contains("boom") ? "; PARSE FAILED" : "; ECHO " + snt);
+		}
+		// The last line need not end in a newline.
+		text.append("Cats meow.");
+		expect.add("; ECHO Cats meow.");
+
+		assertEquals(expect, converse(port, text.toString(), 7, false));
+		assertTrue("in flight " + most_busy.get(), most_busy.get() <= 3);
+	}
+
+	@Test
+	public void testClientsDoNotMix() throws Exception
+	{
+		final int port = start(false, 4, 4);
+		final List<Throwable> errors = new ArrayList<Throwable>();
+		Thread[] clients = new Thread[4];
+		for (int c = 0; c < clients.length; c++)
+		{
+			final int cid = c;
+			clients[c] = new Thread()
+			{
+				public void run()
+				{
+					try
+					{
+						StringBuilder text = new StringBuilder();
+						List<String> expect = new ArrayList<String>();
+						for (int i = 0; i < 25; i++)
+						{
+							String snt = "Client " + cid + " says " + i + ".";
+							text.append(snt).append('\n');
+							expect.add("; ECHO " + snt);
+						}
+						assertEquals(expect, converse(port, text.toString(), 4096, cid % 2 == 0));
+					}
+					catch (Throwable t)
+					{
+						synchronized (errors)
+						{
+							errors.add(t);
+						}
+					}
+				}
+			};
+			clients[c].start();
+		}
+		for (Thread t : clients) t.join(30000);
+		assertEquals("[]", errors.toString());
+	}
+
+	@Test
+	public void testFreeText() throws Exception
+	{
+		int port = start(true, 2, 2);
+		List<String> got = converse(port,
+			"Dogs bark. Cats\nmeow loudly. Birds\nsing.\n\nAnd then it ends", 5, true);
+
+		assertEquals(4, got.size());
+		assertEquals("; ECHO Dogs bark.", got.get(0));
+		assertEquals("; ECHO Cats meow loudly.", got.get(1));
+		assertEquals("; ECHO Birds sing.", got.get(2));
+		assertEquals("; ECHO And then it ends", got.get(3));
+	}
+}
@@ -0,0 +1,350 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package relex.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import relex.ParsedSentence;
+import relex.PlainTextServer;
+import relex.PlainTextServer.Batch;
+import relex.Sentence;
+import relex.feature.FeatureNode;
+import relex.feature.LinkView;
+import relex.feature.LinkableView;
+import relex.morphy.MappedLexicon;
+import relex.morphy.MorphyFactory;
+import relex.morphy.WordNetIndex;
+import relex.parser.JSONReader;
+import relex.parser.LGParser;
+
+/**
+ * The batch protocol of the PlainTextServer, and its fallback to one
+ * sentence per connection, with a stub parser in place of
+ * link-grammar.
+ */
+public class TestPlainTextServer
+{
+	@ClassRule
+	public static TemporaryFolder tmp = new TemporaryFolder();
+
+	private ServerSocket listen;
+	private Thread server;
+
+	/**
+	 * Links each word to the next. A sentence that starts with "Slow"
+	 * takes half a second.
+	 */
+	private static class ChainParser extends LGParser
+	{
+		public Sentence parse(String text)
+		{
+			if (text.startsWith("Slow"))
+			{
+				try
+				{
+					Thread.sleep(500);
+				}
+				catch (InterruptedException e)
+				{
+					Thread.currentThread().interrupt();
+				}
+			}
+			String[] toks = text.substring(0, text.length() - 1).split(" ");
+			ParsedSentence s = new ParsedSentence(text);
+			FeatureNode leftWall = null;
+			FeatureNode lastFN = null;
+			int at = 0;
+			for (int i = 0; i <= toks.length + 1; i++)
+			{
+				String w = (i == 0) ? "LEFT-WALL" : (i <= toks.length) ? toks[i-1] : ".";
+				FeatureNode fn = new FeatureNode();
+				if (leftWall == null) leftWall = fn;
+				LinkableView.setWord(fn, w);
+				fn.set("this", fn);
+				fn.set("wall", leftWall);
+				if (lastFN != null)
+				{
+					LinkableView.setNext(lastFN, fn);
+					LinkableView.setPrev(fn, lastFN);
+				}
+				s.addWord(fn);
+				if (i == 0)
+				{
+					LinkableView.setCharIndices(fn, -1, -1, i);
+				}
+				else
+				{
+					LinkableView.setCharIndices(fn, at, at + w.length(), i);
+					at += w.length() + ((i < toks.length) ? 1 : 0);
+				}
+				lastFN = fn;
+			}
+			LinkView.setLinkFeatures(new FeatureNode(), "Xp", "Xp", "Xp",
+				s.getWordAsNode(0), s.getWordAsNode(toks.length + 1));
+			LinkView.setLinkFeatures(new FeatureNode(), "Wd", "Wd", "Wd",
+				s.getWordAsNode(0), s.getWordAsNode(1));
+			for (int i = 1; i < toks.length; i++)
+				LinkView.setLinkFeatures(new FeatureNode(), "A", "A", "A",
+					s.getWordAsNode(i), s.getWordAsNode(i + 1));
+			s.setMetaData(new FeatureNode());
+
+			ArrayList<ParsedSentence> parses = new ArrayList<ParsedSentence>();
+			parses.add(s);
+			Sentence sntc = new Sentence();
+			sntc.setSentence(text);
+			sntc.setParses(parses);
+			sntc.setNumParses(1);
+			return sntc;
+		}
+
+		public LGParser copyForThread() { return new ChainParser(); }
+		public String getVersion() { return "chain"; }
+		public void init() {}
+		public void close() {}
+		public void doFinalize() {}
+	}
+
+	@BeforeClass
+	public static void setUp() throws IOException
+	{
+		// MapMorphy, from a lexicon that knows only "dog" and "bark".
+		File dict = tmp.newFolder("dict");
+		write(new File(dict, "index.noun"), "dog n 1 1 @ 1 0 02084071\n");
+		write(new File(dict, "index.verb"), "bark v 1 0 1 0 01047745\n");
+		write(new File(dict, "index.adj"), "");
+		write(new File(dict, "index.adv"), "");
+		File lex = new File(tmp.getRoot(), "lexicon.bin");
+		MappedLexicon.write(WordNetIndex.load(dict), lex);
+		System.setProperty(MorphyFactory.MORPHY_IMPLEMENTATION_PROPERTY,
+			MorphyFactory.DEFAULT_MULTI_THREAD_IMPLEMENTATION);
+		System.setProperty(MappedLexicon.LEXICON_PROPERTY, lex.getPath());
+	}
+
+	@AfterClass
+	public static void tearDownClass()
+	{
+		System.clearProperty(MorphyFactory.MORPHY_IMPLEMENTATION_PROPERTY);
+		System.clearProperty(MappedLexicon.LEXICON_PROPERTY);
+	}
+
+	@After
+	public void tearDown() throws Exception
+	{
+		if (listen == null) return;
+		listen.close();
+		server.join(10000);
+	}
+
+	private static void write(File f, String text) throws IOException
+	{
+		FileOutputStream out = new FileOutputStream(f);
+		try
+		{
+			out.write(text.getBytes("UTF-8"));
+		}
+		finally
+		{
+			out.close();
+		}
+	}
+
+	private void start(int threads) throws IOException
+	{
+		final PlainTextServer srv = new PlainTextServer();
+		srv.setThreads(threads);
+		srv.setParser(new ChainParser());
+		srv.start();
+		listen = new ServerSocket(0, 50, InetAddress.getByName("localhost"));
+		server = new Thread("plain-text-server")
+		{
+			public void run()
+			{
+				try
+				{
+					srv.serve(listen);
+				}
+				catch (InterruptedException e)
+				{
+				}
+			}
+		};
+		server.setDaemon(true);
+		server.start();
+	}
+
+	/** Send one request; return the lines of the reply. */
+	private List<String> converse(String request) throws IOException
+	{
+		Socket s = new Socket("localhost", listen.getLocalPort());
+		try
+		{
+			OutputStream out = s.getOutputStream();
+			out.write(request.getBytes("UTF-8"));
+			out.flush();
+			s.shutdownOutput();
+
+			List<String> lines = new ArrayList<String>();
+			BufferedReader in = new BufferedReader(
+				new InputStreamReader(s.getInputStream(), "UTF-8"));
+			String l;
+			while ((l = in.readLine()) != null) lines.add(l);
+			return lines;
+		}
+		finally
+		{
+			s.close();
+		}
+	}
+
+	private static Map<?, ?> json(String line)
+	{
+		return (Map<?, ?>) new JSONReader().read(line);
+	}
+
+	private static int seq(String line)
+	{
+		return ((Number) json(line).get("seq")).intValue();
+	}
+
+	/** Check the last line, and return the others. */
+	private static List<String> replies(List<String> lines, int n)
+	{
+		assertEquals(lines.toString(), n + 1, lines.size());
+		Map<?, ?> done = json(lines.get(n));
+		assertEquals(Boolean.TRUE, done.get("done"));
+		assertEquals(n, ((Number) done.get("sentences")).intValue());
+		return lines.subList(0, n);
+	}
+
+	@Test
+	public void testParse()
+	{
+		Batch b = Batch.parse("{\"sentences\":[\"Dogs bark.\", \"  \", null, " +
+			"\" Big dogs bark. \"], \"showRelex\":true, \"maxLinkages\":\"2\"}");
+		assertEquals(Arrays.asList("Dogs bark.", "Big dogs bark."), b.sentences);
+		assertTrue(b.ordered);
+		assertEquals(2, b.options.numShow);
+		assertTrue(b.options.showRelex);
+		assertFalse(b.options.showLink);
+		assertFalse(b.options.showStanford);
+
+		// Split into sentences; with nothing asked for, everything shown.
+		b = Batch.parse("{\"document\":\"Dogs bark. Big dogs bark.  \", \"ordered\":false}");
+		assertEquals(Arrays.asList("Dogs bark.", "Big dogs bark."), b.sentences);
+		assertFalse(b.ordered);
+		assertEquals(3, b.options.numShow);
+		assertTrue(b.options.showLink && b.options.showPhrase
+			&& b.options.showRelex && b.options.showStanford);
+
+		// The list, if there are both.
+		b = Batch.parse("{\"sentences\":[\"Dogs bark.\"], \"document\":\"Big dogs bark.\"}");
+		assertEquals(Arrays.asList("Dogs bark."), b.sentences);
+
+		// Not batches.
+		assertNull(Batch.parse("Dogs bark."));
+		assertNull(Batch.parse("text:Dogs bark."));
+		assertNull(Batch.parse("{\"text\":\"Dogs bark.\"}"));
+		assertNull(Batch.parse("{\"sentences\":\"Dogs bark.\"}"));
+		assertNull(Batch.parse("[\"Dogs bark.\"]"));
+		assertNull(Batch.parse("{\"sentences\":["));
+	}
+
+	@Test
+	public void testOrdered() throws Exception
+	{
+		start(2);
+		List<String> lines = replies(converse("{\"sentences\":[\"Slow dogs bark.\", " +
+			"\"Dogs bark.\", \"Big dogs bark.\"], \"showRelex\":true}\n"), 3);
+
+		// Held back until the slow one is done.
+		for (int i = 0; i < 3; i++) assertEquals(i, seq(lines.get(i)));
+		Map<?, ?> first = json(lines.get(0));
+		assertEquals("Slow dogs bark.", first.get("text"));
+		assertEquals(1, ((Number) first.get("numParses")).intValue());
+		Map<?, ?> parse = (Map<?, ?>) ((List<?>) first.get("parses")).get(0);
+		assertEquals(1, ((Number) parse.get("alternative")).intValue());
+		assertTrue(parse.containsKey("relex"));
+		assertFalse(parse.containsKey("link"));
+	}
+
+	@Test
+	public void testUnordered() throws Exception
+	{
+		start(2);
+		List<String> lines = replies(converse("{\"sentences\":[\"Slow dogs bark.\", " +
+			"\"Dogs bark.\", \"Big dogs bark.\"], \"ordered\":false}\n"), 3);
+
+		// As each is done: the slow one last.
+		assertEquals(0, seq(lines.get(2)));
+		assertEquals(3, seq(lines.get(0)) + seq(lines.get(1)));
+		assertEquals("Slow dogs bark.", json(lines.get(2)).get("text"));
+	}
+
+	@Test
+	public void testDocument() throws Exception
+	{
+		start(1);
+		List<String> lines = replies(converse(
+			"{\"document\":\"Dogs bark. Big dogs bark.\", \"showLink\":true}\n"), 2);
+		assertEquals("Dogs bark.", json(lines.get(0)).get("text"));
+		assertEquals("Big dogs bark.", json(lines.get(1)).get("text"));
+		Map<?, ?> parse = (Map<?, ?>) ((List<?>) json(lines.get(1)).get("parses")).get(0);
+		assertTrue(parse.containsKey("link"));
+		assertFalse(parse.containsKey("relex"));
+
+		// Nothing to parse.
+		replies(converse("{\"sentences\":[]}\n"), 0);
+	}
+
+	@Test
+	public void testFallback() throws Exception
+	{
+		start(1);
+
+		// Plain text, and a line of JSON that is not a batch, are each
+		// one sentence, answered in the old format.
+		for (String req : new String[] {"Dogs bark.\n", "{\"maxLinkages\":1}\n"})
+		{
+			List<String> lines = converse(req);
+			assertEquals(lines.toString(), "==== Parse alternative 1 ====", lines.get(0));
+			assertEquals("==== END OF SENTENCE ====", lines.get(lines.size() - 1));
+			for (String l : lines) assertFalse(l, l.startsWith("{"));
+		}
+	}
+}
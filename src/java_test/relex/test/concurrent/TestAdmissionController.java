@@ -0,0 +1,159 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package relex.test.concurrent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import relex.concurrent.AdmissionController;
+import relex.concurrent.AdmissionController.Ticket;
+
+public class TestAdmissionController
+{
+	private static void assertIdle(AdmissionController ac)
+	{
+		assertEquals(0, ac.getWaiting());
+		assertTrue(ac.toString(), ac.toString().contains(" 0 waiting, 0 running"));
+	}
+
+	@Test
+	public void testQueueLimit()
+	{
+		AdmissionController ac = new AdmissionController(1, 3, 0, 0);
+
+		// Too big, but there is nothing ahead of it.
+		Ticket big = ac.admit("a", 10);
+		assertFalse(big.isRejected());
+		assertEquals(10, ac.getWaiting());
+		big.finish();
+		assertIdle(ac);
+
+		Ticket a = ac.admit("a", 2);
+		Ticket b = ac.admit("b");
+		assertEquals(3, ac.getWaiting());
+		Ticket c = ac.admit("c");
+		assertTrue(c.isRejected());
+		assertTrue(c.getReason(), c.getReason().startsWith("server queue is full"));
+		assertEquals(1, ac.getRejected());
+
+		// A refused ticket neither starts nor counts when finished.
+		assertFalse(c.start());
+		c.finish();
+		assertEquals(3, ac.getWaiting());
+
+		// Still waiting: b, and the unit of a beyond the one worker.
+		assertTrue(a.start());
+		assertEquals(2, ac.getWaiting());
+
+		// b is given up on before it starts.
+		b.finish();
+		a.finish();
+		a.finish();
+		assertIdle(ac);
+		assertEquals(1, ac.getRejected());
+	}
+
+	@Test
+	public void testPerClient()
+	{
+		AdmissionController ac = new AdmissionController(4, 0, 2, 0);
+		Ticket x1 = ac.admit("x");
+		Ticket x2 = ac.admit("x");
+		Ticket x3 = ac.admit("x");
+		assertTrue(x3.isRejected());
+		assertTrue(x3.getReason(), x3.getReason().startsWith("too many requests from x"));
+
+		Ticket y1 = ac.admit("y");
+		assertFalse(y1.isRejected());
+
+		assertTrue(x1.start());
+		x1.finish();
+		Ticket x4 = ac.admit("x");
+		assertFalse(x4.isRejected());
+
+		x2.finish();
+		x4.finish();
+		y1.finish();
+		assertIdle(ac);
+		assertEquals(1, ac.getRejected());
+	}
+
+	@Test
+	public void testShed() throws InterruptedException
+	{
+		AdmissionController ac = new AdmissionController(1, 0, 0, 50);
+		Ticket t = ac.admit("a");
+		assertFalse(t.isRejected());
+		Thread.sleep(80);
+		assertEquals(0, t.getRemainingQueueMillis());
+
+		assertFalse(t.start());
+		assertTrue(t.isRejected());
+		assertTrue(t.getReason(), t.getReason().startsWith("waited "));
+		assertEquals(1, ac.getRejected());
+		assertEquals(1, ac.getWaiting());
+		t.finish();
+		assertIdle(ac);
+	}
+
+	@Test
+	public void testPredictedWait() throws InterruptedException
+	{
+		AdmissionController ac = new AdmissionController(1, 0, 0, 50);
+
+		// Learn that a unit takes at least 100ms.
+		Ticket t = ac.admit("a");
+		assertTrue(t.start());
+		Thread.sleep(100);
+		t.finish();
+		assertEquals(0, ac.predictedWaitMillis());
+
+		Ticket a = ac.admit("a");
+		assertFalse(a.isRejected());
+		assertTrue(100 <= ac.predictedWaitMillis());
+		Ticket b = ac.admit("b");
+		assertTrue(b.isRejected());
+		assertTrue(b.getReason(), b.getReason().startsWith("predicted wait of "));
+
+		assertTrue(a.start());
+		a.finish();
+		assertIdle(ac);
+		assertEquals(1, ac.getRejected());
+	}
+
+	@Test
+	public void testNoLimits()
+	{
+		AdmissionController ac = new AdmissionController(2, 0, 0, 0);
+		Ticket[] ts = new Ticket[100];
+		for (int i = 0; i < ts.length; i++)
+		{
+			ts[i] = ac.admit("a");
+			assertFalse(ts[i].isRejected());
+			assertEquals(Long.MAX_VALUE, ts[i].getRemainingQueueMillis());
+		}
+		assertEquals(100, ac.getWaiting());
+		for (int i = 0; i < ts.length; i++)
+		{
+			if (i % 2 == 0) assertTrue(ts[i].start());
+			ts[i].finish();
+		}
+		assertIdle(ac);
+		assertEquals(0, ac.getRejected());
+	}
+}
@@ -0,0 +1,147 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package relex.test.concurrent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import relex.concurrent.BatchDriver;
+import relex.concurrent.BatchDriver.LineReader;
+import relex.concurrent.BatchDriver.Shard;
+
+public class TestBatchDriver
+{
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
+	// Empty lines, a CRLF ending, multi-byte characters, and no newline
+	// at the end.
+	private static final String TEXT =
+		"The dog barked.\n" +
+		"\n" +
+		"A cat sat on the mat.\r\n" +
+		"\u00dcber caf\u00e9 na\u00efve \u2013 d\u00e9j\u00e0 vu.\n" +
+		"x\n" +
+		"\n" +
+		"\n" +
+		"The last line has no newline.";
+
+	private static final List<String> LINES = Arrays.asList(
+		"The dog barked.", "", "A cat sat on the mat.",
+		"\u00dcber caf\u00e9 na\u00efve \u2013 d\u00e9j\u00e0 vu.", "x", "", "",
+		"The last line has no newline.");
+
+	private static void write(File f, String text) throws IOException
+	{
+		FileOutputStream out = new FileOutputStream(f);
+		try
+		{
+			out.write(text.getBytes("UTF-8"));
+		}
+		finally
+		{
+			out.close();
+		}
+	}
+
+	private static List<String> read(Shard s) throws IOException
+	{
+		List<String> lines = new ArrayList<String>();
+		LineReader in = new LineReader(s.file, s.start, s.end);
+		try
+		{
+			String line;
+			while ((line = in.readLine()) != null) lines.add(line);
+		}
+		finally
+		{
+			in.close();
+		}
+		return lines;
+	}
+
+	@Test
+	public void testShards() throws IOException
+	{
+		File f = tmp.newFile("text.txt");
+		write(f, TEXT);
+		long len = f.length();
+
+		for (long bytes : new long[] {0, 1, 2, 3, 5, 7, 16, 17, 23, 64, len - 1, len, 1000})
+		{
+			List<Shard> shards = BatchDriver.plan(f, bytes);
+			long expected = (bytes <= 0 || len <= bytes) ? 1 : (len + bytes - 1) / bytes;
+			assertEquals("shard-bytes " + bytes, expected, shards.size());
+
+			// Each line is read by the one shard it starts in.
+			List<String> got = new ArrayList<String>();
+			for (Shard s : shards) got.addAll(read(s));
+			assertEquals("shard-bytes " + bytes, LINES, got);
+		}
+	}
+
+	@Test
+	public void testShardIds() throws IOException
+	{
+		File dir = tmp.newFolder("in");
+		File sub = new File(dir, "sub");
+		assertTrue(sub.mkdir());
+		write(new File(dir, "b.txt"), "0123456789\n");
+		write(new File(dir, "a.txt"), "Short.\n");
+		write(new File(sub, "c.txt"), "Also short.\n");
+
+		List<String> ids = new ArrayList<String>();
+		for (Shard s : BatchDriver.plan(dir, 8)) ids.add(s.getId());
+		assertEquals(Arrays.asList("a.txt", "b.txt@0-8", "b.txt@8-11",
+			"sub" + File.separator + "c.txt@0-8", "sub" + File.separator + "c.txt@8-12"), ids);
+	}
+
+	@Test
+	public void testManifest() throws IOException
+	{
+		File out = tmp.newFolder("out");
+		File manifest = new File(out, BatchDriver.MANIFEST);
+		BatchDriver driver = new BatchDriver(out);
+		assertEquals(0, driver.readManifest().size());
+
+		// A crash while appending the last line.
+		write(manifest, "a.txt\t12\t340\n# a comment\t0\t0\nb.txt@0-8\t5\t");
+		assertEquals(new HashSet<String>(Arrays.asList("a.txt")), driver.readManifest());
+
+		write(manifest, "a.txt\t12\t340\nb.txt@0-8");
+		assertEquals(new HashSet<String>(Arrays.asList("a.txt")), driver.readManifest());
+
+		// The next shard done after a restart is not run into the cut
+		// line.
+		File f = new File(tmp.getRoot(), "c.txt");
+		write(f, "Short.\n");
+		driver.markDone(BatchDriver.plan(f, 0).get(0), 1, 20);
+		Set<String> ids = driver.readManifest();
+		assertEquals(new HashSet<String>(Arrays.asList("a.txt", "c.txt")), ids);
+	}
+}
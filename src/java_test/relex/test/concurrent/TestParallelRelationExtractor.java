@@ -0,0 +1,312 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package relex.test.concurrent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import relex.ParsedSentence;
+import relex.Sentence;
+import relex.concurrent.ParallelRelationExtractor;
+import relex.concurrent.ParserFactory;
+import relex.concurrent.RelexTaskResult;
+import relex.feature.FeatureNode;
+import relex.feature.LinkView;
+import relex.feature.LinkableView;
+import relex.morphy.MappedLexicon;
+import relex.morphy.MorphyFactory;
+import relex.morphy.WordNetIndex;
+import relex.parser.LGParser;
+import relex.parser.RecordingParser;
+
+/**
+ * Runs the extractor on parses served back by a ReplayParser, so that
+ * neither link-grammar nor WordNet is needed.
+ */
+public class TestParallelRelationExtractor
+{
+	private static final int SENTENCES = 40;
+
+	@ClassRule
+	public static TemporaryFolder tmp = new TemporaryFolder();
+
+	private static File recording;
+
+	/**
+	 * A stand-in for link-grammar: each word linked to the next, the
+	 * first word and the period to the LEFT-WALL.
+	 */
+	private static class ChainParser extends LGParser
+	{
+		public Sentence parse(String text)
+		{
+			String[] toks = text.substring(0, text.length() - 1).split(" ");
+			ParsedSentence s = new ParsedSentence(text);
+			FeatureNode leftWall = null;
+			FeatureNode lastFN = null;
+			int at = 0;
+			for (int i = 0; i <= toks.length + 1; i++)
+			{
+				String w = (i == 0) ? "LEFT-WALL" : (i <= toks.length) ? toks[i-1] : ".";
+				FeatureNode fn = new FeatureNode();
+				if (leftWall == null) leftWall = fn;
+				LinkableView.setWord(fn, w);
+				fn.set("this", fn);
+				fn.set("wall", leftWall);
+				if (lastFN != null)
+				{
+					LinkableView.setNext(lastFN, fn);
+					LinkableView.setPrev(fn, lastFN);
+				}
+				s.addWord(fn);
+				if (i == 0)
+				{
+					LinkableView.setCharIndices(fn, -1, -1, i);
+				}
+				else
+				{
+					LinkableView.setCharIndices(fn, at, at + w.length(), i);
+					at += w.length() + ((i < toks.length) ? 1 : 0);
+				}
+				lastFN = fn;
+			}
+			LinkView.setLinkFeatures(new FeatureNode(), "Xp", "Xp", "Xp",
+				s.getWordAsNode(0), s.getWordAsNode(toks.length + 1));
+			LinkView.setLinkFeatures(new FeatureNode(), "Wd", "Wd", "Wd",
+				s.getWordAsNode(0), s.getWordAsNode(1));
+			for (int i = 1; i < toks.length; i++)
+				LinkView.setLinkFeatures(new FeatureNode(), "A", "A", "A",
+					s.getWordAsNode(i), s.getWordAsNode(i + 1));
+			s.setMetaData(new FeatureNode());
+
+			ArrayList<ParsedSentence> parses = new ArrayList<ParsedSentence>();
+			parses.add(s);
+			Sentence sntc = new Sentence();
+			sntc.setSentence(text);
+			sntc.setParses(parses);
+			sntc.setNumParses(1);
+			return sntc;
+		}
+
+		public String getVersion() { return "chain"; }
+		public void init() {}
+		public void close() {}
+		public void doFinalize() {}
+	}
+
+	// Longer, and so costlier, every few sentences.
+	private static String sentence(int i)
+	{
+		StringBuilder sb = new StringBuilder("Dogs");
+		for (int j = 0; j < i % 7; j++) sb.append(" big");
+		return sb.append(" bark ").append(i).append('.').toString();
+	}
+
+	@BeforeClass
+	public static void setUp() throws IOException
+	{
+		// MapMorphy, from a lexicon that knows only "dog" and "bark".
+		File dict = tmp.newFolder("dict");
+		write(new File(dict, "index.noun"), "dog n 1 1 @ 1 0 02084071\n");
+		write(new File(dict, "index.verb"), "bark v 1 0 1 0 01047745\n");
+		write(new File(dict, "index.adj"), "big a 1 0 1 0 01382086\n");
+		write(new File(dict, "index.adv"), "");
+		File lex = new File(tmp.getRoot(), "lexicon.bin");
+		MappedLexicon.write(WordNetIndex.load(dict), lex);
+		System.setProperty(MorphyFactory.MORPHY_IMPLEMENTATION_PROPERTY,
+			MorphyFactory.DEFAULT_MULTI_THREAD_IMPLEMENTATION);
+		System.setProperty(MappedLexicon.LEXICON_PROPERTY, lex.getPath());
+
+		recording = new File(tmp.getRoot(), "parses.gz");
+		RecordingParser rec = new RecordingParser(new ChainParser(), recording);
+		for (int i = 0; i < SENTENCES; i++) rec.parse(sentence(i));
+		rec.doFinalize();
+	}
+
+	@AfterClass
+	public static void tearDown()
+	{
+		System.clearProperty(MorphyFactory.MORPHY_IMPLEMENTATION_PROPERTY);
+		System.clearProperty(MappedLexicon.LEXICON_PROPERTY);
+	}
+
+	private static void write(File f, String text) throws IOException
+	{
+		FileOutputStream out = new FileOutputStream(f);
+		try
+		{
+			out.write(text.getBytes("UTF-8"));
+		}
+		finally
+		{
+			out.close();
+		}
+	}
+
+	private void checkOrder(ParallelRelationExtractor pre) throws Exception
+	{
+		List<RelexTaskResult> got = new ArrayList<RelexTaskResult>();
+		for (int i = 0; i < SENTENCES; i++)
+		{
+			// Take as we go, so that the window never stays full.
+			if (!pre.offer(sentence(i), 0, TimeUnit.MILLISECONDS))
+			{
+				got.add(pre.take());
+				pre.push(sentence(i));
+			}
+		}
+		got.addAll(pre.drain());
+		assertNull(pre.take());
+		assertFalse(pre.isRunning());
+		assertTrue(pre.awaitTermination(30, TimeUnit.SECONDS));
+
+		assertEquals(SENTENCES, got.size());
+		for (int i = 0; i < SENTENCES; i++)
+		{
+			RelexTaskResult r = got.get(i);
+			assertEquals(i, r.index.intValue());
+			assertEquals(sentence(i), r.sentence);
+			assertEquals(1, r.result.getParses().size());
+		}
+	}
+
+	@Test
+	public void testOrderFifo() throws Exception
+	{
+		checkOrder(new ParallelRelationExtractor(
+			ParserFactory.replay(recording), 4, 6));
+	}
+
+	@Test
+	public void testOrderLongestFirst() throws Exception
+	{
+		checkOrder(new ParallelRelationExtractor(
+			ParserFactory.replay(recording), 4, 6,
+			ParallelRelationExtractor.Scheduling.LONGEST_FIRST));
+	}
+
+	@Test
+	public void testLongestFirstDispatch() throws Exception
+	{
+		// One worker, held up in its first sentence until the rest
+		// are queued.
+		final List<String> started = Collections.synchronizedList(new ArrayList<String>());
+		final CountDownLatch gate = new CountDownLatch(1);
+		ParserFactory factory = new ParserFactory()
+		{
+			public LGParser create(int worker)
+			{
+				return new ChainParser()
+				{
+					public Sentence parse(String text)
+					{
+						started.add(text);
+						try
+						{
+							gate.await();
+						}
+						catch (InterruptedException e)
+						{
+							Thread.currentThread().interrupt();
+						}
+						return super.parse(text);
+					}
+				};
+			}
+
+			public void doFinalize()
+			{
+			}
+		};
+		ParallelRelationExtractor pre = new ParallelRelationExtractor(factory, 1, 10,
+			ParallelRelationExtractor.Scheduling.LONGEST_FIRST);
+
+		// 3, then 5, 8, 4, 9, 6 and 4 words.
+		List<String> pushed = new ArrayList<String>();
+		for (int i : new int[] {7, 2, 5, 1, 6, 3, 8}) pushed.add(sentence(i));
+		pre.push(pushed.get(0));
+		while (started.isEmpty()) Thread.sleep(5);
+		for (String s : pushed.subList(1, pushed.size())) pre.push(s);
+		gate.countDown();
+
+		// Results in the order pushed ...
+		for (int i = 0; i < pushed.size(); i++)
+		{
+			RelexTaskResult r = pre.take();
+			assertEquals(i, r.index.intValue());
+			assertEquals(pushed.get(i), r.sentence);
+		}
+		assertEquals(0, pre.drain().size());
+		assertTrue(pre.awaitTermination(30, TimeUnit.SECONDS));
+
+		// ... but parsed longest first; of equal ones, the first pushed.
+		assertEquals(Arrays.asList(sentence(7), sentence(6), sentence(5), sentence(3),
+			sentence(2), sentence(1), sentence(8)), started);
+	}
+
+	@Test
+	public void testWindow() throws Exception
+	{
+		ParallelRelationExtractor pre = new ParallelRelationExtractor(
+			ParserFactory.replay(recording), 2, 3);
+		assertEquals(3, pre.getWindow());
+
+		for (int i = 0; i < 3; i++)
+			assertTrue(pre.offer(sentence(i), 1, TimeUnit.SECONDS));
+		assertEquals(3, pre.getInFlight());
+
+		// Done or not, nothing more goes in until a result is taken.
+		assertFalse(pre.offer(sentence(3), 200, TimeUnit.MILLISECONDS));
+		assertEquals(3, pre.getCount());
+
+		assertEquals(0, pre.take().index.intValue());
+		assertEquals(2, pre.getInFlight());
+		assertTrue(pre.offer(sentence(3), 1, TimeUnit.SECONDS));
+
+		List<RelexTaskResult> rest = pre.drain();
+		assertEquals(3, rest.size());
+		assertEquals(3, rest.get(2).index.intValue());
+		assertEquals(0, pre.getInFlight());
+
+		try
+		{
+			pre.push(sentence(4));
+			throw new AssertionError("push after shutdown");
+		}
+		catch (IllegalStateException expected)
+		{
+			assertEquals(0, pre.getInFlight());
+		}
+		assertTrue(pre.awaitTermination(30, TimeUnit.SECONDS));
+	}
+}
@@ -0,0 +1,316 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package relex.test.concurrent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.linkgrammar.LGConfig;
+
+import relex.ParsedSentence;
+import relex.Sentence;
+import relex.concurrent.ParserFactory;
+import relex.concurrent.RelexPipeline;
+import relex.feature.FeatureNode;
+import relex.feature.LinkView;
+import relex.feature.LinkableView;
+import relex.morphy.MappedLexicon;
+import relex.morphy.MorphyFactory;
+import relex.morphy.WordNetIndex;
+import relex.parser.LGParser;
+
+/**
+ * Runs the pipeline on parses made up by a stub parser, so that
+ * neither link-grammar nor WordNet is needed.
+ */
+public class TestRelexPipeline
+{
+	@ClassRule
+	public static TemporaryFolder tmp = new TemporaryFolder();
+
+	// The time limit each parse was given.
+	private static final Set<Integer> seconds =
+		Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+
+	/**
+	 * Three parses of each sentence, each word linked to the next,
+	 * with disjunct costs of 0, 5 and 20. A sentence that starts with
+	 * "Slow" takes 400ms; the others take a few, so as to finish out
+	 * of order.
+	 */
+	private static class ChainParser extends LGParser
+	{
+		public Sentence parse(String text, LGConfig config)
+		{
+			seconds.add(config.getMaxParseSeconds());
+			try
+			{
+				Thread.sleep(text.startsWith("Slow") ? 400 : (text.hashCode() & 0x7));
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+			}
+			ArrayList<ParsedSentence> parses = new ArrayList<ParsedSentence>();
+			for (int cost : new int[] {20, 0, 5})
+				parses.add(chain(text, cost));
+			Sentence sntc = new Sentence();
+			sntc.setSentence(text);
+			sntc.setParses(parses);
+			sntc.setNumParses(parses.size());
+			return sntc;
+		}
+
+		public Sentence parse(String text)
+		{
+			return parse(text, getConfig());
+		}
+
+		private static ParsedSentence chain(String text, int cost)
+		{
+			String[] toks = text.substring(0, text.length() - 1).split(" ");
+			ParsedSentence s = new ParsedSentence(text);
+			FeatureNode leftWall = null;
+			FeatureNode lastFN = null;
+			int at = 0;
+			for (int i = 0; i <= toks.length + 1; i++)
+			{
+				String w = (i == 0) ? "LEFT-WALL" : (i <= toks.length) ? toks[i-1] : ".";
+				FeatureNode fn = new FeatureNode();
+				if (leftWall == null) leftWall = fn;
+				LinkableView.setWord(fn, w);
+				fn.set("this", fn);
+				fn.set("wall", leftWall);
+				if (lastFN != null)
+				{
+					LinkableView.setNext(lastFN, fn);
+					LinkableView.setPrev(fn, lastFN);
+				}
+				s.addWord(fn);
+				if (i == 0)
+				{
+					LinkableView.setCharIndices(fn, -1, -1, i);
+				}
+				else
+				{
+					LinkableView.setCharIndices(fn, at, at + w.length(), i);
+					at += w.length() + ((i < toks.length) ? 1 : 0);
+				}
+				lastFN = fn;
+			}
+			LinkView.setLinkFeatures(new FeatureNode(), "Xp", "Xp", "Xp",
+				s.getWordAsNode(0), s.getWordAsNode(toks.length + 1));
+			LinkView.setLinkFeatures(new FeatureNode(), "Wd", "Wd", "Wd",
+				s.getWordAsNode(0), s.getWordAsNode(1));
+			for (int i = 1; i < toks.length; i++)
+				LinkView.setLinkFeatures(new FeatureNode(), "A", "A", "A",
+					s.getWordAsNode(i), s.getWordAsNode(i + 1));
+
+			FeatureNode meta = new FeatureNode();
+			meta.set("num_skipped_words", new FeatureNode("0"));
+			meta.set("disjunct_cost", new FeatureNode(Integer.toString(cost)));
+			meta.set("link_cost", new FeatureNode("0"));
+			s.setMetaData(meta);
+			return s;
+		}
+
+		public String getVersion() { return "chain"; }
+		public void init() {}
+		public void close() {}
+		public void doFinalize() {}
+	}
+
+	private static final ParserFactory factory = new ParserFactory()
+	{
+		public LGParser create(int worker)
+		{
+			return new ChainParser();
+		}
+
+		public void doFinalize()
+		{
+		}
+	};
+
+	@BeforeClass
+	public static void setUp() throws IOException
+	{
+		// MapMorphy, from a lexicon that knows only "dog" and "bark".
+		File dict = tmp.newFolder("dict");
+		write(new File(dict, "index.noun"), "dog n 1 1 @ 1 0 02084071\n");
+		write(new File(dict, "index.verb"), "bark v 1 0 1 0 01047745\n");
+		write(new File(dict, "index.adj"), "");
+		write(new File(dict, "index.adv"), "");
+		File lex = new File(tmp.getRoot(), "lexicon.bin");
+		MappedLexicon.write(WordNetIndex.load(dict), lex);
+		System.setProperty(MorphyFactory.MORPHY_IMPLEMENTATION_PROPERTY,
+			MorphyFactory.DEFAULT_MULTI_THREAD_IMPLEMENTATION);
+		System.setProperty(MappedLexicon.LEXICON_PROPERTY, lex.getPath());
+	}
+
+	@AfterClass
+	public static void tearDown()
+	{
+		System.clearProperty(MorphyFactory.MORPHY_IMPLEMENTATION_PROPERTY);
+		System.clearProperty(MappedLexicon.LEXICON_PROPERTY);
+	}
+
+	private static void write(File f, String text) throws IOException
+	{
+		FileOutputStream out = new FileOutputStream(f);
+		try
+		{
+			out.write(text.getBytes("UTF-8"));
+		}
+		finally
+		{
+			out.close();
+		}
+	}
+
+	private static RelexPipeline pipeline()
+	{
+		RelexPipeline pipe = new RelexPipeline(factory, new RelexPipeline.Renderer()
+		{
+			public String render(Sentence sntc)
+			{
+				return "; " + sntc.getSentence();
+			}
+		});
+		pipe.setThreads(RelexPipeline.PARSE, 3);
+		pipe.setThreads(RelexPipeline.TAG, 2);
+		pipe.setThreads(RelexPipeline.SEMANTIC, 2);
+		pipe.setThreads(RelexPipeline.RENDER, 2);
+		for (String s : new String[] {RelexPipeline.PARSE, RelexPipeline.TAG,
+		                              RelexPipeline.SEMANTIC, RelexPipeline.RENDER})
+			pipe.setQueueCapacity(s, 2);
+		pipe.setMaxInFlight(5);
+		return pipe;
+	}
+
+	/** Feed the sentences from another thread; take all the results. */
+	private static List<RelexPipeline.Result> run(final RelexPipeline pipe,
+		final List<String> sentences) throws InterruptedException
+	{
+		pipe.start();
+		new Thread()
+		{
+			public void run()
+			{
+				for (String s : sentences) pipe.submitSentence(s);
+				pipe.finish();
+			}
+		}.start();
+
+		List<RelexPipeline.Result> got = new ArrayList<RelexPipeline.Result>();
+		RelexPipeline.Result r;
+		while ((r = pipe.take()) != null) got.add(r);
+		assertNull(pipe.take());
+		pipe.shutdown();
+		return got;
+	}
+
+	@Test
+	public void testOrder() throws Exception
+	{
+		List<String> sentences = new ArrayList<String>();
+		for (int i = 0; i < 40; i++)
+			sentences.add((i % 3 == 0) ? "Dogs bark " + i + "." : "Big dogs bark " + i + ".");
+
+		List<RelexPipeline.Result> got = run(pipeline(), sentences);
+		assertEquals(sentences.size(), got.size());
+		for (int i = 0; i < got.size(); i++)
+		{
+			RelexPipeline.Result r = got.get(i);
+			assertEquals(i, r.index.intValue());
+			assertEquals(sentences.get(i), r.sentence);
+			assertNull(r.error);
+			assertEquals("; " + sentences.get(i), r.output);
+			assertEquals(3, r.result.getParses().size());
+			assertFalse(r.result.isTimedOut());
+		}
+	}
+
+	@Test
+	public void testRuleLimits() throws Exception
+	{
+		List<String> sentences = new ArrayList<String>();
+		sentences.add("Dogs bark.");
+
+		// Ranked best first: costs 0, 5 and 20.
+		RelexPipeline pipe = pipeline();
+		pipe.setRuleLimits(1, Double.POSITIVE_INFINITY);
+		List<ParsedSentence> parses = run(pipe, sentences).get(0).result.getParses();
+		assertEquals(0.0, parses.get(0).getDisjunctCost(), 0.0);
+		assertFalse(parses.get(0).isSyntaxOnly());
+		assertTrue(parses.get(1).isSyntaxOnly());
+		assertTrue(parses.get(2).isSyntaxOnly());
+
+		// A cost of 5 ranks 1.0 below the best, 20 ranks 4.0 below.
+		pipe = pipeline();
+		pipe.setRuleLimits(10, 2.0);
+		parses = run(pipe, sentences).get(0).result.getParses();
+		assertFalse(parses.get(0).isSyntaxOnly());
+		assertFalse(parses.get(1).isSyntaxOnly());
+		assertTrue(parses.get(2).isSyntaxOnly());
+
+		// No limits: the rules run on every parse.
+		parses = run(pipeline(), sentences).get(0).result.getParses();
+		for (ParsedSentence p : parses) assertFalse(p.isSyntaxOnly());
+	}
+
+	@Test
+	public void testDeadline() throws Exception
+	{
+		List<String> sentences = new ArrayList<String>();
+		sentences.add("Slow dogs bark.");
+		sentences.add("Dogs bark.");
+
+		RelexPipeline pipe = pipeline();
+		pipe.setMaxSentenceMillis(200);
+		seconds.clear();
+		List<RelexPipeline.Result> got = run(pipe, sentences);
+
+		// The parser is never given more than what is left.
+		assertEquals("[1]", seconds.toString());
+
+		// Out of time before the rules: the first parse is kept, and
+		// the rest dropped.
+		Sentence slow = got.get(0).result;
+		assertTrue(slow.isTimedOut());
+		assertEquals(1, slow.getParses().size());
+		assertEquals("; Slow dogs bark.", got.get(0).output);
+
+		Sentence fast = got.get(1).result;
+		assertFalse(fast.isTimedOut());
+		assertEquals(3, fast.getParses().size());
+	}
+}
@@ -0,0 +1,90 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package relex.test.corpus;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import relex.corpus.ClauseSplitter;
+import relex.corpus.TextInterval;
+
+public class TestClauseSplitter
+{
+	private static List<TextInterval> split(int minLength, String text)
+	{
+		ClauseSplitter cs = new ClauseSplitter();
+		cs.setMinLength(minLength);
+		return cs.split(text);
+	}
+
+	private static List<TextInterval> pieces(int... bounds)
+	{
+		TextInterval[] tis = new TextInterval[bounds.length / 2];
+		for (int i = 0; i < tis.length; i++)
+			tis[i] = new TextInterval(bounds[2*i], bounds[2*i+1]);
+		return Arrays.asList(tis);
+	}
+
+	@Test
+	public void testPunctuationDropped()
+	{
+		// "I came; I saw: I conquered -- then left"
+		//  0     6 8    13 15        26   30   39
+		assertEquals(pieces(0, 6, 8, 13, 15, 26, 30, 39),
+			split(0, "I came; I saw: I conquered -- then left"));
+	}
+
+	@Test
+	public void testConjunctionKept()
+	{
+		String text = "The dog barked loudly, but the cat slept on";
+		List<TextInterval> ti = split(0, text);
+		assertEquals(pieces(0, 21, 23, 43), ti);
+		assertEquals("but the cat slept on", text.substring(23, 43));
+
+		// No comma, no break; nor in a word that starts like one.
+		assertEquals(pieces(0, 25), split(0, "Cats and dogs, sometimes."));
+		assertEquals(pieces(0, 22), split(0, "Red, butter and bread."));
+	}
+
+	@Test
+	public void testHyphenNotBoundary()
+	{
+		assertEquals(pieces(0, 18), split(0, "A pre-war building"));
+	}
+
+	@Test
+	public void testShortPiecesMerged()
+	{
+		// The lone "Well" joins the piece after it ...
+		assertEquals(pieces(0, 40),
+			split(20, "Well: the meeting has moved to Thursday."));
+
+		// ... and a short trailing piece joins the one before.
+		assertEquals(pieces(0, 40),
+			split(20, "The meeting has moved to Thursday; sadly"));
+	}
+
+	@Test
+	public void testTrimmed()
+	{
+		assertEquals(pieces(2, 12), split(20, "  Dogs bark.  "));
+		assertEquals(pieces(), split(20, " ; "));
+	}
+}
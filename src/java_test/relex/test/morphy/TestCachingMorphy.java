@@ -0,0 +1,156 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package relex.test.morphy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import relex.feature.FeatureNode;
+import relex.morphy.CachingMorphy;
+import relex.morphy.Morphed;
+import relex.morphy.Morphy;
+
+public class TestCachingMorphy
+{
+	// As in CachingMorphy.
+	private static final int STRIPES = 16;
+
+	/**
+	 * Counts its lookups. A word ending in "s" is a plural noun, and
+	 * "un..." is a negative adjective.
+	 */
+	private static class CountingMorphy implements Morphy
+	{
+		int calls = 0;
+
+		public void initialize()
+		{
+		}
+
+		public synchronized Morphed morph(String word)
+		{
+			calls++;
+			Morphed m = new Morphed(word);
+			if (word.endsWith("s"))
+				m.putRoot(NOUN_F, word.substring(0, word.length() - 1));
+			else if (word.startsWith("un"))
+				m.putRootNegative(ADJ_F, word.substring(2));
+			else
+				m.putRoot(VERB_F, word);
+			return m;
+		}
+	}
+
+	private static int stripe(String word)
+	{
+		return (word.hashCode() & 0x7fffffff) % STRIPES;
+	}
+
+	/** The given number of words that all fall into the same stripe. */
+	private static List<String> sameStripe(int n)
+	{
+		List<String> words = new ArrayList<String>();
+		int s = stripe("word0");
+		for (int i = 0; words.size() < n; i++)
+			if (stripe("word" + i) == s) words.add("word" + i);
+		return words;
+	}
+
+	@Test
+	public void testCounts()
+	{
+		CountingMorphy base = new CountingMorphy();
+		CachingMorphy cm = new CachingMorphy(base);
+
+		assertEquals("dog", cm.morph("dogs").getNounString());
+		assertEquals("dog", cm.morph("dogs").getNounString());
+		assertEquals("bark", cm.morph("bark").getVerbString());
+		assertEquals(2, base.calls);
+		assertEquals(1, cm.getHits());
+		assertEquals(2, cm.getMisses());
+		assertEquals(0, cm.getEvictions());
+		assertEquals(2, cm.size());
+
+		// Shared, and the same as the wrapped Morphy would say.
+		assertSame(cm.lookup("dogs"), cm.lookup("dogs"));
+		assertEquals("dog", cm.lookup("dogs").getRoot(Morphy.NOUN_F));
+		assertNull(cm.lookup("dogs").getRoot(Morphy.VERB_F));
+		assertEquals(5, cm.getHits());
+
+		cm.clear();
+		assertEquals(0, cm.size());
+		cm.morph("dogs");
+		assertEquals(3, base.calls);
+	}
+
+	@Test
+	public void testStripedEviction()
+	{
+		CountingMorphy base = new CountingMorphy();
+		// Two words per stripe.
+		CachingMorphy cm = new CachingMorphy(base, 2 * STRIPES);
+		List<String> w = sameStripe(3);
+
+		cm.morph(w.get(0));
+		cm.morph(w.get(1));
+		cm.morph(w.get(0));
+		assertEquals(0, cm.getEvictions());
+
+		// The least recently used of the stripe goes.
+		cm.morph(w.get(2));
+		assertEquals(1, cm.getEvictions());
+		assertEquals(2, cm.size());
+		cm.morph(w.get(0));
+		assertEquals(3, base.calls);
+		cm.morph(w.get(1));
+		assertEquals(4, base.calls);
+
+		// Other stripes are not touched.
+		String other = "other0";
+		for (int i = 1; stripe(other) == stripe(w.get(0)); i++) other = "other" + i;
+		int evicted = (int) cm.getEvictions();
+		cm.morph(other);
+		assertEquals(evicted, cm.getEvictions());
+	}
+
+	@Test
+	public void testFreshMorphed()
+	{
+		CachingMorphy cm = new CachingMorphy(new CountingMorphy());
+		Morphed a = cm.morph("unhappy");
+		Morphed b = cm.morph("unhappy");
+		assertNotSame(a, b);
+		assertNotSame(a.getAdj(), b.getAdj());
+		assertEquals("unhappy", b.getOriginal());
+		assertEquals("happy", b.getAdjString());
+		assertNotNull(b.getAdj().get(Morphy.NEG_F));
+
+		// The relex algs change the nodes; the cache must not see it.
+		a.getAdj().set(Morphy.ROOT_F, new FeatureNode("sad"));
+		a.getAdj().set("tense", new FeatureNode("past"));
+		Morphed c = cm.morph("unhappy");
+		assertEquals("happy", c.getAdjString());
+		assertNull(c.getAdj().get("tense"));
+		assertEquals("happy", b.getAdjString());
+	}
+}
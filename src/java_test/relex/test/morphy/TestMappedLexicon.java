@@ -0,0 +1,132 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package relex.test.morphy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import relex.morphy.MappedLexicon;
+import relex.morphy.Morphy;
+import relex.morphy.WordNetIndex;
+
+public class TestMappedLexicon
+{
+	private static final String[] POS = {
+		Morphy.NOUN_F, Morphy.VERB_F, Morphy.ADJ_F, Morphy.ADV_F };
+
+	private static final String[] PROBES = {
+		"dog", "dogs", "churches", "women", "mice", "geese",
+		"ice cream", "ice-creams", "Ice Cream",
+		"bark", "barked", "ran", "makes", "making",
+		"big", "bigger", "largest", "quickly",
+		"filler017s", "filler099", "zzz", "" };
+
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
+	private WordNetIndex wn;
+	private MappedLexicon ml;
+
+	private void write(File dir, String name, String... lines) throws IOException
+	{
+		Writer w = new OutputStreamWriter(new FileOutputStream(new File(dir, name)), "UTF-8");
+		try
+		{
+			for (String l : lines) w.write(l + "\n");
+		}
+		finally
+		{
+			w.close();
+		}
+	}
+
+	@Before
+	public void setUp() throws IOException
+	{
+		File dir = tmp.newFolder("dict");
+
+		// Enough nouns to fill several blocks of the mapped file.
+		String[] nouns = new String[105];
+		nouns[0] = "  1 This software and database is being provided";
+		nouns[1] = "cat n 1 1 @ 1 0 02121620";
+		nouns[2] = "church n 1 1 @ 1 0 03028079";
+		nouns[3] = "dog n 1 1 @ 1 0 02084071";
+		nouns[4] = "ice_cream n 1 1 @ 1 0 07614500";
+		for (int i = 5; i < nouns.length; i++)
+			nouns[i] = String.format("filler%03d n 1 0 1 0 00000000", i);
+		write(dir, "index.noun", nouns);
+		write(dir, "noun.exc", "geese goose", "mice mouse", "mice mousey", "women woman");
+		write(dir, "index.verb", "bark v 1 0 1 0 01047745", "make v 1 0 1 0 01617192",
+			"run v 1 0 1 0 01926311");
+		write(dir, "verb.exc", "ran run");
+		write(dir, "index.adj", "big a 1 0 1 0 01382086", "large a 1 0 1 0 01382086");
+		write(dir, "adj.exc", "bigger big");
+		write(dir, "index.adv", "quickly r 1 0 1 0 00085811");
+
+		wn = WordNetIndex.load(dir);
+		File bin = new File(tmp.getRoot(), "lexicon.bin");
+		MappedLexicon.write(wn, bin);
+		ml = MappedLexicon.open(bin);
+	}
+
+	@Test
+	public void testSameAsIndex()
+	{
+		assertEquals(wn.size(), ml.size());
+		for (String pos : POS)
+		{
+			for (String w : PROBES)
+				assertEquals(pos + " " + w, wn.lookup(pos, w), ml.lookup(pos, w));
+		}
+	}
+
+	@Test
+	public void testLookup()
+	{
+		assertEquals("dog", ml.lookup(Morphy.NOUN_F, "dogs"));
+		assertEquals("church", ml.lookup(Morphy.NOUN_F, "churches"));
+		assertEquals("woman", ml.lookup(Morphy.NOUN_F, "women"));
+		assertEquals("mouse", ml.lookup(Morphy.NOUN_F, "mice"));
+		assertEquals("ice cream", ml.lookup(Morphy.NOUN_F, "ice-creams"));
+		assertEquals("filler017", ml.lookup(Morphy.NOUN_F, "filler017s"));
+		assertEquals("bark", ml.lookup(Morphy.VERB_F, "barked"));
+		assertEquals("run", ml.lookup(Morphy.VERB_F, "ran"));
+		assertEquals("make", ml.lookup(Morphy.VERB_F, "making"));
+		assertEquals("big", ml.lookup(Morphy.ADJ_F, "bigger"));
+		assertEquals("large", ml.lookup(Morphy.ADJ_F, "largest"));
+		assertEquals("quickly", ml.lookup(Morphy.ADV_F, "quickly"));
+
+		assertNull(ml.lookup(Morphy.NOUN_F, "zzz"));
+		assertNull(ml.lookup(Morphy.VERB_F, "dogs"));
+		assertNull(ml.lookup(Morphy.ADV_F, ""));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testUnknownPos()
+	{
+		ml.lookup("preposition", "of");
+	}
+}
@@ -0,0 +1,177 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package relex.test.morphy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import relex.morphy.Morphy;
+import relex.morphy.WordNetIndex;
+
+/**
+ * Lookups in a small dictionary directory, laid out as WordNet's own:
+ * index.noun, noun.exc, and so on.
+ */
+public class TestWordNetIndex
+{
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
+	private File dir;
+	private WordNetIndex wn;
+
+	private void write(String name, String... lines) throws IOException
+	{
+		Writer w = new OutputStreamWriter(new FileOutputStream(new File(dir, name)), "UTF-8");
+		try
+		{
+			for (String l : lines) w.write(l + "\n");
+		}
+		finally
+		{
+			w.close();
+		}
+	}
+
+	@Before
+	public void setUp() throws IOException
+	{
+		dir = tmp.newFolder("dict");
+		write("index.noun",
+			"  1 This software and database is being provided to you, the LICENSEE, by",
+			"  2 Princeton University under the following license.",
+			"box n 1 1 @ 1 0 02883344",
+			"church n 1 1 @ 1 0 03028079",
+			"dog n 1 1 @ 1 0 02084071",
+			"house n 1 1 @ 1 0 03544360",
+			"ice_cream n 1 1 @ 1 0 07614500",
+			"woman n 1 1 @ 1 0 10787470");
+		write("noun.exc", "mice mouse", "mice mousey", "women woman", "", "oxen");
+		write("index.verb",
+			"bark v 1 0 1 0 01047745",
+			"look_up v 1 0 1 0 00877083",
+			"make v 1 0 1 0 01617192",
+			"run v 1 0 1 0 01926311",
+			"see v 1 0 1 0 02129289");
+		write("verb.exc", "ran run", "saw see");
+		write("index.adj", "big a 1 0 1 0 01382086", "large a 1 0 1 0 01382086");
+		write("adj.exc", "bigger big");
+		// No adv.exc, as in some installs.
+		write("index.adv", "quickly r 1 0 1 0 00085811");
+		wn = WordNetIndex.load(dir);
+	}
+
+	@After
+	public void tearDown()
+	{
+		System.clearProperty(WordNetIndex.DICT_DIR_PROPERTY);
+	}
+
+	@Test
+	public void testLemma()
+	{
+		// The license text is not read as lemmas.
+		assertEquals(6 + 5 + 2 + 1, wn.size());
+		assertEquals("dog", wn.lookup(Morphy.NOUN_F, "dog"));
+		assertEquals("dog", wn.lookup(Morphy.NOUN_F, " Dog "));
+		assertEquals("quickly", wn.lookup(Morphy.ADV_F, "quickly"));
+		assertNull(wn.lookup(Morphy.NOUN_F, "1"));
+		assertNull(wn.lookup(Morphy.NOUN_F, "zzz"));
+		assertNull(wn.lookup(Morphy.VERB_F, "dog"));
+		assertNull(wn.lookup(Morphy.ADV_F, ""));
+	}
+
+	@Test
+	public void testException()
+	{
+		assertEquals("woman", wn.lookup(Morphy.NOUN_F, "women"));
+		assertEquals("run", wn.lookup(Morphy.VERB_F, "ran"));
+		assertEquals("big", wn.lookup(Morphy.ADJ_F, "bigger"));
+
+		// The first base form is kept; lines without one are skipped.
+		assertEquals("mouse", wn.lookup(Morphy.NOUN_F, "mice"));
+		assertNull(wn.lookup(Morphy.NOUN_F, "oxen"));
+
+		// Only for its own part of speech.
+		assertNull(wn.lookup(Morphy.NOUN_F, "ran"));
+
+		// An exception of a suffix-stripped form.
+		assertEquals("see", wn.lookup(Morphy.VERB_F, "saws"));
+	}
+
+	@Test
+	public void testSuffix()
+	{
+		assertEquals("dog", wn.lookup(Morphy.NOUN_F, "dogs"));
+		assertEquals("box", wn.lookup(Morphy.NOUN_F, "boxes"));
+		assertEquals("church", wn.lookup(Morphy.NOUN_F, "churches"));
+
+		// The first rule that gives a lemma wins: "s" before "ses".
+		assertEquals("house", wn.lookup(Morphy.NOUN_F, "houses"));
+
+		assertEquals("bark", wn.lookup(Morphy.VERB_F, "barked"));
+		assertEquals("bark", wn.lookup(Morphy.VERB_F, "barking"));
+		assertEquals("make", wn.lookup(Morphy.VERB_F, "makes"));
+		assertEquals("make", wn.lookup(Morphy.VERB_F, "making"));
+		assertEquals("large", wn.lookup(Morphy.ADJ_F, "largest"));
+
+		// Nouns take no verb endings, and adverbs none at all.
+		assertNull(wn.lookup(Morphy.NOUN_F, "barked"));
+		assertNull(wn.lookup(Morphy.ADV_F, "quicklys"));
+	}
+
+	@Test
+	public void testCompound()
+	{
+		assertEquals("ice cream", wn.lookup(Morphy.NOUN_F, "ice cream"));
+		assertEquals("ice cream", wn.lookup(Morphy.NOUN_F, "Ice-Cream"));
+		assertEquals("ice cream", wn.lookup(Morphy.NOUN_F, "ice creams"));
+		assertEquals("look up", wn.lookup(Morphy.VERB_F, "look up"));
+		assertEquals("look up", wn.lookup(Morphy.VERB_F, "look-up"));
+		assertNull(wn.lookup(Morphy.NOUN_F, "ice"));
+		assertNull(wn.lookup(Morphy.NOUN_F, "cream dog"));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testUnknownPos()
+	{
+		wn.lookup("preposition", "of");
+	}
+
+	@Test
+	public void testFindDictionary()
+	{
+		System.setProperty(WordNetIndex.DICT_DIR_PROPERTY, dir.getPath());
+		assertEquals(dir, WordNetIndex.findDictionary());
+
+		// Not a dictionary: no index.noun in it.
+		System.setProperty(WordNetIndex.DICT_DIR_PROPERTY, tmp.getRoot().getPath());
+		File found = WordNetIndex.findDictionary();
+		assertFalse(tmp.getRoot().equals(found));
+	}
+}
@@ -0,0 +1,151 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package relex.test.parser;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Map;
+
+import org.junit.Test;
+
+import relex.parser.BudgetController;
+import relex.parser.BudgetController.Budget;
+
+public class TestBudgetController
+{
+	private static final double EPS = 1e-9;
+
+	@Test
+	public void testNothingSeen()
+	{
+		BudgetController bc = new BudgetController();
+		assertEquals(-1.0, bc.predictMillis(10), EPS);
+
+		// No prediction and no target: the parser's own limits.
+		Budget b = bc.decide(10, 30, 100);
+		assertEquals(30, b.seconds);
+		assertEquals(100, b.linkages);
+		assertEquals(-1.0, b.predictedMillis, EPS);
+	}
+
+	@Test
+	public void testMovingAverage()
+	{
+		BudgetController bc = new BudgetController();
+		bc.observe(bc.decide(8, 30, 100), 100, false);
+		assertEquals(100.0, bc.predictMillis(8), EPS);
+
+		// One fifth of the way to each new sample.
+		bc.observe(bc.decide(9, 30, 100), 200, false);
+		assertEquals(120.0, bc.predictMillis(8), EPS);
+
+		// A time-out counts double: 120 + 0.2 * (2 * 190 - 120).
+		bc.observe(bc.decide(11, 30, 100), 190, true);
+		assertEquals(172.0, bc.predictMillis(11), EPS);
+
+		Map<String, Number> m = bc.getMetrics();
+		assertEquals(3L, m.get("sentences"));
+		assertEquals(1L, m.get("timeouts"));
+		// Predicted 100 and 120, took 200 and 190.
+		assertEquals(85.0, m.get("mean_abs_error_millis").doubleValue(), EPS);
+	}
+
+	@Test
+	public void testCubicExtrapolation()
+	{
+		BudgetController bc = new BudgetController();
+		// Words 8 to 11; the middle of the range is 10.
+		bc.observe(bc.decide(8, 30, 100), 100, false);
+
+		// Middles 14, 2 and 18; nearest data is always 10.
+		assertEquals(100.0 * 1.4 * 1.4 * 1.4, bc.predictMillis(12), 1e-6);
+		assertEquals(100.0 * 0.2 * 0.2 * 0.2, bc.predictMillis(0), 1e-6);
+		assertEquals(100.0 * 1.8 * 1.8 * 1.8, bc.predictMillis(16), 1e-6);
+
+		// Equally near data on both sides: the shorter is used.
+		bc.observe(bc.decide(16, 30, 100), 1000, false);
+		assertEquals(100.0 * 1.4 * 1.4 * 1.4, bc.predictMillis(12), 1e-6);
+	}
+
+	@Test
+	public void testHeadroom()
+	{
+		BudgetController bc = new BudgetController();
+		bc.observe(bc.decide(8, 30, 100), 900, false);
+
+		// Three times 900ms, rounded up to whole seconds.
+		Budget b = bc.decide(8, 30, 100);
+		assertEquals(3, b.seconds);
+		assertEquals(100, b.linkages);
+
+		bc.setHeadroom(5);
+		assertEquals(5, bc.decide(8, 30, 100).seconds);
+
+		// Never above the parser's own limit.
+		assertEquals(2, bc.decide(8, 2, 100).seconds);
+	}
+
+	@Test
+	public void testTarget()
+	{
+		BudgetController bc = new BudgetController();
+		bc.observe(bc.decide(8, 30, 100), 100, false);
+		bc.setTargetMillis(100);
+
+		// Predicted 274.4ms, over the target: the time limit is three
+		// times the target, and the linkages are cut in proportion.
+		Budget b = bc.decide(12, 30, 100);
+		assertEquals(1, b.seconds);
+		assertEquals(36, b.linkages);
+
+		// Within the target, the linkages are left alone.
+		assertEquals(100, bc.decide(8, 30, 100).linkages);
+		assertEquals(1L, bc.getMetrics().get("linkages_cut"));
+	}
+
+	@Test
+	public void testRunningBehind()
+	{
+		BudgetController bc = new BudgetController();
+		bc.observe(bc.decide(8, 30, 100), 100, false);
+		bc.observe(bc.decide(8, 30, 100), 400, false);
+		bc.setTargetMillis(100);
+
+		// Recent average 160ms: the budget is scaled by 100/160, to
+		// 62.5ms, and the linkages to 62.5/160 of the limit.
+		assertEquals(39, bc.decide(8, 30, 100).linkages);
+
+		// The scaling stops at a quarter.
+		bc.observe(bc.decide(8, 30, 100), 4000, false);
+		double pred = bc.predictMillis(8);
+		assertEquals(928.0, pred, EPS);
+		assertEquals((int) (100 * 25.0 / pred), bc.decide(8, 30, 100).linkages);
+	}
+
+	@Test
+	public void testMinLinkages()
+	{
+		BudgetController bc = new BudgetController();
+		bc.observe(bc.decide(8, 30, 100), 10000, false);
+		bc.setTargetMillis(100);
+		assertEquals(1, bc.decide(8, 30, 100).linkages);
+
+		bc.setMinLinkages(50);
+		assertEquals(50, bc.decide(8, 30, 100).linkages);
+
+		// Nor above the parser's own limit.
+		assertEquals(4, bc.decide(8, 30, 4).linkages);
+	}
+}
@@ -0,0 +1,228 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package relex.test.parser;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import relex.ParsedSentence;
+import relex.Sentence;
+import relex.feature.FeatureNode;
+import relex.feature.LinkView;
+import relex.feature.LinkableView;
+import relex.parser.CompactLinkage;
+import relex.parser.ParseCache;
+
+public class TestCompactLinkage
+{
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
+	/**
+	 * Build, by hand, the sort of parse that LocalLGParser makes:
+	 * the words, chained and with their offsets, and the links
+	 * given as {left, right} word indexes with one label each.
+	 */
+	static ParsedSentence parse(String text, String[] words,
+	                            int[] start, int[] end,
+	                            int[][] links, String[] labels)
+	{
+		ParsedSentence s = new ParsedSentence(text);
+		FeatureNode leftWall = null;
+		FeatureNode lastFN = null;
+		for (int i = 0; i < words.length; i++)
+		{
+			FeatureNode fn = new FeatureNode();
+			if (leftWall == null) leftWall = fn;
+			LinkableView.setWord(fn, words[i]);
+			fn.set("this", fn);
+			fn.set("wall", leftWall);
+			if (lastFN != null)
+			{
+				LinkableView.setNext(lastFN, fn);
+				LinkableView.setPrev(fn, lastFN);
+			}
+			s.addWord(fn);
+			LinkableView.setCharIndices(fn, start[i], end[i], i);
+			lastFN = fn;
+		}
+		for (int j = 0; j < links.length; j++)
+		{
+			LinkView.setLinkFeatures(new FeatureNode(),
+				labels[j], labels[j], labels[j],
+				s.getWordAsNode(links[j][0]),
+				s.getWordAsNode(links[j][1]));
+		}
+		FeatureNode meta = new FeatureNode();
+		meta.set("num_skipped_links", new FeatureNode("0"));
+		s.setMetaData(meta);
+		return s;
+	}
+
+	static ParsedSentence dogsBark()
+	{
+		return parse("Dogs bark.",
+			new String[] {"LEFT-WALL", "dogs", "bark", "."},
+			new int[] {-1, 0, 5, 9},
+			new int[] {-1, 4, 9, 10},
+			new int[][] {{0, 3}, {0, 1}, {1, 2}},
+			new String[] {"Xp", "Wd", "Sp"});
+	}
+
+	static void assertSameParse(ParsedSentence a, ParsedSentence b)
+	{
+		assertEquals(a.getNumWords(), b.getNumWords());
+		for (int i = 0; i < a.getNumWords(); i++)
+		{
+			FeatureNode x = a.getWordAsNode(i);
+			FeatureNode y = b.getWordAsNode(i);
+			assertEquals(LinkableView.getOrigWordString(x), LinkableView.getOrigWordString(y));
+			assertEquals(LinkableView.getStartChar(x), LinkableView.getStartChar(y));
+			assertEquals(LinkableView.getEndChar(x), LinkableView.getEndChar(y));
+			for (int dir = -1; dir <= 1; dir += 2)
+			{
+				int n = LinkableView.numLinks(x, dir);
+				assertEquals(n, LinkableView.numLinks(y, dir));
+				for (int k = 0; k < n; k++)
+				{
+					assertEquals(LinkView.getLabel(LinkableView.getLink(x, dir, k), 0),
+					             LinkView.getLabel(LinkableView.getLink(y, dir, k), 0));
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testRoundTrip()
+	{
+		ParsedSentence orig = dogsBark();
+		CompactLinkage cl = CompactLinkage.fromParse(orig);
+
+		assertEquals(4, cl.getNumWords());
+		assertEquals("bark", cl.getWord(2));
+		assertEquals(3, cl.getNumLinks());
+		assertEquals("0", cl.getMeta("num_skipped_links"));
+
+		ParsedSentence back = cl.toParse("Dogs bark.");
+		assertSameParse(orig, back);
+
+		// A second trip must come out the same as the first.
+		assertSameParse(back, CompactLinkage.fromParse(back).toParse("Dogs bark."));
+	}
+
+	@Test
+	public void testEntryRoundTrip() throws Exception
+	{
+		Sentence sntc = new Sentence();
+		sntc.setSentence("Dogs bark.");
+		ArrayList<ParsedSentence> parses = new ArrayList<ParsedSentence>();
+		parses.add(dogsBark());
+		parses.add(dogsBark());
+		sntc.setParses(parses);
+		sntc.setNumParses(5);
+
+		ParseCache.Entry e = ParseCache.Entry.fromSentence("Dogs bark.", sntc);
+		assertNotNull(e);
+		assertEquals(5, e.numParses);
+		assertEquals(2, e.linkages.length);
+
+		// Too big for the in-memory tier, so it can only come off disk.
+		ParseCache cache = new ParseCache(1, tmp.newFolder("cache"));
+		cache.put("Dogs bark.", e);
+		assertEquals(0, cache.size());
+		ParseCache.Entry f = cache.get("Dogs bark.");
+		assertNotNull(f);
+		assertEquals(1, cache.getDiskHits());
+		assertNull(cache.get("Cats meow."));
+
+		Sentence again = f.toSentence("Dogs bark.", 1);
+		assertEquals(5, again.getNumParses());
+		assertEquals(1, again.getParses().size());
+		assertEquals(1, again.getPendingLinkages().size());
+		assertSameParse(parses.get(0), again.getParses().get(0));
+	}
+
+	@Test
+	public void testEntryRealigns()
+	{
+		Sentence sntc = new Sentence();
+		sntc.setSentence("Dogs bark.");
+		ArrayList<ParsedSentence> parses = new ArrayList<ParsedSentence>();
+		parses.add(dogsBark());
+		sntc.setParses(parses);
+		sntc.setNumParses(1);
+
+		// The same words, with different white-space.
+		ParseCache.Entry e = ParseCache.Entry.fromSentence("Dogs bark.", sntc);
+		ParsedSentence p = e.toSentence("  Dogs   bark.", 1).getParses().get(0);
+		assertEquals(2, LinkableView.getStartChar(p.getWordAsNode(1)));
+		assertEquals(9, LinkableView.getStartChar(p.getWordAsNode(2)));
+		assertEquals(13, LinkableView.getStartChar(p.getWordAsNode(3)));
+		assertEquals(14, LinkableView.getEndChar(p.getWordAsNode(3)));
+	}
+
+	@Test
+	public void testConcatShiftsOffsets()
+	{
+		// "Dogs bark; cats meow." parsed as two pieces, the second
+		// of which starts at character 11.
+		CompactLinkage a = CompactLinkage.fromParse(parse("Dogs bark",
+			new String[] {"LEFT-WALL", "dogs", "bark"},
+			new int[] {-1, 0, 5},
+			new int[] {-1, 4, 9},
+			new int[][] {{0, 1}, {1, 2}},
+			new String[] {"Wd", "Sp"}))
+			.withMeta("disjunct_cost", "1").withMeta("tier", "0");
+		CompactLinkage b = CompactLinkage.fromParse(parse("cats meow.",
+			new String[] {"LEFT-WALL", "cats", "meow", "."},
+			new int[] {-1, 0, 5, 9},
+			new int[] {-1, 4, 9, 10},
+			new int[][] {{0, 3}, {0, 1}, {1, 2}},
+			new String[] {"Xp", "Wd", "Sp"}))
+			.withMeta("disjunct_cost", "2").withMeta("tier", "1");
+
+		CompactLinkage cl = CompactLinkage.concat(Arrays.asList(a, b), new int[] {0, 11});
+		assertEquals(6, cl.getNumWords());
+		assertEquals(5, cl.getNumLinks());
+		assertEquals("cats", cl.getWord(3));
+		assertEquals("3", cl.getMeta("disjunct_cost"));
+		assertEquals("1", cl.getMeta("tier"));
+
+		ParsedSentence p = cl.toParse("Dogs bark; cats meow.");
+		int[] start = {-1, 0, 5, 11, 16, 20};
+		int[] end = {-1, 4, 9, 15, 20, 21};
+		for (int i = 0; i < start.length; i++)
+		{
+			assertEquals(start[i], LinkableView.getStartChar(p.getWordAsNode(i)));
+			assertEquals(end[i], LinkableView.getEndChar(p.getWordAsNode(i)));
+		}
+
+		// The second LEFT-WALL's links now hang off the first.
+		assertEquals(3, LinkableView.numLinks(p.getWordAsNode(0), 1));
+		assertEquals(1, LinkableView.numLinks(p.getWordAsNode(3), -1));
+		FeatureNode xp = LinkableView.getLink(p.getWordAsNode(5), -1, 0);
+		assertEquals("Xp", LinkView.getLabel(xp, 0));
+		assertSame(p.getWordAsNode(0), LinkView.getLeft(xp));
+	}
+}
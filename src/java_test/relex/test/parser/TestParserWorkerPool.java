@@ -0,0 +1,202 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package relex.test.parser;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+import relex.Sentence;
+import relex.parser.LGParser;
+import relex.parser.ParseException;
+import relex.parser.ParserWorkerPool;
+
+public class TestParserWorkerPool
+{
+	/**
+	 * Stands in for link-grammar. Every copy counts its init() in the
+	 * prototype; the inits after the first "ok" fail, "failures" of
+	 * them, and the rest succeed again.
+	 */
+	private static class StubParser extends LGParser
+	{
+		final AtomicInteger inits;
+		volatile int ok = Integer.MAX_VALUE;
+		volatile int failures = 0;
+		final StubParser proto;
+
+		StubParser()
+		{
+			inits = new AtomicInteger();
+			proto = this;
+		}
+
+		StubParser(StubParser proto)
+		{
+			this.inits = proto.inits;
+			this.proto = proto;
+		}
+
+		public LGParser copyForThread()
+		{
+			return new StubParser(this);
+		}
+
+		public void init()
+		{
+			int n = inits.incrementAndGet();
+			if (proto.ok < n && n <= proto.ok + proto.failures)
+				throw new RuntimeException("no dictionary");
+		}
+
+		public Sentence parse(String text)
+		{
+			if (text.startsWith("Slow"))
+			{
+				try
+				{
+					Thread.sleep(3000);
+				}
+				catch (InterruptedException e)
+				{
+					Thread.currentThread().interrupt();
+				}
+			}
+			Sentence sntc = new Sentence();
+			sntc.setSentence(text);
+			return sntc;
+		}
+
+		public String getVersion() { return "stub"; }
+		public void close() {}
+		public void doFinalize() {}
+	}
+
+	private final StubParser proto = new StubParser();
+	private ParserWorkerPool pool;
+
+	private ParserWorkerPool start(int size, int maxParses)
+	{
+		pool = new ParserWorkerPool(proto, size);
+		pool.setMaxParsesPerWorker(maxParses);
+		pool.setInitRetryMillis(5);
+		pool.init();
+		return pool;
+	}
+
+	@After
+	public void tearDown()
+	{
+		if (pool != null) pool.doFinalize();
+	}
+
+	@Test
+	public void testRecycles()
+	{
+		start(2, 3);
+		for (int i = 0; i < 20; i++)
+			assertEquals("Dogs bark " + i + ".", pool.parse("Dogs bark " + i + ".").getSentence());
+		assertTrue(pool.toString(), 5 <= pool.getRecycled());
+		assertEquals(2, pool.getAlive());
+	}
+
+	@Test
+	public void testReplacementRetried()
+	{
+		proto.ok = 1;
+		proto.failures = 3;
+		start(1, 1);
+		for (int i = 0; i < 3; i++)
+			pool.parse("Dogs bark " + i + ".");
+		assertEquals(1, pool.getAlive());
+		// The first, three failed tries and a good one, and the next.
+		assertTrue(6 <= proto.inits.get());
+	}
+
+	@Test
+	public void testAllWorkersLost() throws Exception
+	{
+		proto.ok = 2;
+		proto.failures = Integer.MAX_VALUE / 2;
+		start(2, 1);
+
+		// Each worker parses one sentence, then can never be replaced;
+		// this one stays queued until the last of them gives up.
+		Future<Sentence> f1 = pool.submit("Dogs bark.");
+		Future<Sentence> f2 = pool.submit("Cats meow.");
+		f1.get();
+		f2.get();
+		Future<Sentence> queued = pool.submit("Birds sing.");
+		try
+		{
+			queued.get(10, TimeUnit.SECONDS);
+			fail("parsed with no workers");
+		}
+		catch (ExecutionException e)
+		{
+			assertTrue(e.getCause() instanceof ParseException);
+		}
+		assertEquals(0, pool.getAlive());
+		assertEquals(2 + 2 * ParserWorkerPool.MAX_INIT_ATTEMPTS, proto.inits.get());
+
+		try
+		{
+			pool.parse("Fish swim.");
+			fail("parsed with no workers");
+		}
+		catch (ParseException e)
+		{
+			// As it should.
+		}
+	}
+
+	@Test
+	public void testBoundedWait() throws Exception
+	{
+		proto.getConfig().setMaxParseSeconds(0);
+		start(1, 0);
+		pool.setMaxWaitSeconds(1);
+
+		Future<Sentence> slow = pool.submit("Slow dogs bark.");
+		long t0 = System.currentTimeMillis();
+		try
+		{
+			pool.parse("Cats meow.");
+			fail("did not time out");
+		}
+		catch (ParseException e)
+		{
+			long waited = System.currentTimeMillis() - t0;
+			assertTrue("waited " + waited, 900 <= waited && waited < 2900);
+		}
+		slow.get();
+	}
+
+	@Test(expected = RuntimeException.class)
+	public void testFirstInitFails()
+	{
+		proto.ok = 0;
+		proto.failures = 1;
+		start(2, 0);
+	}
+}
@@ -0,0 +1,272 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package relex.test.parser;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+import org.linkgrammar.LGConfig;
+import org.linkgrammar.LGRemoteClient;
+import org.linkgrammar.ParseResult;
+
+import relex.parser.ParseException;
+import relex.parser.PooledRemoteLGParser;
+
+/**
+ * Server choice and failover, against stub clients in place of
+ * link-grammar servers.
+ */
+public class TestPooledRemoteLGParser
+{
+	/** How the stub server on one port behaves. */
+	private static class Stub
+	{
+		volatile long millis = 0;
+		volatile boolean down = false;
+		volatile boolean bad = false;
+		volatile CountDownLatch gate = null;
+		final AtomicInteger calls = new AtomicInteger();
+	}
+
+	private static class StubClient extends LGRemoteClient
+	{
+		final Stub stub;
+		final LGConfig config = new LGConfig();
+
+		StubClient(Stub stub)
+		{
+			this.stub = stub;
+		}
+
+		public LGConfig getConfig()
+		{
+			return config;
+		}
+
+		public ParseResult parse(String text) throws InterruptedException
+		{
+			stub.calls.incrementAndGet();
+			CountDownLatch g = stub.gate;
+			if (g != null) g.await();
+			if (0 < stub.millis) Thread.sleep(stub.millis);
+			if (stub.down) throw new RuntimeException(new IOException("Connection refused"));
+			if (stub.bad) throw new RuntimeException("No such word");
+			return null;
+		}
+
+		public String getVersion()
+		{
+			if (stub.down) throw new RuntimeException(new IOException("Connection refused"));
+			return "stub";
+		}
+	}
+
+	private final Stub a = new Stub();
+	private final Stub b = new Stub();
+	private PooledRemoteLGParser parser;
+
+	private PooledRemoteLGParser start(int healthCheckSeconds)
+	{
+		List<String> hps = Arrays.asList("localhost:1", "localhost:2");
+		parser = new PooledRemoteLGParser(hps)
+		{
+			protected LGRemoteClient newClient(Endpoint ep)
+			{
+				return new StubClient((ep.getPort() == 1) ? a : b);
+			}
+		};
+		parser.setHealthCheckSeconds(healthCheckSeconds);
+		parser.init();
+		return parser;
+	}
+
+	@After
+	public void tearDown()
+	{
+		if (parser != null) parser.doFinalize();
+	}
+
+	/** Parse in another thread, held up at the gate of the given stub. */
+	private Thread hold(Stub s, final List<Throwable> errors) throws InterruptedException
+	{
+		s.gate = new CountDownLatch(1);
+		int before = s.calls.get();
+		Thread t = new Thread()
+		{
+			public void run()
+			{
+				try
+				{
+					parser.parse("Dogs bark.");
+				}
+				catch (Throwable e)
+				{
+					errors.add(e);
+				}
+			}
+		};
+		t.start();
+		while (s.calls.get() == before) Thread.sleep(5);
+		return t;
+	}
+
+	@Test
+	public void testLeastOutstanding() throws Exception
+	{
+		start(0);
+		List<Throwable> errors = new ArrayList<Throwable>();
+
+		// With nothing to tell them apart, the first server.
+		Thread t = hold(a, errors);
+		assertEquals(0, b.calls.get());
+
+		// The first one has a request outstanding.
+		parser.parse("Cats meow.");
+		assertEquals(1, a.calls.get());
+		assertEquals(1, b.calls.get());
+
+		a.gate.countDown();
+		t.join();
+		assertEquals("[]", errors.toString());
+	}
+
+	@Test
+	public void testLatencyTiebreak() throws Exception
+	{
+		start(0);
+		parser.setSlowFactor(1000);
+		a.millis = 60;
+		b.millis = 5;
+
+		// One each, then the faster of the two.
+		parser.parse("Dogs bark.");
+		parser.parse("Dogs bark.");
+		for (int i = 0; i < 5; i++) parser.parse("Dogs bark.");
+		assertEquals(1, a.calls.get());
+		assertEquals(6, b.calls.get());
+	}
+
+	@Test
+	public void testSlowAvoided() throws Exception
+	{
+		start(0);
+		a.millis = 100;
+		b.millis = 5;
+		parser.parse("Dogs bark.");
+		parser.parse("Dogs bark.");
+		b.millis = 0;
+
+		// The fast server is busy, but not full; the slow one is idle.
+		List<Throwable> errors = new ArrayList<Throwable>();
+		Thread t = hold(b, errors);
+		b.gate = null;
+		parser.parse("Cats meow.");
+		assertEquals(1, a.calls.get());
+		assertEquals(3, b.calls.get());
+
+		t.interrupt();
+		t.join();
+	}
+
+	@Test
+	public void testFailover() throws Exception
+	{
+		start(0);
+		a.down = true;
+
+		// Refused by the first, then parsed by the second.
+		parser.parse("Dogs bark.");
+		assertEquals(1, a.calls.get());
+		assertEquals(1, b.calls.get());
+		assertTrue(parser.toString(), parser.toString().startsWith("localhost:1 up"));
+
+		// Out of rotation after three failures in a row.
+		parser.parse("Dogs bark.");
+		parser.parse("Dogs bark.");
+		assertEquals(3, a.calls.get());
+		assertTrue(parser.toString(), parser.toString().startsWith("localhost:1 DOWN"));
+		parser.parse("Dogs bark.");
+		assertEquals(3, a.calls.get());
+		assertEquals(4, b.calls.get());
+	}
+
+	@Test
+	public void testSentenceError() throws Exception
+	{
+		start(0);
+		a.bad = true;
+		try
+		{
+			parser.parse("Dogs bark.");
+			fail("no error");
+		}
+		catch (ParseException e)
+		{
+			// Would fail just the same on any other server.
+		}
+		assertEquals(0, b.calls.get());
+		assertTrue(parser.toString(), parser.toString().contains("localhost:1 up outstanding=0 requests=1 errors=0"));
+	}
+
+	@Test
+	public void testAllDown() throws Exception
+	{
+		start(0);
+		a.down = true;
+		b.down = true;
+		try
+		{
+			parser.parse("Dogs bark.");
+			fail("no error");
+		}
+		catch (ParseException e)
+		{
+			assertTrue(e.getCause() instanceof RuntimeException);
+		}
+
+		// Each tried once.
+		assertEquals(1, a.calls.get());
+		assertEquals(1, b.calls.get());
+	}
+
+	@Test
+	public void testHealthCheck() throws Exception
+	{
+		start(1);
+		a.down = true;
+		for (int i = 0; i < 3; i++) parser.parse("Dogs bark.");
+		assertTrue(parser.toString(), parser.toString().startsWith("localhost:1 DOWN"));
+
+		a.down = false;
+		long t0 = System.currentTimeMillis();
+		while (parser.toString().startsWith("localhost:1 DOWN"))
+		{
+			assertTrue(System.currentTimeMillis() - t0 < 5000);
+			Thread.sleep(50);
+		}
+		parser.parse("Dogs bark.");
+		assertEquals(4, a.calls.get());
+	}
+}
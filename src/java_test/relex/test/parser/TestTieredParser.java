@@ -0,0 +1,146 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package relex.test.parser;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+import org.linkgrammar.LGConfig;
+
+import relex.ParsedSentence;
+import relex.Sentence;
+import relex.feature.FeatureNode;
+import relex.feature.LinkableView;
+import relex.parser.LGParser;
+import relex.parser.TieredParser;
+
+public class TestTieredParser
+{
+	/**
+	 * Writes down the config of every call. The strict tier (no
+	 * skipped words) takes "strictMillis", and finds a complete
+	 * parse only if "complete" is set.
+	 */
+	private static class StubParser extends LGParser
+	{
+		final List<LGConfig> calls = new ArrayList<LGConfig>();
+		long strictMillis = 0;
+		boolean complete = false;
+
+		public Sentence parse(String text)
+		{
+			LGConfig cfg = getConfig();
+			calls.add(copyConfig(cfg, new LGConfig()));
+
+			ArrayList<ParsedSentence> parses = new ArrayList<ParsedSentence>();
+			if (!cfg.isAllowSkippedWords())
+			{
+				try
+				{
+					Thread.sleep(strictMillis);
+				}
+				catch (InterruptedException e)
+				{
+					Thread.currentThread().interrupt();
+				}
+				if (!complete) return sentence(text, parses);
+			}
+			ParsedSentence parse = new ParsedSentence(text);
+			FeatureNode wall = new FeatureNode();
+			LinkableView.setWord(wall, "LEFT-WALL");
+			wall.set("wall", wall);
+			parse.addWord(wall);
+			FeatureNode meta = new FeatureNode();
+			meta.set("num_skipped_words", new FeatureNode("0"));
+			parse.setMetaData(meta);
+			parses.add(parse);
+			return sentence(text, parses);
+		}
+
+		private static Sentence sentence(String text, ArrayList<ParsedSentence> parses)
+		{
+			Sentence sntc = new Sentence();
+			sntc.setSentence(text);
+			sntc.setParses(parses);
+			sntc.setNumParses(parses.size());
+			return sntc;
+		}
+
+		public String getVersion() { return "stub"; }
+		public void init() {}
+		public void close() {}
+		public void doFinalize() {}
+	}
+
+	private static LGConfig permissive(int secs)
+	{
+		LGConfig cfg = new LGConfig();
+		cfg.setMaxParseSeconds(secs);
+		cfg.setMaxLinkages(100);
+		cfg.setAllowSkippedWords(true);
+		return cfg;
+	}
+
+	@Test
+	public void testStrictHit()
+	{
+		StubParser stub = new StubParser();
+		stub.complete = true;
+		TieredParser tp = new TieredParser(stub);
+
+		tp.parse("Dogs bark.", permissive(10));
+		assertEquals(1, stub.calls.size());
+		assertFalse(stub.calls.get(0).isAllowSkippedWords());
+		assertEquals(TieredParser.DEFAULT_STRICT_SECONDS, stub.calls.get(0).getMaxParseSeconds());
+		assertEquals(TieredParser.DEFAULT_STRICT_LINKAGES, stub.calls.get(0).getMaxLinkages());
+		assertEquals(1, tp.getStrictHits());
+	}
+
+	@Test
+	public void testFallbackGetsTheRest()
+	{
+		StubParser stub = new StubParser();
+		stub.strictMillis = 1100;
+		TieredParser tp = new TieredParser(stub);
+		LGConfig cfg = permissive(10);
+
+		tp.parse("Dogs bark.", cfg);
+		assertEquals(2, stub.calls.size());
+		LGConfig second = stub.calls.get(1);
+		assertTrue(second.isAllowSkippedWords());
+		assertEquals(100, second.getMaxLinkages());
+		// 1.1 seconds, rounded up, out of ten.
+		assertEquals(8, second.getMaxParseSeconds());
+		assertEquals(10, cfg.getMaxParseSeconds());
+		assertEquals(1, tp.getFallbacks());
+	}
+
+	@Test
+	public void testFallbackGetsAtLeastASecond()
+	{
+		StubParser stub = new StubParser();
+		stub.strictMillis = 1100;
+		TieredParser tp = new TieredParser(stub);
+
+		tp.parse("Dogs bark.", permissive(2));
+		assertEquals(2, stub.calls.get(0).getMaxParseSeconds());
+		assertEquals(1, stub.calls.get(1).getMaxParseSeconds());
+	}
+}
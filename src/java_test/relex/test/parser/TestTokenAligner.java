@@ -0,0 +1,58 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package relex.test.parser;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+import relex.parser.TokenAligner;
+
+public class TestTokenAligner
+{
+	@Test
+	public void testRepeatedWords()
+	{
+		TokenAligner al = new TokenAligner("The cat saw the other cat.");
+		TokenAligner.Offsets off = al.align(new String[] {
+			"LEFT-WALL", "the", "cat.n", "saw.v", "the", "other.a", "cat.n", ".", "RIGHT-WALL"});
+
+		assertArrayEquals(new int[] {-1, 0, 4, 8, 12, 16, 22, 25, -1}, off.start);
+		assertArrayEquals(new int[] {-1, 3, 7, 11, 15, 21, 25, 26, -1}, off.end);
+	}
+
+	@Test
+	public void testMissKeepsPlace()
+	{
+		// "n't" is not in the text; the scan must not restart from
+		// the beginning, or the second "it" would match the first.
+		TokenAligner al = new TokenAligner("it isnt it");
+		TokenAligner.Offsets off = al.align(new String[] {"it", "is", "n't", "it"});
+
+		assertArrayEquals(new int[] {0, 3, -1, 8}, off.start);
+		assertArrayEquals(new int[] {2, 5, -1, 10}, off.end);
+	}
+
+	@Test
+	public void testSameTokensShareOffsets()
+	{
+		TokenAligner al = new TokenAligner("Dogs bark.");
+		String[] toks = new String[] {"LEFT-WALL", "dogs.n", "bark.v", "."};
+		TokenAligner.Offsets a = al.align(toks);
+		TokenAligner.Offsets b = al.align(toks.clone());
+		assertSame(a, b);
+	}
+}